@@ -0,0 +1,115 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.shaman.jmecl.eq.JacobiSolver;
+import org.shaman.jmecl.fluids.Advection;
+import org.shaman.jmecl.fluids.BoundaryTools;
+import org.shaman.jmecl.fluids.Buoyancy;
+import org.shaman.jmecl.fluids.PressureProjection;
+import org.shaman.jmecl.particles.DefaultAdvectionStrategy;
+import org.shaman.jmecl.particles.ShapeSeedingStrategy;
+import org.shaman.jmecl.sorting.BitonicSort;
+import org.shaman.jmecl.sorting.RadixSort;
+import org.shaman.jmecl.sorting.Sorter;
+import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.Compaction;
+import org.shaman.jmecl.utils.Histogram;
+import org.shaman.jmecl.utils.Scan;
+import org.shaman.jmecl.utils.SparseMatrix;
+
+/**
+ * The modules of this library that use OpenCL programs.
+ * The modules are passed to {@link OpenCLSettings#warmUp(org.shaman.jmecl.LibraryModule...) }
+ * to build their programs in the background, e.g. while the application is
+ * loading its assets.
+ * <p>
+ * Each module wraps the {@link ProgramSource} of its class, exposed as the
+ * static {@code PROGRAM_SOURCE} field or by a static {@code getProgramSource}
+ * method if the program depends on a parameter like the number type.
+ * These sources can also be combined freely and passed to
+ * {@link OpenCLSettings#warmUp(java.util.concurrent.ExecutorService, java.util.Collection) }.
+ *
+ * @author Sebastian Weiss
+ */
+public enum LibraryModule {
+	/**
+	 * {@link CLBlas} for {@code Float}
+	 */
+	CLBLAS_FLOAT(CLBlas.getProgramSource(Float.class)),
+	/**
+	 * {@link CLBlas} for {@code Double}
+	 */
+	CLBLAS_DOUBLE(CLBlas.getProgramSource(Double.class)),
+	/**
+	 * {@link CLBlas} for {@code Integer}
+	 */
+	CLBLAS_INTEGER(CLBlas.getProgramSource(Integer.class)),
+	/**
+	 * {@link CLBlas} for {@code Long}
+	 */
+	CLBLAS_LONG(CLBlas.getProgramSource(Long.class)),
+	/**
+	 * {@link CLBlas} for {@code Byte}
+	 */
+	CLBLAS_BYTE(CLBlas.getProgramSource(Byte.class)),
+	/**
+	 * {@link Scan} for {@code Integer}, {@code Long} and {@code Float}
+	 */
+	SCAN(Scan.getProgramSource(Integer.class), Scan.getProgramSource(Long.class),
+			Scan.getProgramSource(Float.class)),
+	/**
+	 * {@link Histogram}
+	 */
+	HISTOGRAM(Histogram.PROGRAM_SOURCE),
+	/**
+	 * {@link SparseMatrix}
+	 */
+	SPARSE_MATRIX(SparseMatrix.PROGRAM_SOURCE),
+	/**
+	 * {@link RadixSort}, including the scan it uses
+	 */
+	RADIX_SORT(RadixSort.PROGRAM_SOURCE, Scan.getProgramSource(Long.class)),
+	/**
+	 * {@link BitonicSort} with {@link Sorter.ComparisonSettings#INT_ASC} and
+	 * {@link Sorter.ComparisonSettings#INT_DESC}
+	 */
+	BITONIC_SORT(BitonicSort.getProgramSource(Sorter.ComparisonSettings.INT_ASC),
+			BitonicSort.getProgramSource(Sorter.ComparisonSettings.INT_DESC)),
+	/**
+	 * {@link JacobiSolver}, including the blas routines it uses
+	 */
+	JACOBI_SOLVER(JacobiSolver.PROGRAM_SOURCE, CLBlas.getProgramSource(Float.class)),
+	/**
+	 * The fluid solver: advection, boundary tools, buoyancy and pressure projection
+	 */
+	FLUIDS(Advection.PROGRAM_SOURCE, BoundaryTools.PROGRAM_SOURCE, 
+			Buoyancy.PROGRAM_SOURCE, PressureProjection.PROGRAM_SOURCE),
+	/**
+	 * The particle system with the default strategies, including the compaction
+	 * and blas routines it uses
+	 */
+	PARTICLES(DefaultAdvectionStrategy.PROGRAM_SOURCE, ShapeSeedingStrategy.PROGRAM_SOURCE,
+			Compaction.PROGRAM_SOURCE, Scan.getProgramSource(Integer.class),
+			CLBlas.getProgramSource(Integer.class));
+	
+	private final List<ProgramSource> programSources;
+
+	private LibraryModule(ProgramSource... programSources) {
+		this.programSources = Collections.unmodifiableList(Arrays.asList(programSources));
+	}
+
+	/**
+	 * @return the sources of all programs used by this module
+	 */
+	public List<ProgramSource> getProgramSources() {
+		return programSources;
+	}
+	
+}
@@ -5,29 +5,72 @@
  */
 package org.shaman.jmecl;
 
+import com.jme3.asset.AssetInfo;
+import com.jme3.asset.AssetKey;
 import com.jme3.asset.AssetManager;
+import com.jme3.asset.AssetNotFoundException;
 import com.jme3.opencl.CommandQueue;
 import com.jme3.opencl.Context;
+import com.jme3.opencl.Program;
 import com.jme3.opencl.ProgramCache;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.shaman.jmecl.utils.BufferPool;
+import org.shaman.jmecl.utils.ComputeMetrics;
+import org.shaman.jmecl.utils.PersistentProgramCache;
+import org.shaman.jmecl.utils.WorkGroupTuner;
 
 /**
  *
  * @author Sebastian Weiss
  */
 public class OpenCLSettings {
-	
+	private static final Logger LOG = Logger.getLogger(OpenCLSettings.class.getName());
+
 	private final Context clContext;
 	private final CommandQueue clCommandQueue;
 	private final ProgramCache programCache;
 	private final AssetManager assetManager;
+	private final Map<String, FutureTask<Program>> programs;
+	private final BufferPool bufferPool;
+	private WorkGroupTuner workGroupTuner;
+	private final ComputeMetrics metrics;
+	private ObjectName metricsName;
+	
+	private static ExecutorService defaultExecutor;
 
-	public OpenCLSettings(Context clContext, CommandQueue clCommandQueue, 
+	public OpenCLSettings(Context clContext, CommandQueue clCommandQueue,
 			ProgramCache programCache, AssetManager assetManager) {
 		this.clContext = clContext;
 		this.clCommandQueue = clCommandQueue;
 		this.programCache = programCache!=null ? programCache : new ProgramCache();
 		this.assetManager = assetManager;
+		this.programs = new HashMap<>();
+		this.bufferPool = new BufferPool(clContext);
+		this.metrics = new ComputeMetrics(clContext, bufferPool, ComputeMetrics.DEFAULT_WINDOW_SIZE);
 	}
 
 	public Context getClContext() {
@@ -46,6 +89,318 @@ public class OpenCLSettings {
 		return assetManager;
 	}
 
+	/**
+	 * Returns the pool of temporary device buffers.
+	 * The library classes borrow their temporary buffers from this pool,
+	 * the retained memory can be limited by {@link BufferPool#setMaxRetainedMemory(long) }.
+	 * @return the buffer pool
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Returns the work group tuner that is consulted by the kernel launchers
+	 * of the library. By default, a tuner without a profile file is used,
+	 * set a tuner with a profile file to persist the tuning results.
+	 * @return the work group tuner
+	 */
+	public synchronized WorkGroupTuner getWorkGroupTuner() {
+		if (workGroupTuner == null) {
+			workGroupTuner = new WorkGroupTuner(clCommandQueue);
+		}
+		return workGroupTuner;
+	}
+
+	/**
+	 * Sets the work group tuner. This must be called before the library
+	 * classes are created, because they fetch the tuner in their constructors.
+	 * @param workGroupTuner the new tuner
+	 */
+	public synchronized void setWorkGroupTuner(WorkGroupTuner workGroupTuner) {
+		this.workGroupTuner = workGroupTuner;
+	}
+
+	/**
+	 * Returns the metrics to which the library classes report their work.
+	 * Call {@link ComputeMetrics#endFrame() } once per frame.
+	 * @return the metrics
+	 */
+	public ComputeMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Registers the {@link #getMetrics() metrics} at the platform MBean server
+	 * under the name {@code org.shaman.jmecl:type=ComputeMetrics,name=<name>}.
+	 * @param name the name to distinguish several OpenCL contexts
+	 * @return {@code true} if the registration succeeded
+	 */
+	public synchronized boolean registerMetricsMBean(String name) {
+		if (metricsName != null) {
+			unregisterMetricsMBean();
+		}
+		try {
+			ObjectName on = new ObjectName("org.shaman.jmecl:type=ComputeMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, on);
+			metricsName = on;
+			LOG.log(Level.INFO, "metrics registered as {0}", on);
+			return true;
+		} catch (JMException ex) {
+			LOG.log(Level.SEVERE, "unable to register the metrics MBean", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server.
+	 * Does nothing if they are not registered.
+	 */
+	public synchronized void unregisterMetricsMBean() {
+		if (metricsName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (JMException ex) {
+			LOG.log(Level.WARNING, "unable to unregister the metrics MBean", ex);
+		}
+		metricsName = null;
+	}
+
+	/**
+	 * Loads, builds and registers the program defined by the specified source files.
+	 * The content of the source files is prefixed by the include string,
+	 * usually a list of {@code #define}s.
+	 * <p>
+	 * The program is first looked up in the program cache. The cache id is
+	 * composed of the specified name and a hash over the include string,
+	 * the source files (including the {@code #import}ed files) and the build options.
+	 * Hence a changed source file or a different include string never returns
+	 * an outdated binary. Programs are shared between all callers with the
+	 * same key, so the returned program must not be released.
+	 * @param name the name of the program, used as a prefix of the cache id
+	 * @param include the include string, may be {@code null}
+	 * @param buildOptions the options passed to the compiler, may be {@code null}
+	 * @param sourceFiles the asset names of the source files
+	 * @return the built program
+	 */
+	public Program loadProgram(String name, String include, String buildOptions, List<String> sourceFiles) {
+		StringBuilder source = new StringBuilder();
+		if (include != null) {
+			source.append(include);
+		}
+		for (String file : sourceFiles) {
+			source.append(readSource(file)).append('\n');
+		}
+		return loadProgramFromSourceCode(name, source.toString(), buildOptions);
+	}
+
+	/**
+	 * Loads, builds and registers the program described by the specified program source.
+	 * If the program is currently built by a warm-up task, this method waits
+	 * for the result instead of building it a second time.
+	 * @param source the program source
+	 * @return the built program
+	 * @see #loadProgram(java.lang.String, java.lang.String, java.lang.String, java.util.List)
+	 * @see #warmUp(java.util.concurrent.ExecutorService, java.util.Collection)
+	 */
+	public Program loadProgram(ProgramSource source) {
+		return loadProgram(source.getName(), source.getInclude(), source.getBuildOptions(), source.getSourceFiles());
+	}
+	
+	/**
+	 * Loads, builds and registers the program defined by the specified source files.
+	 * Calls {@code loadProgram(name, include, null, Arrays.asList(sourceFiles))}.
+	 * @param name the name of the program, used as a prefix of the cache id
+	 * @param include the include string, may be {@code null}
+	 * @param sourceFiles the asset names of the source files
+	 * @return the built program
+	 * @see #loadProgram(java.lang.String, java.lang.String, java.lang.String, java.util.List)
+	 */
+	public Program loadProgram(String name, String include, String... sourceFiles) {
+		return loadProgram(name, include, null, Arrays.asList(sourceFiles));
+	}
+
+	/**
+	 * Loads, builds and registers the program defined by the specified source code.
+	 * {@code #import} statements in the source code are resolved by the asset manager.
+	 * @param name the name of the program, used as a prefix of the cache id
+	 * @param source the source code
+	 * @param buildOptions the options passed to the compiler, may be {@code null}
+	 * @return the built program
+	 * @see #loadProgram(java.lang.String, java.lang.String, java.lang.String, java.util.List)
+	 */
+	public Program loadProgramFromSourceCode(final String name, final String source, String buildOptions) {
+		final String options = buildOptions == null ? "" : buildOptions;
+		StringBuilder key = new StringBuilder(source);
+		appendImports(source, key, new HashSet<String>());
+		key.append('\n').append(options);
+		final String cacheID = name + "-" + PersistentProgramCache.hash(key.toString());
+
+		FutureTask<Program> task;
+		synchronized (programs) {
+			task = programs.get(cacheID);
+			if (task == null) {
+				task = new FutureTask<>(new Callable<Program>() {
+					@Override
+					public Program call() throws Exception {
+						return buildProgram(cacheID, source, options);
+					}
+				});
+				programs.put(cacheID, task);
+			}
+		}
+		//no-op if the task is already running in a warm-up thread or completed
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for program " + cacheID, ex);
+		} catch (ExecutionException ex) {
+			synchronized (programs) {
+				//allow a retry
+				programs.remove(cacheID);
+			}
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			if (ex.getCause() instanceof Error) {
+				throw (Error) ex.getCause();
+			}
+			throw new IllegalStateException("unable to build program " + cacheID, ex.getCause());
+		}
+	}
+	
+	private Program buildProgram(String cacheID, String source, String options) {
+		Program program = programCache.loadFromCache(cacheID, options);
+		if (program == null) {
+			LOG.log(Level.FINE, "build program {0}", cacheID);
+			program = clContext.createProgramFromSourceCodeWithDependencies(source, assetManager);
+			program.build(options, clCommandQueue.getDevice());
+			if (programCache instanceof PersistentProgramCache) {
+				((PersistentProgramCache) programCache).saveToCache(cacheID, options, program);
+			} else {
+				programCache.saveToCache(cacheID, program);
+			}
+		}
+		synchronized (programs) {
+			program.register();
+		}
+		return program;
+	}
+	
+	/**
+	 * Builds the specified programs concurrently on the specified executor.
+	 * Later calls to {@link #loadProgram(org.shaman.jmecl.ProgramSource) }
+	 * (e.g. from the constructors of the library classes) pick up the prebuilt
+	 * programs or wait for the running build, so the compilation does not block
+	 * the main thread if the warm-up was started early enough.
+	 * @param executor the executor that builds the programs
+	 * @param sources the programs to build
+	 * @return one future per program source, in the same order
+	 * @see LibraryModule#getProgramSources() 
+	 */
+	public List<Future<Program>> warmUp(ExecutorService executor, Collection<ProgramSource> sources) {
+		List<Future<Program>> futures = new ArrayList<>(sources.size());
+		for (final ProgramSource source : sources) {
+			futures.add(executor.submit(new Callable<Program>() {
+				@Override
+				public Program call() throws Exception {
+					return loadProgram(source);
+				}
+			}));
+		}
+		return futures;
+	}
+	
+	/**
+	 * Builds the programs of the specified library modules concurrently on the
+	 * specified executor.
+	 * @param executor the executor that builds the programs
+	 * @param modules the modules to warm up
+	 * @return one future per program
+	 * @see #warmUp(java.util.concurrent.ExecutorService, java.util.Collection) 
+	 */
+	public List<Future<Program>> warmUp(ExecutorService executor, LibraryModule... modules) {
+		List<ProgramSource> sources = new ArrayList<>();
+		for (LibraryModule m : modules) {
+			sources.addAll(m.getProgramSources());
+		}
+		return warmUp(executor, sources);
+	}
+	
+	/**
+	 * Builds the programs of the specified library modules concurrently on a
+	 * shared pool of daemon threads, one thread per available processor.
+	 * @param modules the modules to warm up
+	 * @return one future per program
+	 * @see #warmUp(java.util.concurrent.ExecutorService, java.util.Collection) 
+	 */
+	public List<Future<Program>> warmUp(LibraryModule... modules) {
+		return warmUp(getDefaultExecutor(), modules);
+	}
+	
+	private static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int counter = 0;
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "OpenCL-WarmUp-" + (counter++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	private String readSource(String file) {
+		AssetInfo info = assetManager.locateAsset(new AssetKey<String>(file));
+		if (info == null) {
+			throw new AssetNotFoundException("Unable to load source file \"" + file + "\"");
+		}
+		StringBuilder str = new StringBuilder();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(info.openStream(), StandardCharsets.UTF_8))) {
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) {
+					break;
+				}
+				str.append(line).append('\n');
+			}
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "unable to load source file '" + file + "'", ex);
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Appends the content of all (transitively) imported files to the key,
+	 * changes in an imported file must invalidate the cached binary as well.
+	 */
+	private void appendImports(String source, StringBuilder key, Set<String> visited) {
+		for (String line : source.split("\n")) {
+			line = line.trim();
+			if (!line.startsWith("#import")) {
+				continue;
+			}
+			int start = line.indexOf('"');
+			int end = line.lastIndexOf('"');
+			if (start < 0 || end <= start) {
+				continue;
+			}
+			String file = line.substring(start + 1, end);
+			if (visited.add(file)) {
+				String content = readSource(file);
+				key.append('\n').append(content);
+				appendImports(content, key, visited);
+			}
+		}
+	}
+
 	@Override
 	public int hashCode() {
 		int hash = 3;
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Describes how a program is assembled: the name, the include string that
+ * is prepended to the source files, the build options and the source files.
+ * Instances are immutable and can be passed to
+ * {@link OpenCLSettings#loadProgram(org.shaman.jmecl.ProgramSource) } or
+ * {@link OpenCLSettings#warmUp(java.util.concurrent.ExecutorService, java.util.Collection) }.
+ * <p>
+ * The classes of this library expose the sources of their programs,
+ * see {@link LibraryModule}.
+ *
+ * @author Sebastian Weiss
+ */
+public final class ProgramSource {
+	private final String name;
+	private final String include;
+	private final String buildOptions;
+	private final List<String> sourceFiles;
+
+	/**
+	 * Creates a new program source.
+	 * @param name the name of the program, used as a prefix of the cache id
+	 * @param include the include string, may be {@code null}
+	 * @param buildOptions the options passed to the compiler, may be {@code null}
+	 * @param sourceFiles the asset names of the source files
+	 */
+	public ProgramSource(String name, String include, String buildOptions, String... sourceFiles) {
+		if (name == null) {
+			throw new NullPointerException("name is null");
+		}
+		if (sourceFiles.length == 0) {
+			throw new IllegalArgumentException("at least one source file must be specified");
+		}
+		this.name = name;
+		this.include = include;
+		this.buildOptions = buildOptions;
+		this.sourceFiles = Collections.unmodifiableList(Arrays.asList(sourceFiles.clone()));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getInclude() {
+		return include;
+	}
+
+	public String getBuildOptions() {
+		return buildOptions;
+	}
+
+	public List<String> getSourceFiles() {
+		return sourceFiles;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 7;
+		hash = 59 * hash + Objects.hashCode(this.name);
+		hash = 59 * hash + Objects.hashCode(this.include);
+		hash = 59 * hash + Objects.hashCode(this.buildOptions);
+		hash = 59 * hash + Objects.hashCode(this.sourceFiles);
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final ProgramSource other = (ProgramSource) obj;
+		if (!Objects.equals(this.name, other.name)) {
+			return false;
+		}
+		if (!Objects.equals(this.include, other.include)) {
+			return false;
+		}
+		if (!Objects.equals(this.buildOptions, other.buildOptions)) {
+			return false;
+		}
+		if (!Objects.equals(this.sourceFiles, other.sourceFiles)) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ProgramSource{" + "name=" + name + ", sourceFiles=" + sourceFiles + '}';
+	}
+
+}
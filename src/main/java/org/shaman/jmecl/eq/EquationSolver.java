@@ -8,6 +8,8 @@ package org.shaman.jmecl.eq;
 import com.jme3.opencl.Buffer;
 import org.shaman.jmecl.OpenCLSettings;
 import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.CommandGraph;
+import org.shaman.jmecl.utils.ComputeMetrics;
 
 /**
  * Base class for all sparse linear equation solvers on floats, it solves Ax=b for x.
@@ -44,6 +46,7 @@ public abstract class EquationSolver {
 		long size = 4 * resolutionX * resolutionY * resolutionZ;
 		this.bufX = clSettings.getClContext().createBuffer(size);
 		this.bufB = clSettings.getClContext().createBuffer(size);
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER, 2 * size);
 	}
 
 	/**
@@ -61,6 +64,7 @@ public abstract class EquationSolver {
 		long size = 4 * resolutionX * resolutionY;
 		this.bufX = clSettings.getClContext().createBuffer(size);
 		this.bufB = clSettings.getClContext().createBuffer(size);
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER, 2 * size);
 	}
 
 	/**
@@ -119,6 +123,14 @@ public abstract class EquationSolver {
 		CLBlas.get(clSettings, Float.class).fill(bufX, 0.0f);
 	}
 	
+	/**
+	 * Records {@link #setXToZero() } into the specified command graph.
+	 * @param graph the command graph
+	 */
+	public void recordSetXToZero(CommandGraph graph) {
+		CLBlas.get(clSettings, Float.class).recordFill(graph, bufX, 0.0f, bufX.getSize() / 4, 0, 1);
+	}
+	
 	/**
 	 * For the implementations: tests if the arguments to 
 	 * {@link #setA(com.jme3.opencl.Buffer, int, int, int) } are valid.
@@ -149,8 +161,8 @@ public abstract class EquationSolver {
 		if (buf == null) {
 			throw new NullPointerException("buffer is null");
 		}
-		if (buf.getSize() != resolutionX*resolutionY*resolutionZ*4) {
-			throw new IllegalArgumentException("wrong buffer size, expected: "+
+		if (buf.getSize() < resolutionX*resolutionY*resolutionZ*4) {
+			throw new IllegalArgumentException("buffer too small, expected at least: "+
 					(resolutionX*resolutionY*resolutionZ*4)+", actual: "+buf.getSize());
 		}
 	}
@@ -159,8 +171,8 @@ public abstract class EquationSolver {
 	 * Allowed stencil values are: (0,0,0), (1,0,0), (-1,0,0), (0,1,0), (0,-1,0),
 	 * (0,0,1) and (0,0,-1). In the 2D mode, the z-coordinate must be zero.
 	 * After setting all stencil values, call {@link #assembleMatrix() }.
-	 * @param buf the buffer, must contain {@code resolutionX*resolutionY*resolutionZ} 
-	 * floats.
+	 * @param buf the buffer, must contain at least {@code resolutionX*resolutionY*resolutionZ} 
+	 * floats, only the first {@code resolutionX*resolutionY*resolutionZ} floats are used.
 	 * @param stencilX the x coordinate of the stencil
 	 * @param stencilY the y coordinate of the stencil
 	 * @param stencilZ the z coordinate of the stencil
@@ -202,4 +214,24 @@ public abstract class EquationSolver {
 	 *	or one of the constants {@link #ERROR_DONT_TEST} and {@link #ERROR_ONLY_TEST_AT_THE_END}
 	 */
 	public abstract void solve(int maxIteration, float maxError);
+	
+	/**
+	 * Records a fixed number of iterations of the solver into the specified
+	 * command graph. This corresponds to {@code solve(iterations, ERROR_DONT_TEST)},
+	 * because the graph can't react on the residuum.
+	 * @param graph the command graph
+	 * @param iterations the number of iterations
+	 */
+	public abstract void recordSolve(CommandGraph graph, int iterations);
+	
+	/**
+	 * Releases the buffers of this solver, it must not be used afterwards.
+	 * Implementations that allocate further buffers override this method
+	 * and call the super method.
+	 */
+	public void release() {
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER, -bufX.getSize() - bufB.getSize());
+		bufX.release();
+		bufB.release();
+	}
 }
@@ -12,7 +12,14 @@ import com.jme3.opencl.Program;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
 import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.CommandGraph;
+import org.shaman.jmecl.utils.ComputeMetrics;
+import org.shaman.jmecl.utils.KernelLauncher;
+import org.shaman.jmecl.utils.ProfilingContextFactory;
+import org.shaman.jmecl.utils.SparseMatrix;
+import org.shaman.jmecl.utils.WorkGroupTuner;
 
 /**
  * A very simple jacobi solver.
@@ -22,13 +29,22 @@ public class JacobiSolver extends EquationSolver {
 
 	private static final Logger LOG = Logger.getLogger(JacobiSolver.class.getName());
 	private static final String SOURCE_FILE = "org/shaman/jmecl/eq/JacobiSolver.cl";
+	/**
+	 * The program with the Jacobi iteration kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(JacobiSolver.class.getName(), null, null, SOURCE_FILE);
 	
 	protected Buffer bufXCopy;
 	protected Buffer bufA;
 	protected Buffer bufRes;
 	protected Kernel iteration2DKernel;
 	protected Kernel iteration3DKernel;
+	protected KernelLauncher iterationLauncher;
+	private final Buffer[] pingPongBuffers;
+	private final CLBlas.ReduceResult reduceResult;
 	protected CLBlas<Float> blas;
+	private CLBlas<Float>.ReduceRing residualRing;
+	private int residualLag;
 	
 	public JacobiSolver(OpenCLSettings clSettings, int resolutionX, int resolutionY, int resolutionZ) {
 		super(clSettings, resolutionX, resolutionY, resolutionZ);
@@ -36,16 +52,17 @@ public class JacobiSolver extends EquationSolver {
 		this.bufXCopy = clSettings.getClContext().createBuffer(size);
 		this.bufRes = clSettings.getClContext().createBuffer(size);
 		this.bufA = clSettings.getClContext().createBuffer(7 * size);
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER, 9 * size);
 		
-		String cacheID = JacobiSolver.class.getName();
-		Program program = clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			program = clSettings.getClContext().createProgramFromSourceFiles(clSettings.getAssetManager(), SOURCE_FILE);
-			program.build();
-			clSettings.getProgramCache().saveToCache(cacheID, program);
-		}
-		program.register();
+		Program program = clSettings.loadProgram(PROGRAM_SOURCE);
 		iteration3DKernel = program.createKernel("Iteration3D").register();
+		iterationLauncher = new KernelLauncher(iteration3DKernel, clSettings.getClCommandQueue(), clSettings.getWorkGroupTuner())
+				.setGlobalWorkSize(resolutionX * resolutionY * resolutionZ)
+				.setArg(2, bufB).setArg(3, bufA)
+				.setArg(4, resolutionX).setArg(5, resolutionY).setArg(6, resolutionZ)
+				.setArg(7, bufRes);
+		pingPongBuffers = new Buffer[]{bufX, bufXCopy};
+		reduceResult = new CLBlas.ReduceResult(false);
 		blas = CLBlas.get(clSettings, Float.class);
 	}
 
@@ -55,16 +72,17 @@ public class JacobiSolver extends EquationSolver {
 		this.bufXCopy = clSettings.getClContext().createBuffer(size);
 		this.bufRes = clSettings.getClContext().createBuffer(size);
 		this.bufA = clSettings.getClContext().createBuffer(5 * size);
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER, 7 * size);
 		
-		String cacheID = JacobiSolver.class.getName();
-		Program program = clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			program = clSettings.getClContext().createProgramFromSourceFiles(clSettings.getAssetManager(), SOURCE_FILE);
-			program.build();
-			clSettings.getProgramCache().saveToCache(cacheID, program);
-		}
-		program.register();
+		Program program = clSettings.loadProgram(PROGRAM_SOURCE);
 		iteration2DKernel = program.createKernel("Iteration2D").register();
+		iterationLauncher = new KernelLauncher(iteration2DKernel, clSettings.getClCommandQueue(), clSettings.getWorkGroupTuner())
+				.setGlobalWorkSize(resolutionX * resolutionY)
+				.setArg(2, bufB).setArg(3, bufA)
+				.setArg(4, resolutionX).setArg(5, resolutionY)
+				.setArg(6, bufRes);
+		pingPongBuffers = new Buffer[]{bufX, bufXCopy};
+		reduceResult = new CLBlas.ReduceResult(false);
 		blas = CLBlas.get(clSettings, Float.class);
 	}
 	
@@ -90,66 +108,172 @@ public class JacobiSolver extends EquationSolver {
 		buf.copyToAsync(clSettings.getClCommandQueue(), bufA, size, 0, offset).release();
 	}
 
+	/**
+	 * Creates a copy of the matrix set by {@link #setA(com.jme3.opencl.Buffer, int, int, int) }
+	 * in the diagonal storage format, e.g. to compute residuals or to pass
+	 * it to other solvers. The caller has to release the returned matrix.
+	 * @return the matrix in DIA format
+	 */
+	public SparseMatrix.DIA createSparseMatrix() {
+		return SparseMatrix.fromStencil(clSettings, bufA, resolutionX, resolutionY, resolutionZ, twoD);
+	}
+
+	/**
+	 * Sets by how many iterations the convergence test may lag behind.
+	 * With a lag of zero (the default), the residual is read back blocking in
+	 * every iteration, which drains the command queue. With a lag of {@code n},
+	 * the residual is transferred asynchronously and the test is performed
+	 * on the residual from {@code n} iterations ago. The solver then performs
+	 * up to {@code n} more iterations than necessary, but the device never
+	 * idles while waiting for the host.
+	 * @param lag the lag in iterations, non-negative
+	 */
+	public void setResidualLag(int lag) {
+		if (lag < 0) {
+			throw new IllegalArgumentException("lag must be non-negative");
+		}
+		if (lag != residualLag && residualRing != null) {
+			residualRing.release();
+			residualRing = null;
+		}
+		this.residualLag = lag;
+	}
+
+	public int getResidualLag() {
+		return residualLag;
+	}
+	
+	@Override
+	public void release() {
+		if (residualRing != null) {
+			residualRing.release();
+			residualRing = null;
+		}
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER,
+				-bufXCopy.getSize() - bufRes.getSize() - bufA.getSize());
+		bufXCopy.release();
+		bufRes.release();
+		bufA.release();
+		if (iteration2DKernel != null) {
+			iteration2DKernel.release();
+		}
+		if (iteration3DKernel != null) {
+			iteration3DKernel.release();
+		}
+		super.release();
+	}
+
 	@Override
 	public void solve(int maxIteration, float maxError) {
-		CommandQueue q = clSettings.getClCommandQueue();
-		if (is2D()) {
-			int i;
-			float residuum = 0;
-			Buffer bufs[] = new Buffer[]{bufX, bufXCopy};
-			Kernel.WorkSize ws = new Kernel.WorkSize(resolutionX * resolutionY);
-			CLBlas.ReduceResult reduceResult = new CLBlas.ReduceResult();
-			for (i=0; i<maxIteration; ++i) {
-				int b1 = i%2;
-				int b2 = (i+1)%2;
-				iteration2DKernel.Run1NoEvent(q, ws, bufs[b1], bufs[b2], bufB, bufA, resolutionX, resolutionY, bufRes);
-				if (maxError > 0 || (i==maxIteration-1 && maxError==ERROR_ONLY_TEST_AT_THE_END)) {
-					reduceResult = blas.reduce(bufRes, CLBlas.PreReduceOp.SQUARE, CLBlas.ReduceOp.ADD, reduceResult);
-					residuum = blas.getReduceResultBlocking(reduceResult);
-					if (residuum < maxError) {
-						i++;
-						break;
-					}
-					if (maxError>0) {
-						LOG.log(Level.FINE, "Iteration {0}: residium={1}", new Object[]{i, residuum});
-					}
+		if (residualLag > 0 && maxError > 0) {
+			solveLagged(maxIteration, maxError);
+			return;
+		}
+		int i;
+		float residuum = 0;
+		Buffer bufs[] = pingPongBuffers;
+		for (i=0; i<maxIteration; ++i) {
+			int b1 = i%2;
+			int b2 = (i+1)%2;
+			iterationLauncher.setArg(0, bufs[b1]).setArg(1, bufs[b2]).launch();
+			if (maxError > 0 || (i==maxIteration-1 && maxError==ERROR_ONLY_TEST_AT_THE_END)) {
+				blas.reduce(bufRes, CLBlas.PreReduceOp.SQUARE, CLBlas.ReduceOp.ADD, reduceResult);
+				residuum = blas.getReduceResultBlocking(reduceResult);
+				if (residuum < maxError) {
+					i++;
+					break;
 				}
-			}
-			if (i%2 == 1) {
-				bufs[1].copyToAsync(q, bufs[0]).release();
-			}
-			if (maxError>0 || maxError==ERROR_ONLY_TEST_AT_THE_END) {
-				LOG.log(Level.INFO, "solved after {0} iterations with an error of {1}", new Object[]{i, residuum});
-			}
-		} else {
-			int i;
-			float residuum = 0;
-			Buffer bufs[] = new Buffer[]{bufX, bufXCopy};
-			Kernel.WorkSize ws = new Kernel.WorkSize(resolutionX * resolutionY * resolutionZ);
-			CLBlas.ReduceResult reduceResult = new CLBlas.ReduceResult();
-			for (i=0; i<maxIteration; ++i) {
-				int b1 = i%2;
-				int b2 = (i+1)%2;
-				iteration3DKernel.Run1NoEvent(q, ws, bufs[b1], bufs[b2], bufB, bufA, resolutionX, resolutionY, resolutionZ, bufRes);
-				if (maxError > 0 || (i==maxIteration-1 && maxError==ERROR_ONLY_TEST_AT_THE_END)) {
-					reduceResult = blas.reduce(bufRes, CLBlas.PreReduceOp.SQUARE, CLBlas.ReduceOp.ADD, reduceResult);
-					residuum = blas.getReduceResultBlocking(reduceResult);
-					if (residuum < maxError) {
-						i++;
-						break;
-					}
-					if (maxError>0) {
-						LOG.log(Level.FINE, "Iteration {0}: residium={1}", new Object[]{i, residuum});
-					}
+				if (maxError>0 && LOG.isLoggable(Level.FINE)) {
+					LOG.log(Level.FINE, "Iteration {0}: residium={1}", new Object[]{i, residuum});
 				}
 			}
-			if (i%2 == 1) {
-				bufs[1].copyToAsync(q, bufs[0]).release();
+		}
+		finishSolve(i, maxError, residuum);
+	}
+	
+	/**
+	 * The iteration with a convergence test on the residual from
+	 * {@link #residualLag} iterations ago.
+	 */
+	private void solveLagged(int maxIteration, float maxError) {
+		if (residualRing == null) {
+			residualRing = blas.createReduceRing(residualLag + 1);
+		}
+		int i;
+		float residuum = Float.NaN;
+		Buffer bufs[] = pingPongBuffers;
+		for (i=0; i<maxIteration; ++i) {
+			int b1 = i%2;
+			int b2 = (i+1)%2;
+			iterationLauncher.setArg(0, bufs[b1]).setArg(1, bufs[b2]).launch();
+			blas.reduce(bufRes, CLBlas.PreReduceOp.SQUARE, CLBlas.ReduceOp.ADD, residualRing.next());
+			residualRing.submit(null);
+			Float lagged = residualRing.getLagged(Math.min(i, residualLag));
+			if (lagged != null) {
+				residuum = lagged;
+				if (residuum < maxError) {
+					i++;
+					break;
+				}
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.log(Level.FINE, "Iteration {0}: residium={1}", new Object[]{i, residuum});
+				}
 			}
-			if (maxError>0 || maxError==ERROR_ONLY_TEST_AT_THE_END) {
-				LOG.log(Level.INFO, "solved after {0} iterations with an error of {1}", new Object[]{i, residuum});
+		}
+		//report the residual of the last performed iteration
+		residualRing.flush();
+		Float last = residualRing.getLagged(0);
+		if (last != null) {
+			residuum = last;
+		}
+		finishSolve(i, maxError, residuum);
+	}
+	
+	private void finishSolve(int i, float maxError, float residuum) {
+		CommandQueue q = clSettings.getClCommandQueue();
+		if (i%2 == 1) {
+			ProfilingContextFactory.track(clSettings.getClContext(), "JacobiSolver.copyResult", "copy",
+					q, pingPongBuffers[1].copyToAsync(q, pingPongBuffers[0]));
+		}
+		boolean tested = maxError>0 || maxError==ERROR_ONLY_TEST_AT_THE_END;
+		clSettings.getMetrics().setJacobiResult(i, tested ? residuum : Float.NaN);
+		if (tested) {
+			LOG.log(Level.INFO, "solved after {0} iterations with an error of {1}", new Object[]{i, residuum});
+		}
+	}
+	
+	/**
+	 * Measures the best work group size of the iteration kernel and stores it
+	 * in the specified tuner. The x buffer is not modified.
+	 * @param tuner the work group tuner
+	 */
+	public void tuneWorkGroupSize(WorkGroupTuner tuner) {
+		iterationLauncher.setArg(0, bufX).setArg(1, bufXCopy);
+		tuner.tune(iterationLauncher);
+	}
+	
+	@Override
+	public void recordSolve(CommandGraph graph, int iterations) {
+		Program program = clSettings.loadProgram(PROGRAM_SOURCE);
+		Buffer bufs[] = new Buffer[]{bufX, bufXCopy};
+		Kernel.WorkSize ws;
+		if (is2D()) {
+			ws = new Kernel.WorkSize(resolutionX * resolutionY);
+		} else {
+			ws = new Kernel.WorkSize(resolutionX * resolutionY * resolutionZ);
+		}
+		for (int i=0; i<iterations; ++i) {
+			int b1 = i%2;
+			int b2 = (i+1)%2;
+			if (is2D()) {
+				graph.addKernel(program, "Iteration2D", ws, bufs[b1], bufs[b2], bufB, bufA, resolutionX, resolutionY, bufRes);
+			} else {
+				graph.addKernel(program, "Iteration3D", ws, bufs[b1], bufs[b2], bufB, bufA, resolutionX, resolutionY, resolutionZ, bufRes);
 			}
 		}
+		if (iterations%2 == 1) {
+			graph.addCopy(bufs[1], bufs[0], bufs[0].getSize());
+		}
 	}
 	
 }
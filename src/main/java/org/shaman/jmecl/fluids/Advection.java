@@ -5,8 +5,13 @@
  */
 package org.shaman.jmecl.fluids;
 
+import com.jme3.math.Vector3f;
 import com.jme3.opencl.Kernel;
-import com.jme3.opencl.Program;
+import org.shaman.jmecl.ProgramSource;
+import org.shaman.jmecl.utils.CommandGraph;
+import org.shaman.jmecl.utils.KernelLauncher;
+import org.shaman.jmecl.utils.ProfilingContextFactory;
+import org.shaman.jmecl.utils.WorkGroupTuner;
 
 /**
  * The advection step advects real grids (e.g. density or temperature) or
@@ -15,47 +20,121 @@ import com.jme3.opencl.Program;
  */
 public class Advection {
 	private static final String SOURCE_FILE = "org/shaman/jmecl/fluids/Advection.cl";
+	/**
+	 * The program with the advection kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(Advection.class.getName(), null, null, SOURCE_FILE);
 	
 	protected final FluidSolver solver;
 	
 	protected final RealGrid tmpRealGrid;
 	protected final MACGrid tmpMACGrid;
-	protected final Kernel semiLagrangeReal2DKernel;
-	protected final Kernel semiLagrangeMAC2DKernel;
+	protected KernelLauncher semiLagrangeReal2DLauncher;
+	protected KernelLauncher semiLagrangeMAC2DLauncher;
 
 	public Advection(FluidSolver solver) {
 		this.solver = solver;
 		
 		tmpRealGrid = solver.createRealGrid();
 		tmpMACGrid = solver.createMACGrid();
-		
-		String cacheID = Advection.class.getName();
-		Program program = solver.clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			program = solver.clSettings.getClContext().createProgramFromSourceFiles(solver.clSettings.getAssetManager(), SOURCE_FILE);
-			program.build();
-			solver.clSettings.getProgramCache().saveToCache(cacheID, program);
-		}
-		program.register();
-		semiLagrangeReal2DKernel = program.createKernel("SemiLagrangeReal2D");
-		semiLagrangeMAC2DKernel = program.createKernel("SemiLagrangeMAC2D");
 	}
 	
 	public void advect(MACGrid velocity, RealGrid toAdvect, float timestep, int order) {
+		ProfilingContextFactory.HostSection section = ProfilingContextFactory.beginHostSection(
+				solver.clSettings.getClContext(), "Advection.advect(RealGrid)");
 		if (solver.is2D()) {
-			Kernel.WorkSize ws = new Kernel.WorkSize(solver.getResolutionX() * solver.getResolutionY());
-			semiLagrangeReal2DKernel.Run1NoEvent(solver.clSettings.getClCommandQueue(), ws, 
-					toAdvect.buffer, tmpRealGrid.buffer, velocity.buffer, timestep, solver.getResolutionX(), solver.getResolutionY());
+			getSemiLagrangeReal2DLauncher().setArg(0, toAdvect.buffer).setArg(1, tmpRealGrid.buffer)
+					.setArg(2, velocity.buffer).setArg(3, timestep).launch();
 			toAdvect.swap(tmpRealGrid);
 		}
+		section.end();
 	}
 	
 	public void advect(MACGrid velocity, MACGrid toAdvect, float timestep, int order) {
+		ProfilingContextFactory.HostSection section = ProfilingContextFactory.beginHostSection(
+				solver.clSettings.getClContext(), "Advection.advect(MACGrid)");
+		if (solver.is2D()) {
+			getSemiLagrangeMAC2DLauncher().setArg(0, toAdvect.buffer).setArg(1, tmpMACGrid.buffer)
+					.setArg(2, velocity.buffer).setArg(3, timestep).launch();
+			toAdvect.swap(tmpMACGrid);
+		}
+		section.end();
+	}
+	
+	/**
+	 * Records {@link #advect(org.shaman.jmecl.fluids.MACGrid, org.shaman.jmecl.fluids.RealGrid, float, int) }
+	 * into the specified command graph.
+	 * Instead of swapping the buffers, the result is copied back into the advected grid,
+	 * so that the recorded buffers stay valid.
+	 * @param graph the command graph
+	 * @param velocity the velocity grid
+	 * @param toAdvect the grid to advect
+	 * @param timestep the timestep, a {@code Float} placeholder
+	 * @param order the order of the integration
+	 */
+	public void recordAdvect(CommandGraph graph, MACGrid velocity, RealGrid toAdvect, CommandGraph.Placeholder timestep, int order) {
 		if (solver.is2D()) {
 			Kernel.WorkSize ws = new Kernel.WorkSize(solver.getResolutionX() * solver.getResolutionY());
-			semiLagrangeMAC2DKernel.Run1NoEvent(solver.clSettings.getClCommandQueue(), ws, 
+			graph.addKernel(solver.loadProgram(PROGRAM_SOURCE), "SemiLagrangeReal2D", ws,
+					toAdvect.buffer, tmpRealGrid.buffer, velocity.buffer, timestep, solver.getResolutionX(), solver.getResolutionY());
+			graph.addCopy(tmpRealGrid.buffer, toAdvect.buffer, toAdvect.buffer.getSize());
+		}
+	}
+	
+	/**
+	 * Records {@link #advect(org.shaman.jmecl.fluids.MACGrid, org.shaman.jmecl.fluids.MACGrid, float, int) }
+	 * into the specified command graph.
+	 * Instead of swapping the buffers, the result is copied back into the advected grid,
+	 * so that the recorded buffers stay valid.
+	 * @param graph the command graph
+	 * @param velocity the velocity grid
+	 * @param toAdvect the grid to advect
+	 * @param timestep the timestep, a {@code Float} placeholder
+	 * @param order the order of the integration
+	 */
+	public void recordAdvect(CommandGraph graph, MACGrid velocity, MACGrid toAdvect, CommandGraph.Placeholder timestep, int order) {
+		if (solver.is2D()) {
+			Kernel.WorkSize ws = new Kernel.WorkSize(solver.getResolutionX() * solver.getResolutionY());
+			graph.addKernel(solver.loadProgram(PROGRAM_SOURCE), "SemiLagrangeMAC2D", ws,
 					toAdvect.buffer, tmpMACGrid.buffer, velocity.buffer, timestep, solver.getResolutionX(), solver.getResolutionY());
-			toAdvect.swap(tmpMACGrid);
+			graph.addCopy(tmpMACGrid.buffer, toAdvect.buffer, toAdvect.buffer.getSize());
+		}
+	}
+	
+	/**
+	 * Measures the best work group sizes of the advection kernels and stores
+	 * them in the specified tuner. Temporary grids are used as input.
+	 * @param tuner the work group tuner
+	 */
+	public void tuneWorkGroupSize(WorkGroupTuner tuner) {
+		if (!solver.is2D()) {
+			return;
+		}
+		RealGrid realGrid = solver.createRealGrid();
+		MACGrid macGrid = solver.createMACGrid();
+		realGrid.fill(0);
+		macGrid.fill(Vector3f.ZERO);
+		tuner.tune(getSemiLagrangeReal2DLauncher().setArg(0, realGrid.buffer).setArg(1, tmpRealGrid.buffer)
+				.setArg(2, macGrid.buffer).setArg(3, 0.1f));
+		tuner.tune(getSemiLagrangeMAC2DLauncher().setArg(0, macGrid.buffer).setArg(1, tmpMACGrid.buffer)
+				.setArg(2, macGrid.buffer).setArg(3, 0.1f));
+		realGrid.release();
+		macGrid.release();
+	}
+	
+	protected KernelLauncher getSemiLagrangeReal2DLauncher() {
+		if (semiLagrangeReal2DLauncher == null) {
+			semiLagrangeReal2DLauncher = solver.createLauncher(PROGRAM_SOURCE, "SemiLagrangeReal2D");
+			semiLagrangeReal2DLauncher.setArg(4, solver.getResolutionX()).setArg(5, solver.getResolutionY());
+		}
+		return semiLagrangeReal2DLauncher;
+	}
+	
+	protected KernelLauncher getSemiLagrangeMAC2DLauncher() {
+		if (semiLagrangeMAC2DLauncher == null) {
+			semiLagrangeMAC2DLauncher = solver.createLauncher(PROGRAM_SOURCE, "SemiLagrangeMAC2D");
+			semiLagrangeMAC2DLauncher.setArg(4, solver.getResolutionX()).setArg(5, solver.getResolutionY());
 		}
+		return semiLagrangeMAC2DLauncher;
 	}
 }
@@ -6,7 +6,7 @@
 package org.shaman.jmecl.fluids;
 
 import com.jme3.opencl.Kernel;
-import com.jme3.opencl.Program;
+import org.shaman.jmecl.ProgramSource;
 
 /**
  *
@@ -14,25 +14,18 @@ import com.jme3.opencl.Program;
  */
 public class BoundaryTools {
 	private static final String SOURCE_FILE = "org/shaman/jmecl/fluids/BoundaryTools.cl";
+	/**
+	 * The program with the boundary condition kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(BoundaryTools.class.getName(), null, null, SOURCE_FILE);
 	
 	private final FluidSolver solver;
 	
-	private final Kernel setFlagsRect2DKernel;
-	private final Kernel applyDirichlet2DKernel;
+	private Kernel setFlagsRect2DKernel;
+	private Kernel applyDirichlet2DKernel;
 
 	public BoundaryTools(FluidSolver solver) {
 		this.solver = solver;
-		
-		String cacheID = BoundaryTools.class.getName();
-		Program program = solver.clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			program = solver.clSettings.getClContext().createProgramFromSourceFiles(solver.clSettings.getAssetManager(), SOURCE_FILE);
-			program.build();
-			solver.clSettings.getProgramCache().saveToCache(cacheID, program);
-		}
-		program.register();
-		setFlagsRect2DKernel = program.createKernel("SetFlagsRect2D");
-		applyDirichlet2DKernel = program.createKernel("ApplyDirichlet2D");
 	}
 	
 	/**
@@ -49,7 +42,7 @@ public class BoundaryTools {
 				throw new IllegalArgumentException("arrays must have length 2");
 			}
 			Kernel.WorkSize ws = new Kernel.WorkSize(size[0] * size[1]);
-			setFlagsRect2DKernel.Run1NoEvent(solver.clSettings.getClCommandQueue(), ws, 
+			getSetFlagsRect2DKernel().Run1NoEvent(solver.clSettings.getClCommandQueue(), ws, 
 					flags.getBuffer(), type, origin[0], origin[1], size[0], size[1], 
 					solver.getResolutionX(), solver.getResolutionY());
 		}
@@ -66,9 +59,23 @@ public class BoundaryTools {
 	{
 		if (solver.is2D()) {
 			Kernel.WorkSize ws = new Kernel.WorkSize(solver.getResolutionX() * solver.getResolutionY());
-			applyDirichlet2DKernel.Run1NoEvent(solver.clSettings.getClCommandQueue(), ws, 
+			getApplyDirichlet2DKernel().Run1NoEvent(solver.clSettings.getClCommandQueue(), ws, 
 					target.buffer, flags.buffer, type.value, value,
 					solver.getResolutionX(), solver.getResolutionY());
 		}
 	}
+	
+	private Kernel getSetFlagsRect2DKernel() {
+		if (setFlagsRect2DKernel == null) {
+			setFlagsRect2DKernel = solver.createKernel(PROGRAM_SOURCE, "SetFlagsRect2D");
+		}
+		return setFlagsRect2DKernel;
+	}
+	
+	private Kernel getApplyDirichlet2DKernel() {
+		if (applyDirichlet2DKernel == null) {
+			applyDirichlet2DKernel = solver.createKernel(PROGRAM_SOURCE, "ApplyDirichlet2D");
+		}
+		return applyDirichlet2DKernel;
+	}
 }
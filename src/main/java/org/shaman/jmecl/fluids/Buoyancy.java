@@ -10,6 +10,8 @@ import com.jme3.math.Vector3f;
 import com.jme3.math.Vector4f;
 import com.jme3.opencl.Kernel;
 import com.jme3.opencl.Program;
+import org.shaman.jmecl.ProgramSource;
+import org.shaman.jmecl.utils.CommandGraph;
 
 /**
  *
@@ -17,29 +19,26 @@ import com.jme3.opencl.Program;
  */
 public class Buoyancy {
 	private static final String SOURCE_FILE = "org/shaman/jmecl/fluids/Buoyancy.cl";
+	/**
+	 * The program with the buoyancy kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(Buoyancy.class.getName(), null, null, SOURCE_FILE);
 	
 	protected final FluidSolver solver;
 	
 	private final Vector2f tmpVec2;
 	private final Vector4f tmpVec4;
-	private final Kernel AddSimpleBuoyancy2DKernel;
-	private final Kernel AddSimpleBuoyancy3DKernel;
+	private final Vector2f gravityVec2;
+	private final Vector4f gravityVec4;
+	private Kernel AddSimpleBuoyancy2DKernel;
+	private Kernel AddSimpleBuoyancy3DKernel;
 
 	public Buoyancy(FluidSolver solver) {
 		this.solver = solver;
 		tmpVec2 = new Vector2f();
 		tmpVec4 = new Vector4f();
-		
-		String cacheID = Buoyancy.class.getName();
-		Program program = solver.clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			program = solver.clSettings.getClContext().createProgramFromSourceFiles(solver.clSettings.getAssetManager(), SOURCE_FILE);
-			program.build();
-			solver.clSettings.getProgramCache().saveToCache(cacheID, program);
-		}
-		program.register();
-		AddSimpleBuoyancy2DKernel = program.createKernel("AddSimpleBuoyancy2D");
-		AddSimpleBuoyancy3DKernel = program.createKernel("AddSimpleBuoyancy3D");
+		gravityVec2 = new Vector2f();
+		gravityVec4 = new Vector4f();
 	}
 	
 	public void addBuoynacy(FlagGrid flags, RealGrid density, MACGrid velocity,
@@ -48,16 +47,73 @@ public class Buoyancy {
 		if (solver.is2D()) {
 			tmpVec2.set(-gravity.x, -gravity.y).multLocal(timestep);
 			Kernel.WorkSize ws = new Kernel.WorkSize(solver.resolutionX * solver.resolutionY);
-			AddSimpleBuoyancy2DKernel.Run1NoEvent(solver.clSettings.getClCommandQueue(), ws,
+			getAddSimpleBuoyancy2DKernel().Run1NoEvent(solver.clSettings.getClCommandQueue(), ws,
 					flags.buffer, density.buffer, velocity.buffer, 
 					tmpVec2, solver.resolutionX, solver.resolutionY);
 		} else {
 			tmpVec4.set(-gravity.x, -gravity.y, -gravity.z, 0).multLocal(timestep);
 			Kernel.WorkSize ws = new Kernel.WorkSize(solver.resolutionX * solver.resolutionY * solver.resolutionZ);
-			AddSimpleBuoyancy3DKernel.Run1NoEvent(solver.clSettings.getClCommandQueue(), ws,
+			getAddSimpleBuoyancy3DKernel().Run1NoEvent(solver.clSettings.getClCommandQueue(), ws,
 					flags.buffer, density.buffer, velocity.buffer, 
 					tmpVec4, solver.resolutionX, solver.resolutionY, solver.resolutionZ);
 		}
 	}
 	
+	/**
+	 * Records {@link #addBuoynacy(org.shaman.jmecl.fluids.FlagGrid, org.shaman.jmecl.fluids.RealGrid, org.shaman.jmecl.fluids.MACGrid, com.jme3.math.Vector3f, float) }
+	 * into the specified command graph.
+	 * The gravity and the timestep are passed as a single placeholder,
+	 * its value is set by {@link #setGravity(org.shaman.jmecl.utils.CommandGraph.Placeholder, com.jme3.math.Vector3f, float) }.
+	 * @param graph the command graph
+	 * @param flags the flag grid
+	 * @param density the density grid
+	 * @param velocity the velocity grid
+	 * @param gravity the placeholder for the gravity scaled by the timestep
+	 */
+	public void recordBuoyancy(CommandGraph graph, FlagGrid flags, RealGrid density, MACGrid velocity, 
+			CommandGraph.Placeholder gravity) {
+		Program program = solver.loadProgram(PROGRAM_SOURCE);
+		if (solver.is2D()) {
+			Kernel.WorkSize ws = new Kernel.WorkSize(solver.resolutionX * solver.resolutionY);
+			graph.addKernel(program, "AddSimpleBuoyancy2D", ws,
+					flags.buffer, density.buffer, velocity.buffer, 
+					gravity, solver.resolutionX, solver.resolutionY);
+		} else {
+			Kernel.WorkSize ws = new Kernel.WorkSize(solver.resolutionX * solver.resolutionY * solver.resolutionZ);
+			graph.addKernel(program, "AddSimpleBuoyancy3D", ws,
+					flags.buffer, density.buffer, velocity.buffer, 
+					gravity, solver.resolutionX, solver.resolutionY, solver.resolutionZ);
+		}
+	}
+	
+	/**
+	 * Sets the value of the gravity placeholder used in
+	 * {@link #recordBuoyancy(org.shaman.jmecl.utils.CommandGraph, org.shaman.jmecl.fluids.FlagGrid, org.shaman.jmecl.fluids.RealGrid, org.shaman.jmecl.fluids.MACGrid, org.shaman.jmecl.utils.CommandGraph.Placeholder) }.
+	 * The value is stored in a vector owned by this instance, hence all
+	 * placeholders set by this method receive the latest gravity.
+	 * @param placeholder the placeholder, created with an arbitrary initial value
+	 * @param gravity the gravity
+	 * @param timestep the timestep
+	 */
+	public void setGravity(CommandGraph.Placeholder placeholder, Vector3f gravity, float timestep) {
+		if (solver.is2D()) {
+			placeholder.set(gravityVec2.set(-gravity.x, -gravity.y).multLocal(timestep));
+		} else {
+			placeholder.set(gravityVec4.set(-gravity.x, -gravity.y, -gravity.z, 0).multLocal(timestep));
+		}
+	}
+	
+	private Kernel getAddSimpleBuoyancy2DKernel() {
+		if (AddSimpleBuoyancy2DKernel == null) {
+			AddSimpleBuoyancy2DKernel = solver.createKernel(PROGRAM_SOURCE, "AddSimpleBuoyancy2D");
+		}
+		return AddSimpleBuoyancy2DKernel;
+	}
+	
+	private Kernel getAddSimpleBuoyancy3DKernel() {
+		if (AddSimpleBuoyancy3DKernel == null) {
+			AddSimpleBuoyancy3DKernel = solver.createKernel(PROGRAM_SOURCE, "AddSimpleBuoyancy3D");
+		}
+		return AddSimpleBuoyancy3DKernel;
+	}
 }
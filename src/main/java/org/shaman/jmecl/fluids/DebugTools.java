@@ -6,6 +6,7 @@
 package org.shaman.jmecl.fluids;
 
 import com.jme3.math.ColorRGBA;
+import com.jme3.math.FastMath;
 import com.jme3.opencl.Buffer;
 import com.jme3.opencl.CommandQueue;
 import com.jme3.opencl.Kernel;
@@ -18,6 +19,8 @@ import com.jme3.util.BufferUtils;
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.util.EnumMap;
+import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.Histogram;
 import org.shaman.jmecl.utils.SharedTexture;
 
 /**
@@ -31,6 +34,7 @@ public class DebugTools {
 	private boolean flagCopyInitialized;
 	private Buffer flagColorsBuffer;
 	private Kernel flagCopyKernel;
+	private Histogram histogram;
 
 	public DebugTools(FluidSolver solver) {
 		this.solver = solver;
@@ -39,7 +43,8 @@ public class DebugTools {
 	public SharedTexture createRealTexture2D(RenderManager renderManager) {
 		com.jme3.opencl.Image.ImageDescriptor descriptor = new com.jme3.opencl.Image.ImageDescriptor(
 				com.jme3.opencl.Image.ImageType.IMAGE_2D, solver.resolutionX, solver.resolutionY, 0, 0);
-		SharedTexture tex = new SharedTexture(descriptor, Image.Format.Luminance32F);
+		SharedTexture tex = new SharedTexture(descriptor,
+				solver.isHalfPrecisionGrids() ? Image.Format.Luminance16F : Image.Format.Luminance32F);
 		tex.initialize(renderManager, solver.clSettings.getClContext(), MemoryAccess.READ_WRITE);
 		return tex;
 	}
@@ -64,26 +69,19 @@ public class DebugTools {
 			return;
 		}
 		
-		String cacheID = DebugTools.class.getName()+"_FlagCopy";
-		Program program = solver.clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			String source = 
-				"#define L_INVSZ(i, vi, sz)	(vi).y = i / (sz).x; (vi).x = (i - (vi).y*(sz).x);\n" +
-				"__kernel void CopyFlags(__global char* flagGrid, __global float4* colors, __write_only image2d_t image, int sizeX, int sizeY)\n" +
-				"{\n" +
-				"	int idx = get_global_id(0);\n" +
-				"	int2 dim = (int2)(sizeX, sizeY);\n" +
-				"	int2 pos;\n" +
-				"	L_INVSZ(idx, pos, dim);\n" +
-				"	char flag = flagGrid[idx];\n" +
-				"	float4 color = colors[flag];\n" +
-				"	write_imagef(image, pos, color);\n" +
-				"}";
-			program = solver.clSettings.getClContext().createProgramFromSourceCode(source);
-			program.build();
-			solver.clSettings.getProgramCache().saveToCache(cacheID, program);
-		}
-		program.register();
+		String source = 
+			"#define L_INVSZ(i, vi, sz)	(vi).y = i / (sz).x; (vi).x = (i - (vi).y*(sz).x);\n" +
+			"__kernel void CopyFlags(__global char* flagGrid, __global float4* colors, __write_only image2d_t image, int sizeX, int sizeY)\n" +
+			"{\n" +
+			"	int idx = get_global_id(0);\n" +
+			"	int2 dim = (int2)(sizeX, sizeY);\n" +
+			"	int2 pos;\n" +
+			"	L_INVSZ(idx, pos, dim);\n" +
+			"	char flag = flagGrid[idx];\n" +
+			"	float4 color = colors[flag];\n" +
+			"	write_imagef(image, pos, color);\n" +
+			"}";
+		Program program = solver.clSettings.loadProgramFromSourceCode(DebugTools.class.getName()+"_FlagCopy", source, null);
 		flagCopyKernel = program.createKernel("CopyFlags");
 		
 		ByteBuffer bb = BufferUtils.createByteBuffer(256*4*4);
@@ -119,12 +117,46 @@ public class DebugTools {
 		flagTexture.getCLImage().releaseImageForSharingNoEvent(cq);
 	}
 	
+	/**
+	 * Computes min, max, sum, sum of squares and the nonzero count of the grid
+	 * in one pass. The result arrives asynchronously, poll it with
+	 * {@link CLBlas#getStatistics(org.shaman.jmecl.utils.CLBlas.StatisticsResult) }.
+	 * @param grid the grid
+	 * @param result the result structure for reuse, or {@code null}
+	 * @return the result structure
+	 */
+	public CLBlas.StatisticsResult computeStatistics(RealGrid grid, CLBlas.StatisticsResult result) {
+		CLBlas<Float> blas = grid.isHalfPrecision() ? CLBlas.getHalf(solver.clSettings) : CLBlas.get(solver.clSettings, Float.class);
+		return blas.statistics(grid.buffer, result);
+	}
+	
+	/**
+	 * Computes the distribution of the values of the grid over {@code [min, max]},
+	 * e.g. to display it next to a transfer function.
+	 * @param grid the grid
+	 * @param min the lower bound of the first bin
+	 * @param max the upper bound of the last bin
+	 * @param bins the count of bins
+	 * @param output the output buffer, receives one int count per bin
+	 * @throws UnsupportedOperationException if the grid is stored in half precision
+	 */
+	public void computeHistogram(RealGrid grid, float min, float max, int bins, Buffer output) {
+		if (grid.isHalfPrecision()) {
+			throw new UnsupportedOperationException("histograms of half precision grids are not supported");
+		}
+		if (histogram == null) {
+			histogram = new Histogram(solver.clSettings);
+		}
+		int size = (int) (grid.buffer.getSize() / 4);
+		histogram.range(grid.buffer, Float.class, size, min, max, bins, output, false).release();
+	}
+	
 	public void printGrid2D(RealGrid grid) {
 		ByteBuffer bb = grid.buffer.map(solver.clSettings.getClCommandQueue(), MappingAccess.MAP_READ_ONLY);
-		FloatBuffer fb = bb.asFloatBuffer();
+		FloatBuffer fb = grid.isHalfPrecision() ? null : bb.asFloatBuffer();
 		for (int y=0; y<solver.resolutionY; ++y) {
 			for (int x=0; x<solver.resolutionX; ++x) {
-				float v = fb.get();
+				float v = fb == null ? FastMath.convertHalfToFloat(bb.getShort()) : fb.get();
 				System.out.printf("%2.3f ", v);
 			}
 			System.out.println();
@@ -134,17 +166,24 @@ public class DebugTools {
 	
 	public void printGrid2D(MACGrid grid) {
 		ByteBuffer bb = grid.buffer.map(solver.clSettings.getClCommandQueue(), MappingAccess.MAP_READ_ONLY);
-		FloatBuffer fb = bb.asFloatBuffer();
 		for (int y=0; y<solver.resolutionY; ++y) {
 			for (int x=0; x<solver.resolutionX; ++x) {
 				int idx1 = x + y*(solver.resolutionX+1);
 				int idx2 = (solver.resolutionX+1)*solver.resolutionY + x + y*solver.resolutionX;
-				float vx = 0.5f * (fb.get(idx1) + fb.get(idx1+1));
-				float vy = 0.5f * (fb.get(idx2) + fb.get(idx2+solver.resolutionX));
+				float vx = 0.5f * (getCell(bb, idx1) + getCell(bb, idx1+1));
+				float vy = 0.5f * (getCell(bb, idx2) + getCell(bb, idx2+solver.resolutionX));
 				System.out.printf("(%2.3f,%2.3f) ", vx, vy);
 			}
 			System.out.println();
 		}
 		grid.buffer.unmap(solver.clSettings.getClCommandQueue(), bb);
 	}
+	
+	private float getCell(ByteBuffer bb, int index) {
+		if (solver.isHalfPrecisionGrids()) {
+			return FastMath.convertHalfToFloat(bb.getShort(2 * index));
+		} else {
+			return bb.getFloat(4 * index);
+		}
+	}
 }
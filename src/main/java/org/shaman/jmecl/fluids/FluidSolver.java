@@ -5,8 +5,13 @@
  */
 package org.shaman.jmecl.fluids;
 
+import com.jme3.opencl.Kernel;
+import com.jme3.opencl.Program;
 import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
 import org.shaman.jmecl.eq.EquationSolver;
+import org.shaman.jmecl.utils.ComputeMetrics;
+import org.shaman.jmecl.utils.KernelLauncher;
 
 /**
  *
@@ -19,6 +24,8 @@ public class FluidSolver {
 	protected final int resolutionY;
 	protected final int resolutionZ;
 	protected final boolean twoD;
+	protected boolean halfPrecisionGrids;
+	private boolean initialized;
 	
 	/**
 	 * Initializes the 3d version of the fluid solver.
@@ -49,6 +56,97 @@ public class FluidSolver {
 		this.twoD = true;
 	}
 	
+	/**
+	 * Enables the storage of real grids and MAC grids in half precision.
+	 * Each cell then needs 2 bytes instead of 4, which halves the memory and
+	 * the memory traffic of the bandwidth bound kernels like the advection.
+	 * The kernels still compute in float precision.
+	 * The matrix and the pressure of the pressure projection stay in float precision.
+	 * <p>
+	 * This must be set before the first grid or kernel is created.
+	 * @param enabled {@code true} to store the grids in half precision
+	 */
+	public void setHalfPrecisionGrids(boolean enabled) {
+		if (initialized) {
+			throw new IllegalStateException("the grid precision must be set before grids or kernels are created");
+		}
+		this.halfPrecisionGrids = enabled;
+	}
+	
+	/**
+	 * @return {@code true} if the real grids and MAC grids are stored in half precision
+	 * @see #setHalfPrecisionGrids(boolean) 
+	 */
+	public boolean isHalfPrecisionGrids() {
+		return halfPrecisionGrids;
+	}
+	
+	/**
+	 * @return the size of a cell of a real grid or MAC grid in bytes, 2 or 4
+	 * @see #setHalfPrecisionGrids(boolean) 
+	 */
+	public int getGridElementSize() {
+		return halfPrecisionGrids ? 2 : 4;
+	}
+	
+	/**
+	 * Returns the program source that is used by the fluid classes for
+	 * the specified source. If the grids are stored in half precision,
+	 * {@code HALF_GRIDS} is defined.
+	 * The returned source can be passed to
+	 * {@link OpenCLSettings#warmUp(java.util.concurrent.ExecutorService, java.util.Collection) }.
+	 * @param source the program source, e.g. {@link Advection#PROGRAM_SOURCE}
+	 * @return the program source matching the grid precision
+	 */
+	public ProgramSource getProgramSource(ProgramSource source) {
+		if (!halfPrecisionGrids) {
+			return source;
+		}
+		String include = "#define HALF_GRIDS\n" + (source.getInclude() == null ? "" : source.getInclude());
+		return new ProgramSource(source.getName() + "-Half", include, source.getBuildOptions(),
+				source.getSourceFiles().toArray(new String[0]));
+	}
+	
+	/**
+	 * Loads the program for the specified source, matching the grid precision.
+	 * @param source the program source
+	 * @return the program
+	 * @see #getProgramSource(org.shaman.jmecl.ProgramSource) 
+	 */
+	protected Program loadProgram(ProgramSource source) {
+		initialized = true;
+		return clSettings.loadProgram(getProgramSource(source));
+	}
+	
+	/**
+	 * Creates and registers the kernel with the specified name.
+	 * The program is loaded with {@link #loadProgram(org.shaman.jmecl.ProgramSource) },
+	 * hence it is built only once and shared between all kernels of the same source file.
+	 * The fluid classes call this lazily on the first use of a kernel,
+	 * so e.g. the 3D kernels are never created in the 2D mode.
+	 * @param source the program source
+	 * @param kernelName the name of the kernel function
+	 * @return the new kernel
+	 */
+	protected Kernel createKernel(ProgramSource source, String kernelName) {
+		return loadProgram(source).createKernel(kernelName).register();
+	}
+	
+	/**
+	 * Creates a launcher for the kernel with the specified name.
+	 * The global work size is set to the number of cells.
+	 * @param source the program source
+	 * @param kernelName the name of the kernel function
+	 * @return the new launcher, owning a new kernel instance
+	 * @see #createKernel(org.shaman.jmecl.ProgramSource, java.lang.String) 
+	 */
+	protected KernelLauncher createLauncher(ProgramSource source, String kernelName) {
+		KernelLauncher launcher = new KernelLauncher(createKernel(source, kernelName),
+				clSettings.getClCommandQueue(), clSettings.getWorkGroupTuner());
+		launcher.setGlobalWorkSize(resolutionX * resolutionY * resolutionZ);
+		return launcher;
+	}
+	
 	/**
 	 * Returns {@code true} if the solver runs in the 2D mode.
 	 * @return {@code true} if 2D, {@code false} if 3D.
@@ -91,7 +189,11 @@ public class FluidSolver {
 	 * @return the new real grid
 	 */
 	public RealGrid createRealGrid() {
-		return new RealGrid(this);
+		initialized = true;
+		RealGrid grid = new RealGrid(this);
+		grid.deviceMemory = grid.buffer.getSize();
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.FLUIDS, grid.deviceMemory);
+		return grid;
 	}
 	
 	/**
@@ -99,7 +201,11 @@ public class FluidSolver {
 	 * @return the new MAC grid
 	 */
 	public MACGrid createMACGrid() {
-		return new MACGrid(this);
+		initialized = true;
+		MACGrid grid = new MACGrid(this);
+		grid.deviceMemory = grid.buffer.getSize();
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.FLUIDS, grid.deviceMemory);
+		return grid;
 	}
 	
 	/**
@@ -107,7 +213,31 @@ public class FluidSolver {
 	 * @return the new flag grid
 	 */
 	public FlagGrid createFlagGrid() {
-		return new FlagGrid(this);
+		FlagGrid grid = new FlagGrid(this);
+		grid.deviceMemory = grid.buffer.getSize();
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.FLUIDS, grid.deviceMemory);
+		return grid;
+	}
+	
+	/**
+	 * Creates a temporary real grid whose buffer is borrowed from the
+	 * {@link OpenCLSettings#getBufferPool() buffer pool}.
+	 * The buffer might be larger than needed.
+	 * The grid is always stored in float precision.
+	 * The grid must be passed back with {@link #giveBack(org.shaman.jmecl.fluids.Grid) }.
+	 * @return the temporary real grid
+	 */
+	protected RealGrid borrowRealGrid() {
+		return new RealGrid(this, clSettings.getBufferPool().borrow(4 * resolutionX * resolutionY * resolutionZ));
+	}
+	
+	/**
+	 * Passes the buffer of a temporary grid back to the buffer pool.
+	 * @param grid the grid created by {@link #borrowRealGrid() }
+	 */
+	protected void giveBack(Grid grid) {
+		clSettings.getBufferPool().giveBack(grid.buffer);
+		grid.buffer = null;
 	}
 	
 }
@@ -6,6 +6,7 @@
 package org.shaman.jmecl.fluids;
 
 import com.jme3.opencl.Buffer;
+import org.shaman.jmecl.utils.ComputeMetrics;
 
 /**
  *
@@ -15,6 +16,10 @@ public abstract class Grid {
 	
 	protected Buffer buffer;
 	protected final FluidSolver solver;
+	/**
+	 * The bytes counted in the device memory metrics, zero for temporary grids
+	 */
+	long deviceMemory;
 
 	public Grid(FluidSolver solver) {
 		this.solver = solver;
@@ -37,6 +42,21 @@ public abstract class Grid {
 		return solver;
 	}
 
+	/**
+	 * Releases the buffer of this grid, the grid must not be used afterwards.
+	 * Temporary grids are passed back to the solver instead.
+	 */
+	public void release() {
+		if (buffer != null) {
+			buffer.release();
+			buffer = null;
+		}
+		if (deviceMemory != 0) {
+			solver.clSettings.getMetrics().addDeviceMemory(ComputeMetrics.FLUIDS, -deviceMemory);
+			deviceMemory = 0;
+		}
+	}
+
 	public void swap(Grid other) {
 		assert (this.getClass() == other.getClass());
 		Buffer tmp = this.buffer;
@@ -8,8 +8,11 @@ package org.shaman.jmecl.fluids;
 import com.jme3.opencl.CommandQueue;
 import com.jme3.opencl.Kernel;
 import com.jme3.opencl.Program;
+import org.shaman.jmecl.ProgramSource;
 import org.shaman.jmecl.eq.EquationSolver;
 import org.shaman.jmecl.eq.JacobiSolver;
+import org.shaman.jmecl.utils.CommandGraph;
+import org.shaman.jmecl.utils.ProfilingContextFactory;
 
 /**
  * The pressure projection makes the velocity field divergence free.
@@ -17,14 +20,18 @@ import org.shaman.jmecl.eq.JacobiSolver;
  */
 public class PressureProjection {
 	private static final String SOURCE_FILE = "org/shaman/jmecl/fluids/PressureProjection.cl";
+	/**
+	 * The program with the pressure projection kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(PressureProjection.class.getName(), null, null, SOURCE_FILE);
 	private static final boolean DEBUG = false;
 	
 	protected final FluidSolver solver;
 	protected final EquationSolver equationSolver;
 	
-	protected final Kernel MakeRhs2DKernel;
-	protected final Kernel MakeLaplaceMatrix2DKernel;
-	protected final Kernel CorrectVelocity2DKernel;
+	protected Kernel MakeRhs2DKernel;
+	protected Kernel MakeLaplaceMatrix2DKernel;
+	protected Kernel CorrectVelocity2DKernel;
 	
 	protected boolean needsUpdate;
 	protected FlagGrid flagGrid;
@@ -46,18 +53,6 @@ public class PressureProjection {
 		equationSolver.setXToZero();
 		needsUpdate = true;
 		
-		String cacheID = PressureProjection.class.getName();
-		Program program = solver.clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			program = solver.clSettings.getClContext().createProgramFromSourceFiles(solver.clSettings.getAssetManager(), SOURCE_FILE);
-			program.build();
-			solver.clSettings.getProgramCache().saveToCache(cacheID, program);
-		}
-		program.register();
-		MakeRhs2DKernel = program.createKernel("MakeRhs2D");
-		MakeLaplaceMatrix2DKernel = program.createKernel("MakeLaplaceMatrix2D");
-		CorrectVelocity2DKernel = program.createKernel("CorrectVelocity2D");
-		
 		if (DEBUG) {
 			debugTools = new DebugTools(solver);
 		}
@@ -115,11 +110,11 @@ public class PressureProjection {
 		}
 		//assemble matrix
 		CommandQueue cq = solver.clSettings.getClCommandQueue();
-		RealGrid A0 = solver.createRealGrid();
-		RealGrid Ain = solver.createRealGrid();
-		RealGrid Ajn = solver.createRealGrid();
-		RealGrid Aip = solver.createRealGrid();
-		RealGrid Ajp = solver.createRealGrid();
+		RealGrid A0 = solver.borrowRealGrid();
+		RealGrid Ain = solver.borrowRealGrid();
+		RealGrid Ajn = solver.borrowRealGrid();
+		RealGrid Aip = solver.borrowRealGrid();
+		RealGrid Ajp = solver.borrowRealGrid();
 		A0.fill(0);
 		Ain.fill(0);
 		Ajn.fill(0);
@@ -127,7 +122,7 @@ public class PressureProjection {
 		Ajp.fill(0);
 		if (solver.is2D()) {
 			Kernel.WorkSize ws = new Kernel.WorkSize(solver.resolutionX * solver.resolutionY);
-			MakeLaplaceMatrix2DKernel.Run1NoEvent(cq, ws, flagGrid.buffer, A0.buffer, Ain.buffer, Aip.buffer, Ajn.buffer, Ajp.buffer, solver.resolutionX, solver.resolutionY);
+			getMakeLaplaceMatrix2DKernel().Run1NoEvent(cq, ws, flagGrid.buffer, A0.buffer, Ain.buffer, Aip.buffer, Ajn.buffer, Ajp.buffer, solver.resolutionX, solver.resolutionY);
 			equationSolver.setA(A0.getBuffer(), 0, 0, 0);
 			equationSolver.setA(Ain.getBuffer(), -1, 0, 0);
 			equationSolver.setA(Aip.getBuffer(), 1, 0, 0);
@@ -148,18 +143,18 @@ public class PressureProjection {
 			}
 			
 		} else {
-			RealGrid Ak = solver.createRealGrid();
+			RealGrid Ak = solver.borrowRealGrid();
 			Ak.fill(0);
 			//TODO
 			
-			Ak.buffer.release();
+			solver.giveBack(Ak);
 		}
 		equationSolver.assembleMatrix();
-		A0.buffer.release();
-		Ain.buffer.release();
-		Ajn.buffer.release();
-		Aip.buffer.release();
-		Ajp.buffer.release();
+		solver.giveBack(A0);
+		solver.giveBack(Ain);
+		solver.giveBack(Ajn);
+		solver.giveBack(Aip);
+		solver.giveBack(Ajp);
 	}
 	
 	public void debugPrintDivergence(MACGrid velocities) {
@@ -168,13 +163,15 @@ public class PressureProjection {
 			Kernel.WorkSize ws = new Kernel.WorkSize(solver.resolutionX * solver.resolutionY);
 			
 			//setup right hand side
-			MakeRhs2DKernel.Run1NoEvent(cq, ws, flagGrid.buffer, equationSolver.getBBuffer(), velocities.buffer, solver.resolutionX, solver.resolutionY);
+			getMakeRhs2DKernel().Run1NoEvent(cq, ws, flagGrid.buffer, equationSolver.getBBuffer(), velocities.buffer, solver.resolutionX, solver.resolutionY);
 			System.out.println("Divergence:");
 			new DebugTools(solver).printGrid2D(new RealGrid(solver, equationSolver.getBBuffer()));
 		}
 	}
 	
 	public void project(MACGrid velocities) {
+		ProfilingContextFactory.HostSection section = ProfilingContextFactory.beginHostSection(
+				solver.clSettings.getClContext(), "PressureProjection.project");
 		setupEquation();
 		CommandQueue cq = solver.clSettings.getClCommandQueue();
 		if (solver.is2D()) {
@@ -186,7 +183,7 @@ public class PressureProjection {
 			}
 			
 			//setup right hand side
-			MakeRhs2DKernel.Run1NoEvent(cq, ws, flagGrid.buffer, equationSolver.getBBuffer(), velocities.buffer, solver.resolutionX, solver.resolutionY);
+			getMakeRhs2DKernel().Run1NoEvent(cq, ws, flagGrid.buffer, equationSolver.getBBuffer(), velocities.buffer, solver.resolutionX, solver.resolutionY);
 			if (DEBUG) {
 				System.out.println("Divergence:");
 				debugTools.printGrid2D(new RealGrid(solver, equationSolver.getBBuffer()));
@@ -201,7 +198,50 @@ public class PressureProjection {
 			}
 
 			//correct the velocities
-			CorrectVelocity2DKernel.Run1NoEvent(cq, ws, flagGrid.buffer, velocities.buffer, equationSolver.getXBuffer(), solver.resolutionX, solver.resolutionY);
+			getCorrectVelocity2DKernel().Run1NoEvent(cq, ws, flagGrid.buffer, velocities.buffer, equationSolver.getXBuffer(), solver.resolutionX, solver.resolutionY);
+		}
+		section.end();
+	}
+	
+	/**
+	 * Records {@link #project(org.shaman.jmecl.fluids.MACGrid) } into the
+	 * specified command graph.
+	 * The matrix is assembled now, the graph has to be recorded again if
+	 * the flag grid changes. The equation solver runs
+	 * {@link #getMaxIterations() } iterations without testing the error.
+	 * @param graph the command graph
+	 * @param velocities the velocities
+	 */
+	public void recordProject(CommandGraph graph, MACGrid velocities) {
+		setupEquation();
+		if (solver.is2D()) {
+			Program program = solver.loadProgram(PROGRAM_SOURCE);
+			Kernel.WorkSize ws = new Kernel.WorkSize(solver.resolutionX * solver.resolutionY);
+			graph.addKernel(program, "MakeRhs2D", ws, flagGrid.buffer, equationSolver.getBBuffer(), velocities.buffer, solver.resolutionX, solver.resolutionY);
+			equationSolver.recordSetXToZero(graph);
+			equationSolver.recordSolve(graph, maxIterations);
+			graph.addKernel(program, "CorrectVelocity2D", ws, flagGrid.buffer, velocities.buffer, equationSolver.getXBuffer(), solver.resolutionX, solver.resolutionY);
+		}
+	}
+	
+	protected Kernel getMakeRhs2DKernel() {
+		if (MakeRhs2DKernel == null) {
+			MakeRhs2DKernel = solver.createKernel(PROGRAM_SOURCE, "MakeRhs2D");
+		}
+		return MakeRhs2DKernel;
+	}
+	
+	protected Kernel getMakeLaplaceMatrix2DKernel() {
+		if (MakeLaplaceMatrix2DKernel == null) {
+			MakeLaplaceMatrix2DKernel = solver.createKernel(PROGRAM_SOURCE, "MakeLaplaceMatrix2D");
+		}
+		return MakeLaplaceMatrix2DKernel;
+	}
+	
+	protected Kernel getCorrectVelocity2DKernel() {
+		if (CorrectVelocity2DKernel == null) {
+			CorrectVelocity2DKernel = solver.createKernel(PROGRAM_SOURCE, "CorrectVelocity2D");
 		}
+		return CorrectVelocity2DKernel;
 	}
 }
@@ -14,16 +14,32 @@ import org.shaman.jmecl.utils.CLBlas;
  */
 public class RealGrid extends Grid {
 	
+	private final boolean halfPrecision;
+	
 	RealGrid(FluidSolver solver) {
-		super(solver.clSettings.getClContext().createBuffer(4 * solver.getResolutionX() * solver.getResolutionY() * solver.getResolutionZ()), solver);
+		super(solver.clSettings.getClContext().createBuffer(solver.getGridElementSize() * solver.getResolutionX() * solver.getResolutionY() * solver.getResolutionZ()), solver);
+		halfPrecision = solver.isHalfPrecisionGrids();
 	}
 	
+	/**
+	 * Wraps a buffer of floats, e.g. a temporary buffer or the solution of
+	 * the equation solver.
+	 */
 	RealGrid(FluidSolver solver, Buffer buffer) {
 		super(buffer, solver);
+		halfPrecision = false;
+	}
+
+	/**
+	 * @return {@code true} if the cells are stored in half precision
+	 * @see FluidSolver#setHalfPrecisionGrids(boolean) 
+	 */
+	public boolean isHalfPrecision() {
+		return halfPrecision;
 	}
 	
 	public void fill(float value) {
-		CLBlas<Float> blas = CLBlas.get(solver.clSettings, Float.class);
+		CLBlas<Float> blas = halfPrecision ? CLBlas.getHalf(solver.clSettings) : CLBlas.get(solver.clSettings, Float.class);
 		blas.fill(buffer, value);
 	}
 }
@@ -16,6 +16,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
 
 /**
  * A default advection strategy.
@@ -48,6 +49,10 @@ import org.shaman.jmecl.OpenCLSettings;
 public class DefaultAdvectionStrategy implements AdvectionStrategy {
 
 	private static final String SOURCE_FILE = "org/shaman/jmecl/particles/DefaultAdvectionStrategy.cl";
+	/**
+	 * The program with the particle advection kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(DefaultAdvectionStrategy.class.getName(), null, null, SOURCE_FILE);
 	private static final Map<OpenCLSettings, Kernels> kernelMap = new HashMap<>();
 	
 	private ParticleController controller;
@@ -130,14 +135,7 @@ public class DefaultAdvectionStrategy implements AdvectionStrategy {
 				kernels = new Kernels();
 				kernels.clQueue = settings.getClCommandQueue();
 				
-				String cacheID = DefaultAdvectionStrategy.class.getName();
-				Program program = settings.getProgramCache().loadFromCache(cacheID);
-				if (program == null) {
-					program = settings.getClContext().createProgramFromSourceFiles(settings.getAssetManager(), SOURCE_FILE);
-					program.build();
-					settings.getProgramCache().saveToCache(cacheID, program);
-				}
-				program.register();
+				Program program = settings.loadProgram(PROGRAM_SOURCE);
 				kernels.DeletionBoxKernel = program.createKernel("DeletionBox").register();
 				kernels.DeletionSphereKernel = program.createKernel("DeletionSphere").register();
 				kernels.DeletionDensityThresholdKernel = program.createKernel("DeletionDensityThreshold").register();
@@ -7,24 +7,23 @@ package org.shaman.jmecl.particles;
 
 import com.jme3.app.SimpleApplication;
 import com.jme3.opencl.Buffer;
-import com.jme3.opencl.Kernel;
-import com.jme3.opencl.MappingAccess;
 import com.jme3.opencl.MemoryAccess;
-import com.jme3.opencl.Program;
 import com.jme3.renderer.RenderManager;
 import com.jme3.renderer.ViewPort;
 import com.jme3.renderer.opengl.GLRenderer;
 import com.jme3.scene.VertexBuffer;
 import com.jme3.scene.control.AbstractControl;
 import com.jme3.util.BufferUtils;
-import java.nio.ByteBuffer;
 import java.util.EnumMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.shaman.jmecl.OpenCLSettings;
-import org.shaman.jmecl.sorting.RadixSort;
+import org.shaman.jmecl.utils.BufferPool;
 import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.Compaction;
+import org.shaman.jmecl.utils.ComputeMetrics;
+import org.shaman.jmecl.utils.ProfilingContextFactory;
 import org.shaman.jmecl.utils.SharedBuffer;
 
 /**
@@ -41,7 +40,6 @@ import org.shaman.jmecl.utils.SharedBuffer;
  */
 public class ParticleController extends AbstractControl {
 	private static final Logger LOG = Logger.getLogger(ParticleController.class.getName());
-	private static final String SOURCE_FILE = "org/shaman/jmecl/particles/ParticleController.cl";
 	private final ParticleRenderer renderer;
 	
 	private OpenCLSettings clSettings;
@@ -50,14 +48,12 @@ public class ParticleController extends AbstractControl {
 	private AdvectionStrategy advectionStrategy;
 	
 	private Buffer deletionBuffer;
-	private Buffer indexBuffer;
-	private Buffer reorderTempBuffer;
-	private Buffer deletionIndexBuffer;
-	private Kernel findFirstOneKernel;
-	private RadixSort radixSort;
+	private Buffer compactionTempBuffer;
+	private Compaction compaction;
+	private Compaction.Result compactionResult;
 	
 	private CLBlas<Integer> blasInt;
-	private CLBlas<Float> blasFloat;
+	private long deviceMemory;
 
 	public ParticleController(ParticleRenderer renderer) {
 		this.renderer = renderer;
@@ -116,32 +112,42 @@ public class ParticleController extends AbstractControl {
 			b.initialize(renderManager, clSettings.getClContext(), MemoryAccess.READ_WRITE);
 		}
 		int capacity = renderer.getCapacity();
-		deletionBuffer = clSettings.getClContext().createBuffer(capacity * 4, MemoryAccess.READ_WRITE).register();
-		indexBuffer = clSettings.getClContext().createBuffer(capacity * 4, MemoryAccess.READ_WRITE).register();
-		reorderTempBuffer = clSettings.getClContext().createBuffer(capacity * 4 * 4, MemoryAccess.READ_WRITE).register();
+		BufferPool pool = clSettings.getBufferPool();
+		deletionBuffer = pool.borrow(capacity * 4);
+		compactionTempBuffer = pool.borrow(capacity * 4 * 4);
 		
-		deletionIndexBuffer = clSettings.getClContext().createBuffer(4, MemoryAccess.READ_WRITE).register();
-		String cacheID = ParticleController.class.getName();
-		Program program = clSettings.getProgramCache().loadFromCache(cacheID);
-		if (program == null) {
-			program = clSettings.getClContext().createProgramFromSourceFiles(clSettings.getAssetManager(), SOURCE_FILE);
-			program.build();
-			clSettings.getProgramCache().saveToCache(cacheID, program);
+		deviceMemory = deletionBuffer.getSize() + compactionTempBuffer.getSize();
+		for (SharedBuffer b : buffers.values()) {
+			deviceMemory += b.getCLBuffer().getSize();
 		}
-		program.register();
-		findFirstOneKernel = program.createKernel("FindFirstOne");
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.PARTICLES, deviceMemory);
 		
 		seedingStrategy.init(this);
 		seedingStrategy.resized(capacity);
 		advectionStrategy.init(this);
 		advectionStrategy.resized(capacity);
 		
-		radixSort = new RadixSort(clSettings);
+		compaction = new Compaction(clSettings);
+		compactionResult = new Compaction.Result();
 		blasInt = CLBlas.get(clSettings, Integer.class);
-		blasFloat = CLBlas.get(clSettings, Float.class);
 		LOG.info("particle controller initialized");
 	}
 
+	/**
+	 * Passes the temporary buffers back to the buffer pool and removes them and
+	 * the shared buffers from the device memory metrics. The shared buffers are
+	 * released together with the mesh. The controller must not be updated afterwards.
+	 */
+	public void release() {
+		BufferPool pool = clSettings.getBufferPool();
+		pool.giveBack(deletionBuffer);
+		pool.giveBack(compactionTempBuffer);
+		deletionBuffer = null;
+		compactionTempBuffer = null;
+		clSettings.getMetrics().addDeviceMemory(ComputeMetrics.PARTICLES, -deviceMemory);
+		deviceMemory = 0;
+	}
+
 	public OpenCLSettings getCLSettings() {
 		return clSettings;
 	}
@@ -153,6 +159,8 @@ public class ParticleController extends AbstractControl {
 	
 	@Override
 	protected void controlUpdate(float f) {
+		ProfilingContextFactory.HostSection section = ProfilingContextFactory.beginHostSection(
+				clSettings.getClContext(), "ParticleController.controlUpdate");
 		//seed
 		int toCreate = seedingStrategy.getNewParticlesCount(f);
 		int oldCount = renderer.getParticleCount();
@@ -162,18 +170,22 @@ public class ParticleController extends AbstractControl {
 			//resize
 			int newSize = Math.max(requiredCount, oldCapacity * 2);
 			for (SharedBuffer b : buffers.values()) {
+				long oldMemory = b.getCLBuffer().getSize();
 				b.resize(newSize, clSettings.getClCommandQueue());
+				deviceMemory += b.getCLBuffer().getSize() - oldMemory;
+				clSettings.getMetrics().addDeviceMemory(ComputeMetrics.PARTICLES, b.getCLBuffer().getSize() - oldMemory);
 				renderer.getMesh().clearBuffer(b.getJMEBuffer().getBufferType());
 				renderer.getMesh().setBuffer(b.getJMEBuffer());
 			}
 			seedingStrategy.resized(newSize);
 			advectionStrategy.resized(newSize);
-			deletionBuffer.release();
-			indexBuffer.release();
-			reorderTempBuffer.release();
-			deletionBuffer = clSettings.getClContext().createBuffer(newSize * 4, MemoryAccess.READ_WRITE).register();
-			indexBuffer = clSettings.getClContext().createBuffer(newSize * 4, MemoryAccess.READ_WRITE).register();
-			reorderTempBuffer = clSettings.getClContext().createBuffer(newSize * 4 * 4, MemoryAccess.READ_WRITE).register();
+			BufferPool pool = clSettings.getBufferPool();
+			long oldTempMemory = deletionBuffer.getSize() + compactionTempBuffer.getSize();
+			deletionBuffer = pool.ensureSize(deletionBuffer, newSize * 4);
+			compactionTempBuffer = pool.ensureSize(compactionTempBuffer, newSize * 4 * 4);
+			long tempMemory = deletionBuffer.getSize() + compactionTempBuffer.getSize() - oldTempMemory;
+			deviceMemory += tempMemory;
+			clSettings.getMetrics().addDeviceMemory(ComputeMetrics.PARTICLES, tempMemory);
 //			return;
 		}
 		for (SharedBuffer b : buffers.values()) {
@@ -185,48 +197,34 @@ public class ParticleController extends AbstractControl {
 		blasInt.fill(deletionBuffer, 0, requiredCount);
 		advectionStrategy.advect(f, requiredCount, deletionBuffer);
 		
-		//delete old particles
-		blasInt.fillIndices(indexBuffer, 0, 1, requiredCount);
-		radixSort.setEndBit(4);
-		/*
-		ByteBuffer mappedBuffer = deletionBuffer.map(clSettings.getClCommandQueue(), MappingAccess.MAP_READ_ONLY);
-		System.out.print("buf:");
-		for (int i=0; i<requiredCount; ++i) {
-			System.out.print(" " + mappedBuffer.getInt());
-		}
-		System.out.println();
-		deletionBuffer.unmap(clSettings.getClCommandQueue(), mappedBuffer);
-		*/
-		radixSort.sort(deletionBuffer, indexBuffer, requiredCount);
-		/*
-		mappedBuffer = indexBuffer.map(clSettings.getClCommandQueue(), MappingAccess.MAP_READ_ONLY);
-		System.out.print("indices:");
-		for (int i=0; i<requiredCount; ++i) {
-			System.out.print(" " + mappedBuffer.getInt());
-		}
-		System.out.println();
-		indexBuffer.unmap(clSettings.getClCommandQueue(), mappedBuffer);
-		System.out.println();
-		*/
-		//Buffer blockScan = radixSort.getInternalBlockScan();
-		blasInt.fill(deletionIndexBuffer, requiredCount);
-		findFirstOneKernel.Run1NoEvent(clSettings.getClCommandQueue(), new Kernel.WorkSize(requiredCount), deletionBuffer, deletionIndexBuffer);
-		Buffer.AsyncMapping mapping = deletionIndexBuffer.mapAsync(clSettings.getClCommandQueue(), 4, 0, MappingAccess.MAP_READ_ONLY);
+		//delete old particles: keep the particles with a zero deletion flag
+		compaction.select(deletionBuffer, true, requiredCount, compactionResult);
 		for (SharedBuffer b : buffers.values()) {
 			int components = b.getJMEBuffer().getNumComponents();
 			Buffer buf = b.getCLBuffer();
-			blasFloat.reorder(indexBuffer, buf, reorderTempBuffer, components, requiredCount);
-			reorderTempBuffer.copyToAsync(clSettings.getClCommandQueue(), buf, requiredCount * 4 * components);
+			compaction.scatter(buf, compactionTempBuffer, components, false);
+			ProfilingContextFactory.track(clSettings.getClContext(), "ParticleController.compactionCopy", "copy", clSettings.getClCommandQueue(),
+					compactionTempBuffer.copyToAsync(clSettings.getClCommandQueue(), buf, requiredCount * 4 * components));
 		}
-		mapping.event.waitForFinished();
-		int newCount = mapping.buffer.getInt();
-		deletionIndexBuffer.unmap(clSettings.getClCommandQueue(), mapping.buffer);
+		ProfilingContextFactory.HostSection mapSection = ProfilingContextFactory.beginHostSection(
+				clSettings.getClContext(), "ParticleController.readParticleCount");
+		int newCount = compactionResult.getCount();
+		if (newCount < 0) {
+			newCount = compactionResult.getCountBlocking();
+			clSettings.getMetrics().addBlockingMap(4);
+		}
+		mapSection.end();
 		
 		for (SharedBuffer b : buffers.values()) {
 			b.releaseCLBuffer(clSettings.getClCommandQueue());
 		}
 		renderer.setParticleCount(newCount);
-		System.out.println("new particles: "+toCreate+", deleted particles: "+(requiredCount-newCount)+", active particles: "+newCount);
+		clSettings.getMetrics().setActiveParticles(newCount);
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.log(Level.FINE, "new particles: {0}, deleted particles: {1}, active particles: {2}",
+					new Object[]{toCreate, requiredCount-newCount, newCount});
+		}
+		section.end();
 		
 	}
 
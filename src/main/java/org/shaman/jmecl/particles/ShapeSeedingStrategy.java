@@ -19,6 +19,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
+import org.shaman.jmecl.utils.ComputeMetrics;
 
 /**
  *
@@ -27,6 +29,10 @@ import org.shaman.jmecl.OpenCLSettings;
 public class ShapeSeedingStrategy implements SeedingStrategy {
 	private static final int RANDOM_SEED_COUNT = 2048;
 	private static final String SOURCE_FILE = "org/shaman/jmecl/particles/ShapeSeedingStrategy.cl";
+	/**
+	 * The program with the seeding kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(ShapeSeedingStrategy.class.getName(), null, null, SOURCE_FILE);
 	private static final Map<OpenCLSettings, Kernels> kernelMap = new HashMap<>();
 	
 	private ParticleController controller;
@@ -150,15 +156,10 @@ public class ShapeSeedingStrategy implements SeedingStrategy {
 				ByteBuffer tmpByteBuffer = BufferUtils.createByteBuffer(8 * kernels.seedCount);
 				tmpByteBuffer.asLongBuffer().put(seeds);
 				kernels.seeds.writeAsync(settings.getClCommandQueue(), tmpByteBuffer).release();
+				settings.getMetrics().addBytesToDevice(8 * kernels.seedCount);
+				settings.getMetrics().addDeviceMemory(ComputeMetrics.PARTICLES, 8 * kernels.seedCount);
 				
-				String cacheID = ShapeSeedingStrategy.class.getName();
-				Program program = settings.getProgramCache().loadFromCache(cacheID);
-				if (program == null) {
-					program = settings.getClContext().createProgramFromSourceFiles(settings.getAssetManager(), SOURCE_FILE);
-					program.build();
-					settings.getProgramCache().saveToCache(cacheID, program);
-				}
-				program.register();
+				Program program = settings.loadProgram(PROGRAM_SOURCE);
 				kernels.InitParticlesKernel = program.createKernel("InitParticles").register();
 				kernels.SeedPointKernel = program.createKernel("SeedPoint").register();
 				kernels.SeedSphereKernel = program.createKernel("SeedSphere").register();
@@ -13,6 +13,7 @@ import java.util.concurrent.CyclicBarrier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
 
 /**
  * Bitonic sort.
@@ -57,24 +58,29 @@ public class BitonicSort implements Sorter {
 		this.settings = comparisonSettings;
 		this.useSharedMemory = true;
 		
-		String programHash = BitonicSort.class.getName() + "_" + settings.keyType
-				+ "_" + settings.valueType + "_" + settings.comparison.hashCode();
-		program = openCLSettings.getProgramCache().loadFromCache(programHash);
-		if (program == null) {
-			StringBuilder includes = new StringBuilder();
-			includes.append("#define KEY_TYPE ").append(settings.keyType).append('\n');
-			includes.append("#define VALUE_TYPE ").append(settings.valueType).append('\n');
-			includes.append("#define COMPARISON_GREATER(x, y) ").append(settings.comparison).append('\n');
-			program = clContext.createProgramFromSourceFilesWithInclude(openCLSettings.getAssetManager(), includes.toString(), PROGRAM_FILE);
-			openCLSettings.getProgramCache().saveToCache(programHash, program);
-		}
-		program.build();
+		program = openCLSettings.loadProgram(getProgramSource(comparisonSettings));
 		bitonicTrivialKernel = program.createKernel("BitonicTrivial");
 		bitonicSharedKernel = program.createKernel("BitonicShared");
 		sharedMemorySize = (int) clDevice.getLocalMemorySize();
 		workGroupSize = (int) clDevice.getMaxiumWorkItemsPerGroup();
 	}
 
+	/**
+	 * Returns the source of the program that is used for the specified comparison settings.
+	 * It can be passed to {@link OpenCLSettings#warmUp(java.util.concurrent.ExecutorService, java.util.Collection) }
+	 * to build the program in the background.
+	 * @param comparisonSettings the comparison settings
+	 * @return the program source
+	 */
+	public static ProgramSource getProgramSource(Sorter.ComparisonSettings comparisonSettings) {
+		StringBuilder includes = new StringBuilder();
+		includes.append("#define KEY_TYPE ").append(comparisonSettings.keyType).append('\n');
+		includes.append("#define VALUE_TYPE ").append(comparisonSettings.valueType).append('\n');
+		includes.append("#define COMPARISON_GREATER(x, y) ").append(comparisonSettings.comparison).append('\n');
+		return new ProgramSource(BitonicSort.class.getName() + "_" + comparisonSettings.keyType
+				+ "_" + comparisonSettings.valueType, includes.toString(), null, PROGRAM_FILE);
+	}
+
 	@Override
 	public boolean isComparisonBased() {
 		return true;
@@ -87,17 +93,17 @@ public class BitonicSort implements Sorter {
 
 	@Override
 	public void sort(Buffer keys, Buffer values) {
-		int n = (int) (keys.getSize() / settings.keySize);
+		long n = keys.getSize() / settings.keySize;
 		sort(keys, values, n);
 	}
 
 	@Override
-	public void sort(Buffer keys, Buffer values, int n) {
-		int k = Math.round(FastMath.log(n, 2));
-		if (1<<k != n) {
+	public void sort(Buffer keys, Buffer values, long n) {
+		if (n <= 0 || (n & (n - 1)) != 0) {
 			//it must be a power of two
 			throw new IllegalArgumentException("array size must be a power of two, but is "+n);
 		}
+		int k = Long.numberOfTrailingZeros(n);
 		
 		//analyse when to use shared memory
 		int numKeysInShared = sharedMemorySize / (settings.keySize+settings.valueSize) / 4;
@@ -120,10 +126,7 @@ public class BitonicSort implements Sorter {
 				continue;
 			}
 			int stepsLeft = Math.min(phase, stepsInShared);
-			int threads = n/2;
-			while (threads > workGroupSize) {
-				threads /= 2;
-			}
+			int threads = (int) Math.min(n/2, Integer.highestOneBit(workGroupSize));
 			Kernel.WorkSize wsl = new Kernel.WorkSize(threads);
 			Kernel.WorkSize wsg = new Kernel.WorkSize(n/2);
 			bitonicSharedKernel.Run2NoEvent(clQueue, wsg, wsl, keys, values, phase, stepsLeft, 
@@ -11,6 +11,9 @@ import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
+import org.shaman.jmecl.utils.BufferPool;
+import org.shaman.jmecl.utils.Scan;
 
 /**
  * Radix sort implementation.
@@ -18,6 +21,9 @@ import org.shaman.jmecl.OpenCLSettings;
  * This is a stable, in-place, non-comparison-based algorithm.
  * You have to specify the range of bits to be sorted by {@link #setEndBit(int) }
  * (the start bit is assumed to be zero).
+ * <p>
+ * The element count is a long, the block histograms are scanned with the
+ * long-indexed {@link Scan}.
  * 
  * <p>
  * A. G. DUANE MERRILL, "High performance and scalable radix sorting:
@@ -31,26 +37,27 @@ Parallel processing letters, vol. 2011 (21), no. 2, pp. 245 - 272.
 public class RadixSort implements Sorter {
 	private static final Logger LOG = Logger.getLogger(BitonicSort.class.getName());
 	private static final String PROGRAM_FILE = "org/shaman/jmecl/sorting/RadixSort.cl";
+	/**
+	 * The program with the block sort and reorder kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(RadixSort.class.getName(), null, null, PROGRAM_FILE);
 
 	private final Context clContext;
+	private final BufferPool bufferPool;
 	private final Device clDevice;
 	private final CommandQueue clQueue;
 	private final Sorter.ComparisonSettings settings;
 	
 	private final int RS_CBITS = 4;
 	private final int RS_BLOCK_SIZE = 256;
-	private final int RS_BLOCK_SIZE_CUBE = RS_BLOCK_SIZE*RS_BLOCK_SIZE*RS_BLOCK_SIZE;
-	private final long cMaxArraySize = RS_BLOCK_SIZE_CUBE * 4 / (1 << RS_CBITS);
 	
 	private Program program;
 	private final Kernel clBlockSort;
-	private final Kernel clBlockScan;
-	private final Kernel clBlockPrefix;
 	private final Kernel clReorder;
+	private final Scan<Long> scan;
 	private Buffer bfTempKey;
 	private Buffer bfTempVal;
 	private Buffer bfBlockScan;
-	private Buffer bfBlockSum;
 	private Buffer bfBlockOffset;
 	private int endBit = 32;
 	
@@ -62,6 +69,7 @@ public class RadixSort implements Sorter {
 	 */
 	public RadixSort(OpenCLSettings settings) {
 		this.clContext = settings.getClContext();
+		this.bufferPool = settings.getBufferPool();
 		this.clDevice = settings.getClCommandQueue().getDevice();
 		this.clQueue = settings.getClCommandQueue();
 		this.settings = ComparisonSettings.INT_ASC;
@@ -69,30 +77,20 @@ public class RadixSort implements Sorter {
 		assert (this.settings.keyType.equals("int"));
 		assert (this.settings.valueType.equals("int"));
 		
-		String programHash = RadixSort.class.getName();
-		program = settings.getProgramCache().loadFromCache(programHash);
-		if (program == null) {
-			program = clContext.createProgramFromSourceFiles(settings.getAssetManager(), PROGRAM_FILE);
-			settings.getProgramCache().saveToCache(programHash, program);
-		}
-		program.build();
+		program = settings.loadProgram(PROGRAM_SOURCE);
 		clBlockSort = program.createKernel("clBlockSort");
-		clBlockScan = program.createKernel("clBlockScan");
-		clBlockPrefix = program.createKernel("clBlockPrefix");
 		clReorder = program.createKernel("clReorder");
+		scan = Scan.get(settings, Long.class);
 	}
 
 	private Buffer fit(Buffer buf, long iElements)
 	{
-		if (buf==null || buf.getSize()< iElements * 4) {
-			if (buf != null) {
-				buf.release();
-			}
-			return clContext.createBuffer(iElements * 4);
-		}
-		else {
-			return buf;
-		}
+		return bufferPool.ensureSize(buf, iElements * 4);
+	}
+
+	private Buffer fitLong(Buffer buf, long iElements)
+	{
+		return bufferPool.ensureSize(buf, iElements * 8);
 	}
 
 	@Override
@@ -111,60 +109,54 @@ public class RadixSort implements Sorter {
 	
 	@Override
 	public void sort(Buffer keys, Buffer values) {
-		int n = (int) (keys.getSize() / 4);
+		long n = keys.getSize() / 4;
 		sort(keys, values, n);
 	}
 
 	@Override
-	public void sort(Buffer keys, Buffer values, int count) {
+	public void sort(Buffer keys, Buffer values, long count) {
 		radixsort(keys, values, 0, endBit, count);
 	}
 	
+	/**
+	 * @return the offsets of the blocks per digit of the last pass, as longs
+	 */
 	public Buffer getInternalBlockScan() {
 		return bfBlockScan;
 	}
 	
 	private void radixsort(Buffer bfKey, Buffer bfVal, int iStartBit, int iEndBit, long elements)
 	{
-		if (bfKey.getSize()>= cMaxArraySize * 4)
+		if ((iEndBit - iStartBit) % RS_CBITS != 0)
 		{
-			LOG.log(Level.SEVERE, "maximum sortable array size = {0}", cMaxArraySize);
+			LOG.log(Level.SEVERE, "end bit({0}) - start bit({1}) must be divisible by 4", new Object[]{iEndBit, iStartBit});
 			return;
 		}
 
-		if ((iEndBit - iStartBit) % RS_CBITS != 0)
+		if (elements <= 0)
 		{
-			LOG.log(Level.SEVERE, "end bit({0}) - start bit({1}) must be divisible by 4", new Object[]{iEndBit, iStartBit});
 			return;
 		}
+		long lBlockCount = (elements + RS_BLOCK_SIZE - 1) / RS_BLOCK_SIZE;
+		long lScanCount = lBlockCount*(1 << RS_CBITS);
+		bfBlockScan = fitLong(bfBlockScan, lScanCount);
+		bfBlockOffset = fit(bfBlockOffset, lScanCount);
 
-		int lBlockCount = (int) Math.ceil((float)elements / (RS_BLOCK_SIZE));
-		bfBlockScan = fit(bfBlockScan, lBlockCount*(1 << RS_CBITS));
-		bfBlockOffset = fit(bfBlockOffset, lBlockCount*(1 << RS_CBITS));
-		bfBlockSum = fit(bfBlockSum, RS_BLOCK_SIZE);
+		bfTempKey = fit(bfTempKey, elements);
+		bfTempVal = fit(bfTempVal, elements);
 
-		int lElementCount = (int) elements;
-		bfTempKey = fit(bfTempKey, lElementCount);
-		bfTempVal = fit(bfTempVal, lElementCount);
-
-		int lGlobalSize = lBlockCount*RS_BLOCK_SIZE;
-		int lScanCount = lBlockCount*(1 << RS_CBITS) / 4;
-		int lScanSize = (int) (Math.ceil((float)lScanCount / RS_BLOCK_SIZE)*RS_BLOCK_SIZE);
+		long lGlobalSize = lBlockCount*RS_BLOCK_SIZE;
 
 		Kernel.WorkSize lws = new Kernel.WorkSize(RS_BLOCK_SIZE);
 		for (int j = iStartBit; j<iEndBit; j += RS_CBITS)
 		{
 			clBlockSort.Run2NoEvent(clQueue, new Kernel.WorkSize(lGlobalSize), lws,
-				bfKey, bfTempKey, bfVal, bfTempVal, j, bfBlockScan, bfBlockOffset, lElementCount);
-
-			clBlockScan.Run2NoEvent(clQueue, new Kernel.WorkSize(lScanSize), lws,
-				bfBlockScan, bfBlockSum, lScanCount);
+				bfKey, bfTempKey, bfVal, bfTempVal, j, bfBlockScan, bfBlockOffset, elements);
 
-			clBlockPrefix.Run2NoEvent(clQueue, new Kernel.WorkSize(lScanSize), lws,
-				bfBlockScan, bfBlockSum, lScanCount);
+			scan.exclusive(bfBlockScan, bfBlockScan, lScanCount);
 
 			clReorder.Run2NoEvent(clQueue, new Kernel.WorkSize(lGlobalSize), lws,
-				bfTempKey, bfKey, bfTempVal, bfVal, bfBlockScan, bfBlockOffset, j, lElementCount);
+				bfTempKey, bfKey, bfTempVal, bfVal, bfBlockScan, bfBlockOffset, j, elements);
 		}
 		
 		/*
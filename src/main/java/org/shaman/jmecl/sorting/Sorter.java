@@ -42,7 +42,7 @@ public interface Sorter {
 	 * @param values the value buffer
 	 * @param count the first {@code count} elements are processed
 	 */
-	void sort(Buffer keys, Buffer values, int count);
+	void sort(Buffer keys, Buffer values, long count);
 	
 	/**
 	 * Specifies settings of the used datatypes.
@@ -0,0 +1,247 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.Buffer;
+import java.util.List;
+
+/**
+ * An element-wise expression over buffers and scalars that is evaluated by
+ * {@link CLBlas#evaluate(org.shaman.jmecl.utils.BlasExpression, com.jme3.opencl.Buffer, long) }
+ * and {@link CLBlas#evaluateReduce(org.shaman.jmecl.utils.BlasExpression, com.jme3.opencl.Buffer, org.shaman.jmecl.utils.CLBlas.ReduceOp, long, org.shaman.jmecl.utils.CLBlas.ReduceResult) }
+ * in a single kernel.
+ * <p>
+ * Instead of e.g. an axpy followed by a map and a reduction, each reading and
+ * writing the whole buffers, the chain is described as an expression and
+ * fused into one pass over the memory:
+ * <pre>
+ * //sum((a*x + y) * z)
+ * BlasExpression e = BlasExpression.mul(
+ *         BlasExpression.add(BlasExpression.mul(BlasExpression.scalar(a), BlasExpression.buffer(x)), BlasExpression.buffer(y)),
+ *         BlasExpression.buffer(z));
+ * result = blas.evaluateReduce(e, null, CLBlas.ReduceOp.ADD, size, result);
+ * </pre>
+ * One kernel is generated and compiled for every distinct shape of the
+ * expression tree. Buffers and scalars are kernel arguments, hence the same
+ * shape with other buffers or scalar values reuses the kernel.
+ * Arbitrary OpenCL code is inserted with {@link #custom(java.lang.String, org.shaman.jmecl.utils.BlasExpression...) }.
+ * <p>
+ * Expressions are immutable.
+ *
+ * @author Sebastian Weiss
+ */
+public final class BlasExpression {
+
+	private static enum Kind {
+		BUFFER,
+		SCALAR,
+		OPERATION
+	}
+
+	private final Kind kind;
+	private final Buffer buffer;
+	private final long offset;
+	private final long step;
+	private final Number scalar;
+	private final String template;
+	private final BlasExpression[] args;
+
+	private BlasExpression(Kind kind, Buffer buffer, long offset, long step, Number scalar,
+			String template, BlasExpression[] args) {
+		this.kind = kind;
+		this.buffer = buffer;
+		this.offset = offset;
+		this.step = step;
+		this.scalar = scalar;
+		this.template = template;
+		this.args = args;
+	}
+
+	/**
+	 * The element {@code b[offset + step * i]} of the buffer.
+	 * @param b the buffer
+	 * @param offset the offset into the buffer
+	 * @param step the step size
+	 * @return the expression
+	 */
+	public static BlasExpression buffer(Buffer b, long offset, long step) {
+		if (b == null) {
+			throw new NullPointerException("buffer is null");
+		}
+		return new BlasExpression(Kind.BUFFER, b, offset, step, null, null, null);
+	}
+
+	/**
+	 * The element {@code b[i]} of the buffer.
+	 * @param b the buffer
+	 * @return the expression
+	 */
+	public static BlasExpression buffer(Buffer b) {
+		return buffer(b, 0, 1);
+	}
+
+	/**
+	 * A constant value. It is converted into the number type of the blas instance.
+	 * @param value the value
+	 * @return the expression
+	 */
+	public static BlasExpression scalar(Number value) {
+		if (value == null) {
+			throw new NullPointerException("value is null");
+		}
+		return new BlasExpression(Kind.SCALAR, null, 0, 0, value, null, null);
+	}
+
+	/**
+	 * Custom OpenCL code. The arguments are referenced by {@code $0, $1, ...},
+	 * the element type by {@code TYPE}.
+	 * Example: {@code custom("fma($0, $1, $2)", a, x, y)}.
+	 * @param code the OpenCL expression
+	 * @param args the arguments
+	 * @return the expression
+	 */
+	public static BlasExpression custom(String code, BlasExpression... args) {
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i] == null) {
+				throw new NullPointerException("argument " + i + " is null");
+			}
+		}
+		//validate the references
+		substitute(code, new String[args.length]);
+		return new BlasExpression(Kind.OPERATION, null, 0, 0, null, code, args.clone());
+	}
+
+	public static BlasExpression add(BlasExpression a, BlasExpression b) {
+		return custom("($0 + $1)", a, b);
+	}
+
+	public static BlasExpression sub(BlasExpression a, BlasExpression b) {
+		return custom("($0 - $1)", a, b);
+	}
+
+	public static BlasExpression mul(BlasExpression a, BlasExpression b) {
+		return custom("($0 * $1)", a, b);
+	}
+
+	public static BlasExpression div(BlasExpression a, BlasExpression b) {
+		return custom("($0 / $1)", a, b);
+	}
+
+	public static BlasExpression min(BlasExpression a, BlasExpression b) {
+		return custom("EXPR_MIN($0, $1)", a, b);
+	}
+
+	public static BlasExpression max(BlasExpression a, BlasExpression b) {
+		return custom("EXPR_MAX($0, $1)", a, b);
+	}
+
+	public static BlasExpression neg(BlasExpression a) {
+		return custom("(-$0)", a);
+	}
+
+	public static BlasExpression abs(BlasExpression a) {
+		return custom("EXPR_ABS($0)", a);
+	}
+
+	public static BlasExpression square(BlasExpression a) {
+		return custom("EXPR_SQUARE($0)", a);
+	}
+
+	/**
+	 * @return {@code a*x + y}
+	 */
+	public static BlasExpression axpy(BlasExpression a, BlasExpression x, BlasExpression y) {
+		return custom("EXPR_AXPY($0, $1, $2)", a, x, y);
+	}
+
+	boolean isBuffer() {
+		return kind == Kind.BUFFER;
+	}
+
+	Buffer getBuffer() {
+		return buffer;
+	}
+
+	long getOffset() {
+		return offset;
+	}
+
+	long getStep() {
+		return step;
+	}
+
+	Number getScalar() {
+		return scalar;
+	}
+
+	/**
+	 * Generates the OpenCL code of this expression and collects the leaves
+	 * (buffers and scalars) in the order of their kernel arguments.
+	 * Buffer {@code k} is accessed as {@code bk[ok + sk * i]}, scalar {@code k}
+	 * is the argument {@code ck}.
+	 * @param leaves the list of leaves, filled by this method
+	 * @return the code, it only depends on the shape of the tree
+	 */
+	String generate(List<BlasExpression> leaves) {
+		switch (kind) {
+			case BUFFER: {
+				int k = leaves.size();
+				leaves.add(this);
+				return "b" + k + "[o" + k + " + s" + k + " * i]";
+			}
+			case SCALAR: {
+				int k = leaves.size();
+				leaves.add(this);
+				return "c" + k;
+			}
+			default: {
+				String[] code = new String[args.length];
+				for (int j = 0; j < args.length; ++j) {
+					code[j] = args[j].generate(leaves);
+				}
+				return substitute(template, code);
+			}
+		}
+	}
+
+	private static String substitute(String template, String[] args) {
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < template.length(); ++i) {
+			char c = template.charAt(i);
+			if (c == '$' && i + 1 < template.length() && Character.isDigit(template.charAt(i + 1))) {
+				int j = i + 1;
+				while (j < template.length() && Character.isDigit(template.charAt(j))) {
+					j++;
+				}
+				int index = Integer.parseInt(template.substring(i + 1, j));
+				if (index >= args.length) {
+					throw new IllegalArgumentException("reference $" + index + " in '" + template
+							+ "', but only " + args.length + " arguments are specified");
+				}
+				str.append(args[index]);
+				i = j - 1;
+			} else {
+				str.append(c);
+			}
+		}
+		return str.toString();
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+			case BUFFER: return "buffer(" + buffer + ")";
+			case SCALAR: return String.valueOf(scalar);
+			default: {
+				String[] code = new String[args.length];
+				for (int j = 0; j < args.length; ++j) {
+					code[j] = args[j].toString();
+				}
+				return substitute(template, code);
+			}
+		}
+	}
+}
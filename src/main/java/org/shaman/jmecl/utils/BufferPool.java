@@ -0,0 +1,221 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.Buffer;
+import com.jme3.opencl.Context;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of device buffers to recycle temporary memory.
+ * <p>
+ * Buffers are organized in size classes of powers of two. {@link #borrow(long) }
+ * returns a buffer of the next power of two that is at least as large as
+ * the requested size, hence the buffer might be larger than requested.
+ * Buffers that are no longer needed are passed back with {@link #giveBack(com.jme3.opencl.Buffer) }
+ * and are reused by later calls to {@code borrow}.
+ * The pool keeps at most {@link #getMaxRetainedMemory() } bytes of unused buffers,
+ * buffers beyond that limit are released immediately.
+ * <p>
+ * The pool of an OpenCL context is available via
+ * {@link org.shaman.jmecl.OpenCLSettings#getBufferPool() }.
+ * All methods are thread-safe.
+ *
+ * @author Sebastian Weiss
+ */
+public class BufferPool {
+	private static final Logger LOG = Logger.getLogger(BufferPool.class.getName());
+	/**
+	 * The smallest size class, 2^MIN_CLASS bytes
+	 */
+	private static final int MIN_CLASS = 8;
+	private static final int CLASS_COUNT = 63;
+	/**
+	 * The largest size that can be borrowed, the size of the largest class
+	 */
+	public static final long MAX_BUFFER_SIZE = 1L << (CLASS_COUNT - 1);
+	/**
+	 * The default value of the retained memory: 64MB
+	 */
+	public static final long DEFAULT_MAX_RETAINED_MEMORY = 64 * 1024 * 1024;
+
+	private final Context clContext;
+	private final ArrayDeque<Buffer>[] freeBuffers;
+	/**
+	 * The buffers that are currently borrowed, compared by identity
+	 */
+	private final Set<Buffer> borrowedBuffers;
+	private long maxRetainedMemory;
+	private long retainedMemory;
+	private long allocatedMemory;
+
+	/**
+	 * Creates a new buffer pool with the default retained-memory cap.
+	 * @param clContext the OpenCL context
+	 */
+	public BufferPool(Context clContext) {
+		this(clContext, DEFAULT_MAX_RETAINED_MEMORY);
+	}
+
+	/**
+	 * Creates a new buffer pool.
+	 * @param clContext the OpenCL context
+	 * @param maxRetainedMemory the maximal number of bytes that are kept in unused buffers
+	 */
+	public BufferPool(Context clContext, long maxRetainedMemory) {
+		this.clContext = clContext;
+		@SuppressWarnings("unchecked")
+		ArrayDeque<Buffer>[] queues = (ArrayDeque<Buffer>[]) new ArrayDeque<?>[CLASS_COUNT];
+		this.freeBuffers = queues;
+		this.borrowedBuffers = Collections.newSetFromMap(new IdentityHashMap<Buffer, Boolean>());
+		for (int i = 0; i < CLASS_COUNT; ++i) {
+			freeBuffers[i] = new ArrayDeque<>();
+		}
+		setMaxRetainedMemory(maxRetainedMemory);
+	}
+
+	private static int sizeClass(long size) {
+		if (size <= (1L << MIN_CLASS)) {
+			return MIN_CLASS;
+		}
+		return 64 - Long.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * Returns a buffer with at least the specified size.
+	 * The buffer is taken from the pool if possible, otherwise a new one is created.
+	 * The content of the buffer is undefined.
+	 * @param size the required size in bytes
+	 * @return the buffer, its size is the next power of two of {@code size}
+	 * @throws IllegalArgumentException if the size is not positive or larger
+	 * than {@link #MAX_BUFFER_SIZE}
+	 */
+	public synchronized Buffer borrow(long size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("size must be positive, but is "+size);
+		}
+		if (size > MAX_BUFFER_SIZE) {
+			throw new IllegalArgumentException("size must not exceed 2^"+(CLASS_COUNT-1)+", but is "+size);
+		}
+		int c = sizeClass(size);
+		Buffer b = freeBuffers[c].pollFirst();
+		if (b != null) {
+			retainedMemory -= b.getSize();
+		} else {
+			LOG.log(Level.FINE, "create buffer of size {0}", 1L << c);
+			allocatedMemory += 1L << c;
+			b = clContext.createBuffer(1L << c).register();
+		}
+		borrowedBuffers.add(b);
+		return b;
+	}
+
+	/**
+	 * Passes a buffer back to the pool.
+	 * The buffer must not be used afterwards.
+	 * If the retained memory would exceed the limit, the buffer is released.
+	 * @param buffer the buffer, {@code null} is ignored
+	 * @throws IllegalArgumentException if the buffer is not currently borrowed
+	 * from this pool, the buffer stays untouched in that case
+	 */
+	public synchronized void giveBack(Buffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (!borrowedBuffers.remove(buffer)) {
+			throw new IllegalArgumentException("the buffer was not borrowed from this pool or was already given back");
+		}
+		long size = buffer.getSize();
+		if (retainedMemory + size > maxRetainedMemory) {
+			buffer.release();
+			allocatedMemory -= size;
+			return;
+		}
+		freeBuffers[sizeClass(size)].addFirst(buffer);
+		retainedMemory += size;
+	}
+
+	/**
+	 * Convenience method that returns a buffer with at least the specified size.
+	 * If the passed buffer is large enough, it is returned. Otherwise, it is
+	 * passed back to the pool and a larger one is borrowed.
+	 * The content of the buffer is not preserved when it has to grow.
+	 * @param buffer the current buffer borrowed from this pool, may be {@code null}
+	 * @param size the required size in bytes
+	 * @return a buffer of at least the required size
+	 * @throws IllegalArgumentException if the buffer has to grow and was not
+	 * borrowed from this pool
+	 */
+	public Buffer ensureSize(Buffer buffer, long size) {
+		if (buffer != null && buffer.getSize() >= size) {
+			return buffer;
+		}
+		giveBack(buffer);
+		return borrow(size);
+	}
+
+	/**
+	 * Releases all unused buffers.
+	 */
+	public synchronized void clear() {
+		for (ArrayDeque<Buffer> q : freeBuffers) {
+			for (Buffer b : q) {
+				allocatedMemory -= b.getSize();
+				b.release();
+			}
+			q.clear();
+		}
+		retainedMemory = 0;
+	}
+
+	/**
+	 * @return the maximal number of bytes that are kept in unused buffers
+	 */
+	public synchronized long getMaxRetainedMemory() {
+		return maxRetainedMemory;
+	}
+
+	/**
+	 * Sets the maximal number of bytes that are kept in unused buffers.
+	 * If the currently retained memory exceeds the new limit, the largest
+	 * unused buffers are released.
+	 * @param maxRetainedMemory the new limit in bytes
+	 */
+	public synchronized void setMaxRetainedMemory(long maxRetainedMemory) {
+		if (maxRetainedMemory < 0) {
+			throw new IllegalArgumentException("max retained memory must not be negative");
+		}
+		this.maxRetainedMemory = maxRetainedMemory;
+		for (int c = CLASS_COUNT-1; c >= MIN_CLASS && retainedMemory > maxRetainedMemory; --c) {
+			while (!freeBuffers[c].isEmpty() && retainedMemory > maxRetainedMemory) {
+				Buffer b = freeBuffers[c].pollFirst();
+				retainedMemory -= b.getSize();
+				allocatedMemory -= b.getSize();
+				b.release();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes of all buffers created by this pool that
+	 * are not released yet, borrowed and unused ones
+	 */
+	public synchronized long getAllocatedMemory() {
+		return allocatedMemory;
+	}
+
+	/**
+	 * @return the number of bytes currently kept in unused buffers
+	 */
+	public synchronized long getRetainedMemory() {
+		return retainedMemory;
+	}
+}
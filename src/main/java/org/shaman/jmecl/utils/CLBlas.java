@@ -6,16 +6,23 @@
 package org.shaman.jmecl.utils;
 
 import com.jme3.opencl.*;
+import com.jme3.util.BufferUtils;
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
-import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
 
 /**
- * Collection of utitlity and blas-level-1 routines on primitive types.
+ * Collection of utitlity and blas-level-1 routines on primitive types,
+ * plus the dense matrix-vector and matrix-matrix products (gemv, gemm).
  * <p>
  * All operations take the following arguments:
  * <ul>
@@ -28,6 +35,22 @@ import org.shaman.jmecl.OpenCLSettings;
  * to {@code size-1}. <br>
  * It must be ensured that the passed buffer large enough so that no element outside
  * the bounds is accessed.
+ * <p>
+ * The instance returned by {@link #getHalf(org.shaman.jmecl.OpenCLSettings) }
+ * works on buffers of 16-bit floats: the values are converted to float when
+ * loaded and rounded to half precision when stored, all computations and
+ * the results of reductions are in float precision. This halves the memory
+ * traffic of bandwidth bound operations. It supports fill, axpy, map,
+ * the reductions and statistics.
+ * <p>
+ * The instances are thread-safe: {@link #get(org.shaman.jmecl.OpenCLSettings, java.lang.Class) }
+ * can be called from any thread, and multiple threads can launch operations
+ * on the same instance at the same time. Every reduction and statistics
+ * computation stores its partial results in the scratch memory of the passed
+ * {@link ReduceResult} or {@link StatisticsResult}, so these structures must
+ * not be shared between threads that run operations concurrently.
+ * Only the short sequence of setting the arguments of a kernel and enqueuing
+ * it is synchronized per kernel.
  * 
  * 
  * @author Sebastian Weiss
@@ -36,9 +59,20 @@ import org.shaman.jmecl.OpenCLSettings;
 public final class CLBlas<T extends Number> {
 	private static final Logger LOG = Logger.getLogger(CLBlas.class.getName());
 	private static final String FILE = "org/shaman/jmecl/utils/CLBlas.cl";
+	/**
+	 * Number of work items per compute unit for the element-wise operations
+	 * on contiguous buffers, enough to hide the memory latency.
+	 */
+	private static final int CONTIGUOUS_ITEMS_PER_COMPUTE_UNIT = 2048;
+	private static final int GEMV_WORK_GROUP_SIZE = 64;
+	private static final int MAX_GEMM_TILE = 16;
 	
-	private static final Map<OpenCLSettings, Map<Class<? extends Number>, CLBlas<? extends Number>>> instances
-			= new HashMap<>();
+	/**
+	 * The instances per opencl settings, i.e. per context and command queue
+	 */
+	private static final ConcurrentMap<OpenCLSettings, ConcurrentMap<Class<? extends Number>, CLBlas<? extends Number>>> instances
+			= new ConcurrentHashMap<>();
+	private static final ConcurrentMap<OpenCLSettings, CLBlas<Float>> halfInstances = new ConcurrentHashMap<>();
 	private static interface ElementGetter {
 		Number get(ByteBuffer b);
 	}
@@ -99,24 +133,36 @@ public final class CLBlas<T extends Number> {
 	
 	private final Class<T> elementClass;
 	private final int elementSize;
+	private final boolean floatType;
+	private final boolean halfStorage;
+	/**
+	 * The size of the elements in the buffers, differs from the element size
+	 * only for the half storage.
+	 */
+	private final int storageSize;
 	private final ElementGetter getter;
 	
-	private final int workgroupSize;
+	private volatile int workgroupSize;
 	private final int workgroups;
-	private final Program program;
-	private final Kernel fillKernel;
-	private final Kernel axpyKernel;
-	private final EnumMap<MapOp, Kernel> mapKernels;
-	private final EnumMap<PreReduceOp, EnumMap<ReduceOp, Kernel>> reduceKernels;
-	private final EnumMap<MergeOp, EnumMap<ReduceOp, Kernel>> reduce2Kernels;
-	private final Map<Integer, Kernel> reorderKernels;
-	private final Kernel fillIndicesKernel;
-	private Buffer tmpMem;
-	
-	private CLBlas(OpenCLSettings settings, Class<T> numberType) {
+	private final OpenCLSettings settings;
+	private final ProgramSource programSource;
+	private Program program;
+	private final Map<String, Kernel> kernels;
+	private final KernelLauncher[][] reduceLaunchers;
+	private final KernelLauncher[][] reduce2Launchers;
+	/**
+	 * The scratch memory of the reduce kernels, indexed by the number of
+	 * trailing zeros of the work group size
+	 */
+	private final Kernel.LocalMem[] reduceLocalMem;
+	private Buffer reduceCounter;
+	private KernelLauncher statisticsLauncher;
+	private volatile ReduceMode reduceMode;
+	private final ConcurrentMap<String, FusedKernels> fusedKernels;
+	
+	private CLBlas(OpenCLSettings settings, Class<T> numberType, boolean halfStorage) {
 		clContext = settings.getClContext();
 		clCommandQueue = settings.getClCommandQueue();
-		workgroupSize = (int) Math.min(256, clCommandQueue.getDevice().getMaxiumWorkItemsPerGroup());
 		workgroups = clCommandQueue.getDevice().getComputeUnits(); // *32
 		
 		elementClass = numberType;
@@ -125,84 +171,229 @@ public final class CLBlas<T extends Number> {
 			throw new UnsupportedOperationException("Unsupported number type "+numberType);
 		}
 		elementSize = es.elementSize;
+		floatType = es.floatType;
 		getter = es.getter;
+		this.halfStorage = halfStorage;
+		storageSize = halfStorage ? 2 : elementSize;
 		
-		String cacheID = CLBlas.class.getName() + "-" + numberType.getSimpleName();
-		Program p = settings.getProgramCache().loadFromCache(cacheID);
-		int reorderComponents[] = {1, 2, 3, 4};
-		if (p == null) {
-			StringBuilder includes = new StringBuilder();
-			if (elementClass == Double.class) {
-				includes.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable\n");
-			}
-			includes.append("#define TYPE ").append(es.clType).append("\n");
-			for (int c : reorderComponents) {
-				if (c>1) {
-					includes.append("#define TYPE").append(c).append(" ").append(es.clType).append(c).append("\n");
-				}
-			}
-			includes.append("#define TYPE_MIN ").append(es.clTypeMin).append("\n");
-			includes.append("#define TYPE_MAX ").append(es.clTypeMax).append("\n");
-			includes.append("#define IS_FLOAT_TYPE ").append(es.floatType ? 1 : 0).append("\n\n");
-			p = clContext.createProgramFromSourceFilesWithInclude(
-					settings.getAssetManager(), includes.toString(), FILE);
-			//settings.getProgramCache().saveToCache(cacheID, p);
-		}
-		program = p;
-		p.register();
-		p.build();
-		fillKernel = p.createKernel("Fill").register();
-		axpyKernel = p.createKernel("AXPY").register();
-		mapKernels = new EnumMap<>(MapOp.class);
-		for (MapOp op : MapOp.values()) {
-			mapKernels.put(op, p.createKernel("Map_" + op.name()).register());
-		}
-		reduceKernels = new EnumMap<>(PreReduceOp.class);
-		for (PreReduceOp op1 : PreReduceOp.values()) {
-			EnumMap<ReduceOp, Kernel> map = new EnumMap<>(ReduceOp.class);
-			for (ReduceOp op2 : ReduceOp.values()) {
-				map.put(op2, p.createKernel("Reduce_"+op1.name()+"_"+op2.name()).register());
-			}
-			reduceKernels.put(op1, map);
-		}
-		reduce2Kernels = new EnumMap<>(MergeOp.class);
-		for (MergeOp op1 : MergeOp.values()) {
-			EnumMap<ReduceOp, Kernel> map = new EnumMap<>(ReduceOp.class);
-			for (ReduceOp op2 : ReduceOp.values()) {
-				map.put(op2, p.createKernel("Reduce2_"+op1.name()+"_"+op2.name()).register());
-			}
-			reduce2Kernels.put(op1, map);
-		}
-		reorderKernels = new HashMap<>();
-		for (int c : reorderComponents) {
-			reorderKernels.put(c, p.createKernel("Reorder_"+c).register());
-		}
-		fillIndicesKernel = p.createKernel("FillIndices").register();
+		this.settings = settings;
+		this.programSource = halfStorage ? getHalfProgramSource() : getProgramSource(numberType);
+		long tuned = settings.getWorkGroupTuner().getWorkGroupSize(getReduceTuningKey(), 0);
+		workgroupSize = (int) Math.min(tuned > 0 ? tuned : 256, clCommandQueue.getDevice().getMaxiumWorkItemsPerGroup());
+		this.kernels = new HashMap<>();
+		this.reduceLaunchers = new KernelLauncher[PreReduceOp.values().length][ReduceOp.values().length];
+		this.reduce2Launchers = new KernelLauncher[MergeOp.values().length][ReduceOp.values().length];
+		this.reduceLocalMem = new Kernel.LocalMem[32];
+		this.reduceMode = ReduceMode.AUTO;
+		this.fusedKernels = new ConcurrentHashMap<>();
 	}
 	
 	/**
 	 * Returns the blas instance for the specified number type and opencl settings.
-	 * Supported number types: Integer, Long, Float, Double.
+	 * Supported number types: Byte, Integer, Long, Float, Double.
 	 * @param <T> the number type
 	 * @param settings the opencl settings: context, command queue, asset manager and program cache
 	 * @param numberType the class of the number type
 	 * @return the blas instance
 	 */
 	public static <T extends Number> CLBlas<T> get(OpenCLSettings settings, Class<T> numberType) {
-		Map<Class<? extends Number>, CLBlas<? extends Number>> map = instances.get(settings);
+		ConcurrentMap<Class<? extends Number>, CLBlas<? extends Number>> map = instances.get(settings);
 		if (map == null) {
-			map = new HashMap<>();
-			instances.put(settings, map);
+			ConcurrentMap<Class<? extends Number>, CLBlas<? extends Number>> map2
+					= instances.putIfAbsent(settings, map = new ConcurrentHashMap<>());
+			if (map2 != null) {
+				map = map2;
+			}
+		}
+		CLBlas<? extends Number> blas = map.get(numberType);
+		if (blas == null) {
+			//the constructor is cheap, the program is loaded lazily
+			CLBlas<? extends Number> blas2 = map.putIfAbsent(numberType, blas = new CLBlas<>(settings, numberType, false));
+			if (blas2 != null) {
+				blas = blas2;
+			}
 		}
 		@SuppressWarnings("unchecked")
-		CLBlas<T> blas = (CLBlas<T>) map.get(numberType);
+		CLBlas<T> b = (CLBlas<T>) blas;
+		return b;
+	}
+	
+	/**
+	 * Returns the blas instance that operates on buffers of half precision
+	 * floats (2 bytes per element). The computations are done in float precision.
+	 * @param settings the opencl settings: context, command queue, asset manager and program cache
+	 * @return the blas instance with half storage
+	 */
+	public static CLBlas<Float> getHalf(OpenCLSettings settings) {
+		CLBlas<Float> blas = halfInstances.get(settings);
 		if (blas == null) {
-			blas = new CLBlas<>(settings, numberType);
-			map.put(numberType, blas);
+			CLBlas<Float> blas2 = halfInstances.putIfAbsent(settings, blas = new CLBlas<>(settings, Float.class, true));
+			if (blas2 != null) {
+				blas = blas2;
+			}
 		}
 		return blas;
 	}
 	
+	/**
+	 * Returns the source of the program that is used for the specified number type.
+	 * It can be passed to {@link OpenCLSettings#warmUp(java.util.concurrent.ExecutorService, java.util.Collection) }
+	 * to build the program in the background.
+	 * @param numberType the class of the number type
+	 * @return the program source
+	 */
+	public static ProgramSource getProgramSource(Class<? extends Number> numberType) {
+		return createProgramSource(numberType, false);
+	}
+	
+	/**
+	 * Returns the source of the program that is used by the instance with
+	 * half storage.
+	 * @return the program source
+	 * @see #getHalf(org.shaman.jmecl.OpenCLSettings) 
+	 */
+	public static ProgramSource getHalfProgramSource() {
+		return createProgramSource(Float.class, true);
+	}
+	
+	private static ProgramSource createProgramSource(Class<? extends Number> numberType, boolean halfStorage) {
+		ElementSpecs es = specs.get(numberType);
+		if (es == null) {
+			throw new UnsupportedOperationException("Unsupported number type "+numberType);
+		}
+		int reorderComponents[] = {1, 2, 3, 4};
+		StringBuilder includes = new StringBuilder();
+		if (numberType == Double.class) {
+			includes.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable\n");
+		}
+		includes.append("#define TYPE ").append(es.clType).append("\n");
+		for (int c : reorderComponents) {
+			if (c>1) {
+				includes.append("#define TYPE").append(c).append(" ").append(es.clType).append(c).append("\n");
+			}
+		}
+		includes.append("#define TYPE_MIN ").append(es.clTypeMin).append("\n");
+		includes.append("#define TYPE_MAX ").append(es.clTypeMax).append("\n");
+		includes.append("#define IS_FLOAT_TYPE ").append(es.floatType ? 1 : 0).append("\n");
+		if (halfStorage) {
+			includes.append("#define HALF_STORAGE\n");
+		}
+		includes.append("\n");
+		return new ProgramSource(CLBlas.class.getName() + "-" + (halfStorage ? "Half" : numberType.getSimpleName()),
+				includes.toString(), null, FILE);
+	}
+	
+	private synchronized Program getProgram() {
+		if (program == null) {
+			program = settings.loadProgram(programSource);
+		}
+		return program;
+	}
+	
+	/**
+	 * Returns the kernel with the specified name.
+	 * The program and the kernels are created lazily on the first use,
+	 * so only the operations that are actually called cost compilation time
+	 * and driver memory.
+	 * @param name the name of the kernel function
+	 * @return the kernel
+	 */
+	private Kernel getKernel(String name) {
+		synchronized (kernels) {
+			Kernel kernel = kernels.get(name);
+			if (kernel == null) {
+				kernel = getProgram().createKernel(name).register();
+				kernels.put(name, kernel);
+			}
+			return kernel;
+		}
+	}
+	
+	/**
+	 * Sets the arguments of the kernel and enqueues it.
+	 * The arguments are stored in the kernel object, so the launches of
+	 * one kernel must not interleave between threads.
+	 */
+	private Event run1(Kernel kernel, Kernel.WorkSize globalWorkSize, Object... args) {
+		synchronized (kernel) {
+			return kernel.Run1(clCommandQueue, globalWorkSize, args);
+		}
+	}
+	
+	private Event run2(Kernel kernel, Kernel.WorkSize globalWorkSize, Kernel.WorkSize workGroupSize, Object... args) {
+		synchronized (kernel) {
+			return kernel.Run2(clCommandQueue, globalWorkSize, workGroupSize, args);
+		}
+	}
+	
+	/**
+	 * The scratch memory of the reduce kernels, one element per work item.
+	 * It is set after the work group size in every launch.
+	 * The instances are cached, a race only creates a redundant instance
+	 * because they are immutable.
+	 */
+	private Kernel.LocalMem getReduceLocalMem(int workGroupSize) {
+		int bytes = workGroupSize * elementSize;
+		int i = Integer.numberOfTrailingZeros(workGroupSize);
+		Kernel.LocalMem mem = reduceLocalMem[i];
+		if (mem == null || mem.getSize() != bytes) {
+			mem = new Kernel.LocalMem(bytes);
+			reduceLocalMem[i] = mem;
+		}
+		return mem;
+	}
+	
+	/**
+	 * Launches the last kernel of a reduction, it writes the value into
+	 * {@code result.result}. The event is only created if the result requests it.
+	 */
+	private static void launchLastReduce(KernelLauncher launcher, ReduceResult result) {
+		if (result.withEvent) {
+			result.event = launcher.launchWithEvent().register();
+		} else {
+			result.event = null;
+			launcher.launch();
+		}
+	}
+	
+	private KernelLauncher getReduceLauncher(PreReduceOp preReduceOp, ReduceOp reduceOp) {
+		synchronized (reduceLaunchers) {
+			KernelLauncher l = reduceLaunchers[preReduceOp.ordinal()][reduceOp.ordinal()];
+			if (l == null) {
+				Kernel kernel = getProgram().createKernel("Reduce_"+preReduceOp.name()+"_"+reduceOp.name()).register();
+				l = new KernelLauncher(kernel, clCommandQueue).setArg(6, getReduceCounter());
+				reduceLaunchers[preReduceOp.ordinal()][reduceOp.ordinal()] = l;
+			}
+			return l;
+		}
+	}
+	
+	private KernelLauncher getReduce2Launcher(MergeOp mergeOp, ReduceOp reduceOp) {
+		synchronized (reduce2Launchers) {
+			KernelLauncher l = reduce2Launchers[mergeOp.ordinal()][reduceOp.ordinal()];
+			if (l == null) {
+				Kernel kernel = getProgram().createKernel("Reduce2_"+mergeOp.name()+"_"+reduceOp.name()).register();
+				l = new KernelLauncher(kernel, clCommandQueue).setArg(9, getReduceCounter());
+				reduce2Launchers[mergeOp.ordinal()][reduceOp.ordinal()] = l;
+			}
+			return l;
+		}
+	}
+	
+	/**
+	 * The counter of finished work groups used by the single pass reductions.
+	 * It is reset to zero by the kernel itself. The command queue is in-order,
+	 * so concurrent reductions from multiple threads never run at the same
+	 * time on the device and can share the counter.
+	 */
+	private synchronized Buffer getReduceCounter() {
+		if (reduceCounter == null) {
+			reduceCounter = clContext.createBuffer(4).register();
+			reduceCounter.write(clCommandQueue, BufferUtils.createByteBuffer(4));
+		}
+		return reduceCounter;
+	}
+	
 	private int nextPow2 (int x) 
 	{
 		--x;
@@ -236,11 +427,51 @@ public final class CLBlas<T extends Number> {
 	 *  <li>Integer: 4 </li>
 	 *  <li>Long: 8 </li>
 	 * </ul>
+	 * For the half storage, the size of an element in the buffers is returned: 2.
 	 * @return the count of bytes needed to represent the number class
 	 * @see #get(org.shaman.jmecl.OpenCLSettings, java.lang.Class) 
 	 */
 	public int getElementSize() {
-		return elementSize;
+		return storageSize;
+	}
+	
+	/**
+	 * @return {@code true} if this instance operates on buffers of half precision floats
+	 * @see #getHalf(org.shaman.jmecl.OpenCLSettings) 
+	 */
+	public boolean isHalfStorage() {
+		return halfStorage;
+	}
+	
+	private void checkFullStorage(String operation) {
+		if (halfStorage) {
+			throw new UnsupportedOperationException(operation + " is not supported on half storage");
+		}
+	}
+	
+	/**
+	 * The global work size of the kernels for contiguous buffers:
+	 * one work item per vector of four elements, but at most
+	 * {@link #CONTIGUOUS_ITEMS_PER_COMPUTE_UNIT} per compute unit.
+	 * The kernels loop over the remaining vectors.
+	 * At least four work items are launched, they process the tail.
+	 */
+	private Kernel.WorkSize getContiguousWorkSize(long size) {
+		long vectors = size / 4;
+		long maxItems = (long) workgroups * CONTIGUOUS_ITEMS_PER_COMPUTE_UNIT;
+		return new Kernel.WorkSize(Math.max(4, Math.min(vectors, maxItems)));
+	}
+	
+	/**
+	 * The global work size of the kernels on strided buffers:
+	 * one work item per element, but at most
+	 * {@link #CONTIGUOUS_ITEMS_PER_COMPUTE_UNIT} per compute unit.
+	 * The kernels loop over the remaining elements, so sizes beyond the
+	 * range of the device's {@code size_t} are processed in one launch as well.
+	 */
+	private Kernel.WorkSize getGridStrideWorkSize(long size) {
+		long maxItems = (long) workgroups * CONTIGUOUS_ITEMS_PER_COMPUTE_UNIT;
+		return new Kernel.WorkSize(Math.max(1, Math.min(size, maxItems)));
 	}
 	
 	/**
@@ -253,8 +484,23 @@ public final class CLBlas<T extends Number> {
 	 * @return the event object, must be released manually
 	 */
 	public Event fill(Buffer b, T val, long size, long offset, long step) {
-		Kernel.WorkSize ws = new Kernel.WorkSize(size);
-		return fillKernel.Run1(clCommandQueue, ws, b, val, offset, step);
+		if (step == 1) {
+			return run1(getKernel("FillContiguous"), getContiguousWorkSize(size), b, val, offset, size);
+		}
+		return run1(getKernel("Fill"), getGridStrideWorkSize(size), b, val, offset, step, size);
+	}
+	/**
+	 * Records a fill operation into the specified command graph.
+	 * @param graph the command graph
+	 * @param b the buffer to fill
+	 * @param val the value, either of type {@code T} or a placeholder
+	 * @param size the size/count of elements to fill
+	 * @param offset the offset into the buffer
+	 * @param step the step size
+	 * @see #fill(com.jme3.opencl.Buffer, java.lang.Number, long, long, long) 
+	 */
+	public void recordFill(CommandGraph graph, Buffer b, Object val, long size, long offset, long step) {
+		graph.addKernel(getProgram(), "Fill", getGridStrideWorkSize(size), b, val, offset, step, size);
 	}
 	/**
 	 * Fills a part of the buffer.
@@ -277,7 +523,7 @@ public final class CLBlas<T extends Number> {
 	 * @see #fill(com.jme3.opencl.Buffer, java.lang.Number, long, long, long) 
 	 */
 	public Event fill(Buffer b, T val) {
-		return fill(b, val, b.getSize()/elementSize);
+		return fill(b, val, b.getSize()/storageSize);
 	}
 	
 	/**
@@ -291,7 +537,8 @@ public final class CLBlas<T extends Number> {
 	 * @return the event object
 	 */
 	public Event fillIndices(Buffer x, T start, T step, long size) {
-		return fillIndicesKernel.Run1(clCommandQueue, new Kernel.WorkSize(size), x, start, step);
+		checkFullStorage("fillIndices");
+		return run1(getKernel("FillIndicesContiguous"), getContiguousWorkSize(size), x, start, step, size);
 	}
 	
 	/**
@@ -305,7 +552,7 @@ public final class CLBlas<T extends Number> {
 	 * @see #fillIndices(com.jme3.opencl.Buffer, java.lang.Number, java.lang.Number, long) 
 	 */
 	public Event fillIndices(Buffer x, T start, T step) {
-		return fillIndices(x, start, step, x.getSize()/elementSize);
+		return fillIndices(x, start, step, x.getSize()/storageSize);
 	}
 	
 	/**
@@ -320,9 +567,12 @@ public final class CLBlas<T extends Number> {
 	 * @return the event, must be released manually
 	 */
 	public Event reorder(Buffer indices, Buffer src, Buffer dest, int components, long size) {
-		Kernel.WorkSize ws = new Kernel.WorkSize(size);
-		Kernel k = reorderKernels.get(components);
-		return k.Run1(clCommandQueue, ws, indices, src, dest);
+		checkFullStorage("reorder");
+		if (components < 1 || components > 4) {
+			throw new IllegalArgumentException("components must be between 1 and 4, but is "+components);
+		}
+		Kernel k = getKernel("Reorder_"+components);
+		return run1(k, getGridStrideWorkSize(size), indices, src, dest, size);
 	}
 	
 	/**
@@ -343,9 +593,12 @@ public final class CLBlas<T extends Number> {
 	public Event axpy(T a, Buffer x, Buffer y, Buffer dest, 
 			long size, long offsetX, long offsetY, long offsetDest,
 			long stepX, long stepY, long stepDest) {
-		Kernel.WorkSize ws = new Kernel.WorkSize(size);
-		return axpyKernel.Run1(clCommandQueue, ws, a, x, y, dest, 
-				offsetX, offsetY, offsetDest, stepX, stepY, stepDest);
+		if (stepX == 1 && stepY == 1 && stepDest == 1) {
+			return run1(getKernel("AXPYContiguous"), getContiguousWorkSize(size), a, x, y, dest,
+					offsetX, offsetY, offsetDest, size);
+		}
+		return run1(getKernel("AXPY"), getGridStrideWorkSize(size), a, x, y, dest, 
+				offsetX, offsetY, offsetDest, stepX, stepY, stepDest, size);
 	}
 	/**
 	 * Computes {@code dest[i] = a*x[i] + y[i]} on a part of the buffers.
@@ -372,7 +625,7 @@ public final class CLBlas<T extends Number> {
 	 */
 	public Event axpy(T a, Buffer x, Buffer y, Buffer dest) {
 		long size = Math.min(Math.min(dest.getSize(), x.getSize()), y.getSize());
-		size /= elementSize;
+		size /= storageSize;
 		return axpy(a, x, y, dest, size);
 	}
 	
@@ -449,9 +702,12 @@ public final class CLBlas<T extends Number> {
 	 */
 	public Event map(Buffer b, MapOp op, T arg, Buffer dest, 
 			long size, long offsetB, long offsetDest, long stepB, long stepDest) {
-		Kernel.WorkSize ws = new Kernel.WorkSize(size);
-		Kernel kernel = mapKernels.get(op);
-		return kernel.Run1(clCommandQueue, ws, b, arg, dest, offsetB, offsetDest, stepB, stepDest);
+		if (stepB == 1 && stepDest == 1) {
+			return run1(getKernel("MapContiguous_" + op.name()), getContiguousWorkSize(size),
+					b, arg, dest, offsetB, offsetDest, size);
+		}
+		Kernel kernel = getKernel("Map_" + op.name());
+		return run1(kernel, getGridStrideWorkSize(size), b, arg, dest, offsetB, offsetDest, stepB, stepDest, size);
 	}
 	/**
 	 * Performs a map operation / transformation on a part of the buffer
@@ -478,7 +734,7 @@ public final class CLBlas<T extends Number> {
 	 * @see MapOp
 	 */
 	public Event map(Buffer b, MapOp op, T arg, Buffer dest) {
-		long size = Math.min(b.getSize(), dest.getSize()) / elementSize;
+		long size = Math.min(b.getSize(), dest.getSize()) / storageSize;
 		return map(b, op, arg, dest, size);
 	}
 	
@@ -522,6 +778,34 @@ public final class CLBlas<T extends Number> {
 		MIN,
 		MAX
 	}
+	/**
+	 * Specifies how the partial results of the work groups are combined in
+	 * the reduce operations.
+	 * @see #setReduceMode(org.shaman.jmecl.utils.CLBlas.ReduceMode) 
+	 */
+	public static enum ReduceMode {
+		/**
+		 * The partial results are reduced by further kernel launches until
+		 * one value remains, which is then copied into the result buffer.
+		 */
+		MULTI_PASS,
+		/**
+		 * Only one kernel is launched. The last work group to finish,
+		 * detected by an atomic counter, reduces the partial results
+		 * and writes the final value.
+		 */
+		SINGLE_PASS,
+		/**
+		 * The single pass reduction is used if the partial results fit into
+		 * one work group, then both modes produce identical results.
+		 * Otherwise, the multi pass reduction is used.
+		 * Because the number of work groups is limited to the number of
+		 * compute units, this is the single pass reduction on practically
+		 * every device. The multi pass reduction is only chosen if a device
+		 * has more compute units than the reduce work group size.
+		 */
+		AUTO
+	}
 	
 	/**
 	 * Structure storing the result of a reduce operation.
@@ -531,18 +815,41 @@ public final class CLBlas<T extends Number> {
 	 * as an argument to another kernel, or read to value by {@link #getReduceResultBlocking(org.shaman.jmecl.utils.CLBlas.ReduceResult) }.
 	 * <br>
 	 * Instances of this class can be used multiple times, just pass it again
-	 * to a reduce method.
+	 * to a reduce method. They also hold the scratch memory for the partial
+	 * results of the work groups, so an instance must not be used by multiple
+	 * threads at the same time.
 	 */
 	public static class ReduceResult {
+		private final boolean withEvent;
+		private final int[] sizes = new int[2];
+		private ByteBuffer host;
 		private Event event;
 		private Buffer result;
+		private Buffer partials;
 
+		/**
+		 * Creates a result structure whose reductions provide an event.
+		 */
 		public ReduceResult() {
+			this(true);
+		}
+
+		/**
+		 * Creates a result structure.
+		 * Without the event, a reduction does not allocate any object once
+		 * the buffers have their size. The value can still be read with
+		 * {@link CLBlas#getReduceResultBlocking(org.shaman.jmecl.utils.CLBlas.ReduceResult) }
+		 * or a {@link ReduceRing}.
+		 * @param withEvent {@code true} if the reductions should provide an event
+		 */
+		public ReduceResult(boolean withEvent) {
+			this.withEvent = withEvent;
 		}
 
 		/**
 		 * Returns the event indicating when the reduce operation is done
-		 * @return the event, automatically released
+		 * @return the event, automatically released, or {@code null} if this
+		 * result was created without events
 		 */
 		public Event getEvent() {
 			return event;
@@ -558,15 +865,115 @@ public final class CLBlas<T extends Number> {
 		
 	}
 	
-	private void getReduceWorkSize (int bufferSize, int[] result) //result: std::size_t* numWorkGroups, std::size_t* workGroupSize
+	/**
+	 * Sets the mode how the partial results of the work groups are combined
+	 * in {@code reduce} and {@code reduce2}, the default is {@link ReduceMode#AUTO}.
+	 * @param reduceMode the reduce mode
+	 */
+	public void setReduceMode(ReduceMode reduceMode) {
+		if (reduceMode == null) {
+			throw new NullPointerException("reduce mode is null");
+		}
+		this.reduceMode = reduceMode;
+	}
+
+	public ReduceMode getReduceMode() {
+		return reduceMode;
+	}
+	
+	private boolean isSinglePass(ReduceMode mode, int numWorkGroups, int workGroupSize) {
+		switch (mode) {
+			case SINGLE_PASS: return true;
+			case MULTI_PASS: return false;
+			//numWorkGroups is at most the number of compute units,
+			//so this is nearly always true. It keeps AUTO bitwise identical to MULTI_PASS.
+			default: return numWorkGroups <= workGroupSize;
+		}
+	}
+	
+	private String getReduceTuningKey() {
+		return "CLBlas-" + (halfStorage ? "Half" : elementClass.getSimpleName()) + "-Reduce";
+	}
+	
+	/**
+	 * Measures the best maximal work group size of the reduce operations
+	 * and stores it in the specified tuner. The tuned size is used by this
+	 * instance and by all instances that are created later with the same tuner.
+	 * @param tuner the work group tuner
+	 * @param size the number of elements that are reduced in the benchmark
+	 */
+	public void tuneReduce(WorkGroupTuner tuner, int size) {
+		final Buffer b = settings.getBufferPool().borrow(size * (long) storageSize);
+		final int count = size;
+		final ReduceResult result = new ReduceResult();
+		long max = getReduceLauncher(PreReduceOp.NONE, ReduceOp.ADD).getKernel()
+				.getMaxWorkGroupSize(clCommandQueue.getDevice());
+		List<Long> candidates = new ArrayList<>();
+		for (long s : tuner.getCandidates(Long.highestOneBit(max), max)) {
+			if (s >= 16) {
+				candidates.add(s);
+			}
+		}
+		int oldSize = workgroupSize;
+		long best = tuner.tune(getReduceTuningKey(), 0, new WorkGroupTuner.Benchmark() {
+			@Override
+			public void run(long workGroupSize) {
+				workgroupSize = (int) workGroupSize;
+				reduce(b, PreReduceOp.NONE, ReduceOp.ADD, count, result);
+			}
+		}, candidates, 10);
+		workgroupSize = best > 0 ? (int) best : oldSize;
+		settings.getBufferPool().giveBack(b);
+	}
+	
+	private void getReduceWorkSize (long bufferSize, int[] result) //result: std::size_t* numWorkGroups, std::size_t* workGroupSize
 	{
-		int workGroupSize = (bufferSize < workgroupSize) ? nextPow2 (bufferSize) : workgroupSize;
+		int workGroupSize = (bufferSize < workgroupSize) ? nextPow2 ((int) bufferSize) : workgroupSize;
 		
-		int numWorkGroups = (bufferSize + ((workGroupSize) - 1)) / (workGroupSize);
+		long numWorkGroups = (bufferSize + ((workGroupSize) - 1)) / (workGroupSize);
 		numWorkGroups = Math.min(workgroups, numWorkGroups);
 		
 		result[0] = workGroupSize;
-		result[1] = numWorkGroups;
+		result[1] = (int) numWorkGroups;
+	}
+
+	/**
+	 * Reduces the partial results of the work groups in {@code result.partials}
+	 * until one value remains, the last pass writes it into the result.
+	 */
+	private void finishReduce(ReduceOp reduceOp, int numWorkGroups, ReduceResult result) {
+		if (halfStorage) {
+			//the partial results are floats, the kernels of this instance read halfs
+			get(settings, Float.class).finishReduce(result.partials, reduceOp, numWorkGroups, result);
+		} else {
+			finishReduce(result.partials, reduceOp, numWorkGroups, result);
+		}
+	}
+	
+	private void finishReduce(Buffer partials, ReduceOp reduceOp, int numWorkGroups, ReduceResult result) {
+		int[] sizes = result.sizes;
+		KernelLauncher kernelOp2 = getReduceLauncher(PreReduceOp.NONE, reduceOp);
+		int size = numWorkGroups;
+		while (size > 1) {
+			getReduceWorkSize(size, sizes);
+			int workGroupSize = sizes[0];
+			numWorkGroups = sizes[1];
+			int globalWorkSize = numWorkGroups * workGroupSize;
+			Buffer output = numWorkGroups == 1 ? result.result : partials;
+			
+			synchronized (kernelOp2) {
+				kernelOp2.setGlobalWorkSize(globalWorkSize).setWorkGroupSize(workGroupSize)
+						.setArg(0, partials).setArg(1, getReduceLocalMem(workGroupSize)).setArg(2, (long) size).setArg(3, output).setArg(4, 0L).setArg(5, 1L)
+						.setArg(7, output).setArg(8, 0);
+				if (numWorkGroups == 1) {
+					launchLastReduce(kernelOp2, result);
+				} else {
+					kernelOp2.launch();
+				}
+			}
+			
+			size = numWorkGroups;
+		}
 	}
 
 	/**
@@ -579,49 +986,62 @@ public final class CLBlas<T extends Number> {
 	 * @param step the step size in the input buffer
 	 * @param result a result structure for reuse, {@code null} if a new one should be created
 	 * @return the result
+	 * @see #setReduceMode(org.shaman.jmecl.utils.CLBlas.ReduceMode) 
 	 */
 	public ReduceResult reduce(Buffer b, PreReduceOp preReduceOp, ReduceOp reduceOp,
 			long size, long offset, long step, ReduceResult result) {
-		if (size > Integer.MAX_VALUE) {
-			throw new IllegalArgumentException("buffer is too big, only 2^31 elements supported");
-		}
-		
+		return reduce(b, preReduceOp, reduceOp, size, offset, step, result, reduceMode);
+	}
+	/**
+	 * Performs a reduce operation with the specified reduce mode.
+	 * @param b the input buffer
+	 * @param preReduceOp an operation applied before the reduce operation is performed
+	 * @param reduceOp the reduce operation
+	 * @param size the count of elements to process
+	 * @param offset the offset into the input buffer
+	 * @param step the step size in the input buffer
+	 * @param result a result structure for reuse, {@code null} if a new one should be created
+	 * @param mode how the partial results of the work groups are combined
+	 * @return the result
+	 */
+	public ReduceResult reduce(Buffer b, PreReduceOp preReduceOp, ReduceOp reduceOp,
+			long size, long offset, long step, ReduceResult result, ReduceMode mode) {
 		if (result == null) {
 			result = new ReduceResult();
 		}
 		result.result = ensureBufferSize(result.result, elementSize);
 		
-		int[] sizes = new int[2];
-		getReduceWorkSize((int) size, sizes);
+		int[] sizes = result.sizes;
+		getReduceWorkSize(size, sizes);
 		int workGroupSize = sizes[0];
 		int numWorkGroups = sizes[1];
 		int globalWorkSize = numWorkGroups * workGroupSize;
 
-		tmpMem = ensureBufferSize(tmpMem, elementSize * numWorkGroups);
-		
-		Kernel kernelOp1 = reduceKernels.get(preReduceOp).get(reduceOp);
-		Kernel kernelOp2 = reduceKernels.get(PreReduceOp.NONE).get(reduceOp);
+		result.partials = ensureBufferSize(result.partials, elementSize * numWorkGroups);
 		
-		kernelOp1.Run2NoEvent(clCommandQueue, new Kernel.WorkSize(globalWorkSize), new Kernel.WorkSize(workGroupSize), 
-					b, new Kernel.LocalMemPerElement(elementSize), (int) size, tmpMem, (int) offset, (int) step);
-//                clCommandQueue.finish();
+		KernelLauncher kernelOp1 = getReduceLauncher(preReduceOp, reduceOp);
 		
-		size = numWorkGroups;
-		while (size > 1) {
-			getReduceWorkSize((int) size, sizes);
-			workGroupSize = sizes[0];
-			numWorkGroups = sizes[1];
-			globalWorkSize = numWorkGroups * workGroupSize;
-			
-			kernelOp2.Run2NoEvent(clCommandQueue, new Kernel.WorkSize(globalWorkSize), new Kernel.WorkSize(workGroupSize), 
-						tmpMem, new Kernel.LocalMemPerElement(elementSize), (int) size, tmpMem, (int) 0, (int) 1);
-//                        clCommandQueue.finish();
-			
-			size = numWorkGroups;
+		boolean singlePass = isSinglePass(mode, numWorkGroups, workGroupSize);
+		//a single work group writes the value directly
+		boolean last = singlePass || numWorkGroups == 1;
+		Buffer output = numWorkGroups == 1 ? result.result : result.partials;
+		synchronized (kernelOp1) {
+			kernelOp1.setGlobalWorkSize(globalWorkSize).setWorkGroupSize(workGroupSize)
+					.setArg(0, b).setArg(1, getReduceLocalMem(workGroupSize)).setArg(2, size).setArg(3, output).setArg(4, offset).setArg(5, step);
+			if (singlePass) {
+				kernelOp1.setArg(7, result.result).setArg(8, 1);
+			} else {
+				kernelOp1.setArg(7, output).setArg(8, 0);
+			}
+			if (last) {
+				launchLastReduce(kernelOp1, result);
+			} else {
+				kernelOp1.launch();
+			}
+		}
+		if (!last) {
+			finishReduce(reduceOp, numWorkGroups, result);
 		}
-		
-		result.event = tmpMem.copyToAsync(clCommandQueue, result.result, elementSize).register();
-//                clCommandQueue.finish();
 		return result;
 	}
 	/**
@@ -649,7 +1069,7 @@ public final class CLBlas<T extends Number> {
 	 */
 	public ReduceResult reduce(Buffer b, PreReduceOp preReduceOp, ReduceOp reduceOp,
 			ReduceResult result) {
-		return reduce(b, preReduceOp, reduceOp, b.getSize()/elementSize, result);
+		return reduce(b, preReduceOp, reduceOp, b.getSize()/storageSize, result);
 	}
 	
 	/**
@@ -667,50 +1087,70 @@ public final class CLBlas<T extends Number> {
 	 * @param stepB the step size of the second input buffer
 	 * @param result a result structure for reuse, {@code null} if a new one should be created
 	 * @return the result
+	 * @see #setReduceMode(org.shaman.jmecl.utils.CLBlas.ReduceMode) 
 	 */
 	public ReduceResult reduce2(Buffer a, Buffer b, MergeOp mergeOp, ReduceOp reduceOp,
 			long size, long offsetA, long offsetB, long stepA, long stepB,
 			ReduceResult result) {
-		if (size > Integer.MAX_VALUE) {
-			throw new IllegalArgumentException("buffer is too big, only 2^31 elements supported");
-		}
-		
+		return reduce2(a, b, mergeOp, reduceOp, size, offsetA, offsetB, stepA, stepB, result, reduceMode);
+	}
+	/**
+	 * Merges two buffers into one and performs a reduction on the result
+	 * with the specified reduce mode.
+	 * This is used to realise operations like the dot product, see 
+	 * {@link #dotProduct(com.jme3.opencl.Buffer, com.jme3.opencl.Buffer, org.shaman.jmecl.utils.CLBlas.ReduceResult) }.
+	 * @param a the first input buffer
+	 * @param b the second input buffer
+	 * @param mergeOp the operation to merge the two input buffers
+	 * @param reduceOp the reduce operation
+	 * @param size the count of elements to process
+	 * @param offsetA the offset into the first input buffer
+	 * @param offsetB the offset into the second input buffer
+	 * @param stepA the step size of the first input buffer
+	 * @param stepB the step size of the second input buffer
+	 * @param result a result structure for reuse, {@code null} if a new one should be created
+	 * @param mode how the partial results of the work groups are combined
+	 * @return the result
+	 */
+	public ReduceResult reduce2(Buffer a, Buffer b, MergeOp mergeOp, ReduceOp reduceOp,
+			long size, long offsetA, long offsetB, long stepA, long stepB,
+			ReduceResult result, ReduceMode mode) {
 		if (result == null) {
 			result = new ReduceResult();
 		}
 		result.result = ensureBufferSize(result.result, elementSize);
 		
-		int[] sizes = new int[2];
-		getReduceWorkSize((int) size, sizes);
+		int[] sizes = result.sizes;
+		getReduceWorkSize(size, sizes);
 		int workGroupSize = sizes[0];
 		int numWorkGroups = sizes[1];
 		int globalWorkSize = numWorkGroups * workGroupSize;
 
-		tmpMem = ensureBufferSize(tmpMem, elementSize * numWorkGroups);
+		result.partials = ensureBufferSize(result.partials, elementSize * numWorkGroups);
 		
-		Kernel kernelOp1 = reduce2Kernels.get(mergeOp).get(reduceOp);
-		Kernel kernelOp2 = reduceKernels.get(PreReduceOp.NONE).get(reduceOp);
+		KernelLauncher kernelOp1 = getReduce2Launcher(mergeOp, reduceOp);
 		
-		kernelOp1.Run2NoEvent(clCommandQueue, new Kernel.WorkSize(globalWorkSize), new Kernel.WorkSize(workGroupSize), 
-					a, b, new Kernel.LocalMemPerElement(elementSize), (int) size, tmpMem, (int) offsetA, (int) stepA, (int) offsetB, (int) stepB);
-//                clCommandQueue.finish();
-		
-		size = numWorkGroups;
-		while (size > 1) {
-			getReduceWorkSize((int) size, sizes);
-			workGroupSize = sizes[0];
-			numWorkGroups = sizes[1];
-			globalWorkSize = numWorkGroups * workGroupSize;
-			
-			kernelOp2.Run2NoEvent(clCommandQueue, new Kernel.WorkSize(globalWorkSize), new Kernel.WorkSize(workGroupSize), 
-						tmpMem, new Kernel.LocalMemPerElement(elementSize), (int) size, tmpMem, (int) 0, (int) 1);
-//                        clCommandQueue.finish();
-			
-			size = numWorkGroups;
+		boolean singlePass = isSinglePass(mode, numWorkGroups, workGroupSize);
+		boolean last = singlePass || numWorkGroups == 1;
+		Buffer output = numWorkGroups == 1 ? result.result : result.partials;
+		synchronized (kernelOp1) {
+			kernelOp1.setGlobalWorkSize(globalWorkSize).setWorkGroupSize(workGroupSize)
+					.setArg(0, a).setArg(1, b).setArg(2, getReduceLocalMem(workGroupSize)).setArg(3, size).setArg(4, output)
+					.setArg(5, offsetA).setArg(6, stepA).setArg(7, offsetB).setArg(8, stepB);
+			if (singlePass) {
+				kernelOp1.setArg(10, result.result).setArg(11, 1);
+			} else {
+				kernelOp1.setArg(10, output).setArg(11, 0);
+			}
+			if (last) {
+				launchLastReduce(kernelOp1, result);
+			} else {
+				kernelOp1.launch();
+			}
+		}
+		if (!last) {
+			finishReduce(reduceOp, numWorkGroups, result);
 		}
-		
-		result.event = tmpMem.copyToAsync(clCommandQueue, result.result, elementSize).register();
-//                clCommandQueue.finish();
 		return result;
 	}
 	/**
@@ -741,7 +1181,7 @@ public final class CLBlas<T extends Number> {
 	 */
 	public ReduceResult reduce2(Buffer a, Buffer b, MergeOp mergeOp,
 			ReduceOp reduceOp,	ReduceResult result) {
-		long size = Math.min(a.getSize(), b.getSize()) / elementSize;
+		long size = Math.min(a.getSize(), b.getSize()) / storageSize;
 		return reduce2(a, b, mergeOp, reduceOp, size, result);
 	}
 	
@@ -760,17 +1200,1016 @@ public final class CLBlas<T extends Number> {
 	}
 	
 	/**
-	 * Retrieves the result of a reduce operation in a blocking fashion.
-	 * @param result the result structure from one of the reduce operations
-	 * @return the resulting value
-	 * @see #reduce(com.jme3.opencl.Buffer, org.shaman.jmecl.utils.CLBlas.PreReduceOp, org.shaman.jmecl.utils.CLBlas.ReduceOp, long, long, long, org.shaman.jmecl.utils.CLBlas.ReduceResult) 
-	 * @see #reduce2(com.jme3.opencl.Buffer, com.jme3.opencl.Buffer, org.shaman.jmecl.utils.CLBlas.MergeOp, org.shaman.jmecl.utils.CLBlas.ReduceOp, long, long, long, long, long, org.shaman.jmecl.utils.CLBlas.ReduceResult) 
+	 * The memory layout of a dense matrix.
+	 * With a leading dimension {@code ld}, the element {@code (i, j)} is stored at
+	 * {@code i*ld + j} (row-major) or {@code i + j*ld} (column-major).
 	 */
-	@SuppressWarnings("unchecked")
-	public T getReduceResultBlocking(ReduceResult result) {
-		ByteBuffer buf = result.result.map(clCommandQueue, MappingAccess.MAP_READ_ONLY);
-		Number n = getter.get(buf);
-		result.result.unmap(clCommandQueue, buf);
-		return (T) n;
+	public static enum Layout {
+		ROW_MAJOR,
+		COLUMN_MAJOR
+	}
+	
+	/**
+	 * The distance between two rows of the matrix {@code op(M)} in the buffer.
+	 */
+	private static long getRowStride(Layout layout, boolean transpose, int ld) {
+		return (layout == Layout.ROW_MAJOR) != transpose ? ld : 1;
+	}
+	
+	/**
+	 * The distance between two columns of the matrix {@code op(M)} in the buffer.
+	 */
+	private static long getColumnStride(Layout layout, boolean transpose, int ld) {
+		return (layout == Layout.ROW_MAJOR) != transpose ? 1 : ld;
+	}
+	
+	/**
+	 * The edge length of the square tiles of the matrix products:
+	 * the largest power of two up to {@link #MAX_GEMM_TILE} whose square
+	 * fits into a work group.
+	 */
+	private int getGemmTile(Kernel kernel) {
+		long max = kernel.getMaxWorkGroupSize(clCommandQueue.getDevice());
+		int tile = MAX_GEMM_TILE;
+		while (tile > 1 && tile * tile > max) {
+			tile /= 2;
+		}
+		return tile;
+	}
+	
+	/**
+	 * Computes the matrix-vector product {@code y = alpha * op(A) * x + beta * y}.
+	 * {@code op(A)} is {@code A} or its transpose and has {@code m} rows
+	 * and {@code n} columns. If {@code beta} is zero, y is not read before.
+	 * <p>
+	 * If the rows of {@code op(A)} are contiguous in memory, every row is
+	 * reduced by a work group, otherwise every work item computes one row
+	 * and x is staged through local memory.
+	 * @param layout the layout of A
+	 * @param transA {@code true} if A should be transposed
+	 * @param m the count of rows of {@code op(A)} and the size of y
+	 * @param n the count of columns of {@code op(A)} and the size of x
+	 * @param alpha the factor of the product
+	 * @param a the matrix
+	 * @param offsetA the offset of the first element of A
+	 * @param lda the leading dimension of A, see {@link Layout}
+	 * @param x the input vector
+	 * @param offsetX the offset into the x buffer
+	 * @param stepX the step size in the x buffer
+	 * @param beta the factor of the previous y
+	 * @param y the output vector, must be different from x
+	 * @param offsetY the offset into the y buffer
+	 * @param stepY the step size in the y buffer
+	 * @return the event, must be released manually
+	 */
+	public Event gemv(Layout layout, boolean transA, int m, int n, T alpha,
+			Buffer a, long offsetA, int lda, Buffer x, long offsetX, long stepX,
+			T beta, Buffer y, long offsetY, long stepY) {
+		checkFullStorage("gemv");
+		long rowStride = getRowStride(layout, transA, lda);
+		long colStride = getColumnStride(layout, transA, lda);
+		if (colStride == 1 && rowStride != 1) {
+			Kernel kernel = getKernel("GEMVReduce");
+			int groupSize = Integer.highestOneBit((int) Math.min(GEMV_WORK_GROUP_SIZE,
+					kernel.getMaxWorkGroupSize(clCommandQueue.getDevice())));
+			return run2(kernel, new Kernel.WorkSize(m * (long) groupSize), new Kernel.WorkSize(groupSize),
+					m, n, alpha, a, offsetA, rowStride, colStride, x, offsetX, stepX,
+					beta, y, offsetY, stepY, new Kernel.LocalMem(groupSize * elementSize));
+		} else {
+			Kernel kernel = getKernel("GEMVRows");
+			int groupSize = (int) Math.min(GEMV_WORK_GROUP_SIZE,
+					kernel.getMaxWorkGroupSize(clCommandQueue.getDevice()));
+			long globalSize = (m + groupSize - 1) / groupSize * (long) groupSize;
+			return run2(kernel, new Kernel.WorkSize(globalSize), new Kernel.WorkSize(groupSize),
+					m, n, alpha, a, offsetA, rowStride, colStride, x, offsetX, stepX,
+					beta, y, offsetY, stepY, new Kernel.LocalMem(groupSize * elementSize));
+		}
+	}
+	
+	/**
+	 * Computes the matrix-vector product {@code y = alpha * A * x + beta * y}
+	 * with a densely packed {@code m x n} matrix A and contiguous vectors.
+	 * @param layout the layout of A
+	 * @param m the count of rows of A and the size of y
+	 * @param n the count of columns of A and the size of x
+	 * @param alpha the factor of the product
+	 * @param a the matrix
+	 * @param x the input vector
+	 * @param beta the factor of the previous y
+	 * @param y the output vector, must be different from x
+	 * @return the event, must be released manually
+	 * @see #gemv(org.shaman.jmecl.utils.CLBlas.Layout, boolean, int, int, java.lang.Number, com.jme3.opencl.Buffer, long, int, com.jme3.opencl.Buffer, long, long, java.lang.Number, com.jme3.opencl.Buffer, long, long) 
+	 */
+	public Event gemv(Layout layout, int m, int n, T alpha, Buffer a, Buffer x, T beta, Buffer y) {
+		int lda = layout == Layout.ROW_MAJOR ? n : m;
+		return gemv(layout, false, m, n, alpha, a, 0, lda, x, 0, 1, beta, y, 0, 1);
+	}
+	
+	/**
+	 * Computes the matrix-matrix product {@code C = alpha * op(A) * op(B) + beta * C}.
+	 * {@code op(A)} is a {@code m x k}, {@code op(B)} a {@code k x n} and
+	 * C a {@code m x n} matrix, all three share the same layout.
+	 * If {@code beta} is zero, C is not read before.
+	 * <p>
+	 * Large products are computed in square tiles staged through local memory.
+	 * A common use is to transform many small vectors at once: e.g. with
+	 * a column-major {@code 3 x 3} matrix A and the positions of {@code count}
+	 * particles as column-major {@code 3 x count} matrix B with {@code ldb=3}.
+	 * @param layout the layout of the matrices
+	 * @param transA {@code true} if A should be transposed
+	 * @param transB {@code true} if B should be transposed
+	 * @param m the count of rows of {@code op(A)} and C
+	 * @param n the count of columns of {@code op(B)} and C
+	 * @param k the count of columns of {@code op(A)} and rows of {@code op(B)}
+	 * @param alpha the factor of the product
+	 * @param a the first matrix
+	 * @param offsetA the offset of the first element of A
+	 * @param lda the leading dimension of A
+	 * @param b the second matrix
+	 * @param offsetB the offset of the first element of B
+	 * @param ldb the leading dimension of B
+	 * @param beta the factor of the previous C
+	 * @param c the output matrix, must not overlap with A and B
+	 * @param offsetC the offset of the first element of C
+	 * @param ldc the leading dimension of C
+	 * @return the event, must be released manually
+	 */
+	public Event gemm(Layout layout, boolean transA, boolean transB, int m, int n, int k, T alpha,
+			Buffer a, long offsetA, int lda, Buffer b, long offsetB, int ldb,
+			T beta, Buffer c, long offsetC, int ldc) {
+		return gemmBatched(layout, transA, transB, m, n, k, alpha, a, offsetA, lda, 0,
+				b, offsetB, ldb, 0, beta, c, offsetC, ldc, 0, 1);
+	}
+	
+	/**
+	 * Computes the matrix-matrix product {@code C = alpha * A * B + beta * C}
+	 * of densely packed matrices.
+	 * @param layout the layout of the matrices
+	 * @param m the count of rows of A and C
+	 * @param n the count of columns of B and C
+	 * @param k the count of columns of A and rows of B
+	 * @param alpha the factor of the product
+	 * @param a the {@code m x k} matrix A
+	 * @param b the {@code k x n} matrix B
+	 * @param beta the factor of the previous C
+	 * @param c the {@code m x n} output matrix
+	 * @return the event, must be released manually
+	 * @see #gemm(org.shaman.jmecl.utils.CLBlas.Layout, boolean, boolean, int, int, int, java.lang.Number, com.jme3.opencl.Buffer, long, int, com.jme3.opencl.Buffer, long, int, java.lang.Number, com.jme3.opencl.Buffer, long, int) 
+	 */
+	public Event gemm(Layout layout, int m, int n, int k, T alpha, Buffer a, Buffer b, T beta, Buffer c) {
+		return gemmBatched(layout, m, n, k, alpha, a, b, beta, c, 1);
+	}
+	
+	/**
+	 * Computes {@code batchCount} independent matrix-matrix products
+	 * {@code C_i = alpha * op(A_i) * op(B_i) + beta * C_i} in one launch.
+	 * The matrices of batch {@code i} start at {@code offset + i*stride},
+	 * a stride of zero shares the matrix between all batches.
+	 * <p>
+	 * Products with fewer rows or columns than a tile are computed with one
+	 * work item per output element, so batches of many small matrices
+	 * (e.g. 4x4 transforms) don't waste most of the work group.
+	 * @param layout the layout of the matrices
+	 * @param transA {@code true} if A should be transposed
+	 * @param transB {@code true} if B should be transposed
+	 * @param m the count of rows of {@code op(A)} and C
+	 * @param n the count of columns of {@code op(B)} and C
+	 * @param k the count of columns of {@code op(A)} and rows of {@code op(B)}
+	 * @param alpha the factor of the products
+	 * @param a the buffer with the first matrices
+	 * @param offsetA the offset of the first element of A_0
+	 * @param lda the leading dimension of A
+	 * @param strideA the distance between two consecutive matrices A_i
+	 * @param b the buffer with the second matrices
+	 * @param offsetB the offset of the first element of B_0
+	 * @param ldb the leading dimension of B
+	 * @param strideB the distance between two consecutive matrices B_i
+	 * @param beta the factor of the previous C
+	 * @param c the buffer with the output matrices, must not overlap with A and B
+	 * @param offsetC the offset of the first element of C_0
+	 * @param ldc the leading dimension of C
+	 * @param strideC the distance between two consecutive matrices C_i, non-zero
+	 * @param batchCount the count of products
+	 * @return the event, must be released manually
+	 */
+	public Event gemmBatched(Layout layout, boolean transA, boolean transB, int m, int n, int k, T alpha,
+			Buffer a, long offsetA, int lda, long strideA, Buffer b, long offsetB, int ldb, long strideB,
+			T beta, Buffer c, long offsetC, int ldc, long strideC, int batchCount) {
+		checkFullStorage("gemm");
+		if (batchCount > 1 && strideC == 0) {
+			throw new IllegalArgumentException("the output matrices of the batches must not overlap");
+		}
+		Object[] args = {m, n, k, alpha,
+			a, offsetA, getRowStride(layout, transA, lda), getColumnStride(layout, transA, lda), strideA,
+			b, offsetB, getRowStride(layout, transB, ldb), getColumnStride(layout, transB, ldb), strideB,
+			beta, c, offsetC, getRowStride(layout, false, ldc), getColumnStride(layout, false, ldc), strideC,
+			null, null};
+		Kernel kernel = getKernel("GEMMTiled");
+		int tile = getGemmTile(kernel);
+		if (m < tile || n < tile) {
+			return run1(getKernel("GEMMSmall"), new Kernel.WorkSize(m * (long) n, batchCount),
+					Arrays.copyOf(args, args.length - 2));
+		}
+		args[args.length - 2] = new Kernel.LocalMem(tile * tile * elementSize);
+		args[args.length - 1] = new Kernel.LocalMem(tile * tile * elementSize);
+		long globalX = (n + tile - 1) / tile * (long) tile;
+		long globalY = (m + tile - 1) / tile * (long) tile;
+		return run2(kernel, new Kernel.WorkSize(globalX, globalY, batchCount),
+				new Kernel.WorkSize(tile, tile, 1), args);
+	}
+	
+	/**
+	 * Computes {@code batchCount} independent products {@code C_i = alpha * A_i * B_i + beta * C_i}
+	 * of densely packed matrices, which are stored consecutively in the buffers.
+	 * @param layout the layout of the matrices
+	 * @param m the count of rows of A and C
+	 * @param n the count of columns of B and C
+	 * @param k the count of columns of A and rows of B
+	 * @param alpha the factor of the products
+	 * @param a the buffer with the {@code m x k} matrices A_i
+	 * @param b the buffer with the {@code k x n} matrices B_i
+	 * @param beta the factor of the previous C
+	 * @param c the buffer with the {@code m x n} output matrices C_i
+	 * @param batchCount the count of products
+	 * @return the event, must be released manually
+	 * @see #gemmBatched(org.shaman.jmecl.utils.CLBlas.Layout, boolean, boolean, int, int, int, java.lang.Number, com.jme3.opencl.Buffer, long, int, long, com.jme3.opencl.Buffer, long, int, long, java.lang.Number, com.jme3.opencl.Buffer, long, int, long, int) 
+	 */
+	public Event gemmBatched(Layout layout, int m, int n, int k, T alpha, Buffer a, Buffer b, T beta, Buffer c, int batchCount) {
+		boolean rowMajor = layout == Layout.ROW_MAJOR;
+		return gemmBatched(layout, false, false, m, n, k, alpha,
+				a, 0, rowMajor ? k : m, m * (long) k,
+				b, 0, rowMajor ? n : k, k * (long) n,
+				beta, c, 0, rowMajor ? n : m, m * (long) n, batchCount);
+	}
+	
+	/**
+	 * The statistics of a buffer computed by
+	 * {@link #statistics(com.jme3.opencl.Buffer, long, long, long, org.shaman.jmecl.utils.CLBlas.StatisticsResult) }.
+	 * The sums of integer types are accumulated and returned as {@code Long},
+	 * the sums of floating point types have the number type.
+	 * @param <T> the number type
+	 */
+	public static final class Statistics<T extends Number> {
+		private final T min;
+		private final T max;
+		private final Number sum;
+		private final Number sumOfSquares;
+		private final long nonZeroCount;
+		private final long argMin;
+		private final long argMax;
+		private final long count;
+
+		private Statistics(T min, T max, Number sum, Number sumOfSquares, long nonZeroCount, long argMin, long argMax, long count) {
+			this.min = min;
+			this.max = max;
+			this.sum = sum;
+			this.sumOfSquares = sumOfSquares;
+			this.nonZeroCount = nonZeroCount;
+			this.argMin = argMin;
+			this.argMax = argMax;
+			this.count = count;
+		}
+
+		public T getMin() {
+			return min;
+		}
+
+		public T getMax() {
+			return max;
+		}
+
+		/**
+		 * @return the sum, a {@code Long} for integer types
+		 */
+		public Number getSum() {
+			return sum;
+		}
+
+		/**
+		 * @return the sum of squares, a {@code Long} for integer types
+		 */
+		public Number getSumOfSquares() {
+			return sumOfSquares;
+		}
+
+		/**
+		 * @return the L2 norm {@code sqrt(sumOfSquares)}
+		 */
+		public double getNorm() {
+			return Math.sqrt(sumOfSquares.doubleValue());
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : sum.doubleValue() / count;
+		}
+
+		public long getNonZeroCount() {
+			return nonZeroCount;
+		}
+
+		/**
+		 * @return the index of the first minimal element, or the count of elements if it is empty
+		 */
+		public long getArgMin() {
+			return argMin;
+		}
+
+		/**
+		 * @return the index of the first maximal element, or the count of elements if it is empty
+		 */
+		public long getArgMax() {
+			return argMax;
+		}
+
+		/**
+		 * @return the count of processed elements
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return "Statistics{" + "min=" + min + " (at " + argMin + "), max=" + max + " (at " + argMax
+					+ "), sum=" + sum + ", sumOfSquares=" + sumOfSquares + ", nonZero=" + nonZeroCount
+					+ ", count=" + count + '}';
+		}
+	}
+	
+	/**
+	 * Structure storing the result of a statistics operation.
+	 * The result is computed on the device and transferred to the host
+	 * asynchronously, it can be polled with {@link #getStatistics(org.shaman.jmecl.utils.CLBlas.StatisticsResult) }.
+	 * Instances of this class can be used multiple times, but not by multiple
+	 * threads at the same time.
+	 */
+	public static class StatisticsResult {
+		private Event event;
+		private Buffer result;
+		private Buffer partials;
+		private ByteBuffer host;
+		private Event readEvent;
+		private long count;
+		private Statistics<?> statistics;
+
+		public StatisticsResult() {
+		}
+
+		/**
+		 * Returns the event indicating when the statistics are computed.
+		 * @return the event, automatically released
+		 */
+		public Event getEvent() {
+			return event;
+		}
+
+		/**
+		 * The buffer storing the statistics: the longs nonzero count, index of
+		 * the minimum and index of the maximum, followed by the sum and the sum
+		 * of squares (longs for integer types, else of the number type) and the
+		 * values min and max.
+		 * @return the buffer, automatically released
+		 */
+		public Buffer getResult() {
+			return result;
+		}
+	}
+	
+	/**
+	 * @return the size of the sums in the statistics kernel
+	 */
+	private int getStatisticsAccumulatorSize() {
+		return floatType ? elementSize : 8;
+	}
+	
+	/**
+	 * @return the size of the statistics of one buffer or work group
+	 */
+	private int getStatisticsSize() {
+		return 3 * 8 + 2 * getStatisticsAccumulatorSize() + 2 * elementSize;
+	}
+	
+	private synchronized KernelLauncher getStatisticsLauncher() {
+		if (statisticsLauncher == null) {
+			Kernel kernel = getProgram().createKernel("Statistics").register();
+			statisticsLauncher = new KernelLauncher(kernel, clCommandQueue)
+					.setArg(8, getReduceCounter());
+		}
+		return statisticsLauncher;
+	}
+	
+	/**
+	 * Computes the minimum, maximum, sum, sum of squares, the count of nonzero
+	 * elements and the indices of the first minimum and maximum of a buffer
+	 * in a single pass and a single kernel launch.
+	 * The result is transferred to the host asynchronously.
+	 * @param b the input buffer
+	 * @param size the count of elements to process
+	 * @param offset the offset into the input buffer
+	 * @param step the step size in the input buffer
+	 * @param result a result structure for reuse, {@code null} if a new one should be created
+	 * @return the result
+	 * @see #getStatistics(org.shaman.jmecl.utils.CLBlas.StatisticsResult) 
+	 * @see #getStatisticsBlocking(org.shaman.jmecl.utils.CLBlas.StatisticsResult) 
+	 */
+	public StatisticsResult statistics(Buffer b, long size, long offset, long step, StatisticsResult result) {
+		if (result == null) {
+			result = new StatisticsResult();
+		}
+		int resultSize = getStatisticsSize();
+		result.result = ensureBufferSize(result.result, resultSize);
+		if (result.host == null) {
+			result.host = BufferUtils.createByteBuffer(resultSize);
+		}
+		if (result.readEvent != null) {
+			//the host buffer is written again
+			result.readEvent.waitForFinished();
+			result.readEvent.release();
+			result.readEvent = null;
+		}
+		result.statistics = null;
+		result.count = size;
+		
+		int[] sizes = new int[2];
+		getReduceWorkSize(size, sizes);
+		int workGroupSize = sizes[0];
+		int numWorkGroups = sizes[1];
+		result.partials = ensureBufferSize(result.partials, resultSize * numWorkGroups);
+		
+		KernelLauncher launcher = getStatisticsLauncher();
+		synchronized (launcher) {
+			result.event = launcher.setGlobalWorkSize(numWorkGroups * workGroupSize).setWorkGroupSize(workGroupSize)
+					.setArg(0, b).setArg(1, new Kernel.LocalMem(workGroupSize * 2 * elementSize))
+					.setArg(2, new Kernel.LocalMem(workGroupSize * 2 * getStatisticsAccumulatorSize()))
+					.setArg(3, new Kernel.LocalMem(workGroupSize * 3 * 8)).setArg(4, size).setArg(5, offset).setArg(6, step)
+					.setArg(7, result.partials).setArg(9, result.result)
+					.launchWithEvent().register();
+		}
+		result.host.clear();
+		result.readEvent = result.result.readAsync(clCommandQueue, result.host, resultSize, 0);
+		settings.getMetrics().addBytesFromDevice(resultSize);
+		return result;
+	}
+	/**
+	 * Computes the statistics of the whole buffer.
+	 * Calls {@code statistics(b, b.getSize()/getElementSize(), 0, 1, result)}.
+	 * @param b the input buffer
+	 * @param result a result structure for reuse, {@code null} if a new one should be created
+	 * @return the result
+	 */
+	public StatisticsResult statistics(Buffer b, StatisticsResult result) {
+		return statistics(b, b.getSize()/storageSize, 0, 1, result);
+	}
+	
+	/**
+	 * Returns the statistics if they have already arrived on the host.
+	 * This method does not block.
+	 * @param result the result structure from {@code statistics}
+	 * @return the statistics or {@code null} if they are not available yet
+	 */
+	@SuppressWarnings("unchecked")
+	public Statistics<T> getStatistics(StatisticsResult result) {
+		if (result.statistics == null && result.readEvent != null && result.readEvent.isCompleted()) {
+			parseStatistics(result);
+		}
+		return (Statistics<T>) result.statistics;
+	}
+	
+	/**
+	 * Returns the statistics and blocks until they have arrived on the host.
+	 * @param result the result structure from {@code statistics}
+	 * @return the statistics
+	 */
+	@SuppressWarnings("unchecked")
+	public Statistics<T> getStatisticsBlocking(StatisticsResult result) {
+		if (result.statistics == null && result.readEvent != null) {
+			if (!result.readEvent.isCompleted()) {
+				settings.getMetrics().addBlockingMap(getStatisticsSize());
+			}
+			result.readEvent.waitForFinished();
+			parseStatistics(result);
+		}
+		return (Statistics<T>) result.statistics;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void parseStatistics(StatisticsResult result) {
+		result.readEvent.release();
+		result.readEvent = null;
+		ByteBuffer buf = result.host;
+		buf.rewind();
+		long nonZero = buf.getLong();
+		long argMin = buf.getLong();
+		long argMax = buf.getLong();
+		Number sum = floatType ? getter.get(buf) : buf.getLong();
+		Number sumSq = floatType ? getter.get(buf) : buf.getLong();
+		T min = (T) getter.get(buf);
+		T max = (T) getter.get(buf);
+		result.statistics = new Statistics<>(min, max, sum, sumSq, nonZero, argMin, argMax, result.count);
+	}
+	
+	/**
+	 * The kernels generated for one shape of a {@link BlasExpression}.
+	 */
+	private static final class FusedKernels {
+		private final Program program;
+		private Kernel evaluate;
+		private final KernelLauncher[] reduceLaunchers;
+
+		private FusedKernels(Program program) {
+			this.program = program;
+			this.reduceLaunchers = new KernelLauncher[ReduceOp.values().length];
+		}
+	}
+	
+	private static final String FUSED_PROLOGUE = 
+			"#define SIZE_T long\n"
+			+ "#if IS_FLOAT_TYPE==1\n"
+			+ "#define EXPR_MIN(a, b) fmin(a, b)\n"
+			+ "#define EXPR_MAX(a, b) fmax(a, b)\n"
+			+ "#define EXPR_ABS(a) fabs(a)\n"
+			+ "#define EXPR_AXPY(a, x, y) fma(a, x, y)\n"
+			+ "#else\n"
+			+ "#define EXPR_MIN(a, b) min(a, b)\n"
+			+ "#define EXPR_MAX(a, b) max(a, b)\n"
+			+ "#define EXPR_ABS(a) ((TYPE) abs(a))\n"
+			+ "#define EXPR_AXPY(a, x, y) ((a) * (x) + (y))\n"
+			+ "#endif\n"
+			+ "#define EXPR_SQUARE(a) ((a) * (a))\n\n";
+	
+	/**
+	 * Generates the program for the shape of the specified expression.
+	 * It contains the kernel {@code Fused} for the element-wise evaluation
+	 * and {@code FusedReduce_<op>} for every reduce operation.
+	 */
+	private String generateFusedSource(String code, List<BlasExpression> leaves) {
+		StringBuilder params = new StringBuilder();
+		for (int k=0; k<leaves.size(); ++k) {
+			if (leaves.get(k).isBuffer()) {
+				params.append(", __global const TYPE* b").append(k)
+						.append(", SIZE_T o").append(k).append(", SIZE_T s").append(k);
+			} else {
+				params.append(", TYPE c").append(k);
+			}
+		}
+		StringBuilder src = new StringBuilder(programSource.getInclude());
+		src.append(FUSED_PROLOGUE);
+		src.append("__kernel void Fused(__global TYPE* dest, SIZE_T offsetDest, SIZE_T stepDest, SIZE_T size")
+				.append(params).append(")\n{\n")
+				.append("\tfor (SIZE_T i = get_global_id(0); i < size; i += get_global_size(0)) {\n")
+				.append("\t\tdest[offsetDest + stepDest * i] = ").append(code).append(";\n\t}\n}\n\n");
+		String[][] ops = {
+			{"ADD", "a + b", "0"},
+			{"MUL", "a * b", "1"},
+			{"MIN", "EXPR_MIN(a, b)", "TYPE_MAX"},
+			{"MAX", "EXPR_MAX(a, b)", "TYPE_MIN"}
+		};
+		for (String[] op : ops) {
+			src.append("__kernel void FusedReduce_").append(op[0])
+					.append("(__global TYPE* dest, SIZE_T offsetDest, SIZE_T stepDest, int writeDest, ")
+					.append("__local TYPE* scratch, SIZE_T length, __global TYPE* result")
+					.append(params).append(")\n{\n")
+					.append("\tSIZE_T i = get_global_id(0);\n")
+					.append("\tTYPE accumulator = ").append(op[2]).append(";\n")
+					.append("\twhile (i < length) {\n")
+					.append("\t\tTYPE a = ").append(code).append(";\n")
+					.append("\t\tif (writeDest) dest[offsetDest + stepDest * i] = a;\n")
+					.append("\t\tTYPE b = accumulator;\n")
+					.append("\t\taccumulator = ").append(op[1]).append(";\n")
+					.append("\t\ti += get_global_size(0);\n")
+					.append("\t}\n")
+					.append("\tint local_index = get_local_id(0);\n")
+					.append("\tscratch[local_index] = accumulator;\n")
+					.append("\tbarrier(CLK_LOCAL_MEM_FENCE);\n")
+					.append("\tfor (int offset = get_local_size(0) / 2; offset > 0; offset = offset / 2) {\n")
+					.append("\t\tif (local_index < offset) {\n")
+					.append("\t\t\tTYPE a = scratch[local_index + offset];\n")
+					.append("\t\t\tTYPE b = scratch[local_index];\n")
+					.append("\t\t\tscratch[local_index] = ").append(op[1]).append(";\n")
+					.append("\t\t}\n")
+					.append("\t\tbarrier(CLK_LOCAL_MEM_FENCE);\n")
+					.append("\t}\n")
+					.append("\tif (local_index == 0) {\n")
+					.append("\t\tresult[get_group_id(0)] = scratch[0];\n")
+					.append("\t}\n}\n\n");
+		}
+		return src.toString();
+	}
+	
+	private FusedKernels getFusedKernels(BlasExpression expr, List<BlasExpression> leaves) {
+		checkFullStorage("evaluate");
+		String code = expr.generate(leaves);
+		FusedKernels fk = fusedKernels.get(code);
+		if (fk == null) {
+			String source = generateFusedSource(code, leaves);
+			Program p = settings.loadProgramFromSourceCode(programSource.getName() + "-Fused", source, null);
+			FusedKernels fk2 = fusedKernels.putIfAbsent(code, fk = new FusedKernels(p));
+			if (fk2 != null) {
+				//another thread compiled the same expression, the program is shared by the cache
+				fk = fk2;
+			}
+		}
+		return fk;
+	}
+	
+	private void setScalarArg(Kernel kernel, int index, Number value) {
+		if (elementClass == Float.class) {
+			kernel.setArg(index, value.floatValue());
+		} else if (elementClass == Double.class) {
+			kernel.setArg(index, value.doubleValue());
+		} else if (elementClass == Integer.class) {
+			kernel.setArg(index, value.intValue());
+		} else if (elementClass == Long.class) {
+			kernel.setArg(index, value.longValue());
+		} else {
+			kernel.setArg(index, value.byteValue());
+		}
+	}
+	
+	private void setLeafArgs(Kernel kernel, int index, List<BlasExpression> leaves) {
+		for (BlasExpression leaf : leaves) {
+			if (leaf.isBuffer()) {
+				kernel.setArg(index++, leaf.getBuffer());
+				kernel.setArg(index++, leaf.getOffset());
+				kernel.setArg(index++, leaf.getStep());
+			} else {
+				setScalarArg(kernel, index++, leaf.getScalar());
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates the expression element-wise in a single kernel:
+	 * {@code dest[offsetDest + stepDest * i] = expr(i)}.
+	 * The kernel is generated and compiled on the first use of the shape
+	 * of the expression.
+	 * @param expr the expression
+	 * @param dest the destination buffer, it may be one of the input buffers
+	 * if it is only accessed at index {@code i}
+	 * @param size the number of elements to process
+	 * @param offsetDest offset into the dest buffer
+	 * @param stepDest step size in the dest buffer
+	 * @return the event, must be released manually
+	 * @see BlasExpression
+	 */
+	public Event evaluate(BlasExpression expr, Buffer dest, long size, long offsetDest, long stepDest) {
+		List<BlasExpression> leaves = new ArrayList<>();
+		FusedKernels fk = getFusedKernels(expr, leaves);
+		Kernel kernel;
+		synchronized (fk) {
+			if (fk.evaluate == null) {
+				fk.evaluate = fk.program.createKernel("Fused").register();
+			}
+			kernel = fk.evaluate;
+		}
+		synchronized (kernel) {
+			kernel.setArg(0, dest);
+			kernel.setArg(1, offsetDest);
+			kernel.setArg(2, stepDest);
+			kernel.setArg(3, size);
+			setLeafArgs(kernel, 4, leaves);
+			kernel.setGlobalWorkSize(getGridStrideWorkSize(size));
+			kernel.setWorkGroupSizeToNull();
+			return kernel.Run(clCommandQueue);
+		}
+	}
+	/**
+	 * Evaluates the expression element-wise in a single kernel:
+	 * {@code dest[i] = expr(i)}.
+	 * @param expr the expression
+	 * @param dest the destination buffer
+	 * @param size the number of elements to process
+	 * @return the event, must be released manually
+	 * @see #evaluate(org.shaman.jmecl.utils.BlasExpression, com.jme3.opencl.Buffer, long, long, long) 
+	 */
+	public Event evaluate(BlasExpression expr, Buffer dest, long size) {
+		return evaluate(expr, dest, size, 0, 1);
+	}
+	
+	/**
+	 * Evaluates the expression element-wise and reduces the values in the
+	 * same pass over the memory. Optionally, the element-wise values are
+	 * stored in {@code dest[i]} as well.
+	 * Only the partial results of the work groups are reduced in further launches.
+	 * @param expr the expression
+	 * @param dest the destination buffer, {@code null} if only the reduction is needed
+	 * @param reduceOp the reduce operation
+	 * @param size the number of elements to process
+	 * @param result a result structure for reuse, {@code null} if a new one should be created
+	 * @return the result
+	 * @see BlasExpression
+	 */
+	public ReduceResult evaluateReduce(BlasExpression expr, Buffer dest, ReduceOp reduceOp,
+			long size, ReduceResult result) {
+		if (result == null) {
+			result = new ReduceResult();
+		}
+		result.result = ensureBufferSize(result.result, elementSize);
+		
+		List<BlasExpression> leaves = new ArrayList<>();
+		FusedKernels fk = getFusedKernels(expr, leaves);
+		KernelLauncher launcher;
+		synchronized (fk) {
+			launcher = fk.reduceLaunchers[reduceOp.ordinal()];
+			if (launcher == null) {
+				Kernel kernel = fk.program.createKernel("FusedReduce_"+reduceOp.name()).register();
+				launcher = new KernelLauncher(kernel, clCommandQueue);
+				fk.reduceLaunchers[reduceOp.ordinal()] = launcher;
+			}
+		}
+		
+		int[] sizes = result.sizes;
+		getReduceWorkSize(size, sizes);
+		int workGroupSize = sizes[0];
+		int numWorkGroups = sizes[1];
+		int globalWorkSize = numWorkGroups * workGroupSize;
+
+		result.partials = ensureBufferSize(result.partials, elementSize * numWorkGroups);
+		
+		boolean last = numWorkGroups == 1;
+		synchronized (launcher) {
+			setLeafArgs(launcher.getKernel(), 7, leaves);
+			launcher.setGlobalWorkSize(globalWorkSize).setWorkGroupSize(workGroupSize)
+					.setArg(0, dest == null ? result.partials : dest).setArg(1, 0L).setArg(2, 1L).setArg(3, dest == null ? 0 : 1)
+					.setArg(4, getReduceLocalMem(workGroupSize)).setArg(5, size).setArg(6, last ? result.result : result.partials);
+			if (last) {
+				launchLastReduce(launcher, result);
+			} else {
+				launcher.launch();
+			}
+		}
+		
+		if (!last) {
+			finishReduce(reduceOp, numWorkGroups, result);
+		}
+		return result;
+	}
+	/**
+	 * Evaluates the expression element-wise and reduces the values in a single pass.
+	 * @param expr the expression
+	 * @param reduceOp the reduce operation
+	 * @param size the number of elements to process
+	 * @param result a result structure for reuse, {@code null} if a new one should be created
+	 * @return the result
+	 * @see #evaluateReduce(org.shaman.jmecl.utils.BlasExpression, com.jme3.opencl.Buffer, org.shaman.jmecl.utils.CLBlas.ReduceOp, long, org.shaman.jmecl.utils.CLBlas.ReduceResult) 
+	 */
+	public ReduceResult evaluateReduce(BlasExpression expr, ReduceOp reduceOp, long size, ReduceResult result) {
+		return evaluateReduce(expr, null, reduceOp, size, result);
+	}
+	
+	/**
+	 * Retrieves the result of a reduce operation in a blocking fashion.
+	 * @param result the result structure from one of the reduce operations
+	 * @return the resulting value
+	 * @see #reduce(com.jme3.opencl.Buffer, org.shaman.jmecl.utils.CLBlas.PreReduceOp, org.shaman.jmecl.utils.CLBlas.ReduceOp, long, long, long, org.shaman.jmecl.utils.CLBlas.ReduceResult) 
+	 * @see #reduce2(com.jme3.opencl.Buffer, com.jme3.opencl.Buffer, org.shaman.jmecl.utils.CLBlas.MergeOp, org.shaman.jmecl.utils.CLBlas.ReduceOp, long, long, long, long, long, org.shaman.jmecl.utils.CLBlas.ReduceResult) 
+	 */
+	@SuppressWarnings("unchecked")
+	public T getReduceResultBlocking(ReduceResult result) {
+		if (result.host == null) {
+			result.host = BufferUtils.createByteBuffer(elementSize);
+		}
+		ByteBuffer buf = result.host;
+		buf.clear();
+		result.result.read(clCommandQueue, buf, elementSize);
+		settings.getMetrics().addBlockingMap(elementSize);
+		buf.rewind();
+		return (T) getter.get(buf);
+	}
+	
+	/**
+	 * Receives the value of a reduction submitted to a {@link ReduceRing}.
+	 * @param <T> the number type
+	 */
+	public static interface ReduceCallback<T extends Number> {
+		/**
+		 * Called from {@link ReduceRing#poll() } or one of the blocking methods
+		 * of the ring when the value has arrived on the host.
+		 * @param value the result of the reduction
+		 * @param index the index of the submission, starting at zero
+		 */
+		void onResult(T value, long index);
+	}
+	
+	/**
+	 * Creates a ring of reduction results that are read back asynchronously.
+	 * @param capacity the number of reductions that can be in flight at the same time
+	 * @return the new ring
+	 * @see ReduceRing
+	 */
+	public ReduceRing createReduceRing(int capacity) {
+		return new ReduceRing(capacity);
+	}
+	
+	/**
+	 * A ring of reduction results that are transferred to the host without
+	 * stalling the command queue.
+	 * <p>
+	 * {@link #getReduceResultBlocking(org.shaman.jmecl.utils.CLBlas.ReduceResult) }
+	 * waits until all previously enqueued commands are finished before the host
+	 * can continue to enqueue work. With the ring, the result of the reduction
+	 * is copied into a host buffer with a non-blocking read and the value is
+	 * looked at some iterations later, when it has long arrived:
+	 * <pre>
+	 * CLBlas.ReduceRing ring = blas.createReduceRing(3);
+	 * for (int i=0; ; ++i) {
+	 *     //enqueue the work of the iteration
+	 *     blas.reduce(residual, PreReduceOp.SQUARE, ReduceOp.ADD, ring.next());
+	 *     ring.submit(null);
+	 *     Float lagged = ring.getLagged(2); //the residual of iteration i-2
+	 *     if (lagged != null &amp;&amp; lagged &lt; epsilon) break;
+	 * }
+	 * </pre>
+	 * Callbacks are invoked on the calling thread from {@link #poll() },
+	 * {@link #getLagged(int) } and the blocking methods, in submission order.
+	 * The ring blocks only if more than {@code capacity} reductions are in flight.
+	 */
+	public final class ReduceRing {
+		private final ReduceResult[] results;
+		private final ByteBuffer[] hostBuffers;
+		private final Event[] readEvents;
+		private final ReduceCallback<T>[] callbacks;
+		private final Number[] values;
+		private long submitted;
+		private long delivered;
+		private boolean pending;
+
+		private ReduceRing(int capacity) {
+			if (capacity <= 0) {
+				throw new IllegalArgumentException("capacity must be positive");
+			}
+			results = new ReduceResult[capacity];
+			hostBuffers = new ByteBuffer[capacity];
+			readEvents = new Event[capacity];
+			@SuppressWarnings("unchecked")
+			ReduceCallback<T>[] c = (ReduceCallback<T>[]) new ReduceCallback<?>[capacity];
+			callbacks = c;
+			values = new Number[capacity];
+			for (int i=0; i<capacity; ++i) {
+				results[i] = new ReduceResult(false);
+				hostBuffers[i] = BufferUtils.createByteBuffer(elementSize);
+			}
+		}
+		
+		public int getCapacity() {
+			return results.length;
+		}
+
+		/**
+		 * @return the number of submitted reductions
+		 */
+		public long getSubmitted() {
+			return submitted;
+		}
+		
+		/**
+		 * Returns the result structure that has to be passed to the next reduce
+		 * operation. If the slot is still in flight, this blocks until its value
+		 * has arrived.
+		 * @return the result structure of the next slot
+		 */
+		public ReduceResult next() {
+			if (pending) {
+				throw new IllegalStateException("the previous slot was not submitted yet");
+			}
+			if (submitted - delivered >= results.length) {
+				deliver(submitted - results.length + 1, true);
+			}
+			pending = true;
+			return results[slot(submitted)];
+		}
+
+		/**
+		 * Enqueues the transfer of the result that was computed into the
+		 * structure returned by {@link #next() }. It does not block.
+		 * @param callback an optional callback that receives the value, can be {@code null}
+		 */
+		public void submit(ReduceCallback<T> callback) {
+			if (!pending) {
+				throw new IllegalStateException("next() was not called");
+			}
+			int s = slot(submitted);
+			if (results[s].result == null) {
+				throw new IllegalStateException("the result structure was not passed to a reduce operation");
+			}
+			hostBuffers[s].clear();
+			readEvents[s] = results[s].result.readAsync(clCommandQueue, hostBuffers[s], elementSize, 0);
+			settings.getMetrics().addBytesFromDevice(elementSize);
+			callbacks[s] = callback;
+			values[s] = null;
+			submitted++;
+			pending = false;
+		}
+
+		/**
+		 * Delivers all results that have arrived so far, in submission order.
+		 * It does not block.
+		 * @return the number of newly arrived results
+		 */
+		public int poll() {
+			long old = delivered;
+			deliver(submitted, false);
+			return (int) (delivered - old);
+		}
+
+		/**
+		 * Returns the value of the reduction submitted {@code lag} submissions
+		 * ago, {@code 0} is the latest one. It does not block.
+		 * @param lag the lag, smaller than the capacity
+		 * @return the value, or {@code null} if it has not arrived yet or if
+		 * there were not enough submissions
+		 */
+		@SuppressWarnings("unchecked")
+		public T getLagged(int lag) {
+			long index = checkLag(lag);
+			if (index < 0) {
+				return null;
+			}
+			deliver(index + 1, false);
+			return index < delivered ? (T) values[slot(index)] : null;
+		}
+
+		/**
+		 * Returns the value of the reduction submitted {@code lag} submissions
+		 * ago and blocks until it has arrived. Later submissions stay in flight.
+		 * @param lag the lag, smaller than the capacity
+		 * @return the value, or {@code null} if there were not enough submissions
+		 */
+		@SuppressWarnings("unchecked")
+		public T getLaggedBlocking(int lag) {
+			long index = checkLag(lag);
+			if (index < 0) {
+				return null;
+			}
+			deliver(index + 1, true);
+			return (T) values[slot(index)];
+		}
+
+		/**
+		 * Blocks until all submitted results have arrived and were delivered.
+		 */
+		public void flush() {
+			deliver(submitted, true);
+		}
+
+		/**
+		 * Releases the device buffers of the ring. Pending results are not delivered.
+		 */
+		public void release() {
+			for (int i=0; i<results.length; ++i) {
+				if (readEvents[i] != null) {
+					readEvents[i].release();
+					readEvents[i] = null;
+				}
+				if (results[i].result != null) {
+					results[i].result.release();
+					results[i].result = null;
+				}
+				if (results[i].partials != null) {
+					results[i].partials.release();
+					results[i].partials = null;
+				}
+			}
+			delivered = submitted;
+		}
+
+		private int slot(long index) {
+			return (int) (index % results.length);
+		}
+
+		private long checkLag(int lag) {
+			if (lag < 0 || lag >= results.length) {
+				throw new IllegalArgumentException("lag must be in [0, "+results.length+")");
+			}
+			return submitted - 1 - lag;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void deliver(long end, boolean block) {
+			while (delivered < end) {
+				int s = slot(delivered);
+				Event e = readEvents[s];
+				if (block) {
+					if (!e.isCompleted()) {
+						settings.getMetrics().addBlockingMap(elementSize);
+					}
+					e.waitForFinished();
+				} else if (!e.isCompleted()) {
+					return;
+				}
+				e.release();
+				readEvents[s] = null;
+				hostBuffers[s].rewind();
+				Number n = getter.get(hostBuffers[s]);
+				values[s] = n;
+				ReduceCallback<T> c = callbacks[s];
+				callbacks[s] = null;
+				long index = delivered;
+				delivered++;
+				if (c != null) {
+					c.onResult((T) n, index);
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,137 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a timeline recorded by {@link ProfilingContextFactory.Profiler#startTrace(int) }
+ * in the Chrome trace event format.
+ * The file can be opened in {@code chrome://tracing} or in Perfetto.
+ * <p>
+ * Every command queue and every host thread gets its own track.
+ * The times are written in microseconds relative to the first event.
+ * <p>
+ * Example:
+ * <pre>
+ * ProfilingContextFactory.Profiler profiler = ProfilingContextFactory.getProfiler(context);
+ * profiler.startTrace(100000);
+ * ... //run a few frames
+ * profiler.stopTrace();
+ * ChromeTraceWriter.write(profiler.getTrace(), new File("trace.json"));
+ * </pre>
+ *
+ * @author Sebastian Weiss
+ */
+public class ChromeTraceWriter {
+	private static final Logger LOG = Logger.getLogger(ChromeTraceWriter.class.getName());
+
+	private ChromeTraceWriter() {}
+
+	/**
+	 * Writes the trace events into the specified file.
+	 * @param events the events
+	 * @param file the target file
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(List<ProfilingContextFactory.TraceEvent> events, File file) throws IOException {
+		try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			write(events, out);
+		}
+		LOG.log(Level.INFO, "{0} trace events written to {1}", new Object[]{events.size(), file});
+	}
+
+	/**
+	 * Writes the trace events as a JSON object to the specified writer.
+	 * @param events the events
+	 * @param out the writer, it is not closed
+	 * @throws IOException if writing failed
+	 */
+	public static void write(List<ProfilingContextFactory.TraceEvent> events, Writer out) throws IOException {
+		long origin = Long.MAX_VALUE;
+		Map<String, Integer> tracks = new LinkedHashMap<>();
+		for (ProfilingContextFactory.TraceEvent e : events) {
+			origin = Math.min(origin, e.getStartTime());
+			if (!tracks.containsKey(e.getTrack())) {
+				tracks.put(e.getTrack(), tracks.size() + 1);
+			}
+		}
+		out.write("{\"traceEvents\":[");
+		boolean first = true;
+		for (Map.Entry<String, Integer> t : tracks.entrySet()) {
+			if (!first) {
+				out.write(",");
+			}
+			first = false;
+			out.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+			out.write(String.valueOf(t.getValue()));
+			out.write(",\"args\":{\"name\":");
+			writeString(t.getKey(), out);
+			out.write("}}");
+		}
+		for (ProfilingContextFactory.TraceEvent e : events) {
+			if (!first) {
+				out.write(",");
+			}
+			first = false;
+			out.write("\n{\"name\":");
+			writeString(e.getName(), out);
+			out.write(",\"cat\":");
+			writeString(e.getCategory(), out);
+			out.write(",\"ph\":\"X\",\"pid\":1,\"tid\":");
+			out.write(String.valueOf(tracks.get(e.getTrack())));
+			out.write(",\"ts\":");
+			writeMicros(e.getStartTime() - origin, out);
+			out.write(",\"dur\":");
+			writeMicros(e.getEndTime() - e.getStartTime(), out);
+			out.write("}");
+		}
+		out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		out.flush();
+	}
+
+	private static void writeMicros(long nanos, Writer out) throws IOException {
+		out.write(String.valueOf(nanos / 1000));
+		out.write('.');
+		String frac = String.valueOf(Math.abs(nanos % 1000));
+		for (int i = frac.length(); i < 3; ++i) {
+			out.write('0');
+		}
+		out.write(frac);
+	}
+
+	private static void writeString(String s, Writer out) throws IOException {
+		out.write('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': out.write("\\\""); break;
+				case '\\': out.write("\\\\"); break;
+				case '\n': out.write("\\n"); break;
+				case '\r': out.write("\\r"); break;
+				case '\t': out.write("\\t"); break;
+				default:
+					if (c < 0x20) {
+						out.write(String.format("\\u%04x", (int) c));
+					} else {
+						out.write(c);
+					}
+			}
+		}
+		out.write('"');
+	}
+}
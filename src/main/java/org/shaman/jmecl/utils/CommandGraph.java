@@ -0,0 +1,305 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.Buffer;
+import com.jme3.opencl.CommandQueue;
+import com.jme3.opencl.Context;
+import com.jme3.opencl.Kernel;
+import com.jme3.opencl.Program;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.shaman.jmecl.OpenCLSettings;
+
+/**
+ * A recorded sequence of kernel launches and buffer copies that is replayed
+ * with minimal host work, similar to CUDA graphs.
+ * <p>
+ * Each launch is recorded with the program and the name of the kernel.
+ * The graph creates its own kernel objects and binds all constant arguments
+ * and the work sizes once during recording. Launches with the same program,
+ * kernel name, work sizes and arguments share one kernel object.
+ * Arguments that change between executions (e.g. the timestep) are specified
+ * as {@link Placeholder}s, only these arguments are set again in
+ * {@link #execute() }.
+ * <p>
+ * Example:
+ * <pre>
+ * CommandGraph graph = new CommandGraph(settings);
+ * CommandGraph.Placeholder dt = graph.createPlaceholder(0f);
+ * advection.recordAdvect(graph, velocity, density, dt, 1);
+ * ...
+ * //each frame:
+ * dt.set(tpf);
+ * graph.execute();
+ * </pre>
+ * The recorded buffers must stay valid as long as the graph is used.
+ *
+ * @author Sebastian Weiss
+ */
+public class CommandGraph {
+
+	/**
+	 * A kernel argument whose value is specified before each execution of the graph.
+	 */
+	public static final class Placeholder {
+		private Object value;
+
+		private Placeholder(Object value) {
+			this.value = value;
+		}
+
+		/**
+		 * Sets the value that is passed to the kernels in the next execution.
+		 * The type of the value must not change.
+		 * @param value the new value
+		 */
+		public void set(Object value) {
+			if (value == null) {
+				throw new NullPointerException("value is null");
+			}
+			this.value = value;
+		}
+
+		public Object get() {
+			return value;
+		}
+	}
+
+	private static interface Node {
+		void execute(CommandQueue queue);
+	}
+
+	private static class KernelNode implements Node {
+		private final Kernel kernel;
+		private final int[] placeholderIndices;
+		private final Placeholder[] placeholders;
+
+		private KernelNode(Kernel kernel, int[] placeholderIndices, Placeholder[] placeholders) {
+			this.kernel = kernel;
+			this.placeholderIndices = placeholderIndices;
+			this.placeholders = placeholders;
+		}
+
+		@Override
+		public void execute(CommandQueue queue) {
+			for (int i = 0; i < placeholders.length; ++i) {
+				kernel.setArg(placeholderIndices[i], placeholders[i].value);
+			}
+			kernel.RunNoEvent(queue);
+		}
+	}
+
+	private static class CopyNode implements Node {
+		private final Context context;
+		private final Buffer src;
+		private final Buffer dest;
+		private final long size;
+		private final long srcOffset;
+		private final long destOffset;
+
+		private CopyNode(Context context, Buffer src, Buffer dest, long size, long srcOffset, long destOffset) {
+			this.context = context;
+			this.src = src;
+			this.dest = dest;
+			this.size = size;
+			this.srcOffset = srcOffset;
+			this.destOffset = destOffset;
+		}
+
+		@Override
+		public void execute(CommandQueue queue) {
+			ProfilingContextFactory.track(context, "CommandGraph.copy", "copy", queue,
+					src.copyToAsync(queue, dest, size, srcOffset, destOffset));
+		}
+	}
+
+	private final OpenCLSettings settings;
+	private final CommandQueue clQueue;
+	private final List<Node> nodes;
+	private final Map<List<Object>, KernelNode> kernelNodes;
+
+	/**
+	 * Creates a new and empty command graph.
+	 * The graph is executed on the command queue of the specified settings.
+	 * @param settings the OpenCL settings
+	 */
+	public CommandGraph(OpenCLSettings settings) {
+		this.settings = settings;
+		this.clQueue = settings.getClCommandQueue();
+		this.nodes = new ArrayList<>();
+		this.kernelNodes = new HashMap<>();
+	}
+
+	public OpenCLSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Creates a new placeholder with the specified initial value.
+	 * @param initialValue the initial value, it determines the type of the argument
+	 * @return the placeholder
+	 */
+	public Placeholder createPlaceholder(Object initialValue) {
+		if (initialValue == null) {
+			throw new NullPointerException("initial value is null");
+		}
+		return new Placeholder(initialValue);
+	}
+
+	/**
+	 * Records a kernel launch with a {@code null} work group size.
+	 * @param program the program
+	 * @param kernelName the name of the kernel function
+	 * @param globalWorkSize the global work size
+	 * @param args the arguments, instances of {@link Placeholder} are evaluated
+	 * in every execution
+	 */
+	public void addKernel(Program program, String kernelName, Kernel.WorkSize globalWorkSize, Object... args) {
+		addKernel(program, kernelName, globalWorkSize, null, args);
+	}
+
+	/**
+	 * Records a kernel launch.
+	 * @param program the program
+	 * @param kernelName the name of the kernel function
+	 * @param globalWorkSize the global work size
+	 * @param workGroupSize the work group size, {@code null} if the driver should choose it
+	 * @param args the arguments, instances of {@link Placeholder} are evaluated
+	 * in every execution
+	 */
+	public void addKernel(Program program, String kernelName, Kernel.WorkSize globalWorkSize,
+			Kernel.WorkSize workGroupSize, Object... args) {
+		List<Object> key = new ArrayList<>(args.length + 4);
+		key.add(new IdentityKey(program));
+		key.add(kernelName);
+		key.add(Arrays.toString(globalWorkSize.getSizes()));
+		key.add(workGroupSize == null ? null : Arrays.toString(workGroupSize.getSizes()));
+		for (Object arg : args) {
+			key.add(new IdentityKey(arg));
+		}
+		KernelNode node = kernelNodes.get(key);
+		if (node == null) {
+			Kernel kernel = program.createKernel(kernelName).register();
+			kernel.setGlobalWorkSize(globalWorkSize);
+			if (workGroupSize == null) {
+				kernel.setWorkGroupSizeToNull();
+			} else {
+				kernel.setWorkGroupSize(workGroupSize);
+			}
+			int placeholderCount = 0;
+			for (Object arg : args) {
+				if (arg instanceof Placeholder) {
+					placeholderCount++;
+				}
+			}
+			int[] indices = new int[placeholderCount];
+			Placeholder[] placeholders = new Placeholder[placeholderCount];
+			placeholderCount = 0;
+			for (int i = 0; i < args.length; ++i) {
+				if (args[i] instanceof Placeholder) {
+					indices[placeholderCount] = i;
+					placeholders[placeholderCount] = (Placeholder) args[i];
+					placeholderCount++;
+				} else {
+					kernel.setArg(i, args[i]);
+				}
+			}
+			node = new KernelNode(kernel, indices, placeholders);
+			kernelNodes.put(key, node);
+		}
+		nodes.add(node);
+	}
+
+	/**
+	 * Records a copy operation between two buffers.
+	 * @param src the source buffer
+	 * @param dest the destination buffer
+	 * @param size the number of bytes to copy
+	 * @param srcOffset the offset in bytes into the source buffer
+	 * @param destOffset the offset in bytes into the destination buffer
+	 */
+	public void addCopy(Buffer src, Buffer dest, long size, long srcOffset, long destOffset) {
+		nodes.add(new CopyNode(settings.getClContext(), src, dest, size, srcOffset, destOffset));
+	}
+
+	/**
+	 * Records a copy operation between two buffers.
+	 * @param src the source buffer
+	 * @param dest the destination buffer
+	 * @param size the number of bytes to copy
+	 */
+	public void addCopy(Buffer src, Buffer dest, long size) {
+		addCopy(src, dest, size, 0, 0);
+	}
+
+	/**
+	 * @return the number of recorded commands
+	 */
+	public int getCommandCount() {
+		return nodes.size();
+	}
+
+	/**
+	 * Enqueues all recorded commands into the command queue.
+	 * This method does not wait until the commands are finished.
+	 */
+	public void execute() {
+		for (Node n : nodes) {
+			n.execute(clQueue);
+		}
+	}
+
+	/**
+	 * Releases the kernels owned by this graph and removes all commands.
+	 */
+	public void release() {
+		for (KernelNode n : kernelNodes.values()) {
+			n.kernel.release();
+		}
+		kernelNodes.clear();
+		nodes.clear();
+	}
+
+	/**
+	 * Compares numbers and strings by value and all other arguments
+	 * (OpenCL objects, placeholders, vectors) by identity.
+	 */
+	private static final class IdentityKey {
+		private final Object obj;
+
+		private IdentityKey(Object obj) {
+			this.obj = obj;
+		}
+
+		private boolean byIdentity() {
+			return !(obj instanceof Number || obj instanceof String);
+		}
+
+		@Override
+		public int hashCode() {
+			if (obj == null) {
+				return 0;
+			}
+			return byIdentity() ? System.identityHashCode(obj) : obj.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof IdentityKey)) {
+				return false;
+			}
+			Object other = ((IdentityKey) o).obj;
+			if (obj == null || other == null) {
+				return obj == other;
+			}
+			return byIdentity() ? obj == other : obj.equals(other);
+		}
+	}
+}
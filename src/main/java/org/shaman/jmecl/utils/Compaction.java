@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.*;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
+
+/**
+ * Stream compaction: copies the elements of one or more payload buffers
+ * whose flag is set to the front of output buffers, preserving their order.
+ * <p>
+ * The flags are an int buffer, an element is selected if its flag is nonzero
+ * (or zero, if the selection is inverted). The target positions are computed
+ * with an exclusive {@link Scan} of the selection, so the compaction is a
+ * linear pass over the data. The count of selected elements is written into
+ * a device buffer and transferred to the host asynchronously, see {@link Result}.
+ * <p>
+ * The payload buffers consist of 4-byte values (int or float), an element
+ * can have multiple components. The input and output buffer of a payload
+ * must be different.
+ *
+ * @author Sebastian Weiss
+ */
+public class Compaction {
+	private static final String SOURCE_FILE = "org/shaman/jmecl/utils/Compaction.cl";
+	/**
+	 * The program with the predicate, count and scatter kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(Compaction.class.getName(), null, null, SOURCE_FILE);
+
+	private final OpenCLSettings settings;
+	private final CommandQueue clQueue;
+	private final Scan<Integer> scan;
+	private final KernelLauncher predicateLauncher;
+	private final Kernel countKernel;
+	private final KernelLauncher scatterLauncher;
+	private Buffer positions;
+	private Buffer selectionFlags;
+	private boolean selectionInvert;
+	private int selectionSize;
+	private Buffer selectionCount;
+
+	/**
+	 * A buffer to compact: the elements of {@code src} are copied into {@code dest}.
+	 */
+	public static final class Payload {
+		private final Buffer src;
+		private final Buffer dest;
+		private final int components;
+
+		/**
+		 * @param src the input buffer
+		 * @param dest the output buffer, must be different from the input buffer
+		 * @param components the number of 4-byte components per element
+		 */
+		public Payload(Buffer src, Buffer dest, int components) {
+			if (src == dest) {
+				throw new IllegalArgumentException("input and output buffer must be different");
+			}
+			this.src = src;
+			this.dest = dest;
+			this.components = components;
+		}
+	}
+
+	/**
+	 * The count of selected elements. It is stored in a device buffer, which
+	 * can be passed to other kernels, and read back asynchronously.
+	 * Instances can be reused.
+	 */
+	public static final class Result {
+		private Buffer count;
+		private final ByteBuffer host = BufferUtils.createByteBuffer(4);
+		private Event readEvent;
+		private int value = -1;
+
+		public Result() {
+		}
+
+		/**
+		 * @return the device buffer containing the count as a single int
+		 */
+		public Buffer getCountBuffer() {
+			return count;
+		}
+
+		/**
+		 * Returns the count if it has already arrived on the host.
+		 * This method does not block.
+		 * @return the count or {@code -1} if it is not available yet
+		 */
+		public int getCount() {
+			if (value < 0 && readEvent != null && readEvent.isCompleted()) {
+				read();
+			}
+			return value;
+		}
+
+		/**
+		 * Returns the count and blocks until it has arrived on the host.
+		 * @return the count
+		 */
+		public int getCountBlocking() {
+			if (value < 0 && readEvent != null) {
+				readEvent.waitForFinished();
+				read();
+			}
+			return value;
+		}
+
+		private void read() {
+			readEvent.release();
+			readEvent = null;
+			value = host.getInt(0);
+		}
+	}
+
+	public Compaction(OpenCLSettings settings) {
+		this.settings = settings;
+		this.clQueue = settings.getClCommandQueue();
+		this.scan = Scan.get(settings, Integer.class);
+		Program program = settings.loadProgram(PROGRAM_SOURCE);
+		predicateLauncher = new KernelLauncher(program.createKernel("Predicate").register(),
+				clQueue, settings.getWorkGroupTuner());
+		countKernel = program.createKernel("Count").register();
+		scatterLauncher = new KernelLauncher(program.createKernel("Scatter").register(),
+				clQueue, settings.getWorkGroupTuner());
+	}
+
+	/**
+	 * Copies the selected elements of the payloads to the front of the output buffers.
+	 * @param flags the int buffer with the flags
+	 * @param invert {@code false}: elements with a nonzero flag are selected,
+	 * {@code true}: elements with a zero flag are selected
+	 * @param size the count of elements
+	 * @param result the result structure for reuse, {@code null} if a new one should be created
+	 * @param payloads the buffers to compact
+	 * @return the result with the count of selected elements
+	 */
+	public Result compact(Buffer flags, boolean invert, int size, Result result, Payload... payloads) {
+		return run(flags, invert, size, false, result, payloads);
+	}
+
+	/**
+	 * Partitions the payloads: the selected elements are copied to the front
+	 * of the output buffers, followed by the rejected elements. Both parts
+	 * preserve the order of the input.
+	 * @param flags the int buffer with the flags
+	 * @param invert {@code false}: elements with a nonzero flag are selected,
+	 * {@code true}: elements with a zero flag are selected
+	 * @param size the count of elements
+	 * @param result the result structure for reuse, {@code null} if a new one should be created
+	 * @param payloads the buffers to partition
+	 * @return the result with the count of selected elements
+	 */
+	public Result partition(Buffer flags, boolean invert, int size, Result result, Payload... payloads) {
+		return run(flags, invert, size, true, result, payloads);
+	}
+
+	private Result run(Buffer flags, boolean invert, int size, boolean partition, Result result, Payload[] payloads) {
+		result = select(flags, invert, size, result);
+		for (Payload p : payloads) {
+			scatter(p.src, p.dest, p.components, partition);
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the target positions of the selected elements.
+	 * Afterwards, any number of buffers can be compacted with
+	 * {@link #scatter(com.jme3.opencl.Buffer, com.jme3.opencl.Buffer, int, boolean) }
+	 * using this selection, e.g. when they share one temporal output buffer.
+	 * @param flags the int buffer with the flags
+	 * @param invert {@code false}: elements with a nonzero flag are selected,
+	 * {@code true}: elements with a zero flag are selected
+	 * @param size the count of elements
+	 * @param result the result structure for reuse, {@code null} if a new one should be created
+	 * @return the result with the count of selected elements
+	 */
+	public Result select(Buffer flags, boolean invert, int size, Result result) {
+		if (result == null) {
+			result = new Result();
+		}
+		if (result.count == null) {
+			result.count = settings.getClContext().createBuffer(4).register();
+		}
+		if (result.readEvent != null) {
+			//the host buffer is written again
+			result.readEvent.waitForFinished();
+			result.readEvent.release();
+			result.readEvent = null;
+		}
+		result.value = -1;
+		selectionFlags = flags;
+		selectionInvert = invert;
+		selectionSize = size;
+		selectionCount = result.count;
+		if (size == 0) {
+			result.host.putInt(0, 0);
+			result.count.write(clQueue, result.host, 4, 0);
+			result.value = 0;
+			return result;
+		}
+
+		positions = settings.getBufferPool().ensureSize(positions, size * 4L);
+		predicateLauncher.setGlobalWorkSize(size)
+				.setArg(0, flags).setArg(1, positions).setArg(2, size).setArg(3, invert ? 1 : 0)
+				.launch();
+		scan.exclusive(positions, positions, size);
+		countKernel.Run1NoEvent(clQueue, new Kernel.WorkSize(1), flags, positions, size, invert ? 1 : 0, result.count);
+		result.host.clear();
+		result.readEvent = result.count.readAsync(clQueue, result.host, 4, 0);
+		settings.getMetrics().addBytesFromDevice(4);
+		return result;
+	}
+
+	/**
+	 * Copies the elements of {@code src} selected by the last call to
+	 * {@link #select(com.jme3.opencl.Buffer, boolean, int, org.shaman.jmecl.utils.Compaction.Result) }
+	 * to the front of {@code dest}.
+	 * @param src the input buffer
+	 * @param dest the output buffer, must be different from the input buffer
+	 * @param components the number of 4-byte components per element
+	 * @param partition {@code true} if the rejected elements should be copied
+	 * behind the selected ones
+	 */
+	public void scatter(Buffer src, Buffer dest, int components, boolean partition) {
+		if (selectionFlags == null) {
+			throw new IllegalStateException("select was not called");
+		}
+		if (src == dest) {
+			throw new IllegalArgumentException("input and output buffer must be different");
+		}
+		if (selectionSize == 0) {
+			return;
+		}
+		scatterLauncher.setGlobalWorkSize(selectionSize)
+				.setArg(0, selectionFlags).setArg(1, positions).setArg(2, selectionCount)
+				.setArg(3, selectionSize).setArg(4, selectionInvert ? 1 : 0).setArg(5, partition ? 1 : 0)
+				.setArg(6, src).setArg(7, dest).setArg(8, components)
+				.launch();
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.Context;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rolling metrics of the compute work, published over JMX by
+ * {@link org.shaman.jmecl.OpenCLSettings#registerMetricsMBean(java.lang.String) }.
+ * <p>
+ * The library classes report the bytes copied between host and device,
+ * blocking maps, the results of the jacobi solver, the number of active
+ * particles and the allocated device memory. The application calls
+ * {@link #endFrame() } once per frame, the per-frame values are averaged over
+ * the last {@link #getWindowSize() } frames.
+ * <p>
+ * Kernel launches are counted by the {@link ProfilingContextFactory profiling context}.
+ * If the OpenCL context is not a profiling context, the launches are not counted.
+ * Disable profiling ({@link ProfilingContextFactory.Profiler#setEnabled(boolean) })
+ * to count the launches without creating events.
+ * <p>
+ * All methods are thread-safe.
+ *
+ * @author Sebastian Weiss
+ */
+public class ComputeMetrics implements ComputeMetricsMXBean {
+	/**
+	 * The default number of frames the per-frame values are averaged over.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 60;
+	/**
+	 * Subsystem of the fluid grids
+	 */
+	public static final String FLUIDS = "fluids";
+	/**
+	 * Subsystem of the equation solvers
+	 */
+	public static final String EQUATION_SOLVER = "equation solver";
+	/**
+	 * Subsystem of the particles
+	 */
+	public static final String PARTICLES = "particles";
+	/**
+	 * Subsystem of the {@link BufferPool}
+	 */
+	public static final String BUFFER_POOL = "buffer pool";
+
+	private static final int LAUNCHES = 0;
+	private static final int BYTES_TO_DEVICE = 1;
+	private static final int BYTES_FROM_DEVICE = 2;
+	private static final int BLOCKING_MAPS = 3;
+
+	private final ProfilingContextFactory.Profiler profiler;
+	private final BufferPool bufferPool;
+	private final AtomicLong bytesToDevice;
+	private final AtomicLong bytesFromDevice;
+	private final AtomicLong blockingMaps;
+	private final ConcurrentMap<String, AtomicLong> deviceMemory;
+	private volatile int jacobiIterations;
+	private volatile float jacobiResidual;
+	private volatile int activeParticles;
+
+	private final long[][] window;
+	private int windowPos;
+	private int windowFill;
+	private long frameCount;
+	private long lastLaunchCount;
+
+	/**
+	 * Creates new metrics.
+	 * @param clContext the OpenCL context, if it is a profiling context, kernel launches are counted
+	 * @param bufferPool the buffer pool whose memory is reported, may be {@code null}
+	 * @param windowSize the number of frames the per-frame values are averaged over
+	 */
+	public ComputeMetrics(Context clContext, BufferPool bufferPool, int windowSize) {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("window size must be positive");
+		}
+		this.profiler = ProfilingContextFactory.isProfilingContext(clContext)
+				? ProfilingContextFactory.getProfiler(clContext) : null;
+		this.bufferPool = bufferPool;
+		this.bytesToDevice = new AtomicLong();
+		this.bytesFromDevice = new AtomicLong();
+		this.blockingMaps = new AtomicLong();
+		this.deviceMemory = new ConcurrentHashMap<>();
+		this.jacobiResidual = Float.NaN;
+		this.window = new long[4][windowSize];
+		if (profiler != null) {
+			lastLaunchCount = profiler.getLaunchCount();
+		}
+	}
+
+	public int getWindowSize() {
+		return window[0].length;
+	}
+
+	/**
+	 * Adds the number of bytes copied from the host to the device.
+	 * @param bytes the number of bytes
+	 */
+	public void addBytesToDevice(long bytes) {
+		bytesToDevice.addAndGet(bytes);
+	}
+
+	/**
+	 * Adds the number of bytes copied from the device to the host.
+	 * @param bytes the number of bytes
+	 */
+	public void addBytesFromDevice(long bytes) {
+		bytesFromDevice.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts a blocking map that reads the specified number of bytes.
+	 * @param bytes the number of bytes read by the host
+	 */
+	public void addBlockingMap(long bytes) {
+		blockingMaps.incrementAndGet();
+		bytesFromDevice.addAndGet(bytes);
+	}
+
+	/**
+	 * Adds allocated device memory to a subsystem.
+	 * @param subsystem the name of the subsystem, e.g. {@link #FLUIDS}
+	 * @param bytes the number of bytes, negative if memory was released
+	 */
+	public void addDeviceMemory(String subsystem, long bytes) {
+		AtomicLong l = deviceMemory.get(subsystem);
+		if (l == null) {
+			AtomicLong l2 = deviceMemory.putIfAbsent(subsystem, l = new AtomicLong());
+			if (l2 != null) {
+				l = l2;
+			}
+		}
+		l.addAndGet(bytes);
+	}
+
+	/**
+	 * Stores the result of a solve of the jacobi solver.
+	 * @param iterations the number of iterations
+	 * @param residual the final residual, NaN if it was not computed
+	 */
+	public void setJacobiResult(int iterations, float residual) {
+		this.jacobiIterations = iterations;
+		this.jacobiResidual = residual;
+	}
+
+	public void setActiveParticles(int activeParticles) {
+		this.activeParticles = activeParticles;
+	}
+
+	/**
+	 * Ends the current frame: the counters of the frame are moved into the
+	 * rolling window.
+	 */
+	public synchronized void endFrame() {
+		if (profiler != null) {
+			long launches = profiler.getLaunchCount();
+			window[LAUNCHES][windowPos] = launches - lastLaunchCount;
+			lastLaunchCount = launches;
+		}
+		window[BYTES_TO_DEVICE][windowPos] = bytesToDevice.getAndSet(0);
+		window[BYTES_FROM_DEVICE][windowPos] = bytesFromDevice.getAndSet(0);
+		window[BLOCKING_MAPS][windowPos] = blockingMaps.getAndSet(0);
+		windowPos = (windowPos + 1) % getWindowSize();
+		windowFill = Math.min(windowFill + 1, getWindowSize());
+		frameCount++;
+	}
+
+	private synchronized double average(int metric) {
+		if (windowFill == 0) {
+			return 0;
+		}
+		long sum = 0;
+		for (int i = 0; i < windowFill; ++i) {
+			sum += window[metric][i];
+		}
+		return sum / (double) windowFill;
+	}
+
+	@Override
+	public synchronized long getFrameCount() {
+		return frameCount;
+	}
+
+	@Override
+	public double getKernelLaunchesPerFrame() {
+		return profiler == null ? -1 : average(LAUNCHES);
+	}
+
+	@Override
+	public double getBytesToDevicePerFrame() {
+		return average(BYTES_TO_DEVICE);
+	}
+
+	@Override
+	public double getBytesFromDevicePerFrame() {
+		return average(BYTES_FROM_DEVICE);
+	}
+
+	@Override
+	public double getBlockingMapsPerFrame() {
+		return average(BLOCKING_MAPS);
+	}
+
+	@Override
+	public int getJacobiIterations() {
+		return jacobiIterations;
+	}
+
+	@Override
+	public float getJacobiResidual() {
+		return jacobiResidual;
+	}
+
+	@Override
+	public int getActiveParticles() {
+		return activeParticles;
+	}
+
+	@Override
+	public Map<String, Long> getDeviceMemory() {
+		Map<String, Long> m = new TreeMap<>();
+		for (Map.Entry<String, AtomicLong> e : deviceMemory.entrySet()) {
+			m.put(e.getKey(), e.getValue().get());
+		}
+		if (bufferPool != null) {
+			m.put(BUFFER_POOL, bufferPool.getAllocatedMemory());
+		}
+		return m;
+	}
+}
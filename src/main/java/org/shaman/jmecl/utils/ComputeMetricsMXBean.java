@@ -0,0 +1,68 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link ComputeMetrics}.
+ * The per-frame values are averaged over the last frames, see
+ * {@link ComputeMetrics#getWindowSize() }.
+ *
+ * @author Sebastian Weiss
+ */
+public interface ComputeMetricsMXBean {
+
+	/**
+	 * @return the number of frames ended with {@link ComputeMetrics#endFrame() }
+	 */
+	long getFrameCount();
+
+	/**
+	 * @return the average number of kernel launches per frame,
+	 * or -1 if the launches are not counted
+	 */
+	double getKernelLaunchesPerFrame();
+
+	/**
+	 * @return the average number of bytes copied from the host to the device per frame
+	 */
+	double getBytesToDevicePerFrame();
+
+	/**
+	 * @return the average number of bytes copied from the device to the host per frame
+	 */
+	double getBytesFromDevicePerFrame();
+
+	/**
+	 * @return the average number of blocking maps (synchronization points) per frame
+	 */
+	double getBlockingMapsPerFrame();
+
+	/**
+	 * @return the number of iterations of the last solve of the jacobi solver
+	 */
+	int getJacobiIterations();
+
+	/**
+	 * @return the final residual of the last solve of the jacobi solver,
+	 * NaN if the residual was not computed
+	 */
+	float getJacobiResidual();
+
+	/**
+	 * @return the number of active particles of the last updated particle controller
+	 */
+	int getActiveParticles();
+
+	/**
+	 * The device memory that is currently allocated by the subsystems.
+	 * The memory is added when grids, solvers, sparse matrices and particle
+	 * buffers are created and subtracted when they are released explicitly.
+	 * @return the live device memory in bytes per subsystem
+	 */
+	Map<String, Long> getDeviceMemory();
+}
@@ -0,0 +1,235 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.*;
+import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
+
+/**
+ * Histograms of device buffers, computed without reading the data back to the host.
+ * <p>
+ * Two binnings are supported:
+ * <ul>
+ *  <li>Range: {@code bins} bins of equal width over {@code [min, max]}, for
+ *  float and int values. Values outside the range are ignored, {@code max}
+ *  belongs to the last bin.</li>
+ *  <li>Keys: an int key {@code k} is counted in bin {@code k >> shift},
+ *  keys with a bin outside {@code [0, bins)} are ignored.
+ *  With {@code shift=0}, this counts the occurrences of every key.</li>
+ *  <li>Digits: an int key {@code k} is counted in bin
+ *  {@code (k >> shift) & (2^bits - 1)}, every key is counted.
+ *  This is the digit histogram of a radix sort pass.</li>
+ * </ul>
+ * The plain histograms count the elements per bin into an int buffer,
+ * the weighted histograms sum a float weight per element into a float buffer.
+ * <p>
+ * Every work group counts into private bins in local memory, which are then
+ * merged into the output with global atomics. If the bins don't fit into
+ * local memory, the output is incremented directly.
+ * The output buffer is cleared before unless {@code accumulate} is set.
+ *
+ * @author Sebastian Weiss
+ */
+public class Histogram {
+	private static final String SOURCE_FILE = "org/shaman/jmecl/utils/Histogram.cl";
+	/**
+	 * The program with the histogram kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(Histogram.class.getName(), null, null, SOURCE_FILE);
+	private static final int WORK_GROUP_SIZE = 256;
+	private static final int WORK_GROUPS_PER_COMPUTE_UNIT = 4;
+
+	private final CommandQueue clQueue;
+	private final Program program;
+	private final CLBlas<Integer> blasInt;
+	private final CLBlas<Float> blasFloat;
+	private final long localMemory;
+	private final int workGroupSize;
+	private final int maxWorkGroups;
+	private final Kernel rangeFloatKernel;
+	private final Kernel rangeIntKernel;
+	private final Kernel keysKernel;
+	private Kernel weightedRangeFloatKernel;
+	private Kernel weightedRangeIntKernel;
+	private Kernel weightedKeysKernel;
+
+	public Histogram(OpenCLSettings settings) {
+		this.clQueue = settings.getClCommandQueue();
+		this.program = settings.loadProgram(PROGRAM_SOURCE);
+		this.blasInt = CLBlas.get(settings, Integer.class);
+		this.blasFloat = CLBlas.get(settings, Float.class);
+		Device device = clQueue.getDevice();
+		//leave some space for the local variables of the kernel
+		this.localMemory = device.getLocalMemorySize() / 2;
+		this.workGroupSize = (int) Math.min(WORK_GROUP_SIZE, device.getMaxiumWorkItemsPerGroup());
+		this.maxWorkGroups = device.getComputeUnits() * WORK_GROUPS_PER_COMPUTE_UNIT;
+		rangeFloatKernel = program.createKernel("HistogramRangeFloat").register();
+		rangeIntKernel = program.createKernel("HistogramRangeInt").register();
+		keysKernel = program.createKernel("HistogramKeys").register();
+	}
+
+	private Kernel.WorkSize getGlobalWorkSize(int size) {
+		int groups = Math.max(1, Math.min(maxWorkGroups, (size + workGroupSize - 1) / workGroupSize));
+		return new Kernel.WorkSize(groups * workGroupSize);
+	}
+
+	private boolean useLocal(int bins) {
+		return bins * 4L <= localMemory;
+	}
+
+	private Kernel.LocalMem getLocalMem(int bins) {
+		return new Kernel.LocalMem(useLocal(bins) ? bins * 4 : 4);
+	}
+
+	private static float getScale(float min, float max, int bins) {
+		if (!(max > min)) {
+			throw new IllegalArgumentException("max must be larger than min");
+		}
+		return bins / (max - min);
+	}
+
+	private static void checkBins(int bins) {
+		if (bins <= 0) {
+			throw new IllegalArgumentException("bin count must be positive");
+		}
+	}
+
+	/**
+	 * Counts the values per bin of equal width over {@code [min, max]}.
+	 * @param values the input buffer
+	 * @param numberType the type of the values, {@code Float} or {@code Integer}
+	 * @param size the count of values
+	 * @param min the lower bound of the first bin
+	 * @param max the upper bound of the last bin
+	 * @param bins the count of bins
+	 * @param output the output buffer, one int per bin
+	 * @param accumulate {@code true} if the counts should be added to the output
+	 * @return the event of the operation
+	 */
+	public Event range(Buffer values, Class<? extends Number> numberType, int size,
+			float min, float max, int bins, Buffer output, boolean accumulate) {
+		checkBins(bins);
+		float scale = getScale(min, max, bins);
+		if (!accumulate) {
+			blasInt.fill(output, 0, bins).release();
+		}
+		return getRangeKernel(numberType, false).Run2(clQueue, getGlobalWorkSize(size), new Kernel.WorkSize(workGroupSize),
+				values, size, min, max, scale, bins, output, useLocal(bins) ? 1 : 0, getLocalMem(bins));
+	}
+
+	/**
+	 * Sums the weights of the values per bin of equal width over {@code [min, max]}.
+	 * @param values the input buffer
+	 * @param numberType the type of the values, {@code Float} or {@code Integer}
+	 * @param weights the float weight of every value
+	 * @param size the count of values
+	 * @param min the lower bound of the first bin
+	 * @param max the upper bound of the last bin
+	 * @param bins the count of bins
+	 * @param output the output buffer, one float per bin
+	 * @param accumulate {@code true} if the sums should be added to the output
+	 * @return the event of the operation
+	 */
+	public Event weightedRange(Buffer values, Class<? extends Number> numberType, Buffer weights, int size,
+			float min, float max, int bins, Buffer output, boolean accumulate) {
+		checkBins(bins);
+		float scale = getScale(min, max, bins);
+		if (!accumulate) {
+			blasFloat.fill(output, 0f, bins).release();
+		}
+		return getRangeKernel(numberType, true).Run2(clQueue, getGlobalWorkSize(size), new Kernel.WorkSize(workGroupSize),
+				values, weights, size, min, max, scale, bins, output, useLocal(bins) ? 1 : 0, getLocalMem(bins));
+	}
+
+	/**
+	 * Counts the int keys per bin, key {@code k} belongs to bin {@code k >> shift}.
+	 * @param keys the input buffer
+	 * @param size the count of keys
+	 * @param shift the shift applied to the keys
+	 * @param bins the count of bins
+	 * @param output the output buffer, one int per bin
+	 * @param accumulate {@code true} if the counts should be added to the output
+	 * @return the event of the operation
+	 */
+	public Event keys(Buffer keys, int size, int shift, int bins, Buffer output, boolean accumulate) {
+		checkBins(bins);
+		if (!accumulate) {
+			blasInt.fill(output, 0, bins).release();
+		}
+		return keysKernel.Run2(clQueue, getGlobalWorkSize(size), new Kernel.WorkSize(workGroupSize),
+				keys, size, shift, -1, bins, output, useLocal(bins) ? 1 : 0, getLocalMem(bins));
+	}
+
+	/**
+	 * Counts the digits of the int keys, key {@code k} belongs to bin
+	 * {@code (k >> shift) & (2^bits - 1)}. In contrast to
+	 * {@link #keys(com.jme3.opencl.Buffer, int, int, int, com.jme3.opencl.Buffer, boolean) },
+	 * the higher bits are masked out and every key is counted.
+	 * @param keys the input buffer
+	 * @param size the count of keys
+	 * @param shift the shift applied to the keys
+	 * @param bits the number of bits per digit, there are {@code 2^bits} bins
+	 * @param output the output buffer, one int per bin
+	 * @param accumulate {@code true} if the counts should be added to the output
+	 * @return the event of the operation
+	 */
+	public Event digits(Buffer keys, int size, int shift, int bits, Buffer output, boolean accumulate) {
+		if (bits <= 0 || bits > 30) {
+			throw new IllegalArgumentException("bits must be in [1, 30]");
+		}
+		int bins = 1 << bits;
+		if (!accumulate) {
+			blasInt.fill(output, 0, bins).release();
+		}
+		return keysKernel.Run2(clQueue, getGlobalWorkSize(size), new Kernel.WorkSize(workGroupSize),
+				keys, size, shift, bins - 1, bins, output, useLocal(bins) ? 1 : 0, getLocalMem(bins));
+	}
+
+	/**
+	 * Sums the weights of the int keys per bin, key {@code k} belongs to bin {@code k >> shift}.
+	 * @param keys the input buffer
+	 * @param weights the float weight of every key
+	 * @param size the count of keys
+	 * @param shift the shift applied to the keys
+	 * @param bins the count of bins
+	 * @param output the output buffer, one float per bin
+	 * @param accumulate {@code true} if the sums should be added to the output
+	 * @return the event of the operation
+	 */
+	public Event weightedKeys(Buffer keys, Buffer weights, int size, int shift, int bins, Buffer output, boolean accumulate) {
+		checkBins(bins);
+		if (!accumulate) {
+			blasFloat.fill(output, 0f, bins).release();
+		}
+		if (weightedKeysKernel == null) {
+			weightedKeysKernel = program.createKernel("WeightedHistogramKeys").register();
+		}
+		return weightedKeysKernel.Run2(clQueue, getGlobalWorkSize(size), new Kernel.WorkSize(workGroupSize),
+				keys, weights, size, shift, -1, bins, output, useLocal(bins) ? 1 : 0, getLocalMem(bins));
+	}
+
+	private Kernel getRangeKernel(Class<? extends Number> numberType, boolean weighted) {
+		if (numberType == Float.class) {
+			if (!weighted) {
+				return rangeFloatKernel;
+			}
+			if (weightedRangeFloatKernel == null) {
+				weightedRangeFloatKernel = program.createKernel("WeightedHistogramRangeFloat").register();
+			}
+			return weightedRangeFloatKernel;
+		} else if (numberType == Integer.class) {
+			if (!weighted) {
+				return rangeIntKernel;
+			}
+			if (weightedRangeIntKernel == null) {
+				weightedRangeIntKernel = program.createKernel("WeightedHistogramRangeInt").register();
+			}
+			return weightedRangeIntKernel;
+		}
+		throw new UnsupportedOperationException("Unsupported number type "+numberType);
+	}
+}
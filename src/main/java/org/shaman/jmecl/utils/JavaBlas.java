@@ -0,0 +1,1542 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Java implementation of the operations of {@link CLBlas} on
+ * {@link ByteBuffer}s. It is used when no OpenCL device is available,
+ * when the data is small enough that a kernel launch costs more than the
+ * computation itself, and as a reference implementation in tests.
+ * <p>
+ * The operations, their arguments and the enums are the same as in {@link CLBlas}.
+ * The buffers are addressed relative to their current position, in their
+ * byte order: {@code T val = buffer[index * step + offset]}.
+ * The positions and limits of the buffers are not modified.
+ * <p>
+ * Each operation is implemented with loops specialized on the primitive type,
+ * the contiguous cases ({@code step == 1}) are written so that the JIT can
+ * vectorize them. Operations on more than {@link #getSequentialThreshold() }
+ * elements are split and executed in a {@link ForkJoinPool}, smaller ones run
+ * in the calling thread.
+ *
+ * @author Sebastian Weiss
+ * @param <T> the number type, Float, Double, Integer, Long and Byte are supported
+ */
+public final class JavaBlas<T extends Number> {
+	/**
+	 * The default number of elements below which an operation is not split.
+	 */
+	public static final int DEFAULT_SEQUENTIAL_THRESHOLD = 1 << 15;
+
+	private static final Map<Class<? extends Number>, Ops> OPS = new HashMap<>();
+	static {
+		OPS.put(Float.class, new FloatOps());
+		OPS.put(Double.class, new DoubleOps());
+		OPS.put(Integer.class, new IntOps());
+		OPS.put(Long.class, new LongOps());
+		OPS.put(Byte.class, new ByteOps());
+	}
+	private static ForkJoinPool defaultPool;
+
+	private final Class<T> elementClass;
+	private final Ops ops;
+	private final ForkJoinPool pool;
+	private volatile int sequentialThreshold;
+
+	private JavaBlas(Class<T> numberType, ForkJoinPool pool) {
+		this.elementClass = numberType;
+		this.ops = OPS.get(numberType);
+		if (ops == null) {
+			throw new UnsupportedOperationException("Unsupported number type "+numberType);
+		}
+		this.pool = pool;
+		this.sequentialThreshold = DEFAULT_SEQUENTIAL_THRESHOLD;
+	}
+
+	/**
+	 * Creates a blas instance for the specified number type that uses a
+	 * shared fork/join pool with one thread per processor.
+	 * @param <T> the number type
+	 * @param numberType the class of the number type
+	 * @return the blas instance
+	 */
+	public static <T extends Number> JavaBlas<T> get(Class<T> numberType) {
+		return new JavaBlas<>(numberType, getDefaultPool());
+	}
+
+	/**
+	 * Creates a blas instance for the specified number type that executes
+	 * large operations in the specified pool.
+	 * @param <T> the number type
+	 * @param numberType the class of the number type
+	 * @param pool the fork/join pool
+	 * @return the blas instance
+	 */
+	public static <T extends Number> JavaBlas<T> get(Class<T> numberType, ForkJoinPool pool) {
+		return new JavaBlas<>(numberType, pool);
+	}
+
+	private static synchronized ForkJoinPool getDefaultPool() {
+		if (defaultPool == null) {
+			defaultPool = new ForkJoinPool();
+		}
+		return defaultPool;
+	}
+
+	public Class<T> getElementClass() {
+		return elementClass;
+	}
+
+	/**
+	 * @return the count of bytes needed to represent the number class
+	 * @see CLBlas#getElementSize() 
+	 */
+	public int getElementSize() {
+		return ops.elementSize;
+	}
+
+	public int getSequentialThreshold() {
+		return sequentialThreshold;
+	}
+
+	/**
+	 * Sets the number of elements below which an operation is executed
+	 * in the calling thread.
+	 * @param sequentialThreshold the threshold, at least 1
+	 */
+	public void setSequentialThreshold(int sequentialThreshold) {
+		if (sequentialThreshold < 1) {
+			throw new IllegalArgumentException("threshold must be positive");
+		}
+		this.sequentialThreshold = sequentialThreshold;
+	}
+
+	private static int checkSize(long size) {
+		if (size > Integer.MAX_VALUE || size < 0) {
+			throw new IllegalArgumentException("illegal size " + size + ", only 2^31 elements supported");
+		}
+		return (int) size;
+	}
+
+	private long count(ByteBuffer b) {
+		return b.remaining() / ops.elementSize;
+	}
+
+	private void forRange(long size, RangeBody body) {
+		int n = checkSize(size);
+		int threshold = sequentialThreshold;
+		if (n <= threshold) {
+			body.run(0, n);
+		} else {
+			pool.invoke(new RangeAction(body, 0, n, threshold));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T reduceRange(long size, CLBlas.ReduceOp reduceOp, ReduceBody body) {
+		int n = checkSize(size);
+		int threshold = sequentialThreshold;
+		Number result;
+		if (n <= threshold) {
+			result = body.run(0, n);
+		} else {
+			result = pool.invoke(new RangeReduction(body, ops, reduceOp, 0, n, threshold));
+		}
+		return (T) result;
+	}
+
+	/**
+	 * Fills the specified buffer with a constant value.
+	 * @param b the buffer to fill
+	 * @param val the value
+	 * @param size the size/count of elements to fill
+	 * @param offset the offset into the buffer
+	 * @param step the step size
+	 */
+	public void fill(final ByteBuffer b, final T val, long size, final long offset, final long step) {
+		forRange(size, new RangeBody() {
+			@Override
+			public void run(int from, int to) {
+				ops.fill(b, val, from, to, (int) offset, (int) step);
+			}
+		});
+	}
+
+	/**
+	 * Fills a part of the buffer.
+	 * Convenient method, calls {@code fill(b, val, size, 0, 1)}
+	 * @param b the buffer to fill
+	 * @param val the value
+	 * @param size the size
+	 */
+	public void fill(ByteBuffer b, T val, long size) {
+		fill(b, val, size, 0, 1);
+	}
+
+	/**
+	 * Fills the whole buffer.
+	 * @param b the buffer to fill
+	 * @param val the value
+	 */
+	public void fill(ByteBuffer b, T val) {
+		fill(b, val, count(b));
+	}
+
+	/**
+	 * Fills a part of the buffer with an increasing sequence:
+	 * {@code x[idx] = start + idx * step}.
+	 * @param x the destination buffer
+	 * @param start the start value
+	 * @param step the step value
+	 * @param size the number of elements to process
+	 */
+	public void fillIndices(final ByteBuffer x, final T start, final T step, long size) {
+		forRange(size, new RangeBody() {
+			@Override
+			public void run(int from, int to) {
+				ops.fillIndices(x, start, step, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Fills the whole buffer with an increasing sequence:
+	 * {@code x[idx] = start + idx * step}.
+	 * @param x the destination buffer
+	 * @param start the start value
+	 * @param step the step value
+	 */
+	public void fillIndices(ByteBuffer x, T start, T step) {
+		fillIndices(x, start, step, count(x));
+	}
+
+	/**
+	 * Reorders the buffers with the specified index buffer:
+	 * {@code dest[i] = src[indices[i]]}.
+	 * @param indices the index buffer, type int
+	 * @param src the source buffer
+	 * @param dest the destination buffer
+	 * @param components the number of components per entry (like float, float2, float4),
+	 * three components are aligned like four components as in OpenCL
+	 * @param size the count of elements
+	 */
+	public void reorder(final ByteBuffer indices, final ByteBuffer src, final ByteBuffer dest, final int components, long size) {
+		if (components < 1 || components > 4) {
+			throw new IllegalArgumentException("components must be between 1 and 4, but is "+components);
+		}
+		forRange(size, new RangeBody() {
+			@Override
+			public void run(int from, int to) {
+				ops.reorder(indices, src, dest, components, from, to);
+			}
+		});
+	}
+
+	/**
+	 * Computes {@code dest[i] = a*x[i] + y[i]}.
+	 * @param a the scalar value multiplied with x
+	 * @param x the first buffer
+	 * @param y the second buffer
+	 * @param dest the destination buffer
+	 * @param size the number of elements to process
+	 * @param offsetX offset into the x buffer
+	 * @param offsetY offset into the y buffer
+	 * @param offsetDest offset into the dest buffer
+	 * @param stepX step size in the x buffer
+	 * @param stepY step size in the y buffer
+	 * @param stepDest step size in the dest buffer
+	 */
+	public void axpy(final T a, final ByteBuffer x, final ByteBuffer y, final ByteBuffer dest,
+			long size, final long offsetX, final long offsetY, final long offsetDest,
+			final long stepX, final long stepY, final long stepDest) {
+		forRange(size, new RangeBody() {
+			@Override
+			public void run(int from, int to) {
+				ops.axpy(a, x, y, dest, from, to, (int) offsetX, (int) offsetY, (int) offsetDest,
+						(int) stepX, (int) stepY, (int) stepDest);
+			}
+		});
+	}
+
+	/**
+	 * Computes {@code dest[i] = a*x[i] + y[i]} on a part of the buffers.
+	 * @param a the scalar value multiplied with x
+	 * @param x the first buffer
+	 * @param y the second buffer
+	 * @param dest the destination buffer
+	 * @param size the number of elements to process
+	 */
+	public void axpy(T a, ByteBuffer x, ByteBuffer y, ByteBuffer dest, long size) {
+		axpy(a, x, y, dest, size, 0, 0, 0, 1, 1, 1);
+	}
+
+	/**
+	 * Computes {@code dest[i] = a*x[i] + y[i]} on the whole buffers.
+	 * @param a the scalar value multiplied with x
+	 * @param x the first buffer
+	 * @param y the second buffer
+	 * @param dest the destination buffer
+	 */
+	public void axpy(T a, ByteBuffer x, ByteBuffer y, ByteBuffer dest) {
+		axpy(a, x, y, dest, Math.min(Math.min(count(x), count(y)), count(dest)));
+	}
+
+	/**
+	 * Performs a map operation / transformation on the specified buffer.
+	 * @param b the buffer
+	 * @param op the map operation
+	 * @param arg an additional argument to the operation
+	 * @param dest the destination buffer
+	 * @param size the count of elements to process
+	 * @param offsetB offset into the source buffer
+	 * @param offsetDest offset into the destination buffer
+	 * @param stepB step size in the source buffer
+	 * @param stepDest step size in the destination buffer
+	 * @see CLBlas.MapOp
+	 */
+	public void map(final ByteBuffer b, final CLBlas.MapOp op, final T arg, final ByteBuffer dest,
+			long size, final long offsetB, final long offsetDest, final long stepB, final long stepDest) {
+		forRange(size, new RangeBody() {
+			@Override
+			public void run(int from, int to) {
+				ops.map(b, op, arg, dest, from, to, (int) offsetB, (int) offsetDest, (int) stepB, (int) stepDest);
+			}
+		});
+	}
+
+	/**
+	 * Performs a map operation / transformation on a part of the buffer.
+	 * @param b the input buffer
+	 * @param op the map operation
+	 * @param arg an additional argument
+	 * @param dest the destination buffer
+	 * @param size the count of elements to process
+	 */
+	public void map(ByteBuffer b, CLBlas.MapOp op, T arg, ByteBuffer dest, long size) {
+		map(b, op, arg, dest, size, 0, 0, 1, 1);
+	}
+
+	/**
+	 * Performs a map operation / transformation on the whole buffer.
+	 * @param b the input buffer
+	 * @param op the map operation
+	 * @param arg an additional argument
+	 * @param dest the destination buffer
+	 */
+	public void map(ByteBuffer b, CLBlas.MapOp op, T arg, ByteBuffer dest) {
+		map(b, op, arg, dest, Math.min(count(b), count(dest)));
+	}
+
+	/**
+	 * Performs a reduce operation.
+	 * @param b the input buffer
+	 * @param preReduceOp an operation applied before the reduce operation is performed
+	 * @param reduceOp the reduce operation
+	 * @param size the count of elements to process
+	 * @param offset the offset into the input buffer
+	 * @param step the step size in the input buffer
+	 * @return the result
+	 */
+	public T reduce(final ByteBuffer b, final CLBlas.PreReduceOp preReduceOp, final CLBlas.ReduceOp reduceOp,
+			long size, final long offset, final long step) {
+		return reduceRange(size, reduceOp, new ReduceBody() {
+			@Override
+			public Number run(int from, int to) {
+				return ops.reduce(b, preReduceOp, reduceOp, from, to, (int) offset, (int) step);
+			}
+		});
+	}
+
+	/**
+	 * Performs a reduce operation on a part of the buffer.
+	 * @param b the input buffer
+	 * @param preReduceOp an operation applied before the reduce operation is performed
+	 * @param reduceOp the reduce operation
+	 * @param size the count of elements to process
+	 * @return the result
+	 */
+	public T reduce(ByteBuffer b, CLBlas.PreReduceOp preReduceOp, CLBlas.ReduceOp reduceOp, long size) {
+		return reduce(b, preReduceOp, reduceOp, size, 0, 1);
+	}
+
+	/**
+	 * Performs a reduce operation on the whole buffer.
+	 * @param b the input buffer
+	 * @param preReduceOp an operation applied before the reduce operation is performed
+	 * @param reduceOp the reduce operation
+	 * @return the result
+	 */
+	public T reduce(ByteBuffer b, CLBlas.PreReduceOp preReduceOp, CLBlas.ReduceOp reduceOp) {
+		return reduce(b, preReduceOp, reduceOp, count(b));
+	}
+
+	/**
+	 * Merges two buffers into one and performs a reduction on the result.
+	 * @param a the first input buffer
+	 * @param b the second input buffer
+	 * @param mergeOp the operation to merge the two input buffers
+	 * @param reduceOp the reduce operation
+	 * @param size the count of elements to process
+	 * @param offsetA the offset into the first input buffer
+	 * @param offsetB the offset into the second input buffer
+	 * @param stepA the step size of the first input buffer
+	 * @param stepB the step size of the second input buffer
+	 * @return the result
+	 */
+	public T reduce2(final ByteBuffer a, final ByteBuffer b, final CLBlas.MergeOp mergeOp, final CLBlas.ReduceOp reduceOp,
+			long size, final long offsetA, final long offsetB, final long stepA, final long stepB) {
+		return reduceRange(size, reduceOp, new ReduceBody() {
+			@Override
+			public Number run(int from, int to) {
+				return ops.reduce2(a, b, mergeOp, reduceOp, from, to, (int) offsetA, (int) offsetB, (int) stepA, (int) stepB);
+			}
+		});
+	}
+
+	/**
+	 * Merges two buffers into one and performs a reduction on the result.
+	 * @param a the first input buffer
+	 * @param b the second input buffer
+	 * @param mergeOp the operation to merge the two input buffers
+	 * @param reduceOp the reduce operation
+	 * @param size the count of elements to process
+	 * @return the result
+	 */
+	public T reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp reduceOp, long size) {
+		return reduce2(a, b, mergeOp, reduceOp, size, 0, 0, 1, 1);
+	}
+
+	/**
+	 * Merges two whole buffers into one and performs a reduction on the result.
+	 * @param a the first input buffer
+	 * @param b the second input buffer
+	 * @param mergeOp the operation to merge the two input buffers
+	 * @param reduceOp the reduce operation
+	 * @return the result
+	 */
+	public T reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp reduceOp) {
+		return reduce2(a, b, mergeOp, reduceOp, Math.min(count(a), count(b)));
+	}
+
+	/**
+	 * Computes the dot product of the two specified input buffers.
+	 * @param a the first input buffer
+	 * @param b the second input buffer
+	 * @return the result
+	 */
+	public T dotProduct(ByteBuffer a, ByteBuffer b) {
+		return reduce2(a, b, CLBlas.MergeOp.MUL, CLBlas.ReduceOp.ADD);
+	}
+
+	private static interface RangeBody {
+		void run(int from, int to);
+	}
+
+	private static interface ReduceBody {
+		Number run(int from, int to);
+	}
+
+	private static final class RangeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final RangeBody body;
+		private final int from;
+		private final int to;
+		private final int threshold;
+
+		private RangeAction(RangeBody body, int from, int to, int threshold) {
+			this.body = body;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				body.run(from, to);
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RangeAction(body, from, mid, threshold), new RangeAction(body, mid, to, threshold));
+			}
+		}
+	}
+
+	private static final class RangeReduction extends RecursiveTask<Number> {
+		private static final long serialVersionUID = 1L;
+		private final ReduceBody body;
+		private final Ops ops;
+		private final CLBlas.ReduceOp reduceOp;
+		private final int from;
+		private final int to;
+		private final int threshold;
+
+		private RangeReduction(ReduceBody body, Ops ops, CLBlas.ReduceOp reduceOp, int from, int to, int threshold) {
+			this.body = body;
+			this.ops = ops;
+			this.reduceOp = reduceOp;
+			this.from = from;
+			this.to = to;
+			this.threshold = threshold;
+		}
+
+		@Override
+		protected Number compute() {
+			if (to - from <= threshold) {
+				return body.run(from, to);
+			}
+			int mid = (from + to) >>> 1;
+			RangeReduction left = new RangeReduction(body, ops, reduceOp, from, mid, threshold);
+			RangeReduction right = new RangeReduction(body, ops, reduceOp, mid, to, threshold);
+			left.fork();
+			Number r = right.compute();
+			return ops.combine(reduceOp, left.join(), r);
+		}
+	}
+
+	/**
+	 * Evaluates the map operations that are computed in floating point precision.
+	 */
+	private static double mapTranscendental(CLBlas.MapOp op, double a, double b) {
+		switch (op) {
+			case EXP: return Math.exp(a);
+			case LOG: return Math.log(a) / Math.log(b);
+			case POW: return Math.pow(a, b);
+			case POW_INV: return Math.pow(b, a);
+			default: throw new IllegalArgumentException("unsupported operation " + op);
+		}
+	}
+
+	/**
+	 * The loops for one primitive type.
+	 */
+	private static abstract class Ops {
+		private final int elementSize;
+
+		private Ops(int elementSize) {
+			this.elementSize = elementSize;
+		}
+
+		abstract void fill(ByteBuffer b, Number val, int from, int to, int offset, int step);
+
+		abstract void fillIndices(ByteBuffer b, Number start, Number step, int from, int to);
+
+		abstract void reorder(ByteBuffer indices, ByteBuffer src, ByteBuffer dest, int components, int from, int to);
+
+		abstract void axpy(Number a, ByteBuffer x, ByteBuffer y, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetY, int offsetDest, int stepX, int stepY, int stepDest);
+
+		abstract void map(ByteBuffer x, CLBlas.MapOp op, Number arg, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetDest, int stepX, int stepDest);
+
+		abstract Number reduce(ByteBuffer b, CLBlas.PreReduceOp preOp, CLBlas.ReduceOp op, int from, int to, int offset, int step);
+
+		abstract Number reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp op, int from, int to,
+				int offsetA, int offsetB, int stepA, int stepB);
+
+		abstract Number combine(CLBlas.ReduceOp op, Number a, Number b);
+	}
+
+	private static final class FloatOps extends Ops {
+		private FloatOps() {
+			super(4);
+		}
+
+		private static FloatBuffer view(ByteBuffer b) {
+			return b.slice().order(b.order()).asFloatBuffer();
+		}
+
+		private static float pre(CLBlas.PreReduceOp op, float a) {
+			switch (op) {
+				case ABS: return Math.abs(a);
+				case SQUARE: return a * a;
+				default: return a;
+			}
+		}
+
+		private static float merge(CLBlas.MergeOp op, float a, float b) {
+			switch (op) {
+				case ADD: return a + b;
+				case SUB: return a - b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		private static float neutral(CLBlas.ReduceOp op) {
+			switch (op) {
+				case ADD: return 0;
+				case MUL: return 1;
+				case MIN: return Float.MAX_VALUE;
+				default: return -Float.MAX_VALUE;
+			}
+		}
+
+		private static float reduce(CLBlas.ReduceOp op, float a, float b) {
+			switch (op) {
+				case ADD: return a + b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		@Override
+		void fill(ByteBuffer b, Number val, int from, int to, int offset, int step) {
+			FloatBuffer x = view(b);
+			float v = val.floatValue();
+			for (int i = from; i < to; ++i) {
+				x.put(offset + step * i, v);
+			}
+		}
+
+		@Override
+		void fillIndices(ByteBuffer b, Number start, Number step, int from, int to) {
+			FloatBuffer x = view(b);
+			float s = start.floatValue();
+			float d = step.floatValue();
+			for (int i = from; i < to; ++i) {
+				x.put(i, s + i * d);
+			}
+		}
+
+		@Override
+		void reorder(ByteBuffer indices, ByteBuffer src, ByteBuffer dest, int components, int from, int to) {
+			IntBuffer idx = indices.slice().order(indices.order()).asIntBuffer();
+			FloatBuffer s = view(src);
+			FloatBuffer d = view(dest);
+			//three-component vectors are aligned like four-component vectors
+			int stride = components == 3 ? 4 : components;
+			for (int i = from; i < to; ++i) {
+				int j = idx.get(i);
+				for (int c = 0; c < components; ++c) {
+					d.put(stride * i + c, s.get(stride * j + c));
+				}
+			}
+		}
+
+		@Override
+		void axpy(Number a, ByteBuffer x, ByteBuffer y, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetY, int offsetDest, int stepX, int stepY, int stepDest) {
+			FloatBuffer xv = view(x);
+			FloatBuffer yv = view(y);
+			FloatBuffer dv = view(dest);
+			float av = a.floatValue();
+			if (stepX == 1 && stepY == 1 && stepDest == 1) {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + i, av * xv.get(offsetX + i) + yv.get(offsetY + i));
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + stepDest * i, av * xv.get(offsetX + stepX * i) + yv.get(offsetY + stepY * i));
+				}
+			}
+		}
+
+		@Override
+		void map(ByteBuffer x, CLBlas.MapOp op, Number arg, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetDest, int stepX, int stepDest) {
+			FloatBuffer xv = view(x);
+			FloatBuffer dv = view(dest);
+			float b = arg.floatValue();
+			switch (op) {
+				case SET:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, b);
+					}
+					break;
+				case ADD:
+					for (int i = from; i < to; ++i) {
+						float a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a + b);
+					}
+					break;
+				case SUB:
+					for (int i = from; i < to; ++i) {
+						float a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a - b);
+					}
+					break;
+				case MUL:
+					for (int i = from; i < to; ++i) {
+						float a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a * b);
+					}
+					break;
+				case SUB_INV:
+					for (int i = from; i < to; ++i) {
+						float a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b - a);
+					}
+					break;
+				case DIV:
+					for (int i = from; i < to; ++i) {
+						float a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a / b);
+					}
+					break;
+				case DIV_INV:
+					for (int i = from; i < to; ++i) {
+						float a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b / a);
+					}
+					break;
+				case ABS:
+					for (int i = from; i < to; ++i) {
+						float a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, Math.abs(a));
+					}
+					break;
+				default:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, (float) mapTranscendental(op, xv.get(offsetX + stepX * i), b));
+					}
+			}
+		}
+
+		@Override
+		Number reduce(ByteBuffer b, CLBlas.PreReduceOp preOp, CLBlas.ReduceOp op, int from, int to, int offset, int step) {
+			FloatBuffer x = view(b);
+			float acc = neutral(op);
+			if (preOp == CLBlas.PreReduceOp.NONE && op == CLBlas.ReduceOp.ADD && step == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += x.get(offset + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, pre(preOp, x.get(offset + step * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp op, int from, int to,
+				int offsetA, int offsetB, int stepA, int stepB) {
+			FloatBuffer av = view(a);
+			FloatBuffer bv = view(b);
+			float acc = neutral(op);
+			if (mergeOp == CLBlas.MergeOp.MUL && op == CLBlas.ReduceOp.ADD && stepA == 1 && stepB == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += av.get(offsetA + i) * bv.get(offsetB + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, merge(mergeOp, av.get(offsetA + stepA * i), bv.get(offsetB + stepB * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number combine(CLBlas.ReduceOp op, Number a, Number b) {
+			return reduce(op, a.floatValue(), b.floatValue());
+		}
+	}
+
+	private static final class DoubleOps extends Ops {
+		private DoubleOps() {
+			super(8);
+		}
+
+		private static DoubleBuffer view(ByteBuffer b) {
+			return b.slice().order(b.order()).asDoubleBuffer();
+		}
+
+		private static double pre(CLBlas.PreReduceOp op, double a) {
+			switch (op) {
+				case ABS: return Math.abs(a);
+				case SQUARE: return a * a;
+				default: return a;
+			}
+		}
+
+		private static double merge(CLBlas.MergeOp op, double a, double b) {
+			switch (op) {
+				case ADD: return a + b;
+				case SUB: return a - b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		private static double neutral(CLBlas.ReduceOp op) {
+			switch (op) {
+				case ADD: return 0;
+				case MUL: return 1;
+				case MIN: return Double.MAX_VALUE;
+				default: return -Double.MAX_VALUE;
+			}
+		}
+
+		private static double reduce(CLBlas.ReduceOp op, double a, double b) {
+			switch (op) {
+				case ADD: return a + b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		@Override
+		void fill(ByteBuffer b, Number val, int from, int to, int offset, int step) {
+			DoubleBuffer x = view(b);
+			double v = val.doubleValue();
+			for (int i = from; i < to; ++i) {
+				x.put(offset + step * i, v);
+			}
+		}
+
+		@Override
+		void fillIndices(ByteBuffer b, Number start, Number step, int from, int to) {
+			DoubleBuffer x = view(b);
+			double s = start.doubleValue();
+			double d = step.doubleValue();
+			for (int i = from; i < to; ++i) {
+				x.put(i, s + i * d);
+			}
+		}
+
+		@Override
+		void reorder(ByteBuffer indices, ByteBuffer src, ByteBuffer dest, int components, int from, int to) {
+			IntBuffer idx = indices.slice().order(indices.order()).asIntBuffer();
+			DoubleBuffer s = view(src);
+			DoubleBuffer d = view(dest);
+			//three-component vectors are aligned like four-component vectors
+			int stride = components == 3 ? 4 : components;
+			for (int i = from; i < to; ++i) {
+				int j = idx.get(i);
+				for (int c = 0; c < components; ++c) {
+					d.put(stride * i + c, s.get(stride * j + c));
+				}
+			}
+		}
+
+		@Override
+		void axpy(Number a, ByteBuffer x, ByteBuffer y, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetY, int offsetDest, int stepX, int stepY, int stepDest) {
+			DoubleBuffer xv = view(x);
+			DoubleBuffer yv = view(y);
+			DoubleBuffer dv = view(dest);
+			double av = a.doubleValue();
+			if (stepX == 1 && stepY == 1 && stepDest == 1) {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + i, av * xv.get(offsetX + i) + yv.get(offsetY + i));
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + stepDest * i, av * xv.get(offsetX + stepX * i) + yv.get(offsetY + stepY * i));
+				}
+			}
+		}
+
+		@Override
+		void map(ByteBuffer x, CLBlas.MapOp op, Number arg, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetDest, int stepX, int stepDest) {
+			DoubleBuffer xv = view(x);
+			DoubleBuffer dv = view(dest);
+			double b = arg.doubleValue();
+			switch (op) {
+				case SET:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, b);
+					}
+					break;
+				case ADD:
+					for (int i = from; i < to; ++i) {
+						double a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a + b);
+					}
+					break;
+				case SUB:
+					for (int i = from; i < to; ++i) {
+						double a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a - b);
+					}
+					break;
+				case MUL:
+					for (int i = from; i < to; ++i) {
+						double a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a * b);
+					}
+					break;
+				case SUB_INV:
+					for (int i = from; i < to; ++i) {
+						double a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b - a);
+					}
+					break;
+				case DIV:
+					for (int i = from; i < to; ++i) {
+						double a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a / b);
+					}
+					break;
+				case DIV_INV:
+					for (int i = from; i < to; ++i) {
+						double a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b / a);
+					}
+					break;
+				case ABS:
+					for (int i = from; i < to; ++i) {
+						double a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, Math.abs(a));
+					}
+					break;
+				default:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, mapTranscendental(op, xv.get(offsetX + stepX * i), b));
+					}
+			}
+		}
+
+		@Override
+		Number reduce(ByteBuffer b, CLBlas.PreReduceOp preOp, CLBlas.ReduceOp op, int from, int to, int offset, int step) {
+			DoubleBuffer x = view(b);
+			double acc = neutral(op);
+			if (preOp == CLBlas.PreReduceOp.NONE && op == CLBlas.ReduceOp.ADD && step == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += x.get(offset + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, pre(preOp, x.get(offset + step * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp op, int from, int to,
+				int offsetA, int offsetB, int stepA, int stepB) {
+			DoubleBuffer av = view(a);
+			DoubleBuffer bv = view(b);
+			double acc = neutral(op);
+			if (mergeOp == CLBlas.MergeOp.MUL && op == CLBlas.ReduceOp.ADD && stepA == 1 && stepB == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += av.get(offsetA + i) * bv.get(offsetB + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, merge(mergeOp, av.get(offsetA + stepA * i), bv.get(offsetB + stepB * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number combine(CLBlas.ReduceOp op, Number a, Number b) {
+			return reduce(op, a.doubleValue(), b.doubleValue());
+		}
+	}
+
+	private static final class IntOps extends Ops {
+		private IntOps() {
+			super(4);
+		}
+
+		private static IntBuffer view(ByteBuffer b) {
+			return b.slice().order(b.order()).asIntBuffer();
+		}
+
+		private static int pre(CLBlas.PreReduceOp op, int a) {
+			switch (op) {
+				case ABS: return Math.abs(a);
+				case SQUARE: return a * a;
+				default: return a;
+			}
+		}
+
+		private static int merge(CLBlas.MergeOp op, int a, int b) {
+			switch (op) {
+				case ADD: return a + b;
+				case SUB: return a - b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		private static int neutral(CLBlas.ReduceOp op) {
+			switch (op) {
+				case ADD: return 0;
+				case MUL: return 1;
+				case MIN: return Integer.MAX_VALUE;
+				default: return Integer.MIN_VALUE;
+			}
+		}
+
+		private static int reduce(CLBlas.ReduceOp op, int a, int b) {
+			switch (op) {
+				case ADD: return a + b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		@Override
+		void fill(ByteBuffer b, Number val, int from, int to, int offset, int step) {
+			IntBuffer x = view(b);
+			int v = val.intValue();
+			for (int i = from; i < to; ++i) {
+				x.put(offset + step * i, v);
+			}
+		}
+
+		@Override
+		void fillIndices(ByteBuffer b, Number start, Number step, int from, int to) {
+			IntBuffer x = view(b);
+			int s = start.intValue();
+			int d = step.intValue();
+			for (int i = from; i < to; ++i) {
+				x.put(i, s + i * d);
+			}
+		}
+
+		@Override
+		void reorder(ByteBuffer indices, ByteBuffer src, ByteBuffer dest, int components, int from, int to) {
+			IntBuffer idx = indices.slice().order(indices.order()).asIntBuffer();
+			IntBuffer s = view(src);
+			IntBuffer d = view(dest);
+			//three-component vectors are aligned like four-component vectors
+			int stride = components == 3 ? 4 : components;
+			for (int i = from; i < to; ++i) {
+				int j = idx.get(i);
+				for (int c = 0; c < components; ++c) {
+					d.put(stride * i + c, s.get(stride * j + c));
+				}
+			}
+		}
+
+		@Override
+		void axpy(Number a, ByteBuffer x, ByteBuffer y, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetY, int offsetDest, int stepX, int stepY, int stepDest) {
+			IntBuffer xv = view(x);
+			IntBuffer yv = view(y);
+			IntBuffer dv = view(dest);
+			int av = a.intValue();
+			if (stepX == 1 && stepY == 1 && stepDest == 1) {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + i, av * xv.get(offsetX + i) + yv.get(offsetY + i));
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + stepDest * i, av * xv.get(offsetX + stepX * i) + yv.get(offsetY + stepY * i));
+				}
+			}
+		}
+
+		@Override
+		void map(ByteBuffer x, CLBlas.MapOp op, Number arg, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetDest, int stepX, int stepDest) {
+			IntBuffer xv = view(x);
+			IntBuffer dv = view(dest);
+			int b = arg.intValue();
+			switch (op) {
+				case SET:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, b);
+					}
+					break;
+				case ADD:
+					for (int i = from; i < to; ++i) {
+						int a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a + b);
+					}
+					break;
+				case SUB:
+					for (int i = from; i < to; ++i) {
+						int a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a - b);
+					}
+					break;
+				case MUL:
+					for (int i = from; i < to; ++i) {
+						int a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a * b);
+					}
+					break;
+				case SUB_INV:
+					for (int i = from; i < to; ++i) {
+						int a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b - a);
+					}
+					break;
+				case DIV:
+					for (int i = from; i < to; ++i) {
+						int a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a / b);
+					}
+					break;
+				case DIV_INV:
+					for (int i = from; i < to; ++i) {
+						int a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b / a);
+					}
+					break;
+				case ABS:
+					for (int i = from; i < to; ++i) {
+						int a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, Math.abs(a));
+					}
+					break;
+				default:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, (int) mapTranscendental(op, xv.get(offsetX + stepX * i), b));
+					}
+			}
+		}
+
+		@Override
+		Number reduce(ByteBuffer b, CLBlas.PreReduceOp preOp, CLBlas.ReduceOp op, int from, int to, int offset, int step) {
+			IntBuffer x = view(b);
+			int acc = neutral(op);
+			if (preOp == CLBlas.PreReduceOp.NONE && op == CLBlas.ReduceOp.ADD && step == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += x.get(offset + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, pre(preOp, x.get(offset + step * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp op, int from, int to,
+				int offsetA, int offsetB, int stepA, int stepB) {
+			IntBuffer av = view(a);
+			IntBuffer bv = view(b);
+			int acc = neutral(op);
+			if (mergeOp == CLBlas.MergeOp.MUL && op == CLBlas.ReduceOp.ADD && stepA == 1 && stepB == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += av.get(offsetA + i) * bv.get(offsetB + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, merge(mergeOp, av.get(offsetA + stepA * i), bv.get(offsetB + stepB * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number combine(CLBlas.ReduceOp op, Number a, Number b) {
+			return reduce(op, a.intValue(), b.intValue());
+		}
+	}
+
+	private static final class LongOps extends Ops {
+		private LongOps() {
+			super(8);
+		}
+
+		private static LongBuffer view(ByteBuffer b) {
+			return b.slice().order(b.order()).asLongBuffer();
+		}
+
+		private static long pre(CLBlas.PreReduceOp op, long a) {
+			switch (op) {
+				case ABS: return Math.abs(a);
+				case SQUARE: return a * a;
+				default: return a;
+			}
+		}
+
+		private static long merge(CLBlas.MergeOp op, long a, long b) {
+			switch (op) {
+				case ADD: return a + b;
+				case SUB: return a - b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		private static long neutral(CLBlas.ReduceOp op) {
+			switch (op) {
+				case ADD: return 0;
+				case MUL: return 1;
+				case MIN: return Long.MAX_VALUE;
+				default: return Long.MIN_VALUE;
+			}
+		}
+
+		private static long reduce(CLBlas.ReduceOp op, long a, long b) {
+			switch (op) {
+				case ADD: return a + b;
+				case MUL: return a * b;
+				case MIN: return Math.min(a, b);
+				default: return Math.max(a, b);
+			}
+		}
+
+		@Override
+		void fill(ByteBuffer b, Number val, int from, int to, int offset, int step) {
+			LongBuffer x = view(b);
+			long v = val.longValue();
+			for (int i = from; i < to; ++i) {
+				x.put(offset + step * i, v);
+			}
+		}
+
+		@Override
+		void fillIndices(ByteBuffer b, Number start, Number step, int from, int to) {
+			LongBuffer x = view(b);
+			long s = start.longValue();
+			long d = step.longValue();
+			for (int i = from; i < to; ++i) {
+				x.put(i, s + i * d);
+			}
+		}
+
+		@Override
+		void reorder(ByteBuffer indices, ByteBuffer src, ByteBuffer dest, int components, int from, int to) {
+			IntBuffer idx = indices.slice().order(indices.order()).asIntBuffer();
+			LongBuffer s = view(src);
+			LongBuffer d = view(dest);
+			//three-component vectors are aligned like four-component vectors
+			int stride = components == 3 ? 4 : components;
+			for (int i = from; i < to; ++i) {
+				int j = idx.get(i);
+				for (int c = 0; c < components; ++c) {
+					d.put(stride * i + c, s.get(stride * j + c));
+				}
+			}
+		}
+
+		@Override
+		void axpy(Number a, ByteBuffer x, ByteBuffer y, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetY, int offsetDest, int stepX, int stepY, int stepDest) {
+			LongBuffer xv = view(x);
+			LongBuffer yv = view(y);
+			LongBuffer dv = view(dest);
+			long av = a.longValue();
+			if (stepX == 1 && stepY == 1 && stepDest == 1) {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + i, av * xv.get(offsetX + i) + yv.get(offsetY + i));
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + stepDest * i, av * xv.get(offsetX + stepX * i) + yv.get(offsetY + stepY * i));
+				}
+			}
+		}
+
+		@Override
+		void map(ByteBuffer x, CLBlas.MapOp op, Number arg, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetDest, int stepX, int stepDest) {
+			LongBuffer xv = view(x);
+			LongBuffer dv = view(dest);
+			long b = arg.longValue();
+			switch (op) {
+				case SET:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, b);
+					}
+					break;
+				case ADD:
+					for (int i = from; i < to; ++i) {
+						long a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a + b);
+					}
+					break;
+				case SUB:
+					for (int i = from; i < to; ++i) {
+						long a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a - b);
+					}
+					break;
+				case MUL:
+					for (int i = from; i < to; ++i) {
+						long a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a * b);
+					}
+					break;
+				case SUB_INV:
+					for (int i = from; i < to; ++i) {
+						long a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b - a);
+					}
+					break;
+				case DIV:
+					for (int i = from; i < to; ++i) {
+						long a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, a / b);
+					}
+					break;
+				case DIV_INV:
+					for (int i = from; i < to; ++i) {
+						long a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, b / a);
+					}
+					break;
+				case ABS:
+					for (int i = from; i < to; ++i) {
+						long a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, Math.abs(a));
+					}
+					break;
+				default:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, (long) mapTranscendental(op, xv.get(offsetX + stepX * i), b));
+					}
+			}
+		}
+
+		@Override
+		Number reduce(ByteBuffer b, CLBlas.PreReduceOp preOp, CLBlas.ReduceOp op, int from, int to, int offset, int step) {
+			LongBuffer x = view(b);
+			long acc = neutral(op);
+			if (preOp == CLBlas.PreReduceOp.NONE && op == CLBlas.ReduceOp.ADD && step == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += x.get(offset + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, pre(preOp, x.get(offset + step * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp op, int from, int to,
+				int offsetA, int offsetB, int stepA, int stepB) {
+			LongBuffer av = view(a);
+			LongBuffer bv = view(b);
+			long acc = neutral(op);
+			if (mergeOp == CLBlas.MergeOp.MUL && op == CLBlas.ReduceOp.ADD && stepA == 1 && stepB == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += av.get(offsetA + i) * bv.get(offsetB + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, merge(mergeOp, av.get(offsetA + stepA * i), bv.get(offsetB + stepB * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number combine(CLBlas.ReduceOp op, Number a, Number b) {
+			return reduce(op, a.longValue(), b.longValue());
+		}
+	}
+
+	private static final class ByteOps extends Ops {
+		private ByteOps() {
+			super(1);
+		}
+
+		private static ByteBuffer view(ByteBuffer b) {
+			return b.slice();
+		}
+
+		private static byte pre(CLBlas.PreReduceOp op, byte a) {
+			switch (op) {
+				case ABS: return (byte) Math.abs(a);
+				case SQUARE: return (byte) (a * a);
+				default: return a;
+			}
+		}
+
+		private static byte merge(CLBlas.MergeOp op, byte a, byte b) {
+			switch (op) {
+				case ADD: return (byte) (a + b);
+				case SUB: return (byte) (a - b);
+				case MUL: return (byte) (a * b);
+				case MIN: return (byte) Math.min(a, b);
+				default: return (byte) Math.max(a, b);
+			}
+		}
+
+		private static byte neutral(CLBlas.ReduceOp op) {
+			switch (op) {
+				case ADD: return 0;
+				case MUL: return 1;
+				case MIN: return Byte.MAX_VALUE;
+				default: return Byte.MIN_VALUE;
+			}
+		}
+
+		private static byte reduce(CLBlas.ReduceOp op, byte a, byte b) {
+			switch (op) {
+				case ADD: return (byte) (a + b);
+				case MUL: return (byte) (a * b);
+				case MIN: return (byte) Math.min(a, b);
+				default: return (byte) Math.max(a, b);
+			}
+		}
+
+		@Override
+		void fill(ByteBuffer b, Number val, int from, int to, int offset, int step) {
+			ByteBuffer x = view(b);
+			byte v = val.byteValue();
+			for (int i = from; i < to; ++i) {
+				x.put(offset + step * i, v);
+			}
+		}
+
+		@Override
+		void fillIndices(ByteBuffer b, Number start, Number step, int from, int to) {
+			ByteBuffer x = view(b);
+			byte s = start.byteValue();
+			byte d = step.byteValue();
+			for (int i = from; i < to; ++i) {
+				x.put(i, (byte) (s + i * d));
+			}
+		}
+
+		@Override
+		void reorder(ByteBuffer indices, ByteBuffer src, ByteBuffer dest, int components, int from, int to) {
+			IntBuffer idx = indices.slice().order(indices.order()).asIntBuffer();
+			ByteBuffer s = view(src);
+			ByteBuffer d = view(dest);
+			//three-component vectors are aligned like four-component vectors
+			int stride = components == 3 ? 4 : components;
+			for (int i = from; i < to; ++i) {
+				int j = idx.get(i);
+				for (int c = 0; c < components; ++c) {
+					d.put(stride * i + c, s.get(stride * j + c));
+				}
+			}
+		}
+
+		@Override
+		void axpy(Number a, ByteBuffer x, ByteBuffer y, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetY, int offsetDest, int stepX, int stepY, int stepDest) {
+			ByteBuffer xv = view(x);
+			ByteBuffer yv = view(y);
+			ByteBuffer dv = view(dest);
+			byte av = a.byteValue();
+			if (stepX == 1 && stepY == 1 && stepDest == 1) {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + i, (byte) (av * xv.get(offsetX + i) + yv.get(offsetY + i)));
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					dv.put(offsetDest + stepDest * i, (byte) (av * xv.get(offsetX + stepX * i) + yv.get(offsetY + stepY * i)));
+				}
+			}
+		}
+
+		@Override
+		void map(ByteBuffer x, CLBlas.MapOp op, Number arg, ByteBuffer dest, int from, int to,
+				int offsetX, int offsetDest, int stepX, int stepDest) {
+			ByteBuffer xv = view(x);
+			ByteBuffer dv = view(dest);
+			byte b = arg.byteValue();
+			switch (op) {
+				case SET:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, b);
+					}
+					break;
+				case ADD:
+					for (int i = from; i < to; ++i) {
+						byte a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, (byte) (a + b));
+					}
+					break;
+				case SUB:
+					for (int i = from; i < to; ++i) {
+						byte a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, (byte) (a - b));
+					}
+					break;
+				case MUL:
+					for (int i = from; i < to; ++i) {
+						byte a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, (byte) (a * b));
+					}
+					break;
+				case SUB_INV:
+					for (int i = from; i < to; ++i) {
+						byte a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, (byte) (b - a));
+					}
+					break;
+				case DIV:
+					for (int i = from; i < to; ++i) {
+						byte a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, (byte) (a / b));
+					}
+					break;
+				case DIV_INV:
+					for (int i = from; i < to; ++i) {
+						byte a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, (byte) (b / a));
+					}
+					break;
+				case ABS:
+					for (int i = from; i < to; ++i) {
+						byte a = xv.get(offsetX + stepX * i);
+						dv.put(offsetDest + stepDest * i, (byte) Math.abs(a));
+					}
+					break;
+				default:
+					for (int i = from; i < to; ++i) {
+						dv.put(offsetDest + stepDest * i, (byte) mapTranscendental(op, xv.get(offsetX + stepX * i), b));
+					}
+			}
+		}
+
+		@Override
+		Number reduce(ByteBuffer b, CLBlas.PreReduceOp preOp, CLBlas.ReduceOp op, int from, int to, int offset, int step) {
+			ByteBuffer x = view(b);
+			byte acc = neutral(op);
+			if (preOp == CLBlas.PreReduceOp.NONE && op == CLBlas.ReduceOp.ADD && step == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += x.get(offset + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, pre(preOp, x.get(offset + step * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number reduce2(ByteBuffer a, ByteBuffer b, CLBlas.MergeOp mergeOp, CLBlas.ReduceOp op, int from, int to,
+				int offsetA, int offsetB, int stepA, int stepB) {
+			ByteBuffer av = view(a);
+			ByteBuffer bv = view(b);
+			byte acc = neutral(op);
+			if (mergeOp == CLBlas.MergeOp.MUL && op == CLBlas.ReduceOp.ADD && stepA == 1 && stepB == 1) {
+				for (int i = from; i < to; ++i) {
+					acc += av.get(offsetA + i) * bv.get(offsetB + i);
+				}
+			} else {
+				for (int i = from; i < to; ++i) {
+					acc = reduce(op, merge(mergeOp, av.get(offsetA + stepA * i), bv.get(offsetB + stepB * i)), acc);
+				}
+			}
+			return acc;
+		}
+
+		@Override
+		Number combine(CLBlas.ReduceOp op, Number a, Number b) {
+			return reduce(op, a.byteValue(), b.byteValue());
+		}
+	}
+}
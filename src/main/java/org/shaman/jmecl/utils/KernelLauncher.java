@@ -0,0 +1,279 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector4f;
+import com.jme3.opencl.Buffer;
+import com.jme3.opencl.CommandQueue;
+import com.jme3.opencl.Event;
+import com.jme3.opencl.Image;
+import com.jme3.opencl.Kernel;
+import java.util.Arrays;
+
+/**
+ * An allocation-free launcher for a kernel on hot paths.
+ * <p>
+ * {@link Kernel#Run1NoEvent(com.jme3.opencl.CommandQueue, com.jme3.opencl.Kernel.WorkSize, java.lang.Object...) }
+ * needs a new work size and an array of boxed arguments for every launch.
+ * The launcher instead binds arguments that don't change once, updates
+ * the other arguments with primitive setters and reuses its work size objects.
+ * Hence a launch does not allocate memory on the Java heap.
+ * <p>
+ * The launcher assumes that it is the only user of the kernel, the arguments
+ * and work sizes are stored in the kernel object.
+ * Use a separate kernel instance (see {@link com.jme3.opencl.Program#createKernel(java.lang.String) })
+ * for every launcher.
+ * <p>
+ * If the launcher is created with a {@link WorkGroupTuner} and no explicit
+ * work group size is set, the tuned work group size for the current global
+ * size is used.
+ * <p>
+ * The size of a {@link Kernel.LocalMemPerElement} argument depends on the
+ * work group size, the launcher sets these arguments again in every launch
+ * after the work group size. They require an explicit or tuned work group size.
+ *
+ * @author Sebastian Weiss
+ */
+public class KernelLauncher {
+	private final Kernel kernel;
+	private final String kernelName;
+	private final CommandQueue clQueue;
+	private final WorkGroupTuner tuner;
+	private final long[] globalSizes;
+	private final long[] workGroupSizes;
+	private final long[] tunedSizes;
+	private final Kernel.WorkSize globalWorkSize;
+	private final Kernel.WorkSize workGroupSize;
+	private final Kernel.WorkSize tunedWorkGroupSize;
+	private int globalDimension;
+	private boolean useWorkGroupSize;
+	private boolean nullWorkGroupSize;
+	private long tunedForGlobalSize;
+	private int tunedVersion;
+	private Kernel.LocalMemPerElement[] localMemPerElement;
+
+	/**
+	 * Creates a new launcher
+	 * @param kernel the kernel, it must not be used elsewhere
+	 * @param clQueue the command queue in which the kernel is launched
+	 */
+	public KernelLauncher(Kernel kernel, CommandQueue clQueue) {
+		this(kernel, clQueue, null);
+	}
+
+	/**
+	 * Creates a new launcher that consults the specified tuner
+	 * @param kernel the kernel, it must not be used elsewhere
+	 * @param clQueue the command queue in which the kernel is launched
+	 * @param tuner the work group tuner, may be {@code null}
+	 */
+	public KernelLauncher(Kernel kernel, CommandQueue clQueue, WorkGroupTuner tuner) {
+		this.kernel = kernel;
+		this.kernelName = kernel.getName();
+		this.clQueue = clQueue;
+		this.tuner = tuner;
+		this.globalSizes = new long[]{1, 1, 1};
+		this.workGroupSizes = new long[]{1, 1, 1};
+		this.tunedSizes = new long[]{1, 1, 1};
+		this.globalWorkSize = new Kernel.WorkSize(1, globalSizes);
+		this.workGroupSize = new Kernel.WorkSize(1, workGroupSizes);
+		this.tunedWorkGroupSize = new Kernel.WorkSize(1, tunedSizes);
+		this.globalDimension = 1;
+		this.useWorkGroupSize = false;
+		this.nullWorkGroupSize = false;
+		this.tunedForGlobalSize = -1;
+		this.localMemPerElement = new Kernel.LocalMemPerElement[0];
+	}
+
+	public Kernel getKernel() {
+		return kernel;
+	}
+
+	public String getKernelName() {
+		return kernelName;
+	}
+
+	/**
+	 * @return the total number of work items
+	 */
+	public long getGlobalWorkSize() {
+		return globalSizes[0] * globalSizes[1] * globalSizes[2];
+	}
+
+	public boolean hasExplicitWorkGroupSize() {
+		return useWorkGroupSize;
+	}
+
+	public long getExplicitWorkGroupSize() {
+		return useWorkGroupSize ? workGroupSizes[0] : 0;
+	}
+
+	public KernelLauncher setGlobalWorkSize(long size) {
+		globalSizes[0] = size;
+		globalSizes[1] = 1;
+		globalSizes[2] = 1;
+		globalWorkSize.set(1, globalSizes);
+		globalDimension = 1;
+		return this;
+	}
+
+	public KernelLauncher setGlobalWorkSize(long width, long height) {
+		globalSizes[0] = width;
+		globalSizes[1] = height;
+		globalSizes[2] = 1;
+		globalWorkSize.set(2, globalSizes);
+		globalDimension = 2;
+		return this;
+	}
+
+	public KernelLauncher setGlobalWorkSize(long width, long height, long depth) {
+		globalSizes[0] = width;
+		globalSizes[1] = height;
+		globalSizes[2] = depth;
+		globalWorkSize.set(3, globalSizes);
+		globalDimension = 3;
+		return this;
+	}
+
+	public KernelLauncher setWorkGroupSize(long size) {
+		workGroupSizes[0] = size;
+		workGroupSizes[1] = 1;
+		workGroupSizes[2] = 1;
+		workGroupSize.set(1, workGroupSizes);
+		useWorkGroupSize = true;
+		return this;
+	}
+
+	/**
+	 * Lets the driver choose the work group size, this is the default.
+	 * @return this
+	 */
+	public KernelLauncher setWorkGroupSizeToNull() {
+		useWorkGroupSize = false;
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, Buffer b) {
+		kernel.setArg(index, b);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, Image i) {
+		kernel.setArg(index, i);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, int i) {
+		kernel.setArg(index, i);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, long l) {
+		kernel.setArg(index, l);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, float f) {
+		kernel.setArg(index, f);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, double d) {
+		kernel.setArg(index, d);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, Vector2f v) {
+		kernel.setArg(index, v);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, Vector4f v) {
+		kernel.setArg(index, v);
+		return this;
+	}
+
+	public KernelLauncher setArg(int index, Kernel.LocalMem m) {
+		if (index < localMemPerElement.length) {
+			localMemPerElement[index] = null;
+		}
+		kernel.setArg(index, m);
+		return this;
+	}
+
+	/**
+	 * Sets local memory whose size is proportional to the work group size.
+	 * The argument is passed to the kernel in {@link #launch() } and
+	 * {@link #launchWithEvent() }, after the work group size is known.
+	 * @param index the argument index
+	 * @param m the local memory per work item
+	 * @return this
+	 */
+	public KernelLauncher setArg(int index, Kernel.LocalMemPerElement m) {
+		if (index >= localMemPerElement.length) {
+			localMemPerElement = Arrays.copyOf(localMemPerElement, index + 1);
+		}
+		localMemPerElement[index] = m;
+		return this;
+	}
+
+	private long getTunedWorkGroupSize() {
+		if (tuner == null || globalDimension != 1) {
+			return 0;
+		}
+		int v = tuner.getVersion();
+		if (globalSizes[0] != tunedForGlobalSize || v != tunedVersion) {
+			tunedSizes[0] = tuner.getWorkGroupSize(kernelName, globalSizes[0]);
+			tunedWorkGroupSize.set(1, tunedSizes);
+			tunedForGlobalSize = globalSizes[0];
+			tunedVersion = v;
+		}
+		return tunedSizes[0];
+	}
+
+	/**
+	 * Launches the kernel with the current arguments and work sizes.
+	 * No event object is created.
+	 */
+	public void launch() {
+		prepareLaunch();
+		kernel.RunNoEvent(clQueue);
+	}
+
+	/**
+	 * Launches the kernel with the current arguments and work sizes.
+	 * @return the event object indicating when the kernel is finished
+	 */
+	public Event launchWithEvent() {
+		prepareLaunch();
+		return kernel.Run(clQueue);
+	}
+
+	private void prepareLaunch() {
+		kernel.setGlobalWorkSize(globalWorkSize);
+		if (useWorkGroupSize) {
+			kernel.setWorkGroupSize(workGroupSize);
+			nullWorkGroupSize = false;
+		} else if (getTunedWorkGroupSize() > 0) {
+			kernel.setWorkGroupSize(tunedWorkGroupSize);
+			nullWorkGroupSize = false;
+		} else if (!nullWorkGroupSize) {
+			//setWorkGroupSizeToNull() allocates, only call it if needed
+			kernel.setWorkGroupSizeToNull();
+			nullWorkGroupSize = true;
+		}
+		//the kernel computes the size from its current work group size
+		for (int i = 0; i < localMemPerElement.length; ++i) {
+			if (localMemPerElement[i] != null) {
+				if (nullWorkGroupSize) {
+					throw new IllegalStateException("local memory per element of "+kernelName+" requires a work group size");
+				}
+				kernel.setArg(i, localMemPerElement[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.Context;
+import com.jme3.opencl.Device;
+import com.jme3.opencl.OpenCLException;
+import com.jme3.opencl.Platform;
+import com.jme3.opencl.Program;
+import com.jme3.opencl.ProgramCache;
+import com.jme3.system.JmeSystem;
+import com.jme3.util.BufferUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A program cache that stores the compiled device binaries on the disk,
+ * so that they survive a restart of the application.
+ * <p>
+ * The file name is a hash over the cache id, the build arguments and the
+ * identity of the device, the driver and the platform. A binary is therefore
+ * never loaded for a different device or after a driver update.
+ * The cache id itself should already contain a hash of the source code and
+ * the include header, {@link org.shaman.jmecl.OpenCLSettings#loadProgram(java.lang.String, java.lang.String, java.lang.String...) }
+ * takes care of that.
+ *
+ * @author Sebastian Weiss
+ */
+public class PersistentProgramCache extends ProgramCache {
+	private static final Logger LOG = Logger.getLogger(PersistentProgramCache.class.getName());
+	private static final String FILE_EXTENSION = ".clbin";
+	private static final String DEFAULT_FOLDER = "opencl-cache";
+
+	private final Context context;
+	private final Device device;
+	private final File folder;
+	private final String deviceID;
+
+	/**
+	 * Creates a new program cache that stores the binaries in the specified folder.
+	 * @param context the OpenCL context
+	 * @param device the device for which the binaries are built
+	 * @param folder the cache folder, it is created if it does not exist yet
+	 */
+	public PersistentProgramCache(Context context, Device device, File folder) {
+		this.context = context;
+		this.device = device;
+		this.folder = folder;
+		this.deviceID = createDeviceID(device);
+		if (!folder.exists() && !folder.mkdirs()) {
+			LOG.log(Level.WARNING, "Unable to create cache folder {0}", folder);
+		}
+	}
+
+	/**
+	 * Creates a new program cache that stores the binaries in a sub-folder of
+	 * the storage folder of the application, see {@link JmeSystem#getStorageFolder() }.
+	 * @param context the OpenCL context
+	 * @param device the device for which the binaries are built
+	 */
+	public PersistentProgramCache(Context context, Device device) {
+		this(context, device, new File(JmeSystem.getStorageFolder(), DEFAULT_FOLDER));
+	}
+
+	static String createDeviceID(Device device) {
+		StringBuilder str = new StringBuilder();
+		Platform platform = device.getPlatform();
+		if (platform != null) {
+			str.append(platform.getName()).append('|')
+				.append(platform.getVendor()).append('|')
+				.append(platform.getVersion()).append('|');
+		}
+		str.append(device.getName()).append('|')
+			.append(device.getVendor()).append('|')
+			.append(device.getVersion()).append('|')
+			.append(device.getDriverVersion()).append('|')
+			.append(device.getCompilerVersion());
+		return str.toString();
+	}
+
+	/**
+	 * Computes the hex-encoded SHA-1 hash of the specified string.
+	 * @param str the input string
+	 * @return the hash as a hex string
+	 */
+	public static String hash(String str) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			//every java platform has to support SHA-1
+			throw new IllegalStateException(ex);
+		}
+		byte[] digest = md.digest(str.getBytes(StandardCharsets.UTF_8));
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return the folder in which the binaries are stored
+	 */
+	public File getFolder() {
+		return folder;
+	}
+
+	private File getCacheFile(String id, String buildArgs) {
+		String key = id + '|' + (buildArgs == null ? "" : buildArgs) + '|' + deviceID;
+		return new File(folder, getCleanFileName(id) + "-" + hash(key) + FILE_EXTENSION);
+	}
+
+	@Override
+	protected String getCleanFileName(String id) {
+		String name = id.replaceAll("[^a-zA-Z0-9.-]", "");
+		if (name.length() > 64) {
+			name = name.substring(name.length() - 64);
+		}
+		return name;
+	}
+
+	@Override
+	public Program loadFromCache(String id, String buildArgs) {
+		File file = getCacheFile(id, buildArgs);
+		if (!file.exists()) {
+			LOG.log(Level.FINE, "Cache file {0} does not exist", file);
+			return null;
+		}
+		ByteBuffer bb;
+		try {
+			byte[] bytes = Files.readAllBytes(file.toPath());
+			bb = BufferUtils.createByteBuffer(bytes);
+		} catch (IOException ex) {
+			LOG.log(Level.FINE, "Unable to read cache file", ex);
+			return null;
+		}
+		Program program;
+		try {
+			program = context.createProgramFromBinary(bb, device);
+			program.build(buildArgs == null ? "" : buildArgs, device);
+		} catch (OpenCLException ex) {
+			LOG.log(Level.FINE, "Unable to create program from binary, delete cache file", ex);
+			file.delete();
+			return null;
+		}
+		LOG.log(Level.FINE, "Program {0} loaded from cache file {1}", new Object[]{id, file});
+		return program;
+	}
+
+	@Override
+	public Program loadFromCache(String id) {
+		return loadFromCache(id, null);
+	}
+
+	/**
+	 * Stores the binaries of the specified program.
+	 * The program must already be built.
+	 * @param id the cache id
+	 * @param buildArgs the arguments that were passed to the compiler
+	 * @param program the built program
+	 */
+	public void saveToCache(String id, String buildArgs, Program program) {
+		ByteBuffer bb;
+		try {
+			bb = program.getBinary(device);
+		} catch (UnsupportedOperationException | OpenCLException ex) {
+			LOG.log(Level.WARNING, "Unable to retrieve the program binaries", ex);
+			return;
+		}
+		byte[] bytes = new byte[bb.remaining()];
+		bb.get(bytes);
+		File file = getCacheFile(id, buildArgs);
+		try {
+			//write to a temporary file first, concurrent readers never see a partial binary
+			File tmp = File.createTempFile(file.getName(), ".tmp", folder);
+			Files.write(tmp.toPath(), bytes);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException ex) {
+			LOG.log(Level.WARNING, "Unable to save program binaries to the cache", ex);
+			return;
+		}
+		LOG.log(Level.FINE, "Program {0} saved to cache file {1}", new Object[]{id, file});
+	}
+
+	@Override
+	public void saveToCache(String id, Program program) {
+		saveToCache(id, null, program);
+	}
+
+	@Override
+	public void clearCache() {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File f : files) {
+			if (f.getName().endsWith(FILE_EXTENSION)) {
+				f.delete();
+			}
+		}
+	}
+
+}
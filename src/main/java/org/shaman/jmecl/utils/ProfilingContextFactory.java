@@ -0,0 +1,1162 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.math.Matrix3f;
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector4f;
+import com.jme3.opencl.Buffer;
+import com.jme3.opencl.CommandQueue;
+import com.jme3.opencl.Context;
+import com.jme3.opencl.Device;
+import com.jme3.opencl.Event;
+import com.jme3.opencl.Image;
+import com.jme3.opencl.Kernel;
+import com.jme3.opencl.KernelCompilationException;
+import com.jme3.opencl.MemoryAccess;
+import com.jme3.opencl.Program;
+import com.jme3.opencl.lwjgl.LwjglCommandQueue;
+import com.jme3.opencl.lwjgl.LwjglContext;
+import com.jme3.opencl.lwjgl.LwjglDevice;
+import com.jme3.opencl.lwjgl.LwjglEvent;
+import com.jme3.opencl.lwjgl.Utils;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.texture.FrameBuffer;
+import com.jme3.texture.Texture;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.lwjgl.opencl.CL10;
+import org.lwjgl.opencl.CLCommandQueue;
+import org.lwjgl.opencl.CLEvent;
+
+/**
+ * Creates a wrapper for a {@link Context} that measures the execution time
+ * of every kernel launch on the GPU.
+ * <p>
+ * In contrast to {@link LoggingContextFactory}, the profiling context never
+ * waits for the GPU. Command queues are created with profiling enabled,
+ * every kernel launch keeps its event and the start and end timestamps
+ * ({@code CL_PROFILING_COMMAND_START/END}) are read later when the event has
+ * completed. Completed events are resolved by {@link Profiler#poll() } which is
+ * called automatically on every kernel launch. The timings are aggregated per
+ * kernel name into {@link KernelStatistics} (count, total time, median, 99th percentile).
+ * Other commands (e.g. copies) and sections of host code are added with
+ * {@link #track(com.jme3.opencl.Context, java.lang.String, java.lang.String, com.jme3.opencl.CommandQueue, com.jme3.opencl.Event) }
+ * and {@link #beginHostSection(com.jme3.opencl.Context, java.lang.String) },
+ * both do nothing if the context is not a profiling context.
+ * A timeline of a time window can be exported with {@link ChromeTraceWriter}.
+ * <p>
+ * Only programs and kernels are wrapped, all other objects (buffers, images,
+ * command queues) are the objects of the underlying context.
+ * Reading the timestamps is not part of the jME OpenCL API, it is done by
+ * a {@link Backend}. The default backend supports the LWJGL2 implementation.
+ * <p>
+ * Example:
+ * <pre>
+ * Context context = ProfilingContextFactory.createProfilingContext(clContext);
+ * ... //create the command queue and all programs with the new context
+ * ProfilingContextFactory.Profiler profiler = ProfilingContextFactory.getProfiler(context);
+ * ... //each frame, or once in a while
+ * LOG.info(profiler.getReport());
+ * </pre>
+ *
+ * @author Sebastian Weiss
+ */
+public class ProfilingContextFactory {
+	private static final Logger LOG = Logger.getLogger(ProfilingContextFactory.class.getName());
+
+	/**
+	 * The maximal number of events that wait for their resolution.
+	 * Launches beyond that limit are not profiled.
+	 */
+	public static final int MAX_PENDING_EVENTS = 1 << 14;
+
+	/**
+	 * Creates a profiling context using the LWJGL2 backend.
+	 * @param delegate the context to wrap, must be created by the LWJGL2 implementation
+	 * @return the profiling context
+	 */
+	public static Context createProfilingContext(Context delegate) {
+		return new ProfilingContext(delegate, LWJGL_BACKEND);
+	}
+
+	/**
+	 * Creates a profiling context using the specified backend.
+	 * @param delegate the context to wrap
+	 * @param backend the backend that creates the profiling queues and reads the timestamps
+	 * @return the profiling context
+	 */
+	public static Context createProfilingContext(Context delegate, Backend backend) {
+		return new ProfilingContext(delegate, backend);
+	}
+
+	/**
+	 * @param context the context
+	 * @return {@code true} if the context was created by this factory
+	 */
+	public static boolean isProfilingContext(Context context) {
+		return context instanceof ProfilingContext;
+	}
+
+	/**
+	 * Returns the profiler that collects the timings of the specified context.
+	 * @param profilingContext a context created by this factory
+	 * @return the profiler
+	 */
+	public static Profiler getProfiler(Context profilingContext) {
+		if (!(profilingContext instanceof ProfilingContext)) {
+			throw new IllegalArgumentException("argument "+profilingContext+" was not created by the profiling wrapper");
+		}
+		return ((ProfilingContext) profilingContext).profiler;
+	}
+
+	/**
+	 * Adds the command of the specified event to the profile of the context,
+	 * if it is a profiling context. Otherwise, the event is released.
+	 * @param context the context
+	 * @param name the name of the command
+	 * @param category the category, e.g. "copy"
+	 * @param queue the command queue
+	 * @param event the event, it is released by this method or the profiler
+	 * @see Profiler#track(java.lang.String, java.lang.String, com.jme3.opencl.CommandQueue, com.jme3.opencl.Event) 
+	 */
+	public static void track(Context context, String name, String category, CommandQueue queue, Event event) {
+		if (context instanceof ProfilingContext) {
+			((ProfilingContext) context).profiler.track(name, category, queue, event);
+		} else {
+			event.release();
+		}
+	}
+
+	/**
+	 * Begins a section of host code on the timeline of the context, if it is
+	 * a profiling context that records a trace. Otherwise, a section that does
+	 * nothing is returned.
+	 * @param context the context
+	 * @param name the name of the section
+	 * @return the section, call {@link HostSection#end() } at the end
+	 */
+	public static HostSection beginHostSection(Context context, String name) {
+		if (context instanceof ProfilingContext) {
+			return ((ProfilingContext) context).profiler.beginHostSection(name);
+		}
+		return HostSection.NONE;
+	}
+
+	/**
+	 * Provides the implementation specific parts of profiling.
+	 */
+	public static interface Backend {
+		/**
+		 * Creates a command queue with profiling enabled.
+		 * @param context the (unwrapped) context
+		 * @param device the device
+		 * @return the new command queue
+		 */
+		CommandQueue createProfilingQueue(Context context, Device device);
+		/**
+		 * Creates a second reference to the specified event that has to be
+		 * released independently from the passed one.
+		 * @param event the event
+		 * @return the new reference
+		 */
+		Event retain(Event event);
+		/**
+		 * Reads the start and end timestamps of the command of the specified event.
+		 * This method must not block.
+		 * @param event the event
+		 * @param result receives the start time at index 0 and the end time
+		 * at index 1 in nanoseconds, or -1 if the command failed
+		 * @return {@code false} if the command has not completed yet
+		 */
+		boolean getTimestamps(Event event, long[] result);
+	}
+
+	/**
+	 * The backend for the LWJGL2 implementation of jME.
+	 */
+	public static final Backend LWJGL_BACKEND = new Backend() {
+		@Override
+		public CommandQueue createProfilingQueue(Context context, Device device) {
+			if (!(context instanceof LwjglContext)) throwWrongType(context);
+			if (!(device instanceof LwjglDevice)) throwWrongType(device);
+			CLCommandQueue q = CL10.clCreateCommandQueue(((LwjglContext) context).getContext(),
+					((LwjglDevice) device).getDevice(), CL10.CL_QUEUE_PROFILING_ENABLE, Utils.errorBuffer);
+			Utils.checkError(Utils.errorBuffer, "clCreateCommandQueue");
+			return new LwjglCommandQueue(q, device);
+		}
+
+		@Override
+		public Event retain(Event event) {
+			if (!(event instanceof LwjglEvent)) throwWrongType(event);
+			CLEvent e = ((LwjglEvent) event).getEvent();
+			Utils.checkError(CL10.clRetainEvent(e), "clRetainEvent");
+			return new LwjglEvent(e);
+		}
+
+		@Override
+		public boolean getTimestamps(Event event, long[] result) {
+			if (!(event instanceof LwjglEvent)) throwWrongType(event);
+			CLEvent e = ((LwjglEvent) event).getEvent();
+			int status = e.getInfoInt(CL10.CL_EVENT_COMMAND_EXECUTION_STATUS);
+			if (status > CL10.CL_COMPLETE) {
+				return false;
+			}
+			if (status < 0) {
+				result[0] = -1;
+				result[1] = -1;
+			} else {
+				result[0] = e.getProfilingInfoLong(CL10.CL_PROFILING_COMMAND_START);
+				result[1] = e.getProfilingInfoLong(CL10.CL_PROFILING_COMMAND_END);
+			}
+			return true;
+		}
+	};
+
+	private static void throwWrongType(Object obj) {
+		throw new IllegalArgumentException("argument "+obj+" ("+obj.getClass()+") is not supported by the profiling backend");
+	}
+
+	/**
+	 * The aggregated timings of one kernel.
+	 * The times are stored in a histogram with four buckets per power of two,
+	 * hence percentiles have a relative error of at most 12.5%.
+	 */
+	public static final class KernelStatistics {
+		private static final int BUCKETS = 4 * 63;
+
+		private final String name;
+		private final long[] histogram;
+		private long count;
+		private long totalTime;
+		private long minTime;
+		private long maxTime;
+
+		private KernelStatistics(String name) {
+			this.name = name;
+			this.histogram = new long[BUCKETS];
+			this.minTime = Long.MAX_VALUE;
+		}
+
+		private KernelStatistics(KernelStatistics other) {
+			this.name = other.name;
+			this.histogram = other.histogram.clone();
+			this.count = other.count;
+			this.totalTime = other.totalTime;
+			this.minTime = other.minTime;
+			this.maxTime = other.maxTime;
+		}
+
+		private static int bucket(long time) {
+			if (time < 4) {
+				return (int) time;
+			}
+			int log = 63 - Long.numberOfLeadingZeros(time);
+			int sub = (int) ((time >>> (log - 2)) & 3);
+			return 4 * (log - 1) + sub;
+		}
+
+		private static long bucketStart(int bucket) {
+			if (bucket < 4) {
+				return bucket;
+			}
+			int log = bucket / 4 + 1;
+			return (4L + bucket % 4) << (log - 2);
+		}
+
+		private void add(long time) {
+			count++;
+			totalTime += time;
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			histogram[bucket(time)]++;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the number of measured launches
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the total execution time in nanoseconds
+		 */
+		public long getTotalTime() {
+			return totalTime;
+		}
+
+		/**
+		 * @return the average execution time in nanoseconds
+		 */
+		public long getAverageTime() {
+			return count == 0 ? 0 : totalTime / count;
+		}
+
+		/**
+		 * @return the minimal execution time in nanoseconds
+		 */
+		public long getMinTime() {
+			return count == 0 ? 0 : minTime;
+		}
+
+		/**
+		 * @return the maximal execution time in nanoseconds
+		 */
+		public long getMaxTime() {
+			return maxTime;
+		}
+
+		/**
+		 * Estimates the specified percentile of the execution time.
+		 * @param p the percentile in [0,1], e.g. 0.5 for the median
+		 * @return the execution time in nanoseconds
+		 */
+		public long getPercentile(double p) {
+			if (count == 0) {
+				return 0;
+			}
+			long target = Math.max(1, (long) Math.ceil(p * count));
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				sum += histogram[i];
+				if (sum >= target) {
+					long mid = (bucketStart(i) + bucketStart(i + 1)) / 2;
+					return Math.max(minTime, Math.min(maxTime, mid));
+				}
+			}
+			return maxTime;
+		}
+
+		/**
+		 * @return the median execution time in nanoseconds
+		 */
+		public long getMedian() {
+			return getPercentile(0.5);
+		}
+
+		/**
+		 * @return the 99th percentile of the execution time in nanoseconds
+		 */
+		public long get99thPercentile() {
+			return getPercentile(0.99);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: count=%d, total=%.3fms, avg=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms",
+					name, count, totalTime * 1e-6, getAverageTime() * 1e-6,
+					getMedian() * 1e-6, get99thPercentile() * 1e-6, maxTime * 1e-6);
+		}
+	}
+
+	/**
+	 * A command or host section on the timeline recorded by
+	 * {@link Profiler#startTrace(int) }.
+	 * The times are converted to the clock of {@link System#nanoTime() }.
+	 */
+	public static final class TraceEvent {
+		private final String name;
+		private final String category;
+		private final String track;
+		private final long startTime;
+		private final long endTime;
+
+		private TraceEvent(String name, String category, String track, long startTime, long endTime) {
+			this.name = name;
+			this.category = category;
+			this.track = track;
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the category, e.g. "kernel", "copy" or "host"
+		 */
+		public String getCategory() {
+			return category;
+		}
+
+		/**
+		 * @return the name of the command queue or host thread
+		 */
+		public String getTrack() {
+			return track;
+		}
+
+		/**
+		 * @return the start time in nanoseconds
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/**
+		 * @return the end time in nanoseconds
+		 */
+		public long getEndTime() {
+			return endTime;
+		}
+	}
+
+	/**
+	 * A section of host code on the timeline, created by
+	 * {@link ProfilingContextFactory#beginHostSection(com.jme3.opencl.Context, java.lang.String) }.
+	 */
+	public static final class HostSection {
+		private static final HostSection NONE = new HostSection(null, null, 0);
+		private final Profiler profiler;
+		private final String name;
+		private final long startTime;
+
+		private HostSection(Profiler profiler, String name, long startTime) {
+			this.profiler = profiler;
+			this.name = name;
+			this.startTime = startTime;
+		}
+
+		/**
+		 * Ends the section and adds it to the trace.
+		 */
+		public void end() {
+			if (profiler != null) {
+				profiler.addHostSection(name, startTime, System.nanoTime());
+			}
+		}
+	}
+
+	private static final class PendingEvent {
+		private final String name;
+		private final String category;
+		private final CommandQueue queue;
+		private final Event event;
+		private final long submitTime;
+
+		private PendingEvent(String name, String category, CommandQueue queue, Event event, long submitTime) {
+			this.name = name;
+			this.category = category;
+			this.queue = queue;
+			this.event = event;
+			this.submitTime = submitTime;
+		}
+	}
+
+	private static final class TraceRecord {
+		private final String name;
+		private final String category;
+		private final CommandQueue queue; //null for host sections
+		private final String thread;
+		private final long startTime;
+		private final long endTime;
+
+		private TraceRecord(String name, String category, CommandQueue queue, String thread, long startTime, long endTime) {
+			this.name = name;
+			this.category = category;
+			this.queue = queue;
+			this.thread = thread;
+			this.startTime = startTime;
+			this.endTime = endTime;
+		}
+	}
+
+	/**
+	 * Collects the events of the kernel launches and aggregates their timings.
+	 * <p>
+	 * Additionally, the profiler can record a timeline of all commands and
+	 * host sections between {@link #startTrace(int) } and {@link #stopTrace() },
+	 * that can be exported with {@link ChromeTraceWriter}. The device clock is
+	 * mapped to the host clock per command queue by the smallest observed
+	 * difference between the submission of a command and its start on the device.
+	 * <p>
+	 * All methods are thread-safe.
+	 */
+	public static final class Profiler {
+		private final Backend backend;
+		private final ArrayDeque<PendingEvent> pending;
+		private final Map<String, KernelStatistics> statistics;
+		private final long[] timestamps;
+		private volatile boolean enabled;
+		private long droppedEvents;
+		private volatile boolean tracing;
+		private int maxTraceEvents;
+		private final List<TraceRecord> trace;
+		private final Map<CommandQueue, long[]> clockOffsets;
+		private final AtomicLong launchCount;
+
+		private Profiler(Backend backend) {
+			this.backend = backend;
+			this.pending = new ArrayDeque<>();
+			this.statistics = new TreeMap<>();
+			this.timestamps = new long[2];
+			this.enabled = true;
+			this.trace = new ArrayList<>();
+			this.clockOffsets = new IdentityHashMap<>();
+			this.launchCount = new AtomicLong();
+		}
+
+		public Backend getBackend() {
+			return backend;
+		}
+
+		public boolean isEnabled() {
+			return enabled;
+		}
+
+		/**
+		 * Enables or disables profiling. If disabled, kernels are launched
+		 * without creating an event.
+		 * @param enabled {@code true} to measure the kernel launches
+		 */
+		public void setEnabled(boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		/**
+		 * Returns the number of kernel launches. The launches are counted
+		 * even if profiling is disabled.
+		 * @return the number of kernel launches
+		 */
+		public long getLaunchCount() {
+			return launchCount.get();
+		}
+
+		/**
+		 * Adds the command of the specified event to the profile.
+		 * Kernel launches are tracked automatically, use this method for
+		 * other commands like copies.
+		 * The profiler takes the ownership of the event, it is released when
+		 * the timestamps are read.
+		 * @param name the name of the command
+		 * @param category the category, e.g. "copy"
+		 * @param queue the command queue in which the command was enqueued
+		 * @param event the event of the command
+		 */
+		public void track(String name, String category, CommandQueue queue, Event event) {
+			if (!enabled) {
+				event.release();
+				return;
+			}
+			add(new PendingEvent(name, category, queue, event, System.nanoTime()));
+			poll();
+		}
+
+		private synchronized void add(PendingEvent e) {
+			if (pending.size() >= MAX_PENDING_EVENTS) {
+				poll();
+				if (pending.size() >= MAX_PENDING_EVENTS) {
+					if (droppedEvents == 0) {
+						LOG.warning("too many pending events, kernel launches are not profiled until they are resolved");
+					}
+					droppedEvents++;
+					e.event.release();
+					return;
+				}
+			}
+			pending.addLast(e);
+		}
+
+		/**
+		 * Reads the timestamps of all completed events and adds them to the statistics.
+		 * The events are processed in launch order, it stops at the first event
+		 * that has not completed yet. This method does not block.
+		 * @return the number of resolved events
+		 */
+		public synchronized int poll() {
+			int resolved = 0;
+			while (!pending.isEmpty()) {
+				PendingEvent e = pending.peekFirst();
+				if (!backend.getTimestamps(e.event, timestamps)) {
+					break;
+				}
+				pending.pollFirst();
+				e.event.release();
+				resolved++;
+				if (timestamps[0] < 0) {
+					continue;
+				}
+				KernelStatistics s = statistics.get(e.name);
+				if (s == null) {
+					s = new KernelStatistics(e.name);
+					statistics.put(e.name, s);
+				}
+				s.add(timestamps[1] - timestamps[0]);
+				if (tracing) {
+					long[] offset = clockOffsets.get(e.queue);
+					if (offset == null) {
+						offset = new long[]{Long.MAX_VALUE};
+						clockOffsets.put(e.queue, offset);
+					}
+					offset[0] = Math.min(offset[0], timestamps[0] - e.submitTime);
+					addTraceRecord(new TraceRecord(e.name, e.category, e.queue, null, timestamps[0], timestamps[1]));
+				}
+			}
+			return resolved;
+		}
+
+		/**
+		 * @return the number of events that are not resolved yet
+		 */
+		public synchronized int getPendingEvents() {
+			return pending.size();
+		}
+
+		/**
+		 * @return the number of launches that were not profiled because
+		 * too many events were pending
+		 */
+		public synchronized long getDroppedEvents() {
+			return droppedEvents;
+		}
+
+		/**
+		 * Returns a snapshot of the statistics, sorted by the kernel name.
+		 * Call {@link #poll() } before to include the latest completed launches.
+		 * @return a copy of the statistics
+		 */
+		public synchronized List<KernelStatistics> getStatistics() {
+			List<KernelStatistics> l = new ArrayList<>(statistics.size());
+			for (KernelStatistics s : statistics.values()) {
+				l.add(new KernelStatistics(s));
+			}
+			return l;
+		}
+
+		/**
+		 * Clears the statistics. Pending events are kept.
+		 */
+		public synchronized void reset() {
+			statistics.clear();
+			droppedEvents = 0;
+		}
+
+		/**
+		 * Polls the completed events and formats the statistics, one line per kernel.
+		 * @return the report
+		 */
+		public synchronized String getReport() {
+			poll();
+			StringBuilder str = new StringBuilder("GPU profile:");
+			for (KernelStatistics s : statistics.values()) {
+				str.append("\n ").append(s);
+			}
+			if (droppedEvents > 0) {
+				str.append("\n ").append(droppedEvents).append(" launches dropped");
+			}
+			return str.toString();
+		}
+
+		/**
+		 * Starts recording a timeline. The previous trace is cleared.
+		 * @param maxEvents the maximal number of recorded events,
+		 * later events are ignored
+		 */
+		public synchronized void startTrace(int maxEvents) {
+			trace.clear();
+			maxTraceEvents = maxEvents;
+			tracing = true;
+		}
+
+		/**
+		 * Stops recording the timeline.
+		 * Commands that are not completed yet are not part of the trace.
+		 */
+		public synchronized void stopTrace() {
+			poll();
+			tracing = false;
+		}
+
+		public boolean isTracing() {
+			return tracing;
+		}
+
+		private void addTraceRecord(TraceRecord r) {
+			if (trace.size() < maxTraceEvents) {
+				trace.add(r);
+			}
+		}
+
+		private synchronized void addHostSection(String name, long startTime, long endTime) {
+			if (tracing) {
+				addTraceRecord(new TraceRecord(name, "host", null, Thread.currentThread().getName(), startTime, endTime));
+			}
+		}
+
+		/**
+		 * Begins a section of host code. The section is only recorded if
+		 * a trace is active.
+		 * @param name the name of the section
+		 * @return the section, call {@link HostSection#end() } at the end
+		 */
+		public HostSection beginHostSection(String name) {
+			if (!tracing) {
+				return HostSection.NONE;
+			}
+			return new HostSection(this, name, System.nanoTime());
+		}
+
+		/**
+		 * Returns the recorded timeline with all times converted to the host clock.
+		 * @return the trace events, sorted by the start time
+		 */
+		public synchronized List<TraceEvent> getTrace() {
+			Map<CommandQueue, String> queueNames = new IdentityHashMap<>();
+			List<TraceEvent> events = new ArrayList<>(trace.size());
+			for (TraceRecord r : trace) {
+				if (r.queue == null) {
+					events.add(new TraceEvent(r.name, r.category, "Host: " + r.thread, r.startTime, r.endTime));
+				} else {
+					String track = queueNames.get(r.queue);
+					if (track == null) {
+						track = "Queue " + (queueNames.size() + 1) + ": " + r.queue.getDevice().getName();
+						queueNames.put(r.queue, track);
+					}
+					long offset = clockOffsets.get(r.queue)[0];
+					events.add(new TraceEvent(r.name, r.category, track, r.startTime - offset, r.endTime - offset));
+				}
+			}
+			Collections.sort(events, new Comparator<TraceEvent>() {
+				@Override
+				public int compare(TraceEvent a, TraceEvent b) {
+					return Long.compare(a.startTime, b.startTime);
+				}
+			});
+			return events;
+		}
+	}
+
+	private static class ProfilingContext extends Context {
+		private final Context delegate;
+		private final Profiler profiler;
+
+		public ProfilingContext(Context delegate, Backend backend) {
+			super(delegate.getReleaser());
+			this.delegate = delegate;
+			this.profiler = new Profiler(backend);
+		}
+
+		@Override
+		public Context register() {
+			delegate.register();
+			return this;
+		}
+
+		@Override
+		public List<? extends Device> getDevices() {
+			return delegate.getDevices();
+		}
+
+		@Override
+		public CommandQueue createQueue() {
+			return createQueue(delegate.getDevices().get(0));
+		}
+
+		@Override
+		public CommandQueue createQueue(Device device) {
+			return profiler.backend.createProfilingQueue(delegate, device);
+		}
+
+		@Override
+		public Buffer createBuffer(long l, MemoryAccess ma) {
+			return delegate.createBuffer(l, ma);
+		}
+
+		@Override
+		public Buffer createBuffer(long l) {
+			return delegate.createBuffer(l);
+		}
+
+		@Override
+		public Buffer createBufferFromHost(ByteBuffer bb, MemoryAccess ma) {
+			return delegate.createBufferFromHost(bb, ma);
+		}
+
+		@Override
+		public Buffer createBufferFromHost(ByteBuffer bb) {
+			return delegate.createBufferFromHost(bb);
+		}
+
+		@Override
+		public Image createImage(MemoryAccess ma, Image.ImageFormat i, Image.ImageDescriptor id) {
+			return delegate.createImage(ma, i, id);
+		}
+
+		@Override
+		public Image.ImageFormat[] querySupportedFormats(MemoryAccess ma, Image.ImageType it) {
+			return delegate.querySupportedFormats(ma, it);
+		}
+
+		@Override
+		public Buffer bindVertexBuffer(VertexBuffer vb, MemoryAccess ma) {
+			return delegate.bindVertexBuffer(vb, ma);
+		}
+
+		@Override
+		public Image bindImage(com.jme3.texture.Image image, Texture.Type type, int i, MemoryAccess ma) {
+			return delegate.bindImage(image, type, i, ma);
+		}
+
+		@Override
+		public Image bindImage(Texture txtr, int i, MemoryAccess ma) {
+			return delegate.bindImage(txtr, i, ma);
+		}
+
+		@Override
+		public Image bindImage(Texture txtr, MemoryAccess ma) {
+			return delegate.bindImage(txtr, ma);
+		}
+
+		@Override
+		public Image bindRenderBuffer(FrameBuffer.RenderBuffer rb, MemoryAccess ma) {
+			return delegate.bindRenderBuffer(rb, ma);
+		}
+
+		@Override
+		public Program createProgramFromSourceCode(String string) {
+			return new ProfilingProgram(delegate.createProgramFromSourceCode(string), profiler);
+		}
+
+		@Override
+		public Program createProgramFromBinary(ByteBuffer bb, Device device) {
+			return new ProfilingProgram(delegate.createProgramFromBinary(bb, device), profiler);
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+
+		@Override
+		protected Image bindPureRenderBuffer(FrameBuffer.RenderBuffer rb, MemoryAccess ma) {
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+	}
+
+	private static class ProfilingProgram extends Program {
+		private final Program delegate;
+		private final Profiler profiler;
+
+		public ProfilingProgram(Program delegate, Profiler profiler) {
+			super(delegate.getReleaser());
+			this.delegate = delegate;
+			this.profiler = profiler;
+		}
+
+		@Override
+		public Program register() {
+			delegate.register();
+			return this;
+		}
+
+		@Override
+		public void build(String string, Device... devices) throws KernelCompilationException {
+			delegate.build(string, devices);
+		}
+
+		@Override
+		public void build() throws KernelCompilationException {
+			delegate.build();
+		}
+
+		@Override
+		public Kernel createKernel(String string) {
+			return new ProfilingKernel(delegate.createKernel(string), profiler);
+		}
+
+		@Override
+		public Kernel[] createAllKernels() {
+			Kernel[] kx = delegate.createAllKernels();
+			Kernel[] pkx = new Kernel[kx.length];
+			for (int i=0; i<kx.length; ++i) {
+				pkx[i] = new ProfilingKernel(kx[i], profiler);
+			}
+			return pkx;
+		}
+
+		@Override
+		public ByteBuffer getBinary(Device device) {
+			return delegate.getBinary(device);
+		}
+
+		@Override
+		public int hashCode() {
+			return delegate.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return delegate.equals(o);
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+
+	}
+
+	private static class ProfilingKernel extends Kernel {
+		private final Kernel delegate;
+		private final Profiler profiler;
+		private final String name;
+
+		public ProfilingKernel(Kernel delegate, Profiler profiler) {
+			super(delegate.getReleaser());
+			this.delegate = delegate;
+			this.profiler = profiler;
+			this.name = delegate.getName();
+		}
+
+		@Override
+		public Kernel register() {
+			delegate.register();
+			return this;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int getArgCount() {
+			return delegate.getArgCount();
+		}
+
+		@Override
+		public WorkSize getGlobalWorkSize() {
+			return delegate.getGlobalWorkSize();
+		}
+
+		@Override
+		public void setGlobalWorkSize(WorkSize ws) {
+			delegate.setGlobalWorkSize(ws);
+		}
+
+		@Override
+		public void setGlobalWorkSize(int i) {
+			delegate.setGlobalWorkSize(i);
+		}
+
+		@Override
+		public void setGlobalWorkSize(int i, int i1) {
+			delegate.setGlobalWorkSize(i, i1);
+		}
+
+		@Override
+		public void setGlobalWorkSize(int i, int i1, int i2) {
+			delegate.setGlobalWorkSize(i, i1, i2);
+		}
+
+		@Override
+		public WorkSize getWorkGroupSize() {
+			return delegate.getWorkGroupSize();
+		}
+
+		@Override
+		public void setWorkGroupSize(WorkSize ws) {
+			delegate.setWorkGroupSize(ws);
+		}
+
+		@Override
+		public void setWorkGroupSize(int i) {
+			delegate.setWorkGroupSize(i);
+		}
+
+		@Override
+		public void setWorkGroupSize(int i, int i1) {
+			delegate.setWorkGroupSize(i, i1);
+		}
+
+		@Override
+		public void setWorkGroupSdize(int i, int i1, int i2) {
+			delegate.setWorkGroupSdize(i, i1, i2);
+		}
+
+		@Override
+		public void setWorkGroupSizeToNull() {
+			delegate.setWorkGroupSizeToNull();
+		}
+
+		@Override
+		public long getMaxWorkGroupSize(Device device) {
+			return delegate.getMaxWorkGroupSize(device);
+		}
+
+		@Override
+		public void setArg(int i, LocalMemPerElement lmpe) {
+			delegate.setArg(i, lmpe);
+		}
+
+		@Override
+		public void setArg(int i, LocalMem lm) {
+			delegate.setArg(i, lm);
+		}
+
+		@Override
+		public void setArg(int i, Buffer buffer) {
+			delegate.setArg(i, buffer);
+		}
+
+		@Override
+		public void setArg(int i, Image image) {
+			delegate.setArg(i, image);
+		}
+
+		@Override
+		public void setArg(int i, byte b) {
+			delegate.setArg(i, b);
+		}
+
+		@Override
+		public void setArg(int i, short s) {
+			delegate.setArg(i, s);
+		}
+
+		@Override
+		public void setArg(int i, int i1) {
+			delegate.setArg(i, i1);
+		}
+
+		@Override
+		public void setArg(int i, long l) {
+			delegate.setArg(i, l);
+		}
+
+		@Override
+		public void setArg(int i, float f) {
+			delegate.setArg(i, f);
+		}
+
+		@Override
+		public void setArg(int i, double d) {
+			delegate.setArg(i, d);
+		}
+
+		@Override
+		public void setArg(int i, Vector2f vctrf) {
+			delegate.setArg(i, vctrf);
+		}
+
+		@Override
+		public void setArg(int i, Vector4f vctrf) {
+			delegate.setArg(i, vctrf);
+		}
+
+		@Override
+		public void setArg(int i, Quaternion qtrn) {
+			delegate.setArg(i, qtrn);
+		}
+
+		@Override
+		public void setArg(int i, Matrix4f mtrxf) {
+			delegate.setArg(i, mtrxf);
+		}
+
+		@Override
+		public void setArg(int i, Matrix3f mtrxf) {
+			delegate.setArg(i, mtrxf);
+		}
+
+		@Override
+		public void setArg(int i, ByteBuffer bb, long l) {
+			delegate.setArg(i, bb, l);
+		}
+
+		@Override
+		public Event Run(CommandQueue cq) {
+			profiler.launchCount.incrementAndGet();
+			Event e = delegate.Run(cq);
+			if (profiler.isEnabled()) {
+				profiler.track(name, "kernel", cq, profiler.backend.retain(e));
+			}
+			return e;
+		}
+
+		@Override
+		public void RunNoEvent(CommandQueue cq) {
+			profiler.launchCount.incrementAndGet();
+			if (profiler.isEnabled()) {
+				profiler.track(name, "kernel", cq, delegate.Run(cq));
+			} else {
+				delegate.RunNoEvent(cq);
+			}
+		}
+
+		private void setArgs(Object[] os) {
+			for (int i=0; i<os.length; ++i) {
+				setArg(i, os[i]);
+			}
+		}
+
+		@Override
+		public Event Run1(CommandQueue cq, WorkSize ws, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSizeToNull();
+			setArgs(os);
+			return Run(cq);
+		}
+
+		@Override
+		public void Run1NoEvent(CommandQueue cq, WorkSize ws, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSizeToNull();
+			setArgs(os);
+			RunNoEvent(cq);
+		}
+
+		@Override
+		public Event Run2(CommandQueue cq, WorkSize ws, WorkSize ws1, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSize(ws1);
+			setArgs(os);
+			return Run(cq);
+		}
+
+		@Override
+		public void Run2NoEvent(CommandQueue cq, WorkSize ws, WorkSize ws1, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSize(ws1);
+			setArgs(os);
+			RunNoEvent(cq);
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+
+		@Override
+		public int hashCode() {
+			return delegate.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return delegate.equals(o);
+		}
+
+	}
+}
@@ -0,0 +1,1222 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.math.Matrix3f;
+import com.jme3.math.Matrix4f;
+import com.jme3.math.Quaternion;
+import com.jme3.math.Vector2f;
+import com.jme3.math.Vector4f;
+import com.jme3.opencl.Buffer;
+import com.jme3.opencl.CommandQueue;
+import com.jme3.opencl.Context;
+import com.jme3.opencl.Device;
+import com.jme3.opencl.Event;
+import com.jme3.opencl.Image;
+import com.jme3.opencl.Kernel;
+import com.jme3.opencl.KernelCompilationException;
+import com.jme3.opencl.MappingAccess;
+import com.jme3.opencl.MemoryAccess;
+import com.jme3.opencl.OpenCLException;
+import com.jme3.opencl.Program;
+import com.jme3.scene.VertexBuffer;
+import com.jme3.texture.FrameBuffer;
+import com.jme3.texture.Texture;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates a wrapper for a {@link Context} that records the command stream
+ * into a compact binary trace. The trace is replayed by {@link TraceReplayer}
+ * on any OpenCL device, e.g. to benchmark a captured frame on a CPU
+ * implementation or on another GPU without the application.
+ * <p>
+ * The recording context keeps track of all programs, kernels and buffers
+ * that are created by it. A capture is started with
+ * {@link Recorder#startCapture(com.jme3.opencl.CommandQueue, java.io.File) }.
+ * At the beginning of a capture, the contents of all living buffers are read
+ * back and stored in the trace, so the replay starts in the same state.
+ * Afterwards, every buffer allocation, write, copy, fill, kernel launch
+ * (with all argument values and work sizes) and read is appended to the trace.
+ * Frames are separated by {@link Recorder#markFrame() }.
+ * <p>
+ * Limitations:
+ * <ul>
+ * <li>Only programs created from source code can be replayed, programs from
+ * binaries are rejected with an {@link OpenCLException}. The program caches
+ * fall back to compiling the source code in that case.</li>
+ * <li>Images are not recorded. Kernel launches with image arguments are
+ * stored, but skipped during the replay.</li>
+ * <li>Modifications of shared buffers by OpenGL during the capture are not
+ * visible, shared buffers are replayed as normal buffers.</li>
+ * </ul>
+ * Command queues are the objects of the underlying context, buffers, programs
+ * and kernels are wrapped.
+ * <p>
+ * Example:
+ * <pre>
+ * Context context = RecordingContextFactory.createRecordingContext(clContext);
+ * ... //create the command queue and all OpenCL objects with the new context
+ * RecordingContextFactory.Recorder recorder = RecordingContextFactory.getRecorder(context);
+ * recorder.startCapture(clQueue, new File("frame.cltrace"));
+ * ... //each frame
+ * recorder.markFrame();
+ * ... //after a few frames
+ * recorder.stopCapture();
+ * </pre>
+ *
+ * @author Sebastian Weiss
+ */
+public class RecordingContextFactory {
+	private static final Logger LOG = Logger.getLogger(RecordingContextFactory.class.getName());
+
+	//The trace format, all numbers are big endian (DataOutputStream).
+	//header: int magic, int version
+	static final int MAGIC = 0x4a4d434c; //"JMCL"
+	static final int VERSION = 1;
+	//int id, boolean hasOptions, [string options], string source
+	static final byte OP_PROGRAM = 1;
+	//int id, int programID, string name
+	static final byte OP_KERNEL = 2;
+	//int id, long size, byte memoryAccess
+	static final byte OP_BUFFER = 3;
+	//int bufferID, long offset, boolean blocking, int size, byte[size] data
+	static final byte OP_WRITE = 4;
+	//int srcID, int destID, long size, long srcOffset, long destOffset
+	static final byte OP_COPY = 5;
+	//int bufferID, long size, long offset, int patternSize, byte[patternSize] pattern
+	static final byte OP_FILL = 6;
+	//int kernelID, byte dim, long[dim] global, byte localDim, long[localDim] local, short argCount, args
+	static final byte OP_LAUNCH = 7;
+	//int bufferID, long size, long offset, boolean blocking
+	static final byte OP_READ = 8;
+	//end of the initial buffer contents
+	static final byte OP_BEGIN_FRAMES = 9;
+	//end of a frame
+	static final byte OP_FRAME = 10;
+	//end of the trace
+	static final byte OP_END = 11;
+
+	static final byte ARG_NONE = 0;
+	static final byte ARG_BUFFER = 1; //int bufferID
+	static final byte ARG_BYTE = 2;
+	static final byte ARG_SHORT = 3;
+	static final byte ARG_INT = 4;
+	static final byte ARG_LONG = 5;
+	static final byte ARG_FLOAT = 6;
+	static final byte ARG_DOUBLE = 7;
+	static final byte ARG_LOCAL_MEM = 8; //int size
+	static final byte ARG_LOCAL_MEM_PER_ELEMENT = 9; //int size
+	static final byte ARG_RAW = 10; //int size, byte[size] data in native byte order
+	static final byte ARG_UNSUPPORTED = 11;
+
+	/**
+	 * The size of the chunks in which the initial buffer contents are read.
+	 */
+	private static final int SNAPSHOT_CHUNK_SIZE = 1 << 20;
+
+	private static final Object UNSUPPORTED = new Object();
+
+	/**
+	 * Creates a recording context.
+	 * @param delegate the context to wrap
+	 * @return the recording context
+	 */
+	public static Context createRecordingContext(Context delegate) {
+		return new RecordingContext(delegate);
+	}
+
+	/**
+	 * @param context the context
+	 * @return {@code true} if the context was created by this factory
+	 */
+	public static boolean isRecordingContext(Context context) {
+		return context instanceof RecordingContext;
+	}
+
+	/**
+	 * Returns the recorder that captures the commands of the specified context.
+	 * @param recordingContext a context created by this factory
+	 * @return the recorder
+	 */
+	public static Recorder getRecorder(Context recordingContext) {
+		if (!(recordingContext instanceof RecordingContext)) {
+			throw new IllegalArgumentException("not a recording context: " + recordingContext);
+		}
+		return ((RecordingContext) recordingContext).recorder;
+	}
+
+	/**
+	 * Captures the commands of one recording context.
+	 * All methods are thread-safe.
+	 */
+	public static final class Recorder {
+		private final Map<RecordingBuffer, Boolean> buffers = new WeakHashMap<>();
+		private int nextID = 1;
+		private int capture = 0;
+		private DataOutputStream out;
+		private long recordedCommands;
+		private int frames;
+
+		private Recorder() {}
+
+		/**
+		 * Starts a new capture that is written into the specified file.
+		 * @param queue the command queue that is used to read the initial buffer contents
+		 * @param file the trace file
+		 * @throws IOException if the file could not be written
+		 * @see #startCapture(com.jme3.opencl.CommandQueue, java.io.OutputStream)
+		 */
+		public void startCapture(CommandQueue queue, File file) throws IOException {
+			startCapture(queue, new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			LOG.log(Level.INFO, "capture into {0} started", file);
+		}
+
+		/**
+		 * Starts a new capture. The contents of all living buffers are read
+		 * (blocking) and written to the trace, hence this should be called
+		 * between two frames.
+		 * @param queue the command queue that is used to read the initial buffer contents
+		 * @param stream the output stream, it is closed by {@link #stopCapture() }
+		 * @throws IOException if writing failed
+		 */
+		public synchronized void startCapture(CommandQueue queue, OutputStream stream) throws IOException {
+			if (out != null) {
+				throw new IllegalStateException("a capture is already running");
+			}
+			out = new DataOutputStream(stream);
+			capture++;
+			recordedCommands = 0;
+			frames = 0;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			ByteBuffer tmp = ByteBuffer.allocateDirect(SNAPSHOT_CHUNK_SIZE);
+			List<RecordingBuffer> living = new ArrayList<>(buffers.keySet());
+			for (RecordingBuffer b : living) {
+				declare(b);
+				if (b.shared) {
+					b.delegate.acquireBufferForSharingNoEvent(queue);
+				}
+				long size = b.getSize();
+				for (long offset = 0; offset < size; offset += SNAPSHOT_CHUNK_SIZE) {
+					int chunk = (int) Math.min(SNAPSHOT_CHUNK_SIZE, size - offset);
+					tmp.clear();
+					b.delegate.read(queue, tmp, chunk, offset);
+					tmp.position(0).limit(chunk);
+					writeData(b, tmp, chunk, offset, true);
+				}
+				if (b.shared) {
+					b.delegate.releaseBufferForSharingNoEvent(queue);
+				}
+			}
+			out.writeByte(OP_BEGIN_FRAMES);
+			LOG.log(Level.FINE, "initial contents of {0} buffers captured", living.size());
+		}
+
+		/**
+		 * Ends the current frame. The replay measures the time of every frame.
+		 */
+		public synchronized void markFrame() {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.writeByte(OP_FRAME);
+				frames++;
+			} catch (IOException ex) {
+				abort(ex);
+			}
+		}
+
+		/**
+		 * Stops the capture and closes the trace.
+		 * @throws IOException if writing failed
+		 */
+		public synchronized void stopCapture() throws IOException {
+			if (out == null) {
+				return;
+			}
+			try {
+				out.writeByte(OP_END);
+			} finally {
+				out.close();
+				out = null;
+			}
+			LOG.log(Level.INFO, "capture stopped, {0} commands in {1} frames recorded",
+					new Object[]{recordedCommands, frames});
+		}
+
+		public synchronized boolean isCapturing() {
+			return out != null;
+		}
+
+		/**
+		 * @return the number of commands recorded in the current or last capture
+		 */
+		public synchronized long getRecordedCommands() {
+			return recordedCommands;
+		}
+
+		private void abort(IOException ex) {
+			LOG.log(Level.SEVERE, "unable to write the trace, capture aborted", ex);
+			try {
+				out.close();
+			} catch (IOException ex2) {
+				//ignore, the capture is already broken
+			}
+			out = null;
+		}
+
+		private synchronized int nextID() {
+			return nextID++;
+		}
+
+		private synchronized void bufferCreated(RecordingBuffer b, ByteBuffer initialData) {
+			buffers.put(b, Boolean.TRUE);
+			if (out == null) {
+				return;
+			}
+			try {
+				declare(b);
+				if (initialData != null) {
+					writeData(b, initialData.duplicate(), initialData.remaining(), 0, true);
+				}
+			} catch (IOException ex) {
+				abort(ex);
+			}
+		}
+
+		private synchronized void bufferReleased(RecordingBuffer b) {
+			buffers.remove(b);
+		}
+
+		private void declare(RecordingBuffer b) throws IOException {
+			if (b.declaredIn == capture) {
+				return;
+			}
+			out.writeByte(OP_BUFFER);
+			out.writeInt(b.id);
+			out.writeLong(b.getSize());
+			out.writeByte(b.getMemoryAccessFlags().ordinal());
+			b.declaredIn = capture;
+		}
+
+		private void declare(RecordingProgram p) throws IOException {
+			if (p.declaredIn == capture) {
+				return;
+			}
+			out.writeByte(OP_PROGRAM);
+			out.writeInt(p.id);
+			out.writeBoolean(p.options != null);
+			if (p.options != null) {
+				writeString(p.options);
+			}
+			writeString(p.source);
+			p.declaredIn = capture;
+		}
+
+		private void declare(RecordingKernel k) throws IOException {
+			if (k.declaredIn == capture) {
+				return;
+			}
+			declare(k.program);
+			out.writeByte(OP_KERNEL);
+			out.writeInt(k.id);
+			out.writeInt(k.program.id);
+			writeString(k.name);
+			k.declaredIn = capture;
+		}
+
+		private void writeString(String s) throws IOException {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeData(RecordingBuffer b, ByteBuffer src, long size, long offset, boolean blocking) throws IOException {
+			out.writeByte(OP_WRITE);
+			out.writeInt(b.id);
+			out.writeLong(offset);
+			out.writeBoolean(blocking);
+			out.writeInt((int) size);
+			ByteBuffer data = src.duplicate();
+			data.limit(data.position() + (int) size);
+			if (data.hasArray()) {
+				out.write(data.array(), data.arrayOffset() + data.position(), (int) size);
+			} else {
+				byte[] tmp = new byte[Math.min((int) size, 1 << 16)];
+				while (data.hasRemaining()) {
+					int n = Math.min(tmp.length, data.remaining());
+					data.get(tmp, 0, n);
+					out.write(tmp, 0, n);
+				}
+			}
+			recordedCommands++;
+		}
+
+		private synchronized void write(RecordingBuffer b, ByteBuffer src, long size, long offset, boolean blocking) {
+			if (out == null) {
+				return;
+			}
+			try {
+				declare(b);
+				writeData(b, src, size, offset, blocking);
+			} catch (IOException ex) {
+				abort(ex);
+			}
+		}
+
+		private synchronized void read(RecordingBuffer b, long size, long offset, boolean blocking) {
+			if (out == null) {
+				return;
+			}
+			try {
+				declare(b);
+				out.writeByte(OP_READ);
+				out.writeInt(b.id);
+				out.writeLong(size);
+				out.writeLong(offset);
+				out.writeBoolean(blocking);
+				recordedCommands++;
+			} catch (IOException ex) {
+				abort(ex);
+			}
+		}
+
+		private synchronized void copy(RecordingBuffer src, Buffer dest, long size, long srcOffset, long destOffset) {
+			if (out == null) {
+				return;
+			}
+			if (!(dest instanceof RecordingBuffer)) {
+				LOG.log(Level.WARNING, "copy into a buffer of another context is not recorded: {0}", dest);
+				return;
+			}
+			try {
+				declare(src);
+				declare((RecordingBuffer) dest);
+				out.writeByte(OP_COPY);
+				out.writeInt(src.id);
+				out.writeInt(((RecordingBuffer) dest).id);
+				out.writeLong(size);
+				out.writeLong(srcOffset);
+				out.writeLong(destOffset);
+				recordedCommands++;
+			} catch (IOException ex) {
+				abort(ex);
+			}
+		}
+
+		private synchronized void fill(RecordingBuffer b, ByteBuffer pattern, long size, long offset) {
+			if (out == null) {
+				return;
+			}
+			try {
+				declare(b);
+				out.writeByte(OP_FILL);
+				out.writeInt(b.id);
+				out.writeLong(size);
+				out.writeLong(offset);
+				ByteBuffer p = pattern.duplicate();
+				out.writeInt(p.remaining());
+				while (p.hasRemaining()) {
+					out.writeByte(p.get());
+				}
+				recordedCommands++;
+			} catch (IOException ex) {
+				abort(ex);
+			}
+		}
+
+		private synchronized void launch(RecordingKernel k) {
+			if (out == null) {
+				return;
+			}
+			try {
+				for (Object arg : k.args) {
+					if (arg instanceof RecordingBuffer) {
+						declare((RecordingBuffer) arg);
+					}
+				}
+				declare(k);
+				out.writeByte(OP_LAUNCH);
+				out.writeInt(k.id);
+				Kernel.WorkSize global = k.delegate.getGlobalWorkSize();
+				out.writeByte(global.getDimension());
+				for (int i = 0; i < global.getDimension(); ++i) {
+					out.writeLong(global.getSizes()[i]);
+				}
+				Kernel.WorkSize local = k.delegate.getWorkGroupSize();
+				if (local == null || local.getSizes()[0] <= 0) {
+					out.writeByte(0);
+				} else {
+					out.writeByte(local.getDimension());
+					for (int i = 0; i < local.getDimension(); ++i) {
+						out.writeLong(local.getSizes()[i]);
+					}
+				}
+				out.writeShort(k.args.length);
+				for (Object arg : k.args) {
+					writeArg(arg);
+				}
+				recordedCommands++;
+			} catch (IOException ex) {
+				abort(ex);
+			}
+		}
+
+		private void writeArg(Object arg) throws IOException {
+			if (arg == null) {
+				out.writeByte(ARG_NONE);
+			} else if (arg instanceof RecordingBuffer) {
+				out.writeByte(ARG_BUFFER);
+				out.writeInt(((RecordingBuffer) arg).id);
+			} else if (arg instanceof Byte) {
+				out.writeByte(ARG_BYTE);
+				out.writeByte((Byte) arg);
+			} else if (arg instanceof Short) {
+				out.writeByte(ARG_SHORT);
+				out.writeShort((Short) arg);
+			} else if (arg instanceof Integer) {
+				out.writeByte(ARG_INT);
+				out.writeInt((Integer) arg);
+			} else if (arg instanceof Long) {
+				out.writeByte(ARG_LONG);
+				out.writeLong((Long) arg);
+			} else if (arg instanceof Float) {
+				out.writeByte(ARG_FLOAT);
+				out.writeFloat((Float) arg);
+			} else if (arg instanceof Double) {
+				out.writeByte(ARG_DOUBLE);
+				out.writeDouble((Double) arg);
+			} else if (arg instanceof Kernel.LocalMem) {
+				out.writeByte(ARG_LOCAL_MEM);
+				out.writeInt(((Kernel.LocalMem) arg).getSize());
+			} else if (arg instanceof Kernel.LocalMemPerElement) {
+				out.writeByte(ARG_LOCAL_MEM_PER_ELEMENT);
+				out.writeInt(((Kernel.LocalMemPerElement) arg).getSize());
+			} else if (arg instanceof byte[]) {
+				byte[] raw = (byte[]) arg;
+				out.writeByte(ARG_RAW);
+				out.writeInt(raw.length);
+				out.write(raw);
+			} else {
+				out.writeByte(ARG_UNSUPPORTED);
+			}
+		}
+	}
+
+	private static byte[] toRaw(float... values) {
+		ByteBuffer bb = ByteBuffer.allocate(4 * values.length).order(ByteOrder.nativeOrder());
+		for (float v : values) {
+			bb.putFloat(v);
+		}
+		return bb.array();
+	}
+
+	private static Buffer unwrap(Buffer b) {
+		return b instanceof RecordingBuffer ? ((RecordingBuffer) b).delegate : b;
+	}
+
+	private static class RecordingContext extends Context {
+		private final Context delegate;
+		private final Recorder recorder;
+
+		public RecordingContext(Context delegate) {
+			super(delegate.getReleaser());
+			this.delegate = delegate;
+			this.recorder = new Recorder();
+		}
+
+		@Override
+		public Context register() {
+			delegate.register();
+			return this;
+		}
+
+		@Override
+		public List<? extends Device> getDevices() {
+			return delegate.getDevices();
+		}
+
+		@Override
+		public CommandQueue createQueue() {
+			return delegate.createQueue();
+		}
+
+		@Override
+		public CommandQueue createQueue(Device device) {
+			return delegate.createQueue(device);
+		}
+
+		private Buffer wrap(Buffer b, ByteBuffer initialData, boolean shared) {
+			RecordingBuffer rb = new RecordingBuffer(b, recorder, shared);
+			recorder.bufferCreated(rb, initialData);
+			return rb;
+		}
+
+		@Override
+		public Buffer createBuffer(long l, MemoryAccess ma) {
+			return wrap(delegate.createBuffer(l, ma), null, false);
+		}
+
+		@Override
+		public Buffer createBuffer(long l) {
+			return wrap(delegate.createBuffer(l), null, false);
+		}
+
+		@Override
+		public Buffer createBufferFromHost(ByteBuffer bb, MemoryAccess ma) {
+			return wrap(delegate.createBufferFromHost(bb, ma), bb, false);
+		}
+
+		@Override
+		public Buffer createBufferFromHost(ByteBuffer bb) {
+			return wrap(delegate.createBufferFromHost(bb), bb, false);
+		}
+
+		@Override
+		public Image createImage(MemoryAccess ma, Image.ImageFormat i, Image.ImageDescriptor id) {
+			return delegate.createImage(ma, i, id);
+		}
+
+		@Override
+		public Image.ImageFormat[] querySupportedFormats(MemoryAccess ma, Image.ImageType it) {
+			return delegate.querySupportedFormats(ma, it);
+		}
+
+		@Override
+		public Buffer bindVertexBuffer(VertexBuffer vb, MemoryAccess ma) {
+			return wrap(delegate.bindVertexBuffer(vb, ma), null, true);
+		}
+
+		@Override
+		public Image bindImage(com.jme3.texture.Image image, Texture.Type type, int i, MemoryAccess ma) {
+			return delegate.bindImage(image, type, i, ma);
+		}
+
+		@Override
+		public Image bindImage(Texture txtr, int i, MemoryAccess ma) {
+			return delegate.bindImage(txtr, i, ma);
+		}
+
+		@Override
+		public Image bindImage(Texture txtr, MemoryAccess ma) {
+			return delegate.bindImage(txtr, ma);
+		}
+
+		@Override
+		public Image bindRenderBuffer(FrameBuffer.RenderBuffer rb, MemoryAccess ma) {
+			return delegate.bindRenderBuffer(rb, ma);
+		}
+
+		@Override
+		public Program createProgramFromSourceCode(String string) {
+			return new RecordingProgram(delegate.createProgramFromSourceCode(string), string, recorder);
+		}
+
+		@Override
+		public Program createProgramFromBinary(ByteBuffer bb, Device device) {
+			throw new OpenCLException("programs from binaries can't be recorded, compile the source code instead");
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+
+		@Override
+		protected Image bindPureRenderBuffer(FrameBuffer.RenderBuffer rb, MemoryAccess ma) {
+			throw new UnsupportedOperationException("Not supported yet.");
+		}
+
+	}
+
+	private static class RecordingProgram extends Program {
+		private final Program delegate;
+		private final String source;
+		private final Recorder recorder;
+		private final int id;
+		private String options;
+		private int declaredIn;
+
+		public RecordingProgram(Program delegate, String source, Recorder recorder) {
+			super(delegate.getReleaser());
+			this.delegate = delegate;
+			this.source = source;
+			this.recorder = recorder;
+			this.id = recorder.nextID();
+		}
+
+		@Override
+		public Program register() {
+			delegate.register();
+			return this;
+		}
+
+		@Override
+		public void build(String string, Device... devices) throws KernelCompilationException {
+			options = string == null ? "" : string;
+			delegate.build(string, devices);
+		}
+
+		@Override
+		public void build() throws KernelCompilationException {
+			options = null;
+			delegate.build();
+		}
+
+		@Override
+		public Kernel createKernel(String string) {
+			return new RecordingKernel(delegate.createKernel(string), this);
+		}
+
+		@Override
+		public Kernel[] createAllKernels() {
+			Kernel[] kx = delegate.createAllKernels();
+			Kernel[] rkx = new Kernel[kx.length];
+			for (int i=0; i<kx.length; ++i) {
+				rkx[i] = new RecordingKernel(kx[i], this);
+			}
+			return rkx;
+		}
+
+		@Override
+		public ByteBuffer getBinary(Device device) {
+			return delegate.getBinary(device);
+		}
+
+		@Override
+		public int hashCode() {
+			return delegate.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return delegate.equals(o);
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+
+	}
+
+	private static class RecordingKernel extends Kernel {
+		private final Kernel delegate;
+		private final RecordingProgram program;
+		private final Recorder recorder;
+		private final String name;
+		private final int id;
+		private final Object[] args;
+		private int declaredIn;
+
+		public RecordingKernel(Kernel delegate, RecordingProgram program) {
+			super(delegate.getReleaser());
+			this.delegate = delegate;
+			this.program = program;
+			this.recorder = program.recorder;
+			this.name = delegate.getName();
+			this.id = recorder.nextID();
+			this.args = new Object[delegate.getArgCount()];
+		}
+
+		@Override
+		public Kernel register() {
+			delegate.register();
+			return this;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int getArgCount() {
+			return args.length;
+		}
+
+		@Override
+		public WorkSize getGlobalWorkSize() {
+			return delegate.getGlobalWorkSize();
+		}
+
+		@Override
+		public void setGlobalWorkSize(WorkSize ws) {
+			delegate.setGlobalWorkSize(ws);
+		}
+
+		@Override
+		public void setGlobalWorkSize(int i) {
+			delegate.setGlobalWorkSize(i);
+		}
+
+		@Override
+		public void setGlobalWorkSize(int i, int i1) {
+			delegate.setGlobalWorkSize(i, i1);
+		}
+
+		@Override
+		public void setGlobalWorkSize(int i, int i1, int i2) {
+			delegate.setGlobalWorkSize(i, i1, i2);
+		}
+
+		@Override
+		public WorkSize getWorkGroupSize() {
+			return delegate.getWorkGroupSize();
+		}
+
+		@Override
+		public void setWorkGroupSize(WorkSize ws) {
+			delegate.setWorkGroupSize(ws);
+		}
+
+		@Override
+		public void setWorkGroupSize(int i) {
+			delegate.setWorkGroupSize(i);
+		}
+
+		@Override
+		public void setWorkGroupSize(int i, int i1) {
+			delegate.setWorkGroupSize(i, i1);
+		}
+
+		@Override
+		public void setWorkGroupSdize(int i, int i1, int i2) {
+			delegate.setWorkGroupSdize(i, i1, i2);
+		}
+
+		@Override
+		public void setWorkGroupSizeToNull() {
+			delegate.setWorkGroupSizeToNull();
+		}
+
+		@Override
+		public long getMaxWorkGroupSize(Device device) {
+			return delegate.getMaxWorkGroupSize(device);
+		}
+
+		@Override
+		public void setArg(int i, LocalMemPerElement lmpe) {
+			args[i] = lmpe;
+			delegate.setArg(i, lmpe);
+		}
+
+		@Override
+		public void setArg(int i, LocalMem lm) {
+			args[i] = lm;
+			delegate.setArg(i, lm);
+		}
+
+		@Override
+		public void setArg(int i, Buffer buffer) {
+			args[i] = buffer instanceof RecordingBuffer ? buffer : UNSUPPORTED;
+			delegate.setArg(i, unwrap(buffer));
+		}
+
+		@Override
+		public void setArg(int i, Image image) {
+			args[i] = UNSUPPORTED;
+			delegate.setArg(i, image);
+		}
+
+		@Override
+		public void setArg(int i, byte b) {
+			args[i] = b;
+			delegate.setArg(i, b);
+		}
+
+		@Override
+		public void setArg(int i, short s) {
+			args[i] = s;
+			delegate.setArg(i, s);
+		}
+
+		@Override
+		public void setArg(int i, int i1) {
+			args[i] = i1;
+			delegate.setArg(i, i1);
+		}
+
+		@Override
+		public void setArg(int i, long l) {
+			args[i] = l;
+			delegate.setArg(i, l);
+		}
+
+		@Override
+		public void setArg(int i, float f) {
+			args[i] = f;
+			delegate.setArg(i, f);
+		}
+
+		@Override
+		public void setArg(int i, double d) {
+			args[i] = d;
+			delegate.setArg(i, d);
+		}
+
+		@Override
+		public void setArg(int i, Vector2f vctrf) {
+			args[i] = toRaw(vctrf.x, vctrf.y);
+			delegate.setArg(i, vctrf);
+		}
+
+		@Override
+		public void setArg(int i, Vector4f vctrf) {
+			args[i] = toRaw(vctrf.x, vctrf.y, vctrf.z, vctrf.w);
+			delegate.setArg(i, vctrf);
+		}
+
+		@Override
+		public void setArg(int i, Quaternion qtrn) {
+			args[i] = toRaw(qtrn.getX(), qtrn.getY(), qtrn.getZ(), qtrn.getW());
+			delegate.setArg(i, qtrn);
+		}
+
+		@Override
+		public void setArg(int i, Matrix4f mtrxf) {
+			float[] values = new float[16];
+			for (int r=0; r<4; ++r) {
+				for (int c=0; c<4; ++c) {
+					values[4*r + c] = mtrxf.get(r, c);
+				}
+			}
+			args[i] = toRaw(values);
+			delegate.setArg(i, mtrxf);
+		}
+
+		@Override
+		public void setArg(int i, Matrix3f mtrxf) {
+			//three float3 rows, each padded to four floats
+			float[] values = new float[12];
+			for (int r=0; r<3; ++r) {
+				for (int c=0; c<3; ++c) {
+					values[4*r + c] = mtrxf.get(r, c);
+				}
+			}
+			args[i] = toRaw(values);
+			delegate.setArg(i, mtrxf);
+		}
+
+		@Override
+		public void setArg(int i, ByteBuffer bb, long l) {
+			byte[] raw = new byte[(int) l];
+			ByteBuffer d = bb.duplicate();
+			d.get(raw);
+			args[i] = raw;
+			delegate.setArg(i, bb, l);
+		}
+
+		@Override
+		public Event Run(CommandQueue cq) {
+			recorder.launch(this);
+			return delegate.Run(cq);
+		}
+
+		@Override
+		public void RunNoEvent(CommandQueue cq) {
+			recorder.launch(this);
+			delegate.RunNoEvent(cq);
+		}
+
+		private void setArgs(Object[] os) {
+			for (int i=0; i<os.length; ++i) {
+				setArg(i, os[i]);
+			}
+		}
+
+		@Override
+		public Event Run1(CommandQueue cq, WorkSize ws, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSizeToNull();
+			setArgs(os);
+			return Run(cq);
+		}
+
+		@Override
+		public void Run1NoEvent(CommandQueue cq, WorkSize ws, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSizeToNull();
+			setArgs(os);
+			RunNoEvent(cq);
+		}
+
+		@Override
+		public Event Run2(CommandQueue cq, WorkSize ws, WorkSize ws1, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSize(ws1);
+			setArgs(os);
+			return Run(cq);
+		}
+
+		@Override
+		public void Run2NoEvent(CommandQueue cq, WorkSize ws, WorkSize ws1, Object... os) {
+			setGlobalWorkSize(ws);
+			setWorkGroupSize(ws1);
+			setArgs(os);
+			RunNoEvent(cq);
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+
+	}
+
+	private static class RecordingBuffer extends Buffer {
+		private final Buffer delegate;
+		private final Recorder recorder;
+		private final boolean shared;
+		private final int id;
+		private final Map<ByteBuffer, long[]> mappings;
+		private int declaredIn;
+
+		public RecordingBuffer(Buffer delegate, Recorder recorder, boolean shared) {
+			super(delegate.getReleaser());
+			this.delegate = delegate;
+			this.recorder = recorder;
+			this.shared = shared;
+			this.id = recorder.nextID();
+			this.mappings = new IdentityHashMap<>();
+		}
+
+		@Override
+		public Buffer register() {
+			delegate.register();
+			return this;
+		}
+
+		@Override
+		public void release() {
+			recorder.bufferReleased(this);
+			super.release();
+		}
+
+		@Override
+		public long getSize() {
+			return delegate.getSize();
+		}
+
+		@Override
+		public MemoryAccess getMemoryAccessFlags() {
+			return delegate.getMemoryAccessFlags();
+		}
+
+		@Override
+		public void read(CommandQueue cq, ByteBuffer bb, long l, long l1) {
+			recorder.read(this, l, l1, true);
+			delegate.read(cq, bb, l, l1);
+		}
+
+		@Override
+		public void read(CommandQueue cq, ByteBuffer bb, long l) {
+			read(cq, bb, l, 0);
+		}
+
+		@Override
+		public void read(CommandQueue cq, ByteBuffer bb) {
+			read(cq, bb, getSize(), 0);
+		}
+
+		@Override
+		public Event readAsync(CommandQueue cq, ByteBuffer bb, long l, long l1) {
+			recorder.read(this, l, l1, false);
+			return delegate.readAsync(cq, bb, l, l1);
+		}
+
+		@Override
+		public Event readAsync(CommandQueue cq, ByteBuffer bb, long l) {
+			return readAsync(cq, bb, l, 0);
+		}
+
+		@Override
+		public Event readAsync(CommandQueue cq, ByteBuffer bb) {
+			return readAsync(cq, bb, getSize(), 0);
+		}
+
+		@Override
+		public void write(CommandQueue cq, ByteBuffer bb, long l, long l1) {
+			recorder.write(this, bb, l, l1, true);
+			delegate.write(cq, bb, l, l1);
+		}
+
+		@Override
+		public void write(CommandQueue cq, ByteBuffer bb, long l) {
+			write(cq, bb, l, 0);
+		}
+
+		@Override
+		public void write(CommandQueue cq, ByteBuffer bb) {
+			write(cq, bb, getSize(), 0);
+		}
+
+		@Override
+		public Event writeAsync(CommandQueue cq, ByteBuffer bb, long l, long l1) {
+			recorder.write(this, bb, l, l1, false);
+			return delegate.writeAsync(cq, bb, l, l1);
+		}
+
+		@Override
+		public Event writeAsync(CommandQueue cq, ByteBuffer bb, long l) {
+			return writeAsync(cq, bb, l, 0);
+		}
+
+		@Override
+		public Event writeAsync(CommandQueue cq, ByteBuffer bb) {
+			return writeAsync(cq, bb, getSize(), 0);
+		}
+
+		@Override
+		public void copyTo(CommandQueue cq, Buffer buffer, long l, long l1, long l2) {
+			recorder.copy(this, buffer, l, l1, l2);
+			delegate.copyTo(cq, unwrap(buffer), l, l1, l2);
+		}
+
+		@Override
+		public void copyTo(CommandQueue cq, Buffer buffer, long l) {
+			copyTo(cq, buffer, l, 0, 0);
+		}
+
+		@Override
+		public void copyTo(CommandQueue cq, Buffer buffer) {
+			copyTo(cq, buffer, getSize(), 0, 0);
+		}
+
+		@Override
+		public Event copyToAsync(CommandQueue cq, Buffer buffer, long l, long l1, long l2) {
+			recorder.copy(this, buffer, l, l1, l2);
+			return delegate.copyToAsync(cq, unwrap(buffer), l, l1, l2);
+		}
+
+		@Override
+		public Event copyToAsync(CommandQueue cq, Buffer buffer, long l) {
+			return copyToAsync(cq, buffer, l, 0, 0);
+		}
+
+		@Override
+		public Event copyToAsync(CommandQueue cq, Buffer buffer) {
+			return copyToAsync(cq, buffer, getSize(), 0, 0);
+		}
+
+		@Override
+		public ByteBuffer map(CommandQueue cq, long l, long l1, MappingAccess ma) {
+			if (ma != MappingAccess.MAP_WRITE_ONLY && ma != MappingAccess.MAP_WRITE_INVALIDATE) {
+				recorder.read(this, l, l1, true);
+			}
+			ByteBuffer bb = delegate.map(cq, l, l1, ma);
+			addMapping(bb, l, l1, ma);
+			return bb;
+		}
+
+		@Override
+		public ByteBuffer map(CommandQueue cq, long l, MappingAccess ma) {
+			return map(cq, l, 0, ma);
+		}
+
+		@Override
+		public ByteBuffer map(CommandQueue cq, MappingAccess ma) {
+			return map(cq, getSize(), 0, ma);
+		}
+
+		private void addMapping(ByteBuffer bb, long size, long offset, MappingAccess ma) {
+			if (ma != MappingAccess.MAP_READ_ONLY) {
+				synchronized (mappings) {
+					mappings.put(bb, new long[]{size, offset});
+				}
+			}
+		}
+
+		@Override
+		public void unmap(CommandQueue cq, ByteBuffer bb) {
+			long[] mapping;
+			synchronized (mappings) {
+				mapping = mappings.remove(bb);
+			}
+			if (mapping != null) {
+				//the host modified the mapped memory, record it as a write
+				ByteBuffer data = bb.duplicate();
+				data.clear();
+				recorder.write(this, data, mapping[0], mapping[1], true);
+			}
+			delegate.unmap(cq, bb);
+		}
+
+		@Override
+		public AsyncMapping mapAsync(CommandQueue cq, long l, long l1, MappingAccess ma) {
+			if (ma != MappingAccess.MAP_WRITE_ONLY && ma != MappingAccess.MAP_WRITE_INVALIDATE) {
+				recorder.read(this, l, l1, false);
+			}
+			AsyncMapping m = delegate.mapAsync(cq, l, l1, ma);
+			addMapping(m.buffer, l, l1, ma);
+			return m;
+		}
+
+		@Override
+		public AsyncMapping mapAsync(CommandQueue cq, long l, MappingAccess ma) {
+			return mapAsync(cq, l, 0, ma);
+		}
+
+		@Override
+		public AsyncMapping mapAsync(CommandQueue cq, MappingAccess ma) {
+			return mapAsync(cq, getSize(), 0, ma);
+		}
+
+		@Override
+		public Event fillAsync(CommandQueue cq, ByteBuffer bb, long l, long l1) {
+			recorder.fill(this, bb, l, l1);
+			return delegate.fillAsync(cq, bb, l, l1);
+		}
+
+		@Override
+		public Event copyToImageAsync(CommandQueue cq, Image image, long l, long[] longs, long[] longs1) {
+			LOG.log(Level.WARNING, "copies into images are not recorded");
+			return delegate.copyToImageAsync(cq, image, l, longs, longs1);
+		}
+
+		@Override
+		public Event acquireBufferForSharingAsync(CommandQueue cq) {
+			return delegate.acquireBufferForSharingAsync(cq);
+		}
+
+		@Override
+		public void acquireBufferForSharingNoEvent(CommandQueue cq) {
+			delegate.acquireBufferForSharingNoEvent(cq);
+		}
+
+		@Override
+		public Event releaseBufferForSharingAsync(CommandQueue cq) {
+			return delegate.releaseBufferForSharingAsync(cq);
+		}
+
+		@Override
+		public void releaseBufferForSharingNoEvent(CommandQueue cq) {
+			delegate.releaseBufferForSharingNoEvent(cq);
+		}
+
+		@Override
+		public String toString() {
+			return delegate.toString();
+		}
+
+	}
+}
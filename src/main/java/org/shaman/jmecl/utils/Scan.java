@@ -0,0 +1,227 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
+
+/**
+ * Parallel prefix sums (scans) on primitive types.
+ * <p>
+ * The inclusive scan computes {@code out[i] = in[0] + ... + in[i]},
+ * the exclusive scan {@code out[i] = in[0] + ... + in[i-1]} with {@code out[0] = 0}.
+ * The segmented variants take an additional int buffer with flags:
+ * every element with a nonzero flag starts a new segment and the sums
+ * restart at the segment start.
+ * <p>
+ * The input is processed in blocks of the size of a work group, the sums
+ * of the blocks are then scanned recursively. The element indices are longs,
+ * hence the length of the input is only limited by the device memory.
+ * The input and output buffer may be the same.
+ * <p>
+ * The instances are thread-safe, the scans of one instance are enqueued
+ * one after another because they share the scratch buffers of the block sums.
+ *
+ * @author Sebastian Weiss
+ * @param <T> the number type, Integer, Long, Float and Double are supported
+ */
+public final class Scan<T extends Number> {
+	private static final Logger LOG = Logger.getLogger(Scan.class.getName());
+	private static final String FILE = "org/shaman/jmecl/utils/Scan.cl";
+	private static final int MAX_BLOCK_SIZE = 256;
+
+	private static final ConcurrentMap<OpenCLSettings, ConcurrentMap<Class<? extends Number>, Scan<? extends Number>>> instances
+			= new ConcurrentHashMap<>();
+	private static final Map<Class<? extends Number>, String> types = new HashMap<>();
+	private static final Map<Class<? extends Number>, Integer> sizes = new HashMap<>();
+	static {
+		types.put(Integer.class, "int");
+		sizes.put(Integer.class, 4);
+		types.put(Long.class, "long");
+		sizes.put(Long.class, 8);
+		types.put(Float.class, "float");
+		sizes.put(Float.class, 4);
+		types.put(Double.class, "double");
+		sizes.put(Double.class, 8);
+	}
+
+	private final OpenCLSettings settings;
+	private final CommandQueue clCommandQueue;
+	private final int elementSize;
+	private final Kernel scanBlocksKernel;
+	private final Kernel addBlockOffsetsKernel;
+	private final int blockSize;
+	private final Kernel.LocalMem scratchValues;
+	private final Kernel.LocalMem scratchFlags;
+	/**
+	 * For every level of the recursion: the block sums, block flags and
+	 * the index of the first segment start in every block.
+	 */
+	private final List<Buffer[]> levels;
+
+	private Scan(OpenCLSettings settings, Class<T> numberType) {
+		this.settings = settings;
+		this.clCommandQueue = settings.getClCommandQueue();
+		this.elementSize = sizes.get(numberType);
+		Program program = settings.loadProgram(getProgramSource(numberType));
+		scanBlocksKernel = program.createKernel("ScanBlocks").register();
+		addBlockOffsetsKernel = program.createKernel("AddBlockOffsets").register();
+		int max = (int) Math.min(MAX_BLOCK_SIZE, scanBlocksKernel.getMaxWorkGroupSize(clCommandQueue.getDevice()));
+		blockSize = Integer.highestOneBit(max);
+		scratchValues = new Kernel.LocalMem(blockSize * elementSize);
+		scratchFlags = new Kernel.LocalMem(blockSize * 4);
+		levels = new ArrayList<>();
+	}
+
+	/**
+	 * Returns the scan instance for the specified number type and opencl settings.
+	 * @param <T> the number type
+	 * @param settings the opencl settings
+	 * @param numberType the class of the number type: Integer, Long, Float or Double
+	 * @return the scan instance
+	 */
+	public static <T extends Number> Scan<T> get(OpenCLSettings settings, Class<T> numberType) {
+		ConcurrentMap<Class<? extends Number>, Scan<? extends Number>> map = instances.get(settings);
+		if (map == null) {
+			ConcurrentMap<Class<? extends Number>, Scan<? extends Number>> map2
+					= instances.putIfAbsent(settings, map = new ConcurrentHashMap<>());
+			if (map2 != null) {
+				map = map2;
+			}
+		}
+		Scan<? extends Number> scan = map.get(numberType);
+		if (scan == null) {
+			//the program is cached by the settings, a second instance only creates kernels
+			Scan<? extends Number> scan2 = map.putIfAbsent(numberType, scan = new Scan<>(settings, numberType));
+			if (scan2 != null) {
+				scan = scan2;
+			}
+		}
+		@SuppressWarnings("unchecked")
+		Scan<T> s = (Scan<T>) scan;
+		return s;
+	}
+
+	/**
+	 * Returns the source of the program that is used for the specified number type.
+	 * @param numberType the class of the number type
+	 * @return the program source
+	 */
+	public static ProgramSource getProgramSource(Class<? extends Number> numberType) {
+		String type = types.get(numberType);
+		if (type == null) {
+			throw new UnsupportedOperationException("Unsupported number type "+numberType);
+		}
+		StringBuilder includes = new StringBuilder();
+		if (numberType == Double.class) {
+			includes.append("#pragma OPENCL EXTENSION cl_khr_fp64 : enable\n");
+		}
+		includes.append("#define TYPE ").append(type).append("\n\n");
+		return new ProgramSource(Scan.class.getName() + "-" + numberType.getSimpleName(),
+				includes.toString(), null, FILE);
+	}
+
+	/**
+	 * Computes the inclusive scan {@code out[i] = in[0] + ... + in[i]}.
+	 * @param in the input buffer
+	 * @param out the output buffer, can be the input buffer
+	 * @param size the count of elements
+	 */
+	public void inclusive(Buffer in, Buffer out, long size) {
+		scan(in, out, null, true, size);
+	}
+
+	/**
+	 * Computes the exclusive scan {@code out[i] = in[0] + ... + in[i-1]}.
+	 * @param in the input buffer
+	 * @param out the output buffer, can be the input buffer
+	 * @param size the count of elements
+	 */
+	public void exclusive(Buffer in, Buffer out, long size) {
+		scan(in, out, null, false, size);
+	}
+
+	/**
+	 * Computes the inclusive scan per segment. Every element with a nonzero
+	 * flag starts a new segment.
+	 * @param in the input buffer
+	 * @param flags the int buffer with the segment flags
+	 * @param out the output buffer, can be the input buffer
+	 * @param size the count of elements
+	 */
+	public void segmentedInclusive(Buffer in, Buffer flags, Buffer out, long size) {
+		scan(in, out, flags, true, size);
+	}
+
+	/**
+	 * Computes the exclusive scan per segment. Every element with a nonzero
+	 * flag starts a new segment, its output is zero.
+	 * @param in the input buffer
+	 * @param flags the int buffer with the segment flags
+	 * @param out the output buffer, can be the input buffer
+	 * @param size the count of elements
+	 */
+	public void segmentedExclusive(Buffer in, Buffer flags, Buffer out, long size) {
+		scan(in, out, flags, false, size);
+	}
+
+	/**
+	 * Performs the scan.
+	 * @param in the input buffer
+	 * @param out the output buffer, can be the input buffer
+	 * @param flags the int buffer with the segment flags, {@code null} for an unsegmented scan
+	 * @param inclusive {@code true} for an inclusive scan, {@code false} for an exclusive scan
+	 * @param size the count of elements
+	 */
+	public void scan(Buffer in, Buffer out, Buffer flags, boolean inclusive, long size) {
+		if (size <= 0) {
+			return;
+		}
+		//the kernel arguments and the block sums of the levels are shared,
+		//the queue is in-order, so the scans only must not be enqueued interleaved
+		synchronized (this) {
+			scan(0, in, out, flags, inclusive, size);
+		}
+	}
+
+	private Buffer[] getLevel(int level, long numBlocks) {
+		while (levels.size() <= level) {
+			levels.add(new Buffer[3]);
+		}
+		Buffer[] buffers = levels.get(level);
+		BufferPool pool = settings.getBufferPool();
+		buffers[0] = pool.ensureSize(buffers[0], numBlocks * elementSize);
+		buffers[1] = pool.ensureSize(buffers[1], numBlocks * 4L);
+		buffers[2] = pool.ensureSize(buffers[2], numBlocks * 4L);
+		return buffers;
+	}
+
+	private void scan(int level, Buffer in, Buffer out, Buffer flags, boolean inclusive, long n) {
+		long numBlocks = (n + blockSize - 1) / blockSize;
+		Buffer[] buffers = getLevel(level, numBlocks);
+		Kernel.WorkSize globalSize = new Kernel.WorkSize(numBlocks * blockSize);
+		Kernel.WorkSize localSize = new Kernel.WorkSize(blockSize);
+		scanBlocksKernel.Run2NoEvent(clCommandQueue, globalSize, localSize,
+				in, out, flags == null ? buffers[1] : flags, flags == null ? 0 : 1,
+				n, inclusive ? 1 : 0, buffers[0], buffers[1], buffers[2],
+				scratchValues, scratchFlags);
+		if (numBlocks == 1) {
+			return;
+		}
+		//the carry into block b is the inclusive scan of the blocks before it
+		scan(level + 1, buffers[0], buffers[0], flags == null ? null : buffers[1], true, numBlocks);
+		addBlockOffsetsKernel.Run2NoEvent(clCommandQueue, globalSize, localSize,
+				out, buffers[0], buffers[2], n);
+	}
+}
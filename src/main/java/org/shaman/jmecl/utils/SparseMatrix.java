@@ -0,0 +1,396 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.*;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import org.shaman.jmecl.OpenCLSettings;
+import org.shaman.jmecl.ProgramSource;
+
+/**
+ * Sparse float matrices on the device and the sparse matrix - vector product.
+ * <p>
+ * Three storage formats are supported:
+ * <ul>
+ *  <li>{@link CSR}: compressed sparse rows, for arbitrary sparsity patterns.</li>
+ *  <li>{@link ELL}: ELLPACK, every row is padded to the length of the longest row.
+ *  The entries are stored column-major, so the memory accesses of neighboring
+ *  rows are coalesced. Best for rows of similar length.</li>
+ *  <li>{@link DIA}: diagonal storage, one dense plane per stored diagonal.
+ *  Best for banded matrices like the stencils of the {@link org.shaman.jmecl.eq.EquationSolver}.
+ *  </li>
+ * </ul>
+ * All formats compute {@code y = alpha * A * x + beta * y} with one work item
+ * per row. The matrices own their device buffers, call {@link #release() }
+ * when they are no longer needed.
+ *
+ * @author Sebastian Weiss
+ */
+public abstract class SparseMatrix {
+	private static final String SOURCE_FILE = "org/shaman/jmecl/utils/SparseMatrix.cl";
+	/**
+	 * The program with the sparse matrix-vector product kernels, see {@link org.shaman.jmecl.LibraryModule}.
+	 */
+	public static final ProgramSource PROGRAM_SOURCE = new ProgramSource(SparseMatrix.class.getName(), null, null, SOURCE_FILE);
+
+	/**
+	 * The storage formats
+	 */
+	public static enum Format {
+		CSR,
+		ELL,
+		DIA
+	}
+
+	protected final OpenCLSettings settings;
+	protected final CommandQueue clQueue;
+	protected final int rows;
+	protected final int cols;
+	private final Buffer[] buffers;
+	private final long deviceMemory;
+	private final Kernel kernel;
+
+	private SparseMatrix(OpenCLSettings settings, int rows, int cols, String kernelName, Buffer... buffers) {
+		this.settings = settings;
+		this.clQueue = settings.getClCommandQueue();
+		this.rows = rows;
+		this.cols = cols;
+		this.buffers = buffers;
+		long memory = 0;
+		for (Buffer b : buffers) {
+			memory += b.getSize();
+		}
+		this.deviceMemory = memory;
+		settings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER, memory);
+		this.kernel = settings.loadProgram(PROGRAM_SOURCE).createKernel(kernelName).register();
+	}
+
+	/**
+	 * @return the count of rows
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the count of columns
+	 */
+	public int getColumns() {
+		return cols;
+	}
+
+	/**
+	 * @return the storage format
+	 */
+	public abstract Format getFormat();
+
+	/**
+	 * Computes {@code y = A * x}.
+	 * @param x the input vector with {@link #getColumns() } floats
+	 * @param y the output vector with {@link #getRows() } floats, must be different from x
+	 * @return the event of the operation
+	 */
+	public Event multiply(Buffer x, Buffer y) {
+		return multiply(x, y, 1, 0);
+	}
+
+	/**
+	 * Computes {@code y = alpha * A * x + beta * y}.
+	 * If {@code beta} is zero, the previous content of y is not read.
+	 * @param x the input vector with {@link #getColumns() } floats
+	 * @param y the output vector with {@link #getRows() } floats, must be different from x
+	 * @param alpha the factor of the product
+	 * @param beta the factor of the previous output
+	 * @return the event of the operation
+	 */
+	public Event multiply(Buffer x, Buffer y, float alpha, float beta) {
+		if (x == y) {
+			throw new IllegalArgumentException("input and output vector must be different");
+		}
+		return launch(kernel, new Kernel.WorkSize(rows), x, y, alpha, beta);
+	}
+
+	/**
+	 * Launches the multiplication kernel with the format specific arguments.
+	 */
+	protected abstract Event launch(Kernel kernel, Kernel.WorkSize ws, Buffer x, Buffer y, float alpha, float beta);
+
+	/**
+	 * Releases the device buffers of this matrix.
+	 */
+	public void release() {
+		for (Buffer b : buffers) {
+			b.release();
+		}
+		kernel.release();
+		settings.getMetrics().addDeviceMemory(ComputeMetrics.EQUATION_SOLVER, -deviceMemory);
+	}
+
+	private static Buffer upload(OpenCLSettings settings, ByteBuffer data) {
+		//zero sized buffers are not allowed
+		Buffer buffer = settings.getClContext().createBuffer(Math.max(4, data.capacity())).register();
+		if (data.capacity() > 0) {
+			data.rewind();
+			buffer.write(settings.getClCommandQueue(), data);
+			settings.getMetrics().addBytesToDevice(data.capacity());
+		}
+		return buffer;
+	}
+
+	private static Buffer upload(OpenCLSettings settings, int[] data, int length) {
+		ByteBuffer bb = BufferUtils.createByteBuffer(length * 4);
+		bb.asIntBuffer().put(data, 0, length);
+		return upload(settings, bb);
+	}
+
+	private static Buffer upload(OpenCLSettings settings, float[] data, int length) {
+		ByteBuffer bb = BufferUtils.createByteBuffer(length * 4);
+		bb.asFloatBuffer().put(data, 0, length);
+		return upload(settings, bb);
+	}
+
+	private static void checkCSR(int rows, int cols, int[] rowPtr, int[] colIdx, float[] values) {
+		if (rows <= 0 || cols <= 0) {
+			throw new IllegalArgumentException("matrix dimensions must be positive");
+		}
+		if (rowPtr.length != rows + 1 || rowPtr[0] != 0) {
+			throw new IllegalArgumentException("rowPtr must contain rows+1 entries, starting with 0");
+		}
+		int nnz = rowPtr[rows];
+		if (colIdx.length < nnz || values.length < nnz) {
+			throw new IllegalArgumentException("colIdx and values must contain rowPtr[rows] entries");
+		}
+		for (int r = 0; r < rows; ++r) {
+			if (rowPtr[r + 1] < rowPtr[r]) {
+				throw new IllegalArgumentException("rowPtr must be non-decreasing");
+			}
+		}
+		for (int k = 0; k < nnz; ++k) {
+			if (colIdx[k] < 0 || colIdx[k] >= cols) {
+				throw new IllegalArgumentException("column index " + colIdx[k] + " out of bounds");
+			}
+		}
+	}
+
+	/**
+	 * Creates a matrix in CSR format.
+	 * The entries of row {@code r} are at the indices {@code rowPtr[r]} to
+	 * {@code rowPtr[r+1]-1} of {@code colIdx} and {@code values}.
+	 * @param settings the opencl settings
+	 * @param rows the count of rows
+	 * @param cols the count of columns
+	 * @param rowPtr the start of every row, {@code rows+1} entries
+	 * @param colIdx the column of every entry
+	 * @param values the value of every entry
+	 * @return the matrix
+	 */
+	public static CSR createCSR(OpenCLSettings settings, int rows, int cols, int[] rowPtr, int[] colIdx, float[] values) {
+		checkCSR(rows, cols, rowPtr, colIdx, values);
+		int nnz = rowPtr[rows];
+		return new CSR(settings, rows, cols, nnz, upload(settings, rowPtr, rows + 1),
+				upload(settings, colIdx, nnz), upload(settings, values, nnz));
+	}
+
+	/**
+	 * Creates a matrix in ELL format from a matrix given in CSR format.
+	 * @param settings the opencl settings
+	 * @param rows the count of rows
+	 * @param cols the count of columns
+	 * @param rowPtr the start of every row, {@code rows+1} entries
+	 * @param colIdx the column of every entry
+	 * @param values the value of every entry
+	 * @return the matrix
+	 * @see #createCSR(org.shaman.jmecl.OpenCLSettings, int, int, int[], int[], float[])
+	 */
+	public static ELL createELL(OpenCLSettings settings, int rows, int cols, int[] rowPtr, int[] colIdx, float[] values) {
+		checkCSR(rows, cols, rowPtr, colIdx, values);
+		int width = 0;
+		for (int r = 0; r < rows; ++r) {
+			width = Math.max(width, rowPtr[r + 1] - rowPtr[r]);
+		}
+		int[] ellCols = new int[width * rows];
+		float[] ellValues = new float[width * rows];
+		for (int r = 0; r < rows; ++r) {
+			int length = rowPtr[r + 1] - rowPtr[r];
+			for (int k = 0; k < width; ++k) {
+				//column-major
+				if (k < length) {
+					ellCols[k * rows + r] = colIdx[rowPtr[r] + k];
+					ellValues[k * rows + r] = values[rowPtr[r] + k];
+				} else {
+					ellCols[k * rows + r] = -1;
+				}
+			}
+		}
+		return new ELL(settings, rows, cols, width, upload(settings, ellCols, ellCols.length),
+				upload(settings, ellValues, ellValues.length));
+	}
+
+	/**
+	 * Creates a matrix in DIA format.
+	 * The entry {@code values[d*rows + r]} is the matrix entry in row {@code r}
+	 * and column {@code r + offsets[d]}. Entries with a column outside of
+	 * the matrix are ignored.
+	 * @param settings the opencl settings
+	 * @param rows the count of rows
+	 * @param cols the count of columns
+	 * @param offsets the offsets of the stored diagonals
+	 * @param values the entries, {@code rows} per diagonal
+	 * @return the matrix
+	 */
+	public static DIA createDIA(OpenCLSettings settings, int rows, int cols, int[] offsets, float[] values) {
+		if (rows <= 0 || cols <= 0) {
+			throw new IllegalArgumentException("matrix dimensions must be positive");
+		}
+		if (values.length < offsets.length * rows) {
+			throw new IllegalArgumentException("values must contain rows entries per diagonal");
+		}
+		return new DIA(settings, rows, cols, offsets.clone(), upload(settings, offsets, offsets.length),
+				upload(settings, values, offsets.length * rows));
+	}
+
+	/**
+	 * Creates a matrix in DIA format from the stencil planes of a regular grid,
+	 * as they are passed to {@link org.shaman.jmecl.eq.EquationSolver#setA(com.jme3.opencl.Buffer, int, int, int) }.
+	 * The planes are ordered (0,0,0), (-1,0,0), (+1,0,0), (0,-1,0), (0,+1,0)
+	 * and, in 3D, (0,0,-1), (0,0,+1), each with one float per grid cell.
+	 * The planes are copied on the device, entries that couple to a cell
+	 * outside of the grid are cleared.
+	 * @param settings the opencl settings
+	 * @param planes the stencil planes
+	 * @param resolutionX the grid resolution in x direction
+	 * @param resolutionY the grid resolution in y direction
+	 * @param resolutionZ the grid resolution in z direction, 1 in 2D
+	 * @param twoD {@code true} if the planes contain a 2D stencil (5 planes),
+	 * {@code false} for a 3D stencil (7 planes)
+	 * @return the matrix
+	 */
+	public static DIA fromStencil(OpenCLSettings settings, Buffer planes,
+			int resolutionX, int resolutionY, int resolutionZ, boolean twoD) {
+		int n = resolutionX * resolutionY * resolutionZ;
+		int[] offsets = twoD
+				? new int[]{0, -1, 1, -resolutionX, resolutionX}
+				: new int[]{0, -1, 1, -resolutionX, resolutionX, -resolutionX*resolutionY, resolutionX*resolutionY};
+		long size = 4L * n * offsets.length;
+		CommandQueue clQueue = settings.getClCommandQueue();
+		Buffer values = settings.getClContext().createBuffer(size).register();
+		planes.copyToAsync(clQueue, values, size).release();
+		Kernel kernel = settings.loadProgram(PROGRAM_SOURCE).createKernel("ClearStencilBoundary");
+		kernel.Run1NoEvent(clQueue, new Kernel.WorkSize(n), values, resolutionX, resolutionY, resolutionZ, offsets.length);
+		kernel.release();
+		return new DIA(settings, n, n, offsets, upload(settings, offsets, offsets.length), values);
+	}
+
+	/**
+	 * Compressed sparse rows.
+	 */
+	public static final class CSR extends SparseMatrix {
+		private final int nonZeros;
+		private final Buffer rowPtr;
+		private final Buffer colIdx;
+		private final Buffer values;
+
+		private CSR(OpenCLSettings settings, int rows, int cols, int nonZeros, Buffer rowPtr, Buffer colIdx, Buffer values) {
+			super(settings, rows, cols, "MultiplyCSR", rowPtr, colIdx, values);
+			this.nonZeros = nonZeros;
+			this.rowPtr = rowPtr;
+			this.colIdx = colIdx;
+			this.values = values;
+		}
+
+		@Override
+		public Format getFormat() {
+			return Format.CSR;
+		}
+
+		/**
+		 * @return the count of stored entries
+		 */
+		public int getNonZeros() {
+			return nonZeros;
+		}
+
+		@Override
+		protected Event launch(Kernel kernel, Kernel.WorkSize ws, Buffer x, Buffer y, float alpha, float beta) {
+			return kernel.Run1(clQueue, ws, rowPtr, colIdx, values, x, y, alpha, beta, rows);
+		}
+	}
+
+	/**
+	 * ELLPACK storage.
+	 */
+	public static final class ELL extends SparseMatrix {
+		private final int width;
+		private final Buffer colIdx;
+		private final Buffer values;
+
+		private ELL(OpenCLSettings settings, int rows, int cols, int width, Buffer colIdx, Buffer values) {
+			super(settings, rows, cols, "MultiplyELL", colIdx, values);
+			this.width = width;
+			this.colIdx = colIdx;
+			this.values = values;
+		}
+
+		@Override
+		public Format getFormat() {
+			return Format.ELL;
+		}
+
+		/**
+		 * @return the count of stored entries per row, including padding
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		protected Event launch(Kernel kernel, Kernel.WorkSize ws, Buffer x, Buffer y, float alpha, float beta) {
+			return kernel.Run1(clQueue, ws, colIdx, values, width, x, y, alpha, beta, rows);
+		}
+	}
+
+	/**
+	 * Diagonal storage.
+	 */
+	public static final class DIA extends SparseMatrix {
+		private final int[] offsets;
+		private final Buffer offsetsBuffer;
+		private final Buffer values;
+
+		private DIA(OpenCLSettings settings, int rows, int cols, int[] offsets, Buffer offsetsBuffer, Buffer values) {
+			super(settings, rows, cols, "MultiplyDIA", offsetsBuffer, values);
+			this.offsets = offsets;
+			this.offsetsBuffer = offsetsBuffer;
+			this.values = values;
+		}
+
+		@Override
+		public Format getFormat() {
+			return Format.DIA;
+		}
+
+		/**
+		 * @return the offsets of the stored diagonals
+		 */
+		public int[] getOffsets() {
+			return offsets.clone();
+		}
+
+		/**
+		 * The buffer with the diagonals, {@link #getRows() } floats per diagonal.
+		 * @return the values buffer
+		 */
+		public Buffer getValues() {
+			return values;
+		}
+
+		@Override
+		protected Event launch(Kernel kernel, Kernel.WorkSize ws, Buffer x, Buffer y, float alpha, float beta) {
+			return kernel.Run1(clQueue, ws, offsetsBuffer, values, offsets.length, cols, x, y, alpha, beta, rows);
+		}
+	}
+}
@@ -0,0 +1,528 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.Buffer;
+import com.jme3.opencl.CommandQueue;
+import com.jme3.opencl.Context;
+import com.jme3.opencl.Kernel;
+import com.jme3.opencl.MemoryAccess;
+import com.jme3.opencl.Program;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.shaman.jmecl.utils.RecordingContextFactory.*;
+
+/**
+ * Replays a trace recorded by {@link RecordingContextFactory} on an arbitrary
+ * OpenCL context and measures the time of every frame.
+ * <p>
+ * {@link #load(java.io.File) } compiles the programs and allocates the buffers
+ * of the trace. {@link #run(int) } then restores the initial buffer contents
+ * and executes all frames, each frame is finished with {@code clFinish()}
+ * and its wall-clock time is measured. If the context is a profiling context
+ * ({@link ProfilingContextFactory}), the per-kernel timings are collected
+ * by its profiler as well.
+ * <p>
+ * Example:
+ * <pre>
+ * Context context = ProfilingContextFactory.createProfilingContext(clContext);
+ * TraceReplayer replayer = new TraceReplayer(context, context.createQueue());
+ * replayer.load(new File("frame.cltrace"));
+ * TraceReplayer.Result result = replayer.run(10);
+ * LOG.info(result.toString());
+ * LOG.info(ProfilingContextFactory.getProfiler(context).getReport());
+ * replayer.release();
+ * </pre>
+ *
+ * @author Sebastian Weiss
+ */
+public class TraceReplayer {
+	private static final Logger LOG = Logger.getLogger(TraceReplayer.class.getName());
+
+	/**
+	 * The frame times of a replay.
+	 */
+	public static final class Result {
+		private final long[] frameTimes;
+		private final long[] sorted;
+
+		private Result(long[] frameTimes) {
+			this.frameTimes = frameTimes;
+			this.sorted = frameTimes.clone();
+			Arrays.sort(sorted);
+		}
+
+		public int getFrameCount() {
+			return frameTimes.length;
+		}
+
+		/**
+		 * @return the time of every frame in nanoseconds, in the order of execution
+		 */
+		public long[] getFrameTimes() {
+			return frameTimes.clone();
+		}
+
+		public long getTotalTime() {
+			long sum = 0;
+			for (long t : frameTimes) {
+				sum += t;
+			}
+			return sum;
+		}
+
+		public long getAverageFrameTime() {
+			return frameTimes.length == 0 ? 0 : getTotalTime() / frameTimes.length;
+		}
+
+		public long getMinFrameTime() {
+			return sorted.length == 0 ? 0 : sorted[0];
+		}
+
+		public long getMaxFrameTime() {
+			return sorted.length == 0 ? 0 : sorted[sorted.length - 1];
+		}
+
+		public long getMedianFrameTime() {
+			return sorted.length == 0 ? 0 : sorted[sorted.length / 2];
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d frames: avg=%.3fms, median=%.3fms, min=%.3fms, max=%.3fms",
+					frameTimes.length, getAverageFrameTime() / 1e6, getMedianFrameTime() / 1e6,
+					getMinFrameTime() / 1e6, getMaxFrameTime() / 1e6);
+		}
+	}
+
+	private static interface Command {
+		void execute(CommandQueue queue);
+	}
+
+	private static final class WriteCommand implements Command {
+		private final Buffer buffer;
+		private final ByteBuffer data;
+		private final long offset;
+		private final boolean blocking;
+
+		private WriteCommand(Buffer buffer, ByteBuffer data, long offset, boolean blocking) {
+			this.buffer = buffer;
+			this.data = data;
+			this.offset = offset;
+			this.blocking = blocking;
+		}
+
+		@Override
+		public void execute(CommandQueue queue) {
+			data.clear();
+			if (blocking) {
+				buffer.write(queue, data, data.capacity(), offset);
+			} else {
+				buffer.writeAsync(queue, data, data.capacity(), offset).release();
+			}
+		}
+	}
+
+	private static final class ReadCommand implements Command {
+		private final Buffer buffer;
+		private final ByteBuffer data;
+		private final long offset;
+		private final boolean blocking;
+
+		private ReadCommand(Buffer buffer, ByteBuffer data, long offset, boolean blocking) {
+			this.buffer = buffer;
+			this.data = data;
+			this.offset = offset;
+			this.blocking = blocking;
+		}
+
+		@Override
+		public void execute(CommandQueue queue) {
+			data.clear();
+			if (blocking) {
+				buffer.read(queue, data, data.capacity(), offset);
+			} else {
+				buffer.readAsync(queue, data, data.capacity(), offset).release();
+			}
+		}
+	}
+
+	private static final class CopyCommand implements Command {
+		private final Buffer src;
+		private final Buffer dest;
+		private final long size;
+		private final long srcOffset;
+		private final long destOffset;
+
+		private CopyCommand(Buffer src, Buffer dest, long size, long srcOffset, long destOffset) {
+			this.src = src;
+			this.dest = dest;
+			this.size = size;
+			this.srcOffset = srcOffset;
+			this.destOffset = destOffset;
+		}
+
+		@Override
+		public void execute(CommandQueue queue) {
+			src.copyToAsync(queue, dest, size, srcOffset, destOffset).release();
+		}
+	}
+
+	private static final class FillCommand implements Command {
+		private final Buffer buffer;
+		private final ByteBuffer pattern;
+		private final long size;
+		private final long offset;
+
+		private FillCommand(Buffer buffer, ByteBuffer pattern, long size, long offset) {
+			this.buffer = buffer;
+			this.pattern = pattern;
+			this.size = size;
+			this.offset = offset;
+		}
+
+		@Override
+		public void execute(CommandQueue queue) {
+			pattern.clear();
+			buffer.fillAsync(queue, pattern, size, offset).release();
+		}
+	}
+
+	private static final class RawArg {
+		private final ByteBuffer data;
+
+		private RawArg(ByteBuffer data) {
+			this.data = data;
+		}
+	}
+
+	private static final class LaunchCommand implements Command {
+		private final Kernel kernel;
+		private final Kernel.WorkSize globalWorkSize;
+		private final Kernel.WorkSize workGroupSize;
+		private final Object[] args;
+
+		private LaunchCommand(Kernel kernel, Kernel.WorkSize globalWorkSize, Kernel.WorkSize workGroupSize, Object[] args) {
+			this.kernel = kernel;
+			this.globalWorkSize = globalWorkSize;
+			this.workGroupSize = workGroupSize;
+			this.args = args;
+		}
+
+		@Override
+		public void execute(CommandQueue queue) {
+			kernel.setGlobalWorkSize(globalWorkSize);
+			if (workGroupSize == null) {
+				kernel.setWorkGroupSizeToNull();
+			} else {
+				kernel.setWorkGroupSize(workGroupSize);
+			}
+			for (int i = 0; i < args.length; ++i) {
+				Object arg = args[i];
+				if (arg == null) {
+					continue;
+				} else if (arg instanceof RawArg) {
+					ByteBuffer data = ((RawArg) arg).data;
+					data.clear();
+					kernel.setArg(i, data, data.capacity());
+				} else {
+					kernel.setArg(i, arg);
+				}
+			}
+			kernel.RunNoEvent(queue);
+		}
+	}
+
+	private final Context context;
+	private final CommandQueue clQueue;
+	private final Map<Integer, Program> programs;
+	private final Map<Integer, Kernel> kernels;
+	private final Map<Integer, Buffer> buffers;
+	private final List<Command> initialState;
+	private final List<List<Command>> frames;
+	private int skippedLaunches;
+
+	/**
+	 * Creates a new replayer.
+	 * @param context the context in which the trace is replayed
+	 * @param clQueue the command queue
+	 */
+	public TraceReplayer(Context context, CommandQueue clQueue) {
+		this.context = context;
+		this.clQueue = clQueue;
+		this.programs = new HashMap<>();
+		this.kernels = new HashMap<>();
+		this.buffers = new HashMap<>();
+		this.initialState = new ArrayList<>();
+		this.frames = new ArrayList<>();
+	}
+
+	/**
+	 * Loads the trace from the specified file.
+	 * @param file the trace file
+	 * @throws IOException if the file could not be read or is not a valid trace
+	 */
+	public void load(File file) throws IOException {
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			load(in);
+		}
+		LOG.log(Level.INFO, "trace {0} loaded: {1} programs, {2} kernels, {3} buffers, {4} frames",
+				new Object[]{file, programs.size(), kernels.size(), buffers.size(), frames.size()});
+	}
+
+	/**
+	 * Loads the trace from the specified stream. The programs are compiled and
+	 * the buffers are allocated, no command is executed yet.
+	 * @param stream the input stream, it is not closed
+	 * @throws IOException if the stream could not be read or is not a valid trace
+	 */
+	public void load(InputStream stream) throws IOException {
+		if (!frames.isEmpty() || !initialState.isEmpty()) {
+			throw new IllegalStateException("a trace is already loaded");
+		}
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a trace file");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported trace version " + version);
+		}
+		List<Command> current = initialState;
+		boolean end = false;
+		while (!end) {
+			byte op = in.readByte();
+			switch (op) {
+				case OP_PROGRAM: {
+					int id = in.readInt();
+					String options = in.readBoolean() ? readString(in) : null;
+					String source = readString(in);
+					Program p = context.createProgramFromSourceCode(source);
+					if (options == null) {
+						p.build("", clQueue.getDevice());
+					} else {
+						p.build(options, clQueue.getDevice());
+					}
+					programs.put(id, p.register());
+					break;
+				}
+				case OP_KERNEL: {
+					int id = in.readInt();
+					Program p = get(programs, in.readInt());
+					kernels.put(id, p.createKernel(readString(in)).register());
+					break;
+				}
+				case OP_BUFFER: {
+					int id = in.readInt();
+					long size = in.readLong();
+					MemoryAccess access = MemoryAccess.values()[in.readByte()];
+					buffers.put(id, context.createBuffer(size, access).register());
+					break;
+				}
+				case OP_WRITE: {
+					Buffer b = get(buffers, in.readInt());
+					long offset = in.readLong();
+					boolean blocking = in.readBoolean();
+					ByteBuffer data = readData(in, in.readInt());
+					current.add(new WriteCommand(b, data, offset, blocking));
+					break;
+				}
+				case OP_READ: {
+					Buffer b = get(buffers, in.readInt());
+					long size = in.readLong();
+					long offset = in.readLong();
+					boolean blocking = in.readBoolean();
+					ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+					current.add(new ReadCommand(b, data, offset, blocking));
+					break;
+				}
+				case OP_COPY: {
+					Buffer src = get(buffers, in.readInt());
+					Buffer dest = get(buffers, in.readInt());
+					current.add(new CopyCommand(src, dest, in.readLong(), in.readLong(), in.readLong()));
+					break;
+				}
+				case OP_FILL: {
+					Buffer b = get(buffers, in.readInt());
+					long size = in.readLong();
+					long offset = in.readLong();
+					ByteBuffer pattern = readData(in, in.readInt());
+					current.add(new FillCommand(b, pattern, size, offset));
+					break;
+				}
+				case OP_LAUNCH: {
+					Command c = readLaunch(in);
+					if (c != null) {
+						current.add(c);
+					}
+					break;
+				}
+				case OP_BEGIN_FRAMES:
+				case OP_FRAME:
+					if (current != initialState && !current.isEmpty()) {
+						frames.add(current);
+					}
+					current = new ArrayList<>();
+					break;
+				case OP_END:
+					if (current != initialState && !current.isEmpty()) {
+						frames.add(current);
+					}
+					end = true;
+					break;
+				default:
+					throw new IOException("unknown command " + op);
+			}
+		}
+		if (skippedLaunches > 0) {
+			LOG.log(Level.WARNING, "{0} kernel launches with unsupported arguments are skipped", skippedLaunches);
+		}
+	}
+
+	private static <T> T get(Map<Integer, T> map, int id) throws IOException {
+		T obj = map.get(id);
+		if (obj == null) {
+			throw new IOException("object " + id + " is not declared");
+		}
+		return obj;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static ByteBuffer readData(DataInputStream in, int size) throws IOException {
+		byte[] bytes = new byte[size];
+		in.readFully(bytes);
+		ByteBuffer data = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+		data.put(bytes);
+		data.clear();
+		return data;
+	}
+
+	private Command readLaunch(DataInputStream in) throws IOException {
+		Kernel kernel = get(kernels, in.readInt());
+		long[] global = new long[in.readByte()];
+		for (int i = 0; i < global.length; ++i) {
+			global[i] = in.readLong();
+		}
+		long[] local = new long[in.readByte()];
+		for (int i = 0; i < local.length; ++i) {
+			local[i] = in.readLong();
+		}
+		Object[] args = new Object[in.readShort()];
+		boolean supported = true;
+		for (int i = 0; i < args.length; ++i) {
+			byte type = in.readByte();
+			switch (type) {
+				case ARG_NONE: break;
+				case ARG_BUFFER: args[i] = get(buffers, in.readInt()); break;
+				case ARG_BYTE: args[i] = in.readByte(); break;
+				case ARG_SHORT: args[i] = in.readShort(); break;
+				case ARG_INT: args[i] = in.readInt(); break;
+				case ARG_LONG: args[i] = in.readLong(); break;
+				case ARG_FLOAT: args[i] = in.readFloat(); break;
+				case ARG_DOUBLE: args[i] = in.readDouble(); break;
+				case ARG_LOCAL_MEM: args[i] = new Kernel.LocalMem(in.readInt()); break;
+				case ARG_LOCAL_MEM_PER_ELEMENT: args[i] = new Kernel.LocalMemPerElement(in.readInt()); break;
+				case ARG_RAW: args[i] = new RawArg(readData(in, in.readInt())); break;
+				case ARG_UNSUPPORTED: supported = false; break;
+				default: throw new IOException("unknown argument type " + type);
+			}
+		}
+		if (!supported) {
+			skippedLaunches++;
+			return null;
+		}
+		return new LaunchCommand(kernel, new Kernel.WorkSize(global.length, global),
+				local.length == 0 ? null : new Kernel.WorkSize(local.length, local), args);
+	}
+
+	/**
+	 * @return the number of frames in the loaded trace
+	 */
+	public int getFrameCount() {
+		return frames.size();
+	}
+
+	/**
+	 * @return the number of kernel launches that are skipped because of unsupported arguments (images)
+	 */
+	public int getSkippedLaunches() {
+		return skippedLaunches;
+	}
+
+	/**
+	 * Writes the initial buffer contents of the trace and waits until they are uploaded.
+	 */
+	public void restore() {
+		for (Command c : initialState) {
+			c.execute(clQueue);
+		}
+		clQueue.finish();
+	}
+
+	/**
+	 * Replays all frames of the trace the specified number of times.
+	 * Before every repetition, the initial buffer contents are restored,
+	 * this is not included in the measured times.
+	 * @param repetitions the number of repetitions
+	 * @return the times of all executed frames
+	 */
+	public Result run(int repetitions) {
+		long[] times = new long[repetitions * frames.size()];
+		int index = 0;
+		for (int r = 0; r < repetitions; ++r) {
+			restore();
+			for (List<Command> frame : frames) {
+				long start = System.nanoTime();
+				for (Command c : frame) {
+					c.execute(clQueue);
+				}
+				clQueue.finish();
+				times[index++] = System.nanoTime() - start;
+			}
+		}
+		return new Result(times);
+	}
+
+	/**
+	 * Releases all programs, kernels and buffers created for the trace.
+	 */
+	public void release() {
+		for (Kernel k : kernels.values()) {
+			k.release();
+		}
+		for (Program p : programs.values()) {
+			p.release();
+		}
+		for (Buffer b : buffers.values()) {
+			b.release();
+		}
+		kernels.clear();
+		programs.clear();
+		buffers.clear();
+		initialState.clear();
+		frames.clear();
+	}
+}
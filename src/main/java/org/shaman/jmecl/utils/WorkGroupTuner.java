@@ -0,0 +1,247 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl.utils;
+
+import com.jme3.opencl.CommandQueue;
+import com.jme3.opencl.Device;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures the best work group size of kernels and stores the results in a
+ * small profile on the disk.
+ * <p>
+ * The profile maps the device, the name of the kernel and the global work size
+ * to the fastest work group size. {@link KernelLauncher}s that are created with
+ * a tuner consult the profile automatically if no explicit work group size is set.
+ * A work group size of zero means that the driver's choice was the fastest.
+ * <p>
+ * Tuning launches the kernels with their current arguments, it only needs an
+ * OpenCL device and works on CPU devices in a headless context as well.
+ * The tuner of an OpenCL context is available via
+ * {@link org.shaman.jmecl.OpenCLSettings#getWorkGroupTuner() }.
+ *
+ * @author Sebastian Weiss
+ */
+public class WorkGroupTuner {
+	private static final Logger LOG = Logger.getLogger(WorkGroupTuner.class.getName());
+	private static final int DEFAULT_REPETITIONS = 10;
+
+	/**
+	 * Callback for {@link #tune(java.lang.String, long, org.shaman.jmecl.utils.WorkGroupTuner.Benchmark, java.util.List, int) }.
+	 */
+	public static interface Benchmark {
+		/**
+		 * Enqueues the operation with the specified work group size.
+		 * @param workGroupSize the work group size, 0 if the driver should choose it
+		 */
+		void run(long workGroupSize);
+	}
+
+	private final CommandQueue clQueue;
+	private final Device device;
+	private final String devicePrefix;
+	private final File profileFile;
+	private final Properties profile;
+	private volatile int version;
+
+	/**
+	 * Creates a new tuner that stores the profile in the specified file.
+	 * Existing results are loaded from that file.
+	 * @param clQueue the command queue, its device is tuned
+	 * @param profileFile the profile file, {@code null} if the results should not be persisted
+	 */
+	public WorkGroupTuner(CommandQueue clQueue, File profileFile) {
+		this.clQueue = clQueue;
+		this.device = clQueue.getDevice();
+		this.devicePrefix = PersistentProgramCache.hash(PersistentProgramCache.createDeviceID(device)).substring(0, 12);
+		this.profileFile = profileFile;
+		this.profile = new Properties();
+		if (profileFile != null && profileFile.exists()) {
+			try (InputStream in = new FileInputStream(profileFile)) {
+				profile.load(in);
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "unable to load work group profile", ex);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new tuner without a profile file.
+	 * @param clQueue the command queue, its device is tuned
+	 */
+	public WorkGroupTuner(CommandQueue clQueue) {
+		this(clQueue, null);
+	}
+
+	private String key(String kernelName, long globalSize) {
+		return devicePrefix + "." + kernelName + "." + globalSize;
+	}
+
+	/**
+	 * The version is increased whenever a result changes.
+	 * Launchers use it to invalidate their cached work group sizes.
+	 * @return the version of the profile
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the tuned work group size for the specified kernel and global size.
+	 * @param kernelName the name of the kernel
+	 * @param globalSize the one-dimensional global work size
+	 * @return the work group size, or zero if the driver should choose it
+	 */
+	public long getWorkGroupSize(String kernelName, long globalSize) {
+		String value;
+		synchronized (profile) {
+			value = profile.getProperty(key(kernelName, globalSize));
+		}
+		if (value == null) {
+			return 0;
+		}
+		try {
+			long size = Long.parseLong(value);
+			if (size <= 0 || globalSize % size != 0) {
+				return 0;
+			}
+			return size;
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Stores the work group size for the specified kernel and global size.
+	 * @param kernelName the name of the kernel
+	 * @param globalSize the one-dimensional global work size
+	 * @param workGroupSize the work group size, or zero if the driver should choose it
+	 */
+	public void setWorkGroupSize(String kernelName, long globalSize, long workGroupSize) {
+		synchronized (profile) {
+			profile.setProperty(key(kernelName, globalSize), String.valueOf(workGroupSize));
+			version++;
+		}
+	}
+
+	/**
+	 * Computes the candidate work group sizes: zero (the driver's choice) and
+	 * all powers of two up to the specified maximum that divide the global size.
+	 * @param globalSize the global work size
+	 * @param maxWorkGroupSize the maximal work group size
+	 * @return the candidates
+	 */
+	public List<Long> getCandidates(long globalSize, long maxWorkGroupSize) {
+		List<Long> candidates = new ArrayList<>();
+		candidates.add(0L);
+		long max = Math.min(maxWorkGroupSize, device.getMaxiumWorkItemsPerGroup());
+		for (long s = 1; s <= max; s *= 2) {
+			if (globalSize % s == 0) {
+				candidates.add(s);
+			}
+		}
+		return candidates;
+	}
+
+	/**
+	 * Measures the specified candidates and stores the fastest one.
+	 * @param kernelName the name of the kernel, the key in the profile
+	 * @param globalSize the global size, the key in the profile
+	 * @param benchmark the operation to measure
+	 * @param candidates the candidate work group sizes
+	 * @param repetitions the number of repetitions per candidate
+	 * @return the fastest work group size
+	 */
+	public long tune(String kernelName, long globalSize, Benchmark benchmark, List<Long> candidates, int repetitions) {
+		long bestSize = 0;
+		long bestTime = Long.MAX_VALUE;
+		for (long candidate : candidates) {
+			//warm up
+			benchmark.run(candidate);
+			clQueue.finish();
+			long start = System.nanoTime();
+			for (int i = 0; i < repetitions; ++i) {
+				benchmark.run(candidate);
+			}
+			clQueue.finish();
+			long time = System.nanoTime() - start;
+			LOG.log(Level.FINE, "{0}, global size {1}: work group size {2} took {3}ns",
+					new Object[]{kernelName, globalSize, candidate, time / repetitions});
+			if (time < bestTime) {
+				bestTime = time;
+				bestSize = candidate;
+			}
+		}
+		LOG.log(Level.INFO, "{0}, global size {1}: best work group size is {2}",
+				new Object[]{kernelName, globalSize, bestSize});
+		setWorkGroupSize(kernelName, globalSize, bestSize);
+		return bestSize;
+	}
+
+	/**
+	 * Tunes the kernel of the specified launcher for its current global work size.
+	 * The kernel is launched several times with its current arguments,
+	 * hence all arguments must be set and the kernel should not work in-place
+	 * on data that is still needed.
+	 * Only one-dimensional launches are supported.
+	 * @param launcher the launcher
+	 * @return the fastest work group size
+	 */
+	public long tune(final KernelLauncher launcher) {
+		final long globalSize = launcher.getGlobalWorkSize();
+		final boolean explicit = launcher.hasExplicitWorkGroupSize();
+		final long oldSize = launcher.getExplicitWorkGroupSize();
+		List<Long> candidates = getCandidates(globalSize, launcher.getKernel().getMaxWorkGroupSize(device));
+		long best = tune(launcher.getKernelName(), globalSize, new Benchmark() {
+			@Override
+			public void run(long workGroupSize) {
+				if (workGroupSize > 0) {
+					launcher.setWorkGroupSize(workGroupSize);
+				} else {
+					launcher.setWorkGroupSizeToNull();
+				}
+				launcher.launch();
+			}
+		}, candidates, DEFAULT_REPETITIONS);
+		if (explicit) {
+			launcher.setWorkGroupSize(oldSize);
+		} else {
+			launcher.setWorkGroupSizeToNull();
+		}
+		return best;
+	}
+
+	/**
+	 * Writes the profile to the profile file.
+	 * Does nothing if this tuner was created without a profile file.
+	 */
+	public void save() {
+		if (profileFile == null) {
+			return;
+		}
+		File folder = profileFile.getAbsoluteFile().getParentFile();
+		if (folder != null && !folder.exists() && !folder.mkdirs()) {
+			LOG.log(Level.WARNING, "Unable to create folder {0}", folder);
+		}
+		synchronized (profile) {
+			try (OutputStream out = new FileOutputStream(profileFile)) {
+				profile.store(out, "work group sizes");
+			} catch (IOException ex) {
+				LOG.log(Level.WARNING, "unable to save work group profile", ex);
+			}
+		}
+	}
+}
@@ -1,7 +1,7 @@
 
 #import "org/shaman/jmecl/fluids/Grids.clh"
 
-__kernel void MakeRhs2D(FlagGrid_t flags, RealGrid_t rhs, MACGrid_t vel, int sizeX, int sizeY)
+__kernel void MakeRhs2D(FlagGrid_t flags, FloatGrid_t rhs, MACGrid_t vel, int sizeX, int sizeY)
 {
 	int idx = get_global_id(0);
 
@@ -20,7 +20,7 @@ __kernel void MakeRhs2D(FlagGrid_t flags, RealGrid_t rhs, MACGrid_t vel, int siz
 	rhs[idx] = set;
 }
 
-__kernel void MakeLaplaceMatrix2D(FlagGrid_t flags, RealGrid_t A0, RealGrid_t Ain, RealGrid_t Aip, RealGrid_t Ajn, RealGrid_t Ajp, int sizeX, int sizeY)
+__kernel void MakeLaplaceMatrix2D(FlagGrid_t flags, FloatGrid_t A0, FloatGrid_t Ain, FloatGrid_t Aip, FloatGrid_t Ajn, FloatGrid_t Ajp, int sizeX, int sizeY)
 {
 	int idx = get_global_id(0);
 	if ((flags[idx] & CellType_Fluid) == 0) {
@@ -47,7 +47,7 @@ __kernel void MakeLaplaceMatrix2D(FlagGrid_t flags, RealGrid_t A0, RealGrid_t Ai
 	if (pos.y<sizeY-1 && (FlagGrid_get(flags, pos+(int3)(0,1,0), dim) & CellType_Fluid)) Ajp[idx] = -1;
 }
 
-__kernel void CorrectVelocity2D(FlagGrid_t flags, MACGrid_t vel, RealGrid_t pressure, int sizeX, int sizeY)
+__kernel void CorrectVelocity2D(FlagGrid_t flags, MACGrid_t vel, FloatGrid_t pressure, int sizeX, int sizeY)
 {
 	int idx = get_global_id(0);
 	GridSize_t dim = (int3)(sizeX, sizeY, 1);
@@ -56,25 +56,25 @@ __kernel void CorrectVelocity2D(FlagGrid_t flags, MACGrid_t vel, RealGrid_t pres
 	if (flags[idx] & CellType_Fluid) 
 	{
 		if (pos.x>0 && (FlagGrid_get(flags, pos-(int3)(1,0,0), dim) & CellType_Fluid)) 
-			*MACGrid_getPointerX(vel, pos, dim) -= (pressure[idx] - RealGrid_get(pressure, pos-(int3)(1,0,0), dim));
+			MACGrid_addX(vel, pos, dim, -(pressure[idx] - FloatGrid_get(pressure, pos-(int3)(1,0,0), dim)));
 		else if (pos.x>0 && (FlagGrid_get(flags, pos-(int3)(1,0,0), dim) & CellType_Empty))
-			*MACGrid_getPointerX(vel, pos, dim) -= pressure[idx];
+			MACGrid_addX(vel, pos, dim, -pressure[idx]);
 		
 		if (pos.y>0 && (FlagGrid_get(flags, pos-(int3)(0,1,0), dim) & CellType_Fluid)) 
-			*MACGrid_getPointerY(vel, pos, dim) -= (pressure[idx] - RealGrid_get(pressure, pos-(int3)(0,1,0), dim));
+			MACGrid_addY(vel, pos, dim, -(pressure[idx] - FloatGrid_get(pressure, pos-(int3)(0,1,0), dim)));
 		else if (pos.y>0 && (FlagGrid_get(flags, pos-(int3)(0,1,0), dim) & CellType_Empty))
-			*MACGrid_getPointerY(vel, pos, dim) -= pressure[idx];
+			MACGrid_addY(vel, pos, dim, -pressure[idx]);
 	}
 	else if ((flags[idx] & CellType_Empty) && !(flags[idx] & CellType_Outflow))
 	{
 		if (pos.x>0 && (FlagGrid_get(flags, pos-(int3)(1,0,0), dim) & CellType_Fluid))
-			*MACGrid_getPointerX(vel, pos, dim) += RealGrid_get(pressure, pos-(int3)(1,0,0), dim);
+			MACGrid_addX(vel, pos, dim, FloatGrid_get(pressure, pos-(int3)(1,0,0), dim));
 		else
-			*MACGrid_getPointerX(vel, pos, dim) = 0;
+			MACGrid_setX(vel, pos, dim, 0);
 
 		if (pos.y>0 && (FlagGrid_get(flags, pos-(int3)(0,1,0), dim) & CellType_Fluid))
-			*MACGrid_getPointerY(vel, pos, dim) += RealGrid_get(pressure, pos-(int3)(0,1,0), dim);
+			MACGrid_addY(vel, pos, dim, FloatGrid_get(pressure, pos-(int3)(0,1,0), dim));
 		else
-			*MACGrid_getPointerY(vel, pos, dim) = 0;
+			MACGrid_setY(vel, pos, dim, 0);
 	}
 }
\ No newline at end of file
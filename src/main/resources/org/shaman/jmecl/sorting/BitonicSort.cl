@@ -3,12 +3,14 @@
 
 typedef KEY_TYPE key_t;
 typedef VALUE_TYPE value_t;
+//indices are 64-bit, the arrays can have more than 2^31 elements
+typedef ulong index_t;
 
 inline bool greater(key_t a, key_t b) {  //returns a<=b
 	return COMPARISON_GREATER(a, b);
 }
 
-inline void compareAndSwap(__global key_t* keys, __global value_t* values, int i, int j)
+inline void compareAndSwap(__global key_t* keys, __global value_t* values, index_t i, index_t j)
 {
 	key_t k1 = keys[i];
 	key_t k2 = keys[j];
@@ -36,13 +38,13 @@ inline void compareAndSwapS(__local key_t* keys, __local value_t* values, int i,
 
 __kernel void BitonicTrivial(__global key_t* keys, __global value_t* values, int phase, int step)
 {
-	const int idx = get_global_id(0);
+	const index_t idx = get_global_id(0);
 	//unnormalized bitonic network
-	int stepSize = 1 << (step-1);
-	int part = idx / stepSize;
-	int start = (part * 2 * stepSize) + (idx % stepSize);
-	int direction = (idx / (1 << (phase-1))) % 2;
-	int i,j;
+	index_t stepSize = ((index_t) 1) << (step-1);
+	index_t part = idx / stepSize;
+	index_t start = (part * 2 * stepSize) + (idx % stepSize);
+	int direction = (idx >> (phase-1)) & 1;
+	index_t i,j;
 	if (direction == 0) {
 		i = start;
 		j = start + stepSize;
@@ -55,10 +57,10 @@ __kernel void BitonicTrivial(__global key_t* keys, __global value_t* values, int
 
 __kernel void BitonicShared(__global key_t* keys, __global value_t* values, int phase, int step_, __local key_t* sharedKeys, __local value_t* sharedValues)
 {
-	const int idx = get_global_id(0);
+	const index_t idx = get_global_id(0);
 	const int idxl = get_local_id(0);
 	const int local_size = get_local_size(0);
-	int offset = get_group_id(0) * local_size * 2;
+	index_t offset = get_group_id(0) * (index_t) local_size * 2;
 
 	//1. load it into shared memory
 	sharedKeys[idxl] = keys[idxl + offset];
@@ -70,11 +72,11 @@ __kernel void BitonicShared(__global key_t* keys, __global value_t* values, int
 
 	//2. sort locally
 	for (int step = step_; step>=1; --step) {
-		int stepSize = 1 << (step-1);
-		int part = idx / stepSize;
-		int start = (part * 2 * stepSize) + (idx % stepSize);
-		int direction = (idx / (1 << (phase-1))) % 2;
-		int i,j;
+		index_t stepSize = ((index_t) 1) << (step-1);
+		index_t part = idx / stepSize;
+		index_t start = (part * 2 * stepSize) + (idx % stepSize);
+		int direction = (idx >> (phase-1)) & 1;
+		index_t i,j;
 		if (direction == 0) {
 			i = start;
 			j = start + stepSize;
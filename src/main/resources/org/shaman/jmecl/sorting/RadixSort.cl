@@ -16,17 +16,19 @@
 #define RADIX (1<<BITS) 
 #define WARPSIZE 32 
 #define BLOCKSIZE 256  
+// The element indices and the offsets of the blocks are 64-bit,
+// the block offsets are scanned on the host side with an exclusive scan of longs.
    
 __kernel void clBlockSort(__global uint* keyIn,  
                           __global uint* keyOut,  
                           __global uint* valIn,   
                           __global uint* valOut,  
-                          uint startbit, __global uint* blockScan, __global uint* blockOffset, uint size)  
+                          uint startbit, __global ulong* blockScan, __global uint* blockOffset, ulong size)  
 {  
-    int globalId = get_global_id(0);  
+    size_t globalId = get_global_id(0);  
     int threadid = get_local_id(0);  
-    int totalBlocks = get_num_groups(0);  
-    int blockid = get_group_id(0);  
+    size_t totalBlocks = get_num_groups(0);  
+    size_t blockid = get_group_id(0);  
   
     __local uint key[BLOCKSIZE];  
     __local uint val[BLOCKSIZE];  
@@ -111,94 +113,19 @@ __kernel void clBlockSort(__global uint* keyIn,
   
 } 
   
-__kernel void clBlockScan(__global uint4* blockScan, __global uint* scanSum, uint size)  
-{  
-    int globalId = get_global_id(0);  
-    int threadid = get_local_id(0);  
-    int blockid = get_group_id(0);  
-  
-    uint4 value4 = 0;  
-    if (globalId < size)  
-    {  
-        value4 = blockScan[globalId];  
-    }  
-  
-    __local uint prefixSum[BLOCKSIZE];  
-  
-    uint4 sum;  
-    sum.x = value4.x;  
-    sum.y = sum.x + value4.y;  
-    sum.z = sum.y + value4.z;  
-    sum.w = sum.z + value4.w;  
-    prefixSum[threadid] = sum.w;  
-    barrier(CLK_LOCAL_MEM_FENCE);  
-  
-    if (threadid == BLOCKSIZE - 1)  
-    {  
-        for (int i=1; i<BLOCKSIZE; i++)  
-        {  
-            prefixSum[i] += prefixSum[i-1];   
-        }  
-    }  
-    barrier(CLK_LOCAL_MEM_FENCE);  
-  
-    uint count = prefixSum[threadid] - sum.w;   
-    if (globalId < size)  
-    {  
-        uint4 result;  
-        result.x = count;  
-        result.y = count + sum.x;  
-        result.z = count + sum.y;  
-		result.w = count + sum.z;  
-		blockScan[globalId] = result;  
-	}  
-	barrier(CLK_LOCAL_MEM_FENCE);  
-	 
-	if (threadid == BLOCKSIZE - 1)  
-	{  
-        scanSum[blockid] = count + sum.w; // exclusive -> inclusive  
-    }  
-}  
-		 
-__kernel void clBlockPrefix(__global uint4* blockScan, __global uint* blockSum, uint size)  
-{  
-    int globalId = get_global_id(0);  
-    int threadid = get_local_id(0);  
-    int blockid = get_group_id(0);  
-  
-    __local uint prefixSum[BLOCKSIZE];  
-  
-    prefixSum[threadid] = blockSum[threadid];  
-    barrier(CLK_LOCAL_MEM_FENCE);  
-  
-    if (threadid == BLOCKSIZE - 1)  
-    {  
-        for (int i=1; i<BLOCKSIZE; i++)  
-        {  
-            prefixSum[i] += prefixSum[i-1];  
-        }  
-    }  
-    barrier(CLK_LOCAL_MEM_FENCE);  
-  
-    if (blockid > 0 && globalId < size)  
-    {  
-        blockScan[globalId] = blockScan[globalId] + prefixSum[blockid-1];  
-    }  
-}  
-  
 __kernel void clReorder(__global uint* keyIn,   
                         __global uint* keyOut,   
                         __global uint* valIn,   
                         __global uint* valOut,   
-                        __global uint* blockScan, __global uint* offsets, uint startbit, uint size)  
+                        __global ulong* blockScan, __global uint* offsets, uint startbit, ulong size)  
 {  
-    int globalId = get_global_id(0);  
+    size_t globalId = get_global_id(0);  
     int threadid = get_local_id(0);  
-    int blockid = get_group_id(0);  
-    int totalBlocks = get_num_groups(0);  
+    size_t blockid = get_group_id(0);  
+    size_t totalBlocks = get_num_groups(0);  
 	 
     __local uint blockOffset[RADIX];  
-    __local uint totalOffset[RADIX];  
+    __local ulong totalOffset[RADIX];  
   
     if (threadid < RADIX)  
     {  
@@ -215,7 +142,7 @@ __kernel void clReorder(__global uint* keyIn,
     uint key = keyIn[globalId];  
     uint val = valIn[globalId];  
     uint radix = (key >> startbit) & 0xF;  
-    uint index = totalOffset[radix] + threadid - blockOffset[radix];  
+    ulong index = totalOffset[radix] + threadid - blockOffset[radix];  
 	keyOut[index] = key;  
     valOut[index] = val;  
 }  
\ No newline at end of file
@@ -4,54 +4,91 @@
 //#define IS_FLOAT_TYPE 1/0
 //#define TYPE_MIN
 //#define TYPE_MAX
+//#define HALF_STORAGE (optional, TYPE is then float)
 
 #define SIZE_T long
 
-__kernel void Fill(__global TYPE* b, TYPE val, SIZE_T offset, SIZE_T step)
+//Access to the buffers of fill, axpy, map, reduce and statistics.
+//With HALF_STORAGE, the buffers contain half values which are converted
+//to TYPE on load and rounded on store, the computation is done in TYPE.
+#ifdef HALF_STORAGE
+#define STORAGE half
+#define LOAD(p, i) vload_half(i, p)
+#define STORE(p, i, v) vstore_half(v, i, p)
+#define LOAD4(p, i) vload_half4(i, p)
+#define STORE4(p, i, v) vstore_half4(v, i, p)
+#else
+#define STORAGE TYPE
+#define LOAD(p, i) (p)[i]
+#define STORE(p, i, v) (p)[i] = (v)
+#define LOAD4(p, i) vload4(i, p)
+#define STORE4(p, i, v) vstore4(v, i, p)
+#endif
+
+//The kernels on strided buffers loop over the elements with the stride of the
+//global work size, so the work size stays within the device limits for any size.
+#define GRID_STRIDE_LOOP(id) \
+	for (SIZE_T id = get_global_id(0); id < size; id += get_global_size(0))
+
+__kernel void Fill(__global STORAGE* b, TYPE val, SIZE_T offset, SIZE_T step, SIZE_T size)
 {
-	unsigned int id = get_global_id(0);
-	b[offset + step*id] = val;
+	GRID_STRIDE_LOOP(id)
+	{
+		STORE(b, offset + step*id, val);
+	}
 }
 
+#ifndef HALF_STORAGE
 #define CONCAT(a, b) a##b
 
 #define REORDER_TEMPLATE(type, name) \
-	__kernel void Reorder_##name (__global uint* indices, __global type *src, __global type *dst) \
+	__kernel void Reorder_##name (__global uint* indices, __global type *src, __global type *dst, SIZE_T size) \
 	{ \
-		const int idx = get_global_id(0); \
-		dst[idx] = src[indices[idx]]; \
+		GRID_STRIDE_LOOP(idx) \
+		{ \
+			dst[idx] = src[indices[idx]]; \
+		} \
 	}
 REORDER_TEMPLATE(TYPE, 1)
 REORDER_TEMPLATE(CONCAT(TYPE,2), 2)
 REORDER_TEMPLATE(CONCAT(TYPE,3), 3)
 REORDER_TEMPLATE(CONCAT(TYPE,4), 4)
 
-__kernel void FillIndices(__global TYPE* x, TYPE start, TYPE step)
+__kernel void FillIndices(__global TYPE* x, TYPE start, TYPE step, SIZE_T size)
 {
-	unsigned int id = get_global_id(0);
-	x[id] = start + id * step;
+	GRID_STRIDE_LOOP(id)
+	{
+		x[id] = start + id * step;
+	}
 }
+#endif
 
-__kernel void AXPY(TYPE a, __global TYPE* x, __global TYPE* y, __global TYPE* dest,
+__kernel void AXPY(TYPE a, __global STORAGE* x, __global STORAGE* y, __global STORAGE* dest,
 		SIZE_T offsetX, SIZE_T offsetY, SIZE_T offsetDest,
-		SIZE_T stepX, SIZE_T stepY, SIZE_T stepDest)
+		SIZE_T stepX, SIZE_T stepY, SIZE_T stepDest, SIZE_T size)
 {
-	unsigned int id = get_global_id(0);
+	GRID_STRIDE_LOOP(id)
+	{
+		TYPE xv = LOAD(x, offsetX + stepX * id);
+		TYPE yv = LOAD(y, offsetY + stepY * id);
 #if IS_FLOAT_TYPE==1
-	dest[offsetDest + stepDest * id] = fma(a, x[offsetX + stepX * id], y[offsetY + stepY * id]);
+		STORE(dest, offsetDest + stepDest * id, fma(a, xv, yv));
 #else
-	dest[offsetDest + stepDest * id] = a * x[offsetX + stepX * id] + y[offsetY + stepY * id];
+		STORE(dest, offsetDest + stepDest * id, a * xv + yv);
 #endif
+	}
 }
 
 #define MAP_TEMPLATE(op, name) \
-	__kernel void Map_##name (__global TYPE* x, TYPE arg, __global TYPE* dest, \
-			SIZE_T offsetX, SIZE_T offsetDest, SIZE_T stepX, SIZE_T stepDest){ \
-		unsigned int id = get_global_id(0); \
-		TYPE a = x[offsetX + stepX * id]; \
-		TYPE b = arg; \
-		TYPE c = op ; \
-		dest[offsetDest + stepDest * id] = c; \
+	__kernel void Map_##name (__global STORAGE* x, TYPE arg, __global STORAGE* dest, \
+			SIZE_T offsetX, SIZE_T offsetDest, SIZE_T stepX, SIZE_T stepDest, SIZE_T size){ \
+		GRID_STRIDE_LOOP(id) \
+		{ \
+			TYPE a = LOAD(x, offsetX + stepX * id); \
+			TYPE b = arg; \
+			TYPE c = op ; \
+			STORE(dest, offsetDest + stepDest * id, c); \
+		} \
 	}
 
 MAP_TEMPLATE(b, SET)
@@ -76,19 +113,105 @@ MAP_TEMPLATE((TYPE) pow((float)a, (float)b), POW)
 MAP_TEMPLATE((TYPE) pow((float)b, (float)a), POW_INV)
 #endif
 
-#define REDUCE_TEMPLATE(op1, op2, neutralElement, name) \
-	__kernel void Reduce_##name (__global TYPE* buffer, __local TYPE* scratch, __const int length, __global TYPE* result, __const int offset, __const int step) \
+//Fast paths for contiguous buffers (step == 1).
+//Every work item processes vectors of four elements in a grid-stride loop,
+//the remaining size % 4 elements are processed by the first work items.
+#define VECTOR_LOOP(body) \
+	SIZE_T vectors = size / 4; \
+	for (SIZE_T i = get_global_id(0); i < vectors; i += get_global_size(0)) \
 	{ \
-		int global_index = get_global_id(0); \
-		TYPE accumulator = neutralElement; \
-		while (global_index < length) \
+		body \
+	}
+#define TAIL(body) \
+	{ \
+		SIZE_T j = vectors * 4 + get_global_id(0); \
+		if (j < size) \
 		{ \
-			TYPE a = buffer[offset + step * global_index]; \
-			TYPE b = accumulator; \
-			accumulator = op1; \
-			global_index += get_global_size(0); \
+			body \
 		} \
-		int local_index = get_local_id(0); \
+	}
+//applies the scalar expression op to the components of the vectors x and arg to r
+#define COMPONENT(c, x, arg, r, op) { TYPE a = x.c; TYPE b = arg; r.c = op; }
+#define COMPONENTWISE(x, arg, r, op) \
+	COMPONENT(s0, x, arg, r, op) COMPONENT(s1, x, arg, r, op) \
+	COMPONENT(s2, x, arg, r, op) COMPONENT(s3, x, arg, r, op)
+
+__kernel void FillContiguous(__global STORAGE* b, TYPE val, SIZE_T offset, SIZE_T size)
+{
+	__global STORAGE* p = b + offset;
+	TYPE4 v = (TYPE4) (val);
+	VECTOR_LOOP(STORE4(p, i, v);)
+	TAIL(STORE(p, j, val);)
+}
+
+#ifndef HALF_STORAGE
+__kernel void FillIndicesContiguous(__global TYPE* x, TYPE start, TYPE step, SIZE_T size)
+{
+	VECTOR_LOOP(
+		TYPE4 r = (TYPE4) ((TYPE) (start + (4*i) * step), (TYPE) (start + (4*i+1) * step),
+				(TYPE) (start + (4*i+2) * step), (TYPE) (start + (4*i+3) * step));
+		vstore4(r, i, x);
+	)
+	TAIL(x[j] = start + j * step;)
+}
+#endif
+
+__kernel void AXPYContiguous(TYPE a, __global STORAGE* x, __global STORAGE* y, __global STORAGE* dest,
+		SIZE_T offsetX, SIZE_T offsetY, SIZE_T offsetDest, SIZE_T size)
+{
+	__global STORAGE* px = x + offsetX;
+	__global STORAGE* py = y + offsetY;
+	__global STORAGE* pd = dest + offsetDest;
+#if IS_FLOAT_TYPE==1
+	VECTOR_LOOP(STORE4(pd, i, fma((TYPE4) (a), LOAD4(px, i), LOAD4(py, i)));)
+	TAIL(STORE(pd, j, fma(a, LOAD(px, j), LOAD(py, j)));)
+#else
+	VECTOR_LOOP(STORE4(pd, i, a * LOAD4(px, i) + LOAD4(py, i));)
+	TAIL(STORE(pd, j, a * LOAD(px, j) + LOAD(py, j));)
+#endif
+}
+
+#define MAP_CONTIGUOUS_TEMPLATE(op, name) \
+	__kernel void MapContiguous_##name (__global STORAGE* x, TYPE arg, __global STORAGE* dest, \
+			SIZE_T offsetX, SIZE_T offsetDest, SIZE_T size){ \
+		__global STORAGE* px = x + offsetX; \
+		__global STORAGE* pd = dest + offsetDest; \
+		VECTOR_LOOP( \
+			TYPE4 xv = LOAD4(px, i); \
+			TYPE4 r; \
+			COMPONENTWISE(xv, arg, r, op) \
+			STORE4(pd, i, r); \
+		) \
+		TAIL( \
+			TYPE a = LOAD(px, j); \
+			TYPE b = arg; \
+			STORE(pd, j, op); \
+		) \
+	}
+
+MAP_CONTIGUOUS_TEMPLATE(b, SET)
+MAP_CONTIGUOUS_TEMPLATE(a+b, ADD)
+MAP_CONTIGUOUS_TEMPLATE(a-b, SUB)
+MAP_CONTIGUOUS_TEMPLATE(b-a, SUB_INV)
+MAP_CONTIGUOUS_TEMPLATE(a*b, MUL)
+MAP_CONTIGUOUS_TEMPLATE(a/b, DIV)
+MAP_CONTIGUOUS_TEMPLATE(b/a, DIV_INV)
+#if IS_FLOAT_TYPE==1
+MAP_CONTIGUOUS_TEMPLATE(fabs(a), ABS)
+MAP_CONTIGUOUS_TEMPLATE(exp(a), EXP)
+MAP_CONTIGUOUS_TEMPLATE(log(a)/log(b), LOG)
+MAP_CONTIGUOUS_TEMPLATE(pow(a, b), POW)
+MAP_CONTIGUOUS_TEMPLATE(pow(b, a), POW_INV)
+#else
+MAP_CONTIGUOUS_TEMPLATE(abs(a), ABS)
+MAP_CONTIGUOUS_TEMPLATE((TYPE) exp((float)a), EXP)
+MAP_CONTIGUOUS_TEMPLATE((TYPE) (log((float)a)/log((float)b)), LOG)
+MAP_CONTIGUOUS_TEMPLATE((TYPE) pow((float)a, (float)b), POW)
+MAP_CONTIGUOUS_TEMPLATE((TYPE) pow((float)b, (float)a), POW_INV)
+#endif
+
+//Reduces the accumulators of the work group in scratch, the result is in scratch[0]
+#define REDUCE_WORK_GROUP(op2) \
 		scratch[local_index] = accumulator; \
 		barrier(CLK_LOCAL_MEM_FENCE); \
 		for (int offset = get_local_size(0) / 2; offset > 0; offset = offset / 2) \
@@ -100,11 +223,60 @@ MAP_TEMPLATE((TYPE) pow((float)b, (float)a), POW_INV)
 				scratch[local_index] = op2; \
 			} \
 			barrier(CLK_LOCAL_MEM_FENCE); \
-		} \
+		}
+
+//Writes the partial result of the work group.
+//In single pass mode, the last work group to finish (detected by the atomic
+//counter) reduces the partial results in the same way as a second launch
+//with one work group would do, writes the final value and resets the counter.
+#define REDUCE_LAST_BLOCK(op2, neutralElement) \
 		if (local_index == 0) \
 		{ \
 			result[get_group_id(0)] = scratch[0]; \
+			if (singlePass) \
+			{ \
+				mem_fence(CLK_GLOBAL_MEM_FENCE); \
+				isLast = atomic_inc(counter) == get_num_groups(0) - 1; \
+			} \
+		} \
+		if (singlePass) \
+		{ \
+			barrier(CLK_LOCAL_MEM_FENCE); \
+			if (isLast) \
+			{ \
+				accumulator = neutralElement; \
+				for (int i = local_index; i < get_num_groups(0); i += get_local_size(0)) \
+				{ \
+					TYPE a = ((__global volatile TYPE*) result)[i]; \
+					TYPE b = accumulator; \
+					accumulator = op2; \
+				} \
+				REDUCE_WORK_GROUP(op2) \
+				if (local_index == 0) \
+				{ \
+					finalResult[0] = scratch[0]; \
+					*counter = 0; \
+				} \
+			} \
+		}
+
+#define REDUCE_TEMPLATE(op1, op2, neutralElement, name) \
+	__kernel void Reduce_##name (__global STORAGE* buffer, __local TYPE* scratch, __const SIZE_T length, __global TYPE* result, __const SIZE_T offset, __const SIZE_T step, \
+			__global volatile int* counter, __global TYPE* finalResult, __const int singlePass) \
+	{ \
+		__local int isLast; \
+		SIZE_T global_index = get_global_id(0); \
+		TYPE accumulator = neutralElement; \
+		while (global_index < length) \
+		{ \
+			TYPE a = LOAD(buffer, offset + step * global_index); \
+			TYPE b = accumulator; \
+			accumulator = op1; \
+			global_index += get_global_size(0); \
 		} \
+		int local_index = get_local_id(0); \
+		REDUCE_WORK_GROUP(op2) \
+		REDUCE_LAST_BLOCK(op2, neutralElement) \
 	}
 
 
@@ -141,14 +313,16 @@ REDUCE_TEMPLATE(max((TYPE) (a*a),b) , max(a,b) , TYPE_MIN, SQUARE_MAX)
 #endif
 
 #define REDUCE2_TEMPLATE(op1, op2, neutralElement, name) \
-	__kernel void Reduce2_##name (__global TYPE* buffer1, __global TYPE* buffer2, __local TYPE* scratch, __const int length, __global TYPE* result, __const int offset1, __const int step1, __const int offset2, __const int step2) \
+	__kernel void Reduce2_##name (__global STORAGE* buffer1, __global STORAGE* buffer2, __local TYPE* scratch, __const SIZE_T length, __global TYPE* result, __const SIZE_T offset1, __const SIZE_T step1, __const SIZE_T offset2, __const SIZE_T step2, \
+			__global volatile int* counter, __global TYPE* finalResult, __const int singlePass) \
 	{ \
-		int global_index = get_global_id(0); \
+		__local int isLast; \
+		SIZE_T global_index = get_global_id(0); \
 		TYPE accumulator = neutralElement; \
 		while (global_index < length) \
 		{ \
-			TYPE a = buffer1[offset1 + step1 * global_index]; \
-			TYPE b = buffer2[offset2 + step2 * global_index]; \
+			TYPE a = LOAD(buffer1, offset1 + step1 * global_index); \
+			TYPE b = LOAD(buffer2, offset2 + step2 * global_index); \
 			TYPE elem = op1; \
 			a = elem; \
 			b = accumulator; \
@@ -156,22 +330,8 @@ REDUCE_TEMPLATE(max((TYPE) (a*a),b) , max(a,b) , TYPE_MIN, SQUARE_MAX)
 			global_index += get_global_size(0); \
 		} \
 		int local_index = get_local_id(0); \
-		scratch[local_index] = accumulator; \
-		barrier(CLK_LOCAL_MEM_FENCE); \
-		for (int offset = get_local_size(0) / 2; offset > 0; offset = offset / 2) \
-		{ \
-			if (local_index < offset) \
-			{ \
-				TYPE a = scratch[local_index + offset]; \
-				TYPE b = scratch[local_index]; \
-				scratch[local_index] = op2; \
-			} \
-			barrier(CLK_LOCAL_MEM_FENCE); \
-		} \
-		if (local_index == 0) \
-		{ \
-			result[get_group_id(0)] = scratch[0]; \
-		} \
+		REDUCE_WORK_GROUP(op2) \
+		REDUCE_LAST_BLOCK(op2, neutralElement) \
 	}
 
 REDUCE2_TEMPLATE(a+b , a+b , 0, ADD_ADD)
@@ -227,3 +387,264 @@ REDUCE2_TEMPLATE(max(a,b) , a*b , 1, MAX_MUL)
 REDUCE2_TEMPLATE(max(a,b) , min(a,b) , TYPE_MAX, MAX_MIN)
 REDUCE2_TEMPLATE(max(a,b) , max(a,b) , TYPE_MIN, MAX_MAX)
 #endif
+
+//Statistics of a buffer in one pass: minimum, maximum, sum, sum of squares,
+//count of nonzero elements and the indices of the first minimum and maximum.
+//Integer sums are accumulated in long to avoid overflows.
+#if IS_FLOAT_TYPE==1
+#define STAT_ACC TYPE
+#else
+#define STAT_ACC long
+#endif
+//The values of a work item are combined with the values (mn2, ..., imx2)
+#define STAT_COMBINE(mn2, mx2, sum2, sq2, cnt2, imn2, imx2) \
+	{ \
+		TYPE _mn = mn2; TYPE _mx = mx2; SIZE_T _imn = imn2; SIZE_T _imx = imx2; \
+		if (_mn < mn || (_mn == mn && _imn < imn)) { mn = _mn; imn = _imn; } \
+		if (_mx > mx || (_mx == mx && _imx < imx)) { mx = _mx; imx = _imx; } \
+		sum += sum2; \
+		sq += sq2; \
+		cnt += cnt2; \
+	}
+
+//Reduces the statistics of the work group in scratch and scratchIdx,
+//the result is in the private variables of work item 0
+#define STAT_WORK_GROUP \
+		scratch[local_index] = mn; \
+		scratch[L + local_index] = mx; \
+		scratchAcc[local_index] = sum; \
+		scratchAcc[L + local_index] = sq; \
+		scratchIdx[local_index] = cnt; \
+		scratchIdx[L + local_index] = imn; \
+		scratchIdx[2*L + local_index] = imx; \
+		barrier(CLK_LOCAL_MEM_FENCE); \
+		for (int o = L / 2; o > 0; o = o / 2) \
+		{ \
+			if (local_index < o) \
+			{ \
+				int j = local_index + o; \
+				STAT_COMBINE(scratch[j], scratch[L + j], scratchAcc[j], scratchAcc[L + j], \
+						scratchIdx[j], scratchIdx[L + j], scratchIdx[2*L + j]) \
+				scratch[local_index] = mn; \
+				scratch[L + local_index] = mx; \
+				scratchAcc[local_index] = sum; \
+				scratchAcc[L + local_index] = sq; \
+				scratchIdx[local_index] = cnt; \
+				scratchIdx[L + local_index] = imn; \
+				scratchIdx[2*L + local_index] = imx; \
+			} \
+			barrier(CLK_LOCAL_MEM_FENCE); \
+		}
+
+//scratch: min and max per work item, scratchAcc: sum and sumSq per work item,
+//scratchIdx: count, argMin and argMax per work item.
+//partial and result are ordered by decreasing alignment, so every part is aligned
+//for all element types: the longs count, argMin, argMax, followed by
+//sum, sumSq as STAT_ACC and min, max as TYPE; in partial one block per work group.
+//The partial results are combined by the last work group to finish, as in the single pass reductions.
+__kernel void Statistics(__global STORAGE* buffer, __local TYPE* scratch, __local STAT_ACC* scratchAcc,
+		__local SIZE_T* scratchIdx, __const SIZE_T length, __const SIZE_T offset, __const SIZE_T step,
+		__global SIZE_T* partial, __global volatile int* counter, __global SIZE_T* result)
+{
+	__local int isLast;
+	int L = get_local_size(0);
+	int G = get_num_groups(0);
+	int local_index = get_local_id(0);
+	TYPE mn = TYPE_MAX;
+	TYPE mx = TYPE_MIN;
+	STAT_ACC sum = 0;
+	STAT_ACC sq = 0;
+	SIZE_T cnt = 0;
+	SIZE_T imn = length;
+	SIZE_T imx = length;
+	for (SIZE_T i = get_global_id(0); i < length; i += get_global_size(0))
+	{
+		TYPE a = LOAD(buffer, offset + step * i);
+		STAT_COMBINE(a, a, a, (STAT_ACC) a * a, (a != 0 ? 1 : 0), i, i)
+	}
+	STAT_WORK_GROUP
+	
+	__global STAT_ACC* partialAcc = (__global STAT_ACC*) (partial + 3 * G);
+	__global TYPE* partialVal = (__global TYPE*) (partialAcc + 2 * G);
+	if (local_index == 0)
+	{
+		int g = get_group_id(0);
+		partial[g] = cnt;
+		partial[G + g] = imn;
+		partial[2*G + g] = imx;
+		partialAcc[g] = sum;
+		partialAcc[G + g] = sq;
+		partialVal[g] = mn;
+		partialVal[G + g] = mx;
+		mem_fence(CLK_GLOBAL_MEM_FENCE);
+		isLast = atomic_inc(counter) == G - 1;
+	}
+	barrier(CLK_LOCAL_MEM_FENCE);
+	if (isLast)
+	{
+		__global volatile SIZE_T* vpIdx = partial;
+		__global volatile STAT_ACC* vpAcc = partialAcc;
+		__global volatile TYPE* vp = partialVal;
+		mn = TYPE_MAX;
+		mx = TYPE_MIN;
+		sum = 0;
+		sq = 0;
+		cnt = 0;
+		imn = length;
+		imx = length;
+		for (int g = local_index; g < G; g += L)
+		{
+			STAT_COMBINE(vp[g], vp[G + g], vpAcc[g], vpAcc[G + g], vpIdx[g], vpIdx[G + g], vpIdx[2*G + g])
+		}
+		STAT_WORK_GROUP
+		if (local_index == 0)
+		{
+			result[0] = cnt;
+			result[1] = imn;
+			result[2] = imx;
+			__global STAT_ACC* resultAcc = (__global STAT_ACC*) (result + 3);
+			resultAcc[0] = sum;
+			resultAcc[1] = sq;
+			__global TYPE* resultVal = (__global TYPE*) (resultAcc + 2);
+			resultVal[0] = mn;
+			resultVal[1] = mx;
+			*counter = 0;
+		}
+	}
+}
+
+#ifndef HALF_STORAGE
+//Dense matrix products.
+//A matrix is passed as pointer, offset and the strides between rows and columns,
+//the element (i, j) is at M[offset + i*rowStride + j*colStride].
+//This covers row-major and column-major layouts and their transposes.
+//If beta is zero, the previous output is not read.
+#define STORE_SCALED(p, i, sum) \
+	p[i] = beta == 0 ? alpha * (sum) : alpha * (sum) + beta * p[i];
+
+//y = alpha * A * x + beta * y with A an m x n matrix.
+//One work item per row, x is staged through local memory in tiles of the work group size.
+//Fast if neighboring rows are neighbors in memory (rowStrideA == 1).
+__kernel void GEMVRows(int m, int n, TYPE alpha,
+		__global TYPE* A, SIZE_T offsetA, SIZE_T rowStrideA, SIZE_T colStrideA,
+		__global TYPE* x, SIZE_T offsetX, SIZE_T stepX,
+		TYPE beta, __global TYPE* y, SIZE_T offsetY, SIZE_T stepY,
+		__local TYPE* tileX)
+{
+	int row = get_global_id(0);
+	int lid = get_local_id(0);
+	int L = get_local_size(0);
+	__global TYPE* a = A + offsetA + row * rowStrideA;
+	TYPE sum = 0;
+	for (int t = 0; t < n; t += L)
+	{
+		tileX[lid] = t + lid < n ? x[offsetX + (t + lid) * stepX] : 0;
+		barrier(CLK_LOCAL_MEM_FENCE);
+		if (row < m)
+		{
+			int len = min(L, n - t);
+			for (int q = 0; q < len; ++q)
+			{
+				sum += a[(t + q) * colStrideA] * tileX[q];
+			}
+		}
+		barrier(CLK_LOCAL_MEM_FENCE);
+	}
+	if (row < m)
+	{
+		STORE_SCALED(y, offsetY + row * stepY, sum)
+	}
+}
+
+//y = alpha * A * x + beta * y with A an m x n matrix.
+//One work group per row, the work items stride along the row and the partial
+//sums are reduced in local memory. The work group size must be a power of two.
+//Fast if neighboring columns are neighbors in memory (colStrideA == 1).
+__kernel void GEMVReduce(int m, int n, TYPE alpha,
+		__global TYPE* A, SIZE_T offsetA, SIZE_T rowStrideA, SIZE_T colStrideA,
+		__global TYPE* x, SIZE_T offsetX, SIZE_T stepX,
+		TYPE beta, __global TYPE* y, SIZE_T offsetY, SIZE_T stepY,
+		__local TYPE* scratch)
+{
+	int row = get_group_id(0);
+	int lid = get_local_id(0);
+	__global TYPE* a = A + offsetA + row * rowStrideA;
+	TYPE sum = 0;
+	for (int j = lid; j < n; j += get_local_size(0))
+	{
+		sum += a[j * colStrideA] * x[offsetX + j * stepX];
+	}
+	scratch[lid] = sum;
+	barrier(CLK_LOCAL_MEM_FENCE);
+	for (int s = get_local_size(0) / 2; s > 0; s >>= 1)
+	{
+		if (lid < s)
+		{
+			scratch[lid] += scratch[lid + s];
+		}
+		barrier(CLK_LOCAL_MEM_FENCE);
+	}
+	if (lid == 0)
+	{
+		STORE_SCALED(y, offsetY + row * stepY, scratch[0])
+	}
+}
+
+#define GEMM_ARGS int m, int n, int k, TYPE alpha, \
+		__global TYPE* A, SIZE_T offsetA, SIZE_T rowStrideA, SIZE_T colStrideA, SIZE_T batchStrideA, \
+		__global TYPE* B, SIZE_T offsetB, SIZE_T rowStrideB, SIZE_T colStrideB, SIZE_T batchStrideB, \
+		TYPE beta, __global TYPE* C, SIZE_T offsetC, SIZE_T rowStrideC, SIZE_T colStrideC, SIZE_T batchStrideC
+#define GEMM_BATCH(batch) \
+	A += offsetA + (batch) * batchStrideA; \
+	B += offsetB + (batch) * batchStrideB; \
+	C += offsetC + (batch) * batchStrideC;
+
+//C = alpha * A * B + beta * C with A an m x k, B a k x n and C an m x n matrix.
+//Every work group computes a square tile of C, the matching tiles of A and B
+//are staged through local memory. The third dimension is the batch index.
+__kernel void GEMMTiled(GEMM_ARGS, __local TYPE* tileA, __local TYPE* tileB)
+{
+	int T = get_local_size(0);
+	int tx = get_local_id(0);
+	int ty = get_local_id(1);
+	int col = get_global_id(0);
+	int row = get_global_id(1);
+	GEMM_BATCH(get_global_id(2))
+	TYPE sum = 0;
+	for (int t = 0; t < k; t += T)
+	{
+		tileA[ty * T + tx] = (row < m && t + tx < k) ? A[row * rowStrideA + (t + tx) * colStrideA] : 0;
+		tileB[ty * T + tx] = (t + ty < k && col < n) ? B[(t + ty) * rowStrideB + col * colStrideB] : 0;
+		barrier(CLK_LOCAL_MEM_FENCE);
+		for (int q = 0; q < T; ++q)
+		{
+			sum += tileA[ty * T + q] * tileB[q * T + tx];
+		}
+		barrier(CLK_LOCAL_MEM_FENCE);
+	}
+	if (row < m && col < n)
+	{
+		STORE_SCALED(C, row * rowStrideC + col * colStrideC, sum)
+	}
+}
+
+//The same product for matrices that are smaller than a tile:
+//one work item per element of C, the second dimension is the batch index.
+__kernel void GEMMSmall(GEMM_ARGS)
+{
+	SIZE_T idx = get_global_id(0);
+	if (idx >= (SIZE_T) m * n)
+	{
+		return;
+	}
+	int row = idx / n;
+	int col = idx - row * n;
+	GEMM_BATCH(get_global_id(1))
+	TYPE sum = 0;
+	for (int q = 0; q < k; ++q)
+	{
+		sum += A[row * rowStrideA + q * colStrideA] * B[q * rowStrideB + col * colStrideB];
+	}
+	STORE_SCALED(C, row * rowStrideC + col * colStrideC, sum)
+}
+#endif
@@ -0,0 +1,41 @@
+//An element is selected if its flag is nonzero, or zero if invert is set
+#define SELECTED(i) ((flags[i] != 0) != (invert != 0))
+
+__kernel void Predicate(__global int* flags, __global int* positions, int n, int invert)
+{
+	int idx = get_global_id(0);
+	if (idx >= n) return;
+	positions[idx] = SELECTED(idx) ? 1 : 0;
+}
+
+//positions contains the exclusive scan of the predicate
+__kernel void Count(__global int* flags, __global int* positions, int n, int invert, __global int* count)
+{
+	count[0] = positions[n-1] + (SELECTED(n-1) ? 1 : 0);
+}
+
+//Copies the selected elements of src to the front of dest, in order.
+//If partition is set, the rejected elements follow them, also in order.
+__kernel void Scatter(__global int* flags, __global int* positions, __global int* count,
+		int n, int invert, int partition, __global int* src, __global int* dest, int components)
+{
+	int idx = get_global_id(0);
+	if (idx >= n) return;
+	int target;
+	if (SELECTED(idx))
+	{
+		target = positions[idx];
+	}
+	else if (partition)
+	{
+		target = count[0] + idx - positions[idx];
+	}
+	else
+	{
+		return;
+	}
+	for (int c = 0; c < components; ++c)
+	{
+		dest[target * components + c] = src[idx * components + c];
+	}
+}
@@ -0,0 +1,83 @@
+//Histograms with privatized bins in local memory.
+//If the bins do not fit into local memory (useLocal == 0), the global bins
+//are incremented directly.
+
+//atomic add for floats, emulated with compare-and-swap
+#define ATOMIC_ADD_FLOAT_TEMPLATE(space) \
+	inline void atomicAddFloat_##space(volatile space float* p, float v) \
+	{ \
+		union { unsigned int u; float f; } oldValue, newValue; \
+		do \
+		{ \
+			oldValue.f = *p; \
+			newValue.f = oldValue.f + v; \
+		} while (atomic_cmpxchg((volatile space unsigned int*) p, oldValue.u, newValue.u) != oldValue.u); \
+	}
+ATOMIC_ADD_FLOAT_TEMPLATE(__local)
+ATOMIC_ADD_FLOAT_TEMPLATE(__global)
+
+//bin of a value in [minValue, maxValue], maxValue is included in the last bin
+#define RANGE_BIN(v) \
+		if (!(v >= minValue && v <= maxValue)) continue; \
+		int bin = min((int) ((v - minValue) * scale), bins - 1);
+
+//bin of an integer key, the mask is -1 for plain keys and bins-1 for digits
+#define KEY_BIN(v) \
+		int bin = (v >> shift) & mask; \
+		if (bin < 0 || bin >= bins) continue;
+
+#define HISTOGRAM_TEMPLATE(TYPE, binning, name, ...) \
+	__kernel void Histogram##name(__global TYPE* values, int n, __VA_ARGS__, int bins, \
+			__global int* output, int useLocal, __local int* localBins) \
+	{ \
+		int lid = get_local_id(0); \
+		if (useLocal) \
+		{ \
+			for (int i = lid; i < bins; i += get_local_size(0)) localBins[i] = 0; \
+			barrier(CLK_LOCAL_MEM_FENCE); \
+		} \
+		for (int i = get_global_id(0); i < n; i += get_global_size(0)) \
+		{ \
+			TYPE v = values[i]; \
+			binning(v) \
+			if (useLocal) atomic_inc(&localBins[bin]); \
+			else atomic_inc(&output[bin]); \
+		} \
+		if (useLocal) \
+		{ \
+			barrier(CLK_LOCAL_MEM_FENCE); \
+			for (int i = lid; i < bins; i += get_local_size(0)) \
+			{ \
+				if (localBins[i] != 0) atomic_add(&output[i], localBins[i]); \
+			} \
+		} \
+	} \
+	__kernel void WeightedHistogram##name(__global TYPE* values, __global float* weights, int n, __VA_ARGS__, int bins, \
+			__global float* output, int useLocal, __local float* localBins) \
+	{ \
+		int lid = get_local_id(0); \
+		if (useLocal) \
+		{ \
+			for (int i = lid; i < bins; i += get_local_size(0)) localBins[i] = 0; \
+			barrier(CLK_LOCAL_MEM_FENCE); \
+		} \
+		for (int i = get_global_id(0); i < n; i += get_global_size(0)) \
+		{ \
+			TYPE v = values[i]; \
+			binning(v) \
+			if (useLocal) atomicAddFloat___local(&localBins[bin], weights[i]); \
+			else atomicAddFloat___global(&output[bin], weights[i]); \
+		} \
+		if (useLocal) \
+		{ \
+			barrier(CLK_LOCAL_MEM_FENCE); \
+			for (int i = lid; i < bins; i += get_local_size(0)) \
+			{ \
+				if (localBins[i] != 0) atomicAddFloat___global(&output[i], localBins[i]); \
+			} \
+		} \
+	}
+
+HISTOGRAM_TEMPLATE(float, RANGE_BIN, RangeFloat, float minValue, float maxValue, float scale)
+HISTOGRAM_TEMPLATE(int, RANGE_BIN, RangeInt, float minValue, float maxValue, float scale)
+HISTOGRAM_TEMPLATE(int, KEY_BIN, Keys, int shift, int mask)
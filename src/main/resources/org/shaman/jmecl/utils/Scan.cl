@@ -0,0 +1,86 @@
+//Defined by the host code
+//#define TYPE int (for example)
+
+//Scans blocks of the size of a work group.
+//A segment starts at every element with a nonzero flag, the scan operator
+//works on pairs (flag, value): (f1, v1) + (f2, v2) = (f1 | f2, f2 ? v2 : v1 + v2).
+//Without flags, this is the ordinary sum.
+//For every block, the inclusive scan of the last element is written into
+//blockSums, whether the block contains a segment start into blockFlags
+//and the local index of the first segment start (or the block size) into blockFirst.
+__kernel void ScanBlocks(__global TYPE* in, __global TYPE* out, __global int* flags, int hasFlags,
+		long n, int inclusive, __global TYPE* blockSums, __global int* blockFlags, __global int* blockFirst,
+		__local TYPE* scratchValues, __local int* scratchFlags)
+{
+	long gid = get_global_id(0);
+	int lid = get_local_id(0);
+	int L = get_local_size(0);
+
+	TYPE v = gid < n ? in[gid] : 0;
+	int f = (hasFlags && gid < n) ? (flags[gid] != 0) : 0;
+	int head = f;
+	scratchValues[lid] = v;
+	scratchFlags[lid] = f;
+	barrier(CLK_LOCAL_MEM_FENCE);
+
+	for (int o = 1; o < L; o <<= 1)
+	{
+		TYPE v2 = 0;
+		int f2 = 0;
+		if (lid >= o)
+		{
+			v2 = scratchValues[lid - o];
+			f2 = scratchFlags[lid - o];
+		}
+		barrier(CLK_LOCAL_MEM_FENCE);
+		if (lid >= o)
+		{
+			if (!f)
+			{
+				v = v2 + v;
+			}
+			f = f | f2;
+			scratchValues[lid] = v;
+			scratchFlags[lid] = f;
+		}
+		barrier(CLK_LOCAL_MEM_FENCE);
+	}
+
+	if (gid < n)
+	{
+		if (inclusive)
+		{
+			out[gid] = v;
+		}
+		else
+		{
+			out[gid] = (head || lid == 0) ? 0 : scratchValues[lid - 1];
+		}
+	}
+	if (lid == L - 1)
+	{
+		blockSums[get_group_id(0)] = v;
+		blockFlags[get_group_id(0)] = f;
+	}
+	if (f && (lid == 0 || !scratchFlags[lid - 1]))
+	{
+		blockFirst[get_group_id(0)] = lid;
+	}
+	else if (!f && lid == L - 1)
+	{
+		blockFirst[get_group_id(0)] = L;
+	}
+}
+
+//Adds the inclusive scan of the previous blocks to all elements in front
+//of the first segment start of the block.
+__kernel void AddBlockOffsets(__global TYPE* out, __global TYPE* blockScan, __global int* blockFirst, long n)
+{
+	long gid = get_global_id(0);
+	long block = get_group_id(0);
+	if (block == 0 || gid >= n || get_local_id(0) >= blockFirst[block])
+	{
+		return;
+	}
+	out[gid] += blockScan[block - 1];
+}
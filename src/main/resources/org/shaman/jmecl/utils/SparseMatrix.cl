@@ -0,0 +1,77 @@
+//Sparse matrix - vector products y = alpha * A * x + beta * y.
+//One work item per row. If beta is zero, y is not read.
+
+#define SPMV_STORE(row, sum) \
+	y[row] = beta == 0 ? alpha * (sum) : alpha * (sum) + beta * y[row];
+
+//Compressed sparse rows: the entries of row r are at rowPtr[r] .. rowPtr[r+1]-1
+__kernel void MultiplyCSR(__global int* rowPtr, __global int* colIdx, __global float* values,
+		__global float* x, __global float* y, float alpha, float beta, int rows)
+{
+	int row = get_global_id(0);
+	if (row >= rows) return;
+	int end = rowPtr[row + 1];
+	float sum = 0;
+	for (int k = rowPtr[row]; k < end; ++k)
+	{
+		sum += values[k] * x[colIdx[k]];
+	}
+	SPMV_STORE(row, sum)
+}
+
+//ELLPACK: width entries per row, stored column-major (entry k of row r at k*rows + r)
+//so that neighboring work items access neighboring memory. Padding has the column -1.
+__kernel void MultiplyELL(__global int* colIdx, __global float* values, int width,
+		__global float* x, __global float* y, float alpha, float beta, int rows)
+{
+	int row = get_global_id(0);
+	if (row >= rows) return;
+	float sum = 0;
+	for (int k = 0; k < width; ++k)
+	{
+		int c = colIdx[k * rows + row];
+		if (c >= 0)
+		{
+			sum += values[k * rows + row] * x[c];
+		}
+	}
+	SPMV_STORE(row, sum)
+}
+
+//Diagonal storage: diagonal d contains A[r, r + offsets[d]] at d*rows + r
+__kernel void MultiplyDIA(__global int* offsets, __global float* values, int numDiagonals, int cols,
+		__global float* x, __global float* y, float alpha, float beta, int rows)
+{
+	int row = get_global_id(0);
+	if (row >= rows) return;
+	float sum = 0;
+	for (int d = 0; d < numDiagonals; ++d)
+	{
+		int c = row + offsets[d];
+		if (c >= 0 && c < cols)
+		{
+			sum += values[d * rows + row] * x[c];
+		}
+	}
+	SPMV_STORE(row, sum)
+}
+
+//Clears the entries of the stencil planes that couple to cells outside of the grid.
+//The planes are ordered (0,0,0), (-1,0,0), (+1,0,0), (0,-1,0), (0,+1,0), (0,0,-1), (0,0,+1)
+__kernel void ClearStencilBoundary(__global float* values, int resX, int resY, int resZ, int numDiagonals)
+{
+	int idx = get_global_id(0);
+	int n = get_global_size(0);
+	int z = idx / (resX * resY);
+	int y = (idx - z * resX * resY) / resX;
+	int x = idx - resX * (y + z * resY);
+	if (x == 0) values[n + idx] = 0;
+	if (x == resX - 1) values[2*n + idx] = 0;
+	if (y == 0) values[3*n + idx] = 0;
+	if (y == resY - 1) values[4*n + idx] = 0;
+	if (numDiagonals == 7)
+	{
+		if (z == 0) values[5*n + idx] = 0;
+		if (z == resZ - 1) values[6*n + idx] = 0;
+	}
+}
@@ -16,9 +16,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.shaman.jmecl.utils.BlasExpression;
 import org.shaman.jmecl.utils.CLBlas;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  *
@@ -200,6 +202,275 @@ public class BlasTest extends AbstractOpenCLTest {
 		}
 	}
 	
+	@Test
+	public void testFusedExpression() {
+		CLBlas<Float> blas = CLBlas.get(settings, Float.class);
+		int size = 1000;
+		Buffer x = clContext.createBuffer(size * 4);
+		Buffer y = clContext.createBuffer(size * 4);
+		Buffer z = clContext.createBuffer(size * 4);
+		blas.fillIndices(x, 0f, 1f).release();
+		blas.fill(y, 2f).release();
+		
+		//z = (2*x + y) * 0.5
+		BlasExpression e = BlasExpression.mul(
+				BlasExpression.axpy(BlasExpression.scalar(2), BlasExpression.buffer(x), BlasExpression.buffer(y)),
+				BlasExpression.scalar(0.5f));
+		blas.evaluate(e, z, size).release();
+		assertBufferEquals(z, 0, 1f, 2f, 3f, 4f);
+		
+		//the same shape with other arguments reuses the kernel, reduction in the same pass
+		e = BlasExpression.mul(
+				BlasExpression.axpy(BlasExpression.scalar(1), BlasExpression.buffer(z), BlasExpression.buffer(y)),
+				BlasExpression.scalar(-1f));
+		CLBlas.ReduceResult result = blas.evaluateReduce(e, x, CLBlas.ReduceOp.MIN, size, null);
+		assertEquals(-(size + 2), blas.getReduceResultBlocking(result), 0.0001f);
+		assertBufferEquals(x, 0, -3f, -4f, -5f);
+		
+		//custom code
+		e = BlasExpression.custom("sqrt($0)", BlasExpression.buffer(y));
+		result = blas.evaluateReduce(e, CLBlas.ReduceOp.ADD, size, result);
+		assertEquals(size * (float) Math.sqrt(2), blas.getReduceResultBlocking(result), 0.1f);
+		
+		x.release();
+		y.release();
+		z.release();
+	}
+	
+	@Test
+	public void testReduceRing() {
+		CLBlas<Integer> blas = CLBlas.get(settings, Integer.class);
+		int size = 500;
+		Buffer x = clContext.createBuffer(size * 4);
+		CLBlas<Integer>.ReduceRing ring = blas.createReduceRing(3);
+		final int[] received = new int[10];
+		for (int i=0; i<received.length; ++i) {
+			blas.fill(x, i).release();
+			blas.reduce(x, CLBlas.PreReduceOp.NONE, CLBlas.ReduceOp.ADD, ring.next());
+			ring.submit(new CLBlas.ReduceCallback<Integer>() {
+				@Override
+				public void onResult(Integer value, long index) {
+					received[(int) index] = value;
+				}
+			});
+			if (i >= 2) {
+				assertEquals(size * (i-2), (int) ring.getLaggedBlocking(2));
+			}
+		}
+		ring.flush();
+		for (int i=0; i<received.length; ++i) {
+			assertEquals(size * i, received[i]);
+		}
+		ring.release();
+		x.release();
+	}
+	
+	@Test
+	public void testReduceSinglePass() {
+		CLBlas<Float> blas = CLBlas.get(settings, Float.class);
+		Random rand = new Random(3);
+		int[] sizes = {1, 7, 256, 1000, 65537, 1 << 20};
+		CLBlas.ReduceResult result = null;
+		CLBlas.ReduceResult noEvent = new CLBlas.ReduceResult(false);
+		for (int size : sizes) {
+			Buffer x = clContext.createBuffer(size * 4);
+			Buffer y = clContext.createBuffer(size * 4);
+			blas.fillIndices(x, rand.nextFloat(), 0.001f).release();
+			blas.fill(y, rand.nextFloat()).release();
+			for (CLBlas.ReduceOp op : CLBlas.ReduceOp.values()) {
+				if (op == CLBlas.ReduceOp.MUL) {
+					continue;
+				}
+				result = blas.reduce(x, CLBlas.PreReduceOp.SQUARE, op, size, 0, 1, result, CLBlas.ReduceMode.MULTI_PASS);
+				float expected = blas.getReduceResultBlocking(result);
+				result = blas.reduce(x, CLBlas.PreReduceOp.SQUARE, op, size, 0, 1, result, CLBlas.ReduceMode.AUTO);
+				assertEquals(expected, blas.getReduceResultBlocking(result), 0);
+				blas.reduce(x, CLBlas.PreReduceOp.SQUARE, op, size, 0, 1, noEvent, CLBlas.ReduceMode.MULTI_PASS);
+				assertNull(noEvent.getEvent());
+				assertEquals(expected, blas.getReduceResultBlocking(noEvent), 0);
+				result = blas.reduce2(x, y, CLBlas.MergeOp.MUL, op, size, 0, 0, 1, 1, result, CLBlas.ReduceMode.MULTI_PASS);
+				expected = blas.getReduceResultBlocking(result);
+				result = blas.reduce2(x, y, CLBlas.MergeOp.MUL, op, size, 0, 0, 1, 1, result, CLBlas.ReduceMode.SINGLE_PASS);
+				assertEquals(expected, blas.getReduceResultBlocking(result), Math.abs(expected) * 1e-5f);
+			}
+			x.release();
+			y.release();
+		}
+	}
+	
+	@Test
+	public void testStatistics() {
+		CLBlas<Integer> blas = CLBlas.get(settings, Integer.class);
+		int size = 1000;
+		Buffer x = clContext.createBuffer(size * 4);
+		blas.fillIndices(x, -10, 1).release();
+		blas.fill(x, 500, 2, 20, 1).release(); //x[20] = x[21] = 500
+		CLBlas.StatisticsResult result = blas.statistics(x, null);
+		CLBlas.Statistics<Integer> s = blas.getStatisticsBlocking(result);
+		long sum = 0, sumSq = 0;
+		int nonZero = 0;
+		for (int i=0; i<size; ++i) {
+			int v = (i==20 || i==21) ? 500 : i - 10;
+			sum += v;
+			sumSq += v * v;
+			nonZero += v != 0 ? 1 : 0;
+		}
+		assertEquals(-10, (int) s.getMin());
+		assertEquals(0, s.getArgMin());
+		assertEquals(size - 11, (int) s.getMax());
+		assertEquals(size - 1, s.getArgMax());
+		assertEquals(sum, s.getSum().longValue());
+		assertEquals(sumSq, s.getSumOfSquares().longValue());
+		assertEquals(nonZero, s.getNonZeroCount());
+		
+		blas.fill(x, 7).release();
+		result = blas.statistics(x, result);
+		s = blas.getStatisticsBlocking(result);
+		assertEquals(7, (int) s.getMin());
+		assertEquals(0, s.getArgMin());
+		assertEquals(0, s.getArgMax());
+		assertEquals(size, s.getNonZeroCount());
+		x.release();
+		
+		//bytes: the sums exceed the element type, odd sizes must not misalign the result
+		CLBlas<Byte> blasByte = CLBlas.get(settings, Byte.class);
+		size = 1001;
+		x = clContext.createBuffer(size);
+		blasByte.fill(x, (byte) 100).release();
+		blasByte.fill(x, (byte) -3, 1, 500, 1).release(); //x[500] = -3
+		CLBlas.Statistics<Byte> sb = blasByte.getStatisticsBlocking(blasByte.statistics(x, null));
+		assertEquals(-3, (byte) sb.getMin());
+		assertEquals(500, sb.getArgMin());
+		assertEquals(100, (byte) sb.getMax());
+		assertEquals(0, sb.getArgMax());
+		assertEquals(100L * (size - 1) - 3, sb.getSum().longValue());
+		assertEquals(10000L * (size - 1) + 9, sb.getSumOfSquares().longValue());
+		assertEquals(size, sb.getNonZeroCount());
+		x.release();
+	}
+	
+	@Test
+	public void testHalfStorage() {
+		CLBlas<Float> blas = CLBlas.getHalf(settings);
+		assertEquals(2, blas.getElementSize());
+		int size = 1001;
+		Buffer x = clContext.createBuffer(size * 2);
+		Buffer y = clContext.createBuffer(size * 2);
+		blas.fill(x, 1.5f).release();
+		blas.fill(y, 0.25f).release();
+		blas.fill(y, 0.5f, size/2, 1, 2).release(); //odd elements: 0.5
+		blas.axpy(2f, x, y, y).release(); //3.25 or 3.5
+		blas.map(y, CLBlas.MapOp.MUL, 2f, y).release(); //6.5 or 7
+		CLBlas.ReduceResult result = blas.reduce(y, CLBlas.PreReduceOp.NONE, CLBlas.ReduceOp.ADD, null);
+		assertEquals(6.5f * (size - size/2) + 7f * (size/2), blas.getReduceResultBlocking(result), 0);
+		result = blas.reduce(y, CLBlas.PreReduceOp.NONE, CLBlas.ReduceOp.MIN, size, 0, 1, result, CLBlas.ReduceMode.MULTI_PASS);
+		assertEquals(6.5f, blas.getReduceResultBlocking(result), 0);
+		result = blas.reduce2(x, y, CLBlas.MergeOp.MUL, CLBlas.ReduceOp.MAX, size, result);
+		assertEquals(10.5f, blas.getReduceResultBlocking(result), 0);
+		x.release();
+		y.release();
+	}
+	
+	private Buffer createDoubleBuffer(double[] values) {
+		Buffer b = clContext.createBuffer(values.length * 8);
+		ByteBuffer buf = b.map(clCommandQueue, MappingAccess.MAP_WRITE_ONLY);
+		for (double v : values) {
+			buf.putDouble(v);
+		}
+		buf.rewind();
+		b.unmap(clCommandQueue, buf);
+		return b;
+	}
+	
+	private double[] randomMatrix(int size) {
+		double[] m = new double[size];
+		for (int i=0; i<m.length; ++i) {
+			m[i] = randInt(-5, 5);
+		}
+		return m;
+	}
+	
+	private static double get(double[] m, CLBlas.Layout layout, int rows, int cols, int i, int j) {
+		return layout == CLBlas.Layout.ROW_MAJOR ? m[i*cols + j] : m[i + j*rows];
+	}
+	
+	@Test
+	public void testMatrixProducts() {
+		CLBlas<Double> blas = CLBlas.get(settings, Double.class);
+		for (CLBlas.Layout layout : CLBlas.Layout.values()) {
+			//gemv, uses the row and the reduction kernel depending on the layout
+			int m = 70, n = 150;
+			double[] a = randomMatrix(m * n);
+			double[] x = randomMatrix(n);
+			double[] y = randomMatrix(m);
+			double[] expected = new double[m];
+			for (int i=0; i<m; ++i) {
+				double sum = 0;
+				for (int j=0; j<n; ++j) {
+					sum += get(a, layout, m, n, i, j) * x[j];
+				}
+				expected[i] = 2 * sum + y[i];
+			}
+			Buffer ab = createDoubleBuffer(a);
+			Buffer xb = createDoubleBuffer(x);
+			Buffer yb = createDoubleBuffer(y);
+			blas.gemv(layout, m, n, 2.0, ab, xb, 1.0, yb).release();
+			assertBufferEquals(yb, 0, expected);
+			ab.release();
+			xb.release();
+			yb.release();
+			
+			//gemm, tiled
+			int k = 37;
+			a = randomMatrix(m * k);
+			double[] b = randomMatrix(k * n);
+			expected = new double[m * n];
+			for (int i=0; i<m; ++i) {
+				for (int j=0; j<n; ++j) {
+					double sum = 0;
+					for (int q=0; q<k; ++q) {
+						sum += get(a, layout, m, k, i, q) * get(b, layout, k, n, q, j);
+					}
+					expected[layout == CLBlas.Layout.ROW_MAJOR ? i*n + j : i + j*m] = sum;
+				}
+			}
+			ab = createDoubleBuffer(a);
+			Buffer bb = createDoubleBuffer(b);
+			Buffer cb = clContext.createBuffer(m * n * 8);
+			blas.gemm(layout, m, n, k, 1.0, ab, bb, 0.0, cb).release();
+			assertBufferEquals(cb, 0, expected);
+			ab.release();
+			bb.release();
+			cb.release();
+			
+			//batched 4x4 matrices, small kernel
+			int batches = 100;
+			a = randomMatrix(16 * batches);
+			b = randomMatrix(16 * batches);
+			expected = new double[16 * batches];
+			for (int t=0; t<batches; ++t) {
+				for (int i=0; i<4; ++i) {
+					for (int j=0; j<4; ++j) {
+						double sum = 0;
+						for (int q=0; q<4; ++q) {
+							sum += a[16*t + (layout == CLBlas.Layout.ROW_MAJOR ? i*4 + q : i + q*4)]
+									* b[16*t + (layout == CLBlas.Layout.ROW_MAJOR ? q*4 + j : q + j*4)];
+						}
+						expected[16*t + (layout == CLBlas.Layout.ROW_MAJOR ? i*4 + j : i + j*4)] = sum;
+					}
+				}
+			}
+			ab = createDoubleBuffer(a);
+			bb = createDoubleBuffer(b);
+			cb = clContext.createBuffer(16 * batches * 8);
+			blas.gemmBatched(layout, 4, 4, 4, 1.0, ab, bb, 0.0, cb, batches).release();
+			assertBufferEquals(cb, 0, expected);
+			ab.release();
+			bb.release();
+			cb.release();
+		}
+	}
+
 	@Test
 	public void testCompile() {
 		//Initializes CLBlas for all supported data types
@@ -0,0 +1,148 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import com.jme3.opencl.*;
+import org.junit.Test;
+import org.shaman.jmecl.utils.BufferPool;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class BufferPoolTest extends AbstractOpenCLTest {
+	
+	public BufferPoolTest() {
+	}
+	
+	@Test
+	public void testBorrowAndGiveBack() {
+		BufferPool pool = new BufferPool(clContext);
+		//size classes: powers of two, at least 256 bytes
+		Buffer b1 = pool.borrow(1);
+		assertEquals(256, b1.getSize());
+		Buffer b2 = pool.borrow(257);
+		assertEquals(512, b2.getSize());
+		Buffer b3 = pool.borrow(1024);
+		assertEquals(1024, b3.getSize());
+		assertEquals(256 + 512 + 1024, pool.getAllocatedMemory());
+		assertEquals(0, pool.getRetainedMemory());
+		
+		//buffers are reused within their class
+		pool.giveBack(b2);
+		assertEquals(512, pool.getRetainedMemory());
+		assertSame(b2, pool.borrow(300));
+		assertEquals(0, pool.getRetainedMemory());
+		Buffer b4 = pool.borrow(300);
+		assertNotSame(b2, b4);
+		
+		//buffers not borrowed from the pool are rejected, even if they match a size class
+		Buffer foreign = clContext.createBuffer(1000);
+		Buffer foreignClass = clContext.createBuffer(1024);
+		try {
+			pool.giveBack(foreign);
+			fail("foreign buffer accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		try {
+			pool.giveBack(foreignClass);
+			fail("foreign buffer of a size class accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		assertEquals(0, pool.getRetainedMemory());
+		assertEquals(256 + 2*512 + 1024, pool.getAllocatedMemory());
+		foreign.release();
+		foreignClass.release();
+		pool.giveBack(null);
+		
+		pool.giveBack(b1);
+		pool.giveBack(b2);
+		pool.giveBack(b3);
+		pool.giveBack(b4);
+		assertEquals(256 + 2*512 + 1024, pool.getRetainedMemory());
+		assertEquals(pool.getRetainedMemory(), pool.getAllocatedMemory());
+		//a buffer can only be given back once
+		try {
+			pool.giveBack(b1);
+			fail("buffer given back twice");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		assertEquals(256 + 2*512 + 1024, pool.getRetainedMemory());
+		pool.clear();
+		assertEquals(0, pool.getRetainedMemory());
+		assertEquals(0, pool.getAllocatedMemory());
+	}
+	
+	@Test
+	public void testEnsureSize() {
+		BufferPool pool = new BufferPool(clContext);
+		Buffer b = pool.ensureSize(null, 100);
+		assertEquals(256, b.getSize());
+		assertSame(b, pool.ensureSize(b, 256));
+		Buffer c = pool.ensureSize(b, 257);
+		assertEquals(512, c.getSize());
+		//the small buffer went back into the pool
+		assertEquals(256, pool.getRetainedMemory());
+		assertSame(b, pool.borrow(10));
+		pool.clear();
+	}
+	
+	@Test
+	public void testTrimming() {
+		BufferPool pool = new BufferPool(clContext, 1024);
+		Buffer b1 = pool.borrow(512);
+		Buffer b2 = pool.borrow(512);
+		Buffer b3 = pool.borrow(512);
+		pool.giveBack(b1);
+		pool.giveBack(b2);
+		//over the limit, released immediately
+		pool.giveBack(b3);
+		assertEquals(1024, pool.getRetainedMemory());
+		assertEquals(1024, pool.getAllocatedMemory());
+		
+		Buffer b4 = pool.borrow(256);
+		pool.giveBack(b4);
+		assertEquals(1024, pool.getRetainedMemory());
+		pool.setMaxRetainedMemory(300);
+		assertEquals(0, pool.getRetainedMemory());
+		assertEquals(0, pool.getAllocatedMemory());
+		pool.setMaxRetainedMemory(1024);
+		pool.giveBack(pool.borrow(256));
+		pool.giveBack(pool.borrow(512));
+		//the largest buffers are released first
+		pool.setMaxRetainedMemory(300);
+		assertEquals(256, pool.getRetainedMemory());
+		pool.clear();
+	}
+	
+	@Test
+	public void testInvalidSizes() {
+		BufferPool pool = new BufferPool(clContext);
+		try {
+			pool.borrow(0);
+			fail("zero size accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		try {
+			pool.borrow(BufferPool.MAX_BUFFER_SIZE + 1);
+			fail("size above the largest class accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+		try {
+			pool.borrow(Long.MAX_VALUE);
+			fail("size above the largest class accepted");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import com.jme3.opencl.*;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.shaman.jmecl.eq.EquationSolver;
+import org.shaman.jmecl.eq.JacobiSolver;
+import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.CommandGraph;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class CommandGraphTest extends AbstractOpenCLTest {
+	private static final String SOURCE = 
+			"__kernel void AddScalar(__global float* b, float v, int n)\n"
+			+ "{\n"
+			+ "	int i = get_global_id(0);\n"
+			+ "	if (i < n) b[i] += v;\n"
+			+ "}\n";
+	
+	public CommandGraphTest() {
+	}
+	
+	private float[] filled(int n, float v) {
+		float[] a = new float[n];
+		for (int i=0; i<n; ++i) {
+			a[i] = v;
+		}
+		return a;
+	}
+
+	@Test
+	public void testPlaceholders() {
+		int n = 1000;
+		Program program = settings.loadProgramFromSourceCode("CommandGraphTest", SOURCE, null);
+		CLBlas<Float> blas = CLBlas.get(settings, Float.class);
+		Buffer b = clContext.createBuffer(n * 4);
+		Buffer c = clContext.createBuffer(n * 4);
+		blas.fill(b, 0f);
+		
+		CommandGraph graph = new CommandGraph(settings);
+		CommandGraph.Placeholder v = graph.createPlaceholder(1f);
+		Kernel.WorkSize ws = new Kernel.WorkSize(n);
+		//the second launch shares the kernel object of the first one
+		graph.addKernel(program, "AddScalar", ws, b, v, n);
+		graph.addKernel(program, "AddScalar", ws, b, v, n);
+		graph.addCopy(b, c, n * 4);
+		assertEquals(3, graph.getCommandCount());
+		
+		graph.execute();
+		assertBufferEquals(c, 0, filled(n, 2));
+		//only the placeholder is evaluated again
+		v.set(0.5f);
+		graph.execute();
+		assertBufferEquals(b, 0, filled(n, 3));
+		assertBufferEquals(c, 0, filled(n, 3));
+		
+		graph.release();
+		assertEquals(0, graph.getCommandCount());
+		b.release();
+		c.release();
+	}
+	
+	@Test
+	public void testRecordSolve() {
+		int resX = 32;
+		int resY = 32;
+		float beta = 0.6f;
+		int iterations = 20;
+		JacobiSolver solver = new JacobiSolver(settings, resX, resY);
+		Buffer buf = clContext.createBuffer(resX * resY * 4);
+		CLBlas<Float> blas = CLBlas.get(settings, Float.class);
+		blas.fill(buf, 1 + 4*beta);
+		solver.setA(buf, 0, 0, 0);
+		blas.fill(buf, -beta);
+		solver.setA(buf, -1, 0, 0);
+		solver.setA(buf, 1, 0, 0);
+		solver.setA(buf, 0, -1, 0);
+		solver.setA(buf, 0, 1, 0);
+		solver.assembleMatrix();
+		blas.fillIndices(solver.getBBuffer(), 0f, 0.01f);
+		
+		//reference: direct solve
+		solver.setXToZero();
+		solver.solve(iterations, EquationSolver.ERROR_DONT_TEST);
+		float[] expected = new float[resX * resY];
+		ByteBuffer bb = solver.getXBuffer().map(clCommandQueue, MappingAccess.MAP_READ_ONLY);
+		bb.asFloatBuffer().get(expected);
+		solver.getXBuffer().unmap(clCommandQueue, bb);
+		
+		//replayed graph
+		blas.fill(solver.getXBuffer(), 1f);
+		CommandGraph graph = new CommandGraph(settings);
+		solver.recordSetXToZero(graph);
+		solver.recordSolve(graph, iterations);
+		graph.execute();
+		assertBufferEquals(solver.getXBuffer(), 0, expected);
+		
+		graph.release();
+		buf.release();
+	}
+}
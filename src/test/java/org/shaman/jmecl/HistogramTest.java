@@ -0,0 +1,169 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import com.jme3.opencl.*;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.shaman.jmecl.utils.Histogram;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class HistogramTest extends AbstractOpenCLTest {
+	
+	public HistogramTest() {
+	}
+	
+	private Buffer createIntBuffer(int[] values) {
+		ByteBuffer bb = BufferUtils.createByteBuffer(values.length * 4);
+		for (int v : values) {
+			bb.putInt(v);
+		}
+		bb.rewind();
+		Buffer b = clContext.createBuffer(values.length * 4);
+		b.write(clCommandQueue, bb);
+		return b;
+	}
+	
+	private Buffer createFloatBuffer(float[] values) {
+		ByteBuffer bb = BufferUtils.createByteBuffer(values.length * 4);
+		for (float v : values) {
+			bb.putFloat(v);
+		}
+		bb.rewind();
+		Buffer b = clContext.createBuffer(values.length * 4);
+		b.write(clCommandQueue, bb);
+		return b;
+	}
+
+	@Test
+	public void testRange() {
+		Histogram histogram = new Histogram(settings);
+		int n = 20000;
+		int bins = 10;
+		//multiples of 0.25 in [-2, 12], the bin width is 1: no rounding issues
+		float[] values = new float[n];
+		float[] weights = new float[n];
+		int[] expected = new int[bins];
+		float[] expectedWeights = new float[bins];
+		for (int i=0; i<n; ++i) {
+			values[i] = randInt(-8, 49) * 0.25f;
+			weights[i] = randInt(0, 4) * 0.5f;
+		}
+		values[0] = 10; //max belongs to the last bin
+		values[1] = 0;
+		values[2] = -0.25f; //outside
+		for (int i=0; i<n; ++i) {
+			if (values[i] >= 0 && values[i] <= 10) {
+				int bin = Math.min((int) values[i], bins - 1);
+				expected[bin]++;
+				expectedWeights[bin] += weights[i];
+			}
+		}
+		Buffer vb = createFloatBuffer(values);
+		Buffer wb = createFloatBuffer(weights);
+		Buffer out = clContext.createBuffer(bins * 4);
+		histogram.range(vb, Float.class, n, 0, 10, bins, out, false).release();
+		assertBufferEquals(out, 0, expected);
+		//accumulate
+		histogram.range(vb, Float.class, n, 0, 10, bins, out, true).release();
+		int[] expected2 = new int[bins];
+		for (int i=0; i<bins; ++i) {
+			expected2[i] = 2 * expected[i];
+		}
+		assertBufferEquals(out, 0, expected2);
+		histogram.weightedRange(vb, Float.class, wb, n, 0, 10, bins, out, false).release();
+		assertBufferEquals(out, 0, expectedWeights);
+		
+		//int values in [-8, 8] over [-5, 5] with 5 bins of width 2
+		int[] intValues = new int[n];
+		expected = new int[5];
+		for (int i=0; i<n; ++i) {
+			intValues[i] = randInt(-8, 9);
+			if (intValues[i] >= -5 && intValues[i] <= 5) {
+				expected[Math.min((intValues[i] + 5) / 2, 4)]++;
+			}
+		}
+		Buffer ib = createIntBuffer(intValues);
+		histogram.range(ib, Integer.class, n, -5, 5, 5, out, false).release();
+		assertBufferEquals(out, 0, expected);
+		
+		vb.release();
+		wb.release();
+		ib.release();
+		out.release();
+	}
+	
+	@Test
+	public void testKeys() {
+		Histogram histogram = new Histogram(settings);
+		int n = 20000;
+		int[] keys = new int[n];
+		float[] weights = new float[n];
+		for (int i=0; i<n; ++i) {
+			keys[i] = randInt(-100, 1 << 12);
+			weights[i] = randInt(0, 4) * 0.5f;
+		}
+		Buffer kb = createIntBuffer(keys);
+		Buffer wb = createFloatBuffer(weights);
+		Buffer out = clContext.createBuffer((1 << 12) * 4);
+		
+		//keys: bins outside [0, bins) are skipped
+		int bins = 20;
+		int shift = 4;
+		int[] expected = new int[bins];
+		float[] expectedWeights = new float[bins];
+		for (int i=0; i<n; ++i) {
+			int bin = keys[i] >> shift;
+			if (bin >= 0 && bin < bins) {
+				expected[bin]++;
+				expectedWeights[bin] += weights[i];
+			}
+		}
+		histogram.keys(kb, n, shift, bins, out, false).release();
+		assertBufferEquals(out, 0, expected);
+		histogram.weightedKeys(kb, wb, n, shift, bins, out, false).release();
+		assertBufferEquals(out, 0, expectedWeights);
+		
+		//digits: the high bits are masked, every key is counted
+		int bits = 4;
+		expected = new int[1 << bits];
+		for (int i=0; i<n; ++i) {
+			expected[(keys[i] >> shift) & ((1 << bits) - 1)]++;
+		}
+		histogram.digits(kb, n, shift, bits, out, false).release();
+		assertBufferEquals(out, 0, expected);
+		
+		kb.release();
+		wb.release();
+		out.release();
+	}
+	
+	@Test
+	public void testGlobalBins() {
+		Histogram histogram = new Histogram(settings);
+		//more bins than fit into half of the local memory: global atomics
+		int bins = (int) (clDevice.getLocalMemorySize() / 4) + 1;
+		int n = 4 * bins;
+		int[] keys = new int[n];
+		int[] expected = new int[bins];
+		for (int i=0; i<n; ++i) {
+			keys[i] = randInt(0, bins + 10);
+			if (keys[i] < bins) {
+				expected[keys[i]]++;
+			}
+		}
+		Buffer kb = createIntBuffer(keys);
+		Buffer out = clContext.createBuffer(bins * 4);
+		histogram.keys(kb, n, 0, bins, out, false).release();
+		assertBufferEquals(out, 0, expected);
+		kb.release();
+		out.release();
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.JavaBlas;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the Java implementation of the blas routines, no OpenCL device needed.
+ * @author Sebastian Weiss
+ */
+public class JavaBlasTest {
+
+	private static ByteBuffer createBuffer(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	@Test
+	public void testFill() {
+		ByteBuffer b = createBuffer(4 * 16);
+		JavaBlas<Integer> blas = JavaBlas.get(Integer.class);
+		blas.fill(b, 5);
+		blas.fill(b, 2, 2);
+		blas.fill(b, 7, 3, 4, 2);
+		int[] expected = {2, 2, 5, 5, 7, 5, 7, 5, 7, 5, 5, 5, 5, 5, 5, 5};
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i], b.getInt(4 * i));
+		}
+	}
+
+	@Test
+	public void testAXPY() {
+		int s = 16;
+		ByteBuffer a = createBuffer(4 * s);
+		ByteBuffer b = createBuffer(4 * s);
+		ByteBuffer c = createBuffer(4 * s);
+		for (int i = 0; i < s; ++i) {
+			a.putFloat(4 * i, i);
+			b.putFloat(4 * i, 2 * (s - i));
+		}
+		JavaBlas<Float> blas = JavaBlas.get(Float.class);
+		blas.axpy(2.0f, a, b, c);
+		for (int i = 0; i < s; ++i) {
+			assertEquals(2.0f * s, c.getFloat(4 * i), 0.000001f);
+		}
+	}
+
+	@Test
+	public void testMap() {
+		JavaBlas<Double> blas = JavaBlas.get(Double.class);
+		ByteBuffer x = createBuffer(8 * 8);
+		ByteBuffer z = createBuffer(8 * 8);
+		blas.fill(x, 0.0);
+		blas.map(x, CLBlas.MapOp.SET, 5.0, z);
+		blas.map(z, CLBlas.MapOp.ADD, 1.5, x, 3);
+		blas.map(z, CLBlas.MapOp.SUB, 7.0, x, 2, 3, 3, 2, 2);
+		double[] expected = {6.5, 6.5, 6.5, -2.0, 0.0, -2.0, 0.0, 0.0};
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i], x.getDouble(8 * i), 0.00001);
+		}
+	}
+
+	@Test
+	public void testReduceParallel() {
+		JavaBlas<Long> blas = JavaBlas.get(Long.class);
+		blas.setSequentialThreshold(1000);
+		int[] sizes = {4, 25, 246, 1 << 12, 238561};
+		for (int size : sizes) {
+			ByteBuffer x = createBuffer(8 * size);
+			blas.fillIndices(x, 1L, 1L);
+			long n = size;
+			assertEquals(n * (n + 1) / 2, (long) blas.reduce(x, CLBlas.PreReduceOp.NONE, CLBlas.ReduceOp.ADD));
+			assertEquals(n, (long) blas.reduce(x, CLBlas.PreReduceOp.NONE, CLBlas.ReduceOp.MAX));
+			assertEquals(1L, (long) blas.reduce(x, CLBlas.PreReduceOp.NONE, CLBlas.ReduceOp.MIN));
+			assertEquals(n * (n + 1) * (2 * n + 1) / 6, (long) blas.dotProduct(x, x));
+		}
+	}
+}
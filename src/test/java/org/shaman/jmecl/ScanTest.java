@@ -0,0 +1,125 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import com.jme3.opencl.*;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.shaman.jmecl.utils.Compaction;
+import org.shaman.jmecl.utils.Scan;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class ScanTest extends AbstractOpenCLTest {
+	
+	public ScanTest() {
+	}
+	
+	private Buffer createIntBuffer(int[] values) {
+		ByteBuffer bb = BufferUtils.createByteBuffer(values.length * 4);
+		for (int v : values) {
+			bb.putInt(v);
+		}
+		bb.rewind();
+		Buffer b = clContext.createBuffer(values.length * 4);
+		b.write(clCommandQueue, bb);
+		return b;
+	}
+	
+	private int[] scanOnHost(int[] values, int[] flags, boolean inclusive) {
+		int[] result = new int[values.length];
+		int sum = 0;
+		for (int i=0; i<values.length; ++i) {
+			if (flags != null && flags[i] != 0) {
+				sum = 0;
+			}
+			if (inclusive) {
+				sum += values[i];
+				result[i] = sum;
+			} else {
+				result[i] = sum;
+				sum += values[i];
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testScan() {
+		Scan<Integer> scan = Scan.get(settings, Integer.class);
+		int[] sizes = {1, 17, 256, 257, 10000, 300000};
+		for (int size : sizes) {
+			int[] values = new int[size];
+			int[] flags = new int[size];
+			for (int i=0; i<size; ++i) {
+				values[i] = randInt(-10, 10);
+				flags[i] = randInt(0, 100) < 2 ? 1 : 0;
+			}
+			Buffer in = createIntBuffer(values);
+			Buffer fl = createIntBuffer(flags);
+			Buffer out = clContext.createBuffer(size * 4);
+			
+			scan.inclusive(in, out, size);
+			assertBufferEquals(out, 0, scanOnHost(values, null, true));
+			scan.exclusive(in, out, size);
+			assertBufferEquals(out, 0, scanOnHost(values, null, false));
+			scan.segmentedInclusive(in, fl, out, size);
+			assertBufferEquals(out, 0, scanOnHost(values, flags, true));
+			scan.segmentedExclusive(in, fl, out, size);
+			assertBufferEquals(out, 0, scanOnHost(values, flags, false));
+			//in-place
+			scan.inclusive(in, in, size);
+			assertBufferEquals(in, 0, scanOnHost(values, null, true));
+			
+			in.release();
+			fl.release();
+			out.release();
+		}
+	}
+	
+	@Test
+	public void testCompaction() {
+		Compaction compaction = new Compaction(settings);
+		int size = 5000;
+		int[] values = new int[2 * size];
+		int[] flags = new int[size];
+		for (int i=0; i<size; ++i) {
+			values[2*i] = i;
+			values[2*i+1] = -i;
+			flags[i] = randInt(0, 3) == 0 ? 1 : 0;
+		}
+		Buffer in = createIntBuffer(values);
+		Buffer fl = createIntBuffer(flags);
+		Buffer out = clContext.createBuffer(2 * size * 4);
+		
+		Compaction.Result result = compaction.partition(fl, false, size, null,
+				new Compaction.Payload(in, out, 2));
+		int[] expected = new int[2 * size];
+		int count = 0;
+		for (int pass=0; pass<2; ++pass) {
+			for (int i=0; i<size; ++i) {
+				if ((flags[i] != 0) == (pass == 0)) {
+					expected[2*count] = i;
+					expected[2*count+1] = -i;
+					count++;
+				}
+			}
+			if (pass == 0) {
+				assertEquals(count, result.getCountBlocking());
+			}
+		}
+		assertBufferEquals(out, 0, expected);
+		
+		in.release();
+		fl.release();
+		out.release();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import com.jme3.opencl.*;
+import com.jme3.util.BufferUtils;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.shaman.jmecl.utils.SparseMatrix;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class SparseMatrixTest extends AbstractOpenCLTest {
+
+	public SparseMatrixTest() {
+	}
+
+	private Buffer createFloatBuffer(float[] values) {
+		ByteBuffer bb = BufferUtils.createByteBuffer(values.length * 4);
+		for (float v : values) {
+			bb.putFloat(v);
+		}
+		bb.rewind();
+		Buffer b = clContext.createBuffer(values.length * 4);
+		b.write(clCommandQueue, bb);
+		return b;
+	}
+
+	@Test
+	public void testMultiply() {
+		int n = 300;
+		int[] offsets = {0, -1, 1, -17, 17};
+		//dense reference, small integers to keep the sums exact
+		float[][] dense = new float[n][n];
+		float[] dia = new float[offsets.length * n];
+		for (int d=0; d<offsets.length; ++d) {
+			for (int r=0; r<n; ++r) {
+				int c = r + offsets[d];
+				if (c >= 0 && c < n && randInt(0, 10) < 8) {
+					dense[r][c] = randInt(-5, 5);
+					dia[d*n + r] = dense[r][c];
+				}
+			}
+		}
+		int[] rowPtr = new int[n + 1];
+		int nnz = 0;
+		for (int r=0; r<n; ++r) {
+			for (int c=0; c<n; ++c) {
+				if (dense[r][c] != 0) nnz++;
+			}
+			rowPtr[r + 1] = nnz;
+		}
+		int[] colIdx = new int[nnz];
+		float[] values = new float[nnz];
+		for (int r=0, k=0; r<n; ++r) {
+			for (int c=0; c<n; ++c) {
+				if (dense[r][c] != 0) {
+					colIdx[k] = c;
+					values[k++] = dense[r][c];
+				}
+			}
+		}
+		float[] x = new float[n];
+		float[] y0 = new float[n];
+		for (int i=0; i<n; ++i) {
+			x[i] = randInt(-5, 5);
+			y0[i] = randInt(-5, 5);
+		}
+		float[] expected = new float[n];
+		for (int r=0; r<n; ++r) {
+			float sum = 0;
+			for (int c=0; c<n; ++c) {
+				sum += dense[r][c] * x[c];
+			}
+			expected[r] = 2 * sum - y0[r];
+		}
+
+		Buffer xb = createFloatBuffer(x);
+		SparseMatrix[] matrices = {
+			SparseMatrix.createCSR(settings, n, n, rowPtr, colIdx, values),
+			SparseMatrix.createELL(settings, n, n, rowPtr, colIdx, values),
+			SparseMatrix.createDIA(settings, n, n, offsets, dia)
+		};
+		for (SparseMatrix m : matrices) {
+			Buffer yb = createFloatBuffer(y0);
+			m.multiply(xb, yb, 2, -1).release();
+			assertBufferEquals(yb, 0, expected);
+			yb.release();
+			m.release();
+		}
+		xb.release();
+	}
+}
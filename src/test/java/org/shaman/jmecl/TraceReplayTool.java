@@ -0,0 +1,64 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import com.jme3.opencl.CommandQueue;
+import com.jme3.opencl.Context;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+import org.shaman.jmecl.utils.ProfilingContextFactory;
+import org.shaman.jmecl.utils.TraceReplayer;
+
+/**
+ * Headless replay of a trace recorded with
+ * {@link org.shaman.jmecl.utils.RecordingContextFactory}.
+ * <p>
+ * Usage: {@code TraceReplayTool <trace file> [repetitions] [-select]}.
+ * With {@code -select}, the platform and device are chosen on the console,
+ * otherwise the first device is used.
+ * The frame times and the per-kernel timings are printed.
+ *
+ * @author Sebastian Weiss
+ */
+public class TraceReplayTool {
+	private static final Logger LOG = Logger.getLogger(TraceReplayTool.class.getName());
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: TraceReplayTool <trace file> [repetitions] [-select]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		int repetitions = args.length > 1 && !args[1].equals("-select") ? Integer.parseInt(args[1]) : 10;
+		boolean select = args[args.length - 1].equals("-select");
+
+		HeadlessContext hc = new HeadlessContext();
+		if (!hc.createOpenCLContext(select)) {
+			LOG.severe("unable to create the OpenCL context");
+			System.exit(2);
+		}
+		Context context = ProfilingContextFactory.createProfilingContext(hc.getClContext());
+		CommandQueue queue = context.createQueue(hc.getClDevice());
+		ProfilingContextFactory.Profiler profiler = ProfilingContextFactory.getProfiler(context);
+
+		TraceReplayer replayer = new TraceReplayer(context, queue);
+		replayer.load(file);
+		//warm up, then measure
+		replayer.run(1);
+		profiler.poll();
+		profiler.reset();
+		TraceReplayer.Result result = replayer.run(repetitions);
+		profiler.poll();
+
+		System.out.println("Device: " + hc.getClDevice().getName());
+		System.out.println(result);
+		System.out.println(profiler.getReport());
+		replayer.release();
+		queue.release();
+		context.release();
+	}
+}
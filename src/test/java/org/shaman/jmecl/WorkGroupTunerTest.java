@@ -0,0 +1,89 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import org.junit.Test;
+import org.shaman.jmecl.eq.JacobiSolver;
+import org.shaman.jmecl.utils.WorkGroupTuner;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Sebastian Weiss
+ */
+public class WorkGroupTunerTest extends AbstractOpenCLTest {
+	
+	public WorkGroupTunerTest() {
+	}
+	
+	@Test
+	public void testProfileRoundTrip() throws IOException {
+		File file = File.createTempFile("workgroups", ".properties");
+		file.delete();
+		try {
+			WorkGroupTuner tuner = new WorkGroupTuner(clCommandQueue, file);
+			int version = tuner.getVersion();
+			tuner.setWorkGroupSize("Kernel", 1024, 64);
+			tuner.setWorkGroupSize("Kernel", 1000, 8);
+			tuner.setWorkGroupSize("Other", 1024, 0);
+			assertEquals(version + 3, tuner.getVersion());
+			tuner.save();
+			
+			//key scheme: device hash, kernel name, global size
+			Properties props = new Properties();
+			try (InputStream in = new FileInputStream(file)) {
+				props.load(in);
+			}
+			assertEquals(3, props.size());
+			String prefix = null;
+			for (String key : props.stringPropertyNames()) {
+				String p = key.substring(0, key.indexOf('.'));
+				assertTrue(prefix == null || prefix.equals(p));
+				prefix = p;
+			}
+			assertEquals("64", props.getProperty(prefix + ".Kernel.1024"));
+			assertEquals("8", props.getProperty(prefix + ".Kernel.1000"));
+			//results of other devices are ignored
+			props.setProperty("000000000000.Kernel.512", "32");
+			try (OutputStream out = new FileOutputStream(file)) {
+				props.store(out, null);
+			}
+			
+			WorkGroupTuner loaded = new WorkGroupTuner(clCommandQueue, file);
+			assertEquals(64, loaded.getWorkGroupSize("Kernel", 1024));
+			assertEquals(8, loaded.getWorkGroupSize("Kernel", 1000));
+			assertEquals(0, loaded.getWorkGroupSize("Other", 1024));
+			assertEquals(0, loaded.getWorkGroupSize("Kernel", 2048));
+			assertEquals(0, loaded.getWorkGroupSize("Kernel", 512));
+			//sizes that don't divide the global size are not used
+			loaded.setWorkGroupSize("Kernel", 1000, 64);
+			assertEquals(0, loaded.getWorkGroupSize("Kernel", 1000));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testHeadlessTuning() {
+		WorkGroupTuner tuner = new WorkGroupTuner(clCommandQueue);
+		settings.setWorkGroupTuner(tuner);
+		JacobiSolver solver = new JacobiSolver(settings, 32, 32);
+		int version = tuner.getVersion();
+		solver.tuneWorkGroupSize(tuner);
+		assertTrue(tuner.getVersion() > version);
+		long size = tuner.getWorkGroupSize("Iteration2D", 32 * 32);
+		assertTrue(size >= 0);
+		assertTrue(size == 0 || (32 * 32) % size == 0);
+	}
+}
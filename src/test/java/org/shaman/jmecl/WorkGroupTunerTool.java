@@ -0,0 +1,62 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.shaman.jmecl;
+
+import com.jme3.asset.DesktopAssetManager;
+import com.jme3.opencl.CommandQueue;
+import java.io.File;
+import java.util.logging.Logger;
+import org.shaman.jmecl.eq.JacobiSolver;
+import org.shaman.jmecl.utils.CLBlas;
+import org.shaman.jmecl.utils.WorkGroupTuner;
+
+/**
+ * Headless work group tuning, e.g. on a CI machine.
+ * <p>
+ * Usage: {@code WorkGroupTunerTool <profile file> [resolution] [-select]}.
+ * With {@code -select}, the platform and device are chosen on the console,
+ * otherwise the first device is used.
+ * The reductions of {@link CLBlas} and the iterations of a 2D and a 3D
+ * {@link JacobiSolver} with the specified resolution (default 128) are tuned,
+ * the results are added to the profile file.
+ *
+ * @author Sebastian Weiss
+ */
+public class WorkGroupTunerTool {
+	private static final Logger LOG = Logger.getLogger(WorkGroupTunerTool.class.getName());
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: WorkGroupTunerTool <profile file> [resolution] [-select]");
+			System.exit(1);
+		}
+		File file = new File(args[0]);
+		int resolution = args.length > 1 && !args[1].equals("-select") ? Integer.parseInt(args[1]) : 128;
+		boolean select = args[args.length - 1].equals("-select");
+
+		HeadlessContext hc = new HeadlessContext();
+		if (!hc.createOpenCLContext(select)) {
+			LOG.severe("unable to create the OpenCL context");
+			System.exit(2);
+		}
+		CommandQueue queue = hc.getClContext().createQueue(hc.getClDevice());
+		OpenCLSettings settings = new OpenCLSettings(hc.getClContext(), queue, null, new DesktopAssetManager(true));
+		WorkGroupTuner tuner = new WorkGroupTuner(queue, file);
+		settings.setWorkGroupTuner(tuner);
+
+		int size = resolution * resolution * resolution;
+		CLBlas.get(settings, Float.class).tuneReduce(tuner, size);
+		CLBlas.get(settings, Integer.class).tuneReduce(tuner, size);
+		new JacobiSolver(settings, resolution, resolution).tuneWorkGroupSize(tuner);
+		new JacobiSolver(settings, resolution, resolution, resolution).tuneWorkGroupSize(tuner);
+		tuner.save();
+
+		System.out.println("Device: " + hc.getClDevice().getName());
+		System.out.println("Profile written to " + file.getAbsolutePath());
+		queue.release();
+		hc.getClContext().release();
+	}
+}